@@ -1,12 +1,51 @@
+package university;
+
 import java.io.*;
+import java.lang.management.*;
+import java.lang.ref.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.security.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+import java.util.zip.*;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+import javax.management.*;
 
 class Course {
     private String courseCode;
     private Lecturer assignedLecturer;
-    private List<Student> enrolledStudents;
+    private Registry registry;
+    /**
+     * The seats taken: enrolled students plus seats claimed for registrations
+     * still in progress.
+     */
+    private final AtomicInteger enrolledCount = new AtomicInteger();
+    private volatile int capacity;
+    private final Waitlist waitlist = new Waitlist();
+    private int reservedSeats;
     private List<Course> prerequisites;
     private int credits;
+    private PrerequisiteGraph graph;
+    private int id = -1;
+    /**
+     * The roster keys of the enrolled students. Each registration or drop
+     * replaces the set rather than changing it, and only this course's
+     * reference, so a reader that took the set keeps a consistent roster and
+     * registrations for different courses never contend.
+     */
+    private final AtomicReference<RosterSet> roster = new AtomicReference<>(RosterSet.EMPTY);
+    /**
+     * The roster keys of the last roster that was paged, by username.
+     */
+    private volatile RosterIndex rosterIndex;
 
     /**
      * Constructor for Course.
@@ -19,709 +58,12715 @@ class Course {
     public Course(String courseCode, Lecturer assignedLecturer, List<Course> prerequisites, int credits) {
         this.courseCode = courseCode;
         this.assignedLecturer = assignedLecturer;
-        this.enrolledStudents = new ArrayList<>();
         this.prerequisites = prerequisites;
         this.credits = credits;
     }
 
     /**
-     * Enrolls a student in the course.
+     * Counts a student who has just registered for the course and lists them
+     * on its roster. Only the student side calls this, once per registration.
      *
-     * @param student The student to be enrolled.
+     * @param student   The student who registered.
+     * @param seatTaken True if the student's seat was already claimed with
+     *                  {@link #claimSeat(boolean)}, false to count it now.
      */
-    public void enrollStudent(Student student) {
-        enrolledStudents.add(student);
+    void enrollStudent(Student student, boolean seatTaken) {
+        if (!seatTaken) {
+            enrolledCount.incrementAndGet();
+        }
+        if (registry != null) {
+            registry.updateRoster(this, student, true);
+        }
     }
 
     /**
-     * Checks if a student has completed the prerequisites for the course.
+     * Stops counting a student who has dropped or completed the course and
+     * takes them off its roster. The freed seat goes to the waitlist first.
      *
-     * @param student The student to be checked.
-     * @return True if the student has completed all prerequisites, false otherwise.
+     * @param student The student who left.
      */
-    public boolean hasCompletedPrerequisites(Student student) {
-        for (Course prerequisites : prerequisites) {
-            if (!student.hasCompletedCourse(prerequisites)) {
-                return false;
-            }
+    void unenrollStudent(Student student) {
+        enrolledCount.decrementAndGet();
+        if (registry != null) {
+            registry.updateRoster(this, student, false);
         }
+        seatOpened();
+    }
 
-        return true;
+    /**
+     * Lists and counts the students who were already registered for the
+     * course before it was added to the registry, such as students kept in a
+     * record file.
+     *
+     * @param enrolled The roster keys of the students.
+     */
+    void addEnrolled(RosterSet enrolled) {
+        roster.set(enrolled);
+        enrolledCount.addAndGet(enrolled.size());
     }
 
     /**
-     * Checks if a student meets the prerequisites and credit requirements for the
-     * course.
+     * Gets the current roster of the course.
      *
-     * @param student The student to be checked.
-     * @return True if the student meets the requirements, false otherwise.
+     * @return The roster keys of the enrolled students, which never change.
      */
-    public boolean meetsPrerequisites(Student student) {
-        if (prerequisites.isEmpty()) {
-            return true;
-        }
+    RosterSet getRoster() {
+        return roster.get();
+    }
 
-        if (!hasCompletedPrerequisites(student)) {
-            return false;
-        }
+    /**
+     * Adds a student to or removes a student from the roster.
+     *
+     * @param key      The student's roster key.
+     * @param enrolled True to add the student, false to remove them.
+     */
+    void updateRoster(int key, boolean enrolled) {
+        roster.updateAndGet(current -> enrolled ? current.with(key) : current.without(key));
+    }
 
-        if (getcourseCode().equals("CS316") && student.getTotalCredits() < 15) {
-            return false;
+    /**
+     * Takes a seat for a registration about to be made, without locking.
+     * While students are waiting for the course, only a promotion from the
+     * waitlist may take a seat, so a seat that opens goes to the student who
+     * has waited longest rather than to whoever registers next.
+     *
+     * @param promotion True if the seat is for a student promoted from the
+     *                  waitlist.
+     * @return True if a seat was taken, false if the course is full.
+     */
+    boolean claimSeat(boolean promotion) {
+        while (true) {
+            int taken = enrolledCount.get();
+            int limit = capacity;
+            if (limit > 0 && (taken >= limit || !promotion && !waitlist.isEmpty())) {
+                return false;
+            }
+            if (enrolledCount.compareAndSet(taken, taken + 1)) {
+                return true;
+            }
         }
-
-        return true;
     }
 
-    public List<Student> getEnrolledStudents() {
-        return enrolledStudents;
+    /**
+     * Gives back a seat taken with {@link #claimSeat(boolean)} for a
+     * registration that did not happen.
+     */
+    void releaseSeat() {
+        enrolledCount.decrementAndGet();
+        seatOpened();
     }
 
-    public Lecturer getAssignedLecturer() {
-        return assignedLecturer;
+    /**
+     * Tells the registry's waitlist scheduler that a seat may be free for a
+     * waiting student.
+     */
+    void seatOpened() {
+        Registry current = registry;
+        if (current != null && !waitlist.isEmpty()) {
+            current.getWaitlistScheduler().seatOpened(this);
+        }
     }
 
-    public void setAssignedLecturer(Lecturer assignedLecturer) {
-        this.assignedLecturer = assignedLecturer;
+    /**
+     * Gets the number of seats in the course.
+     *
+     * @return The capacity, or 0 if the course has no seat limit.
+     */
+    public int getCapacity() {
+        return capacity;
     }
 
     /**
-     * Gets the course code
+     * Sets the number of seats in the course. Students already registered
+     * keep their seats if the capacity drops below their number; seats that
+     * a larger capacity opens go to the waitlist first.
      *
-     * @return the course code.
+     * @param capacity The capacity, or 0 for no seat limit.
      */
-
-    public String getcourseCode() {
-        return courseCode;
+    public void setCapacity(int capacity) {
+        if (resize(capacity)) {
+            seatOpened();
+        }
     }
 
     /**
-     * Gets the prerequisites of a course
+     * Sets the number of seats in the course without serving the waitlist.
      *
-     * @return the prerequisites.
+     * @param capacity The capacity, or 0 for no seat limit.
+     * @return True if the new capacity may have opened seats.
      */
-
-    public List<Course> getprerequisites() {
-        return prerequisites;
+    boolean resize(int capacity) {
+        int previous = this.capacity;
+        this.capacity = Math.max(0, capacity);
+        return previous != 0 && (this.capacity == 0 || this.capacity > previous);
     }
 
     /**
-     * Gets the credits of a course
+     * Checks whether a seat is free for the next student on the waitlist.
      *
-     * @return the credits.
+     * @return True if the course has no seat limit or fewer students than
+     *         seats.
      */
-
-    public int getCredits() {
-        return credits;
+    public boolean hasFreeSeat() {
+        int limit = capacity;
+        return limit == 0 || enrolledCount.get() < limit;
     }
-}
-
-class User {
-    private String username;
-    private String password;
 
     /**
-     * Constructor for User.
+     * Gets the queue of students waiting for a seat in the course.
      *
-     * @param username The username of the user.
-     * @param password The password of the user.
+     * @return The waitlist.
      */
-    public User(String username, String password) {
-        this.username = username;
-        this.password = password;
+    public Waitlist getWaitlist() {
+        return waitlist;
     }
 
     /**
-     * Gets the username of the user.
+     * Puts a student on the waitlist of the course, and journals their
+     * place. The student is registered by the registry's waitlist scheduler
+     * once a seat is free and the students ahead of them have been served.
      *
-     * @return The username.
+     * @param student The student.
+     * @return True if the student joined, false if they are already waiting
+     *         or taking the course.
      */
-    public String getUsername() {
-        return username;
+    public boolean joinWaitlist(Student student) {
+        if (student.isTaking(this)) {
+            return false;
+        }
+        Registry current = registry;
+        Journal journal = current == null ? null : current.beginMutation();
+        try {
+            if (!waitlist.join(student.getUsername(), ticket -> {
+                if (journal != null) {
+                    journal.joinWaitlist(this, student.getUsername(), ticket);
+                }
+            })) {
+                return false;
+            }
+        } finally {
+            if (current != null) {
+                current.endMutation(journal);
+            }
+        }
+        seatOpened();
+        return true;
     }
 
     /**
-     * Gets the password of the user.
+     * Takes a student off the waitlist of the course, and journals it.
      *
-     * @return the password.
+     * @param student The student.
+     * @return True if the student was waiting, false otherwise.
      */
-    public String getPassword() {
-        return password;
+    public boolean leaveWaitlist(Student student) {
+        Registry current = registry;
+        Journal journal = current == null ? null : current.beginMutation();
+        try {
+            long ticket = waitlist.remove(student.getUsername());
+            if (ticket < 0) {
+                return false;
+            }
+            if (journal != null) {
+                journal.leaveWaitlist(this, student.getUsername(), ticket);
+            }
+            return true;
+        } finally {
+            if (current != null) {
+                current.endMutation(journal);
+            }
+        }
     }
 
     /**
-     * Authenticates the user with the provided username and password.
+     * Checks if a student is enrolled in the course.
      *
-     * @param enteredUsername The entered username for authentication.
-     * @param enteredPassword The entered password for authentication.
-     * @return True if authentication is successful, false otherwise.
+     * @param student The student to be checked.
+     * @return True if the student is enrolled, false otherwise.
      */
-
-    public boolean authenticate(String enteredUsername, String enteredPassword) {
-        return username.equals(enteredUsername) && password.equals(enteredPassword);
+    public boolean isEnrolled(Student student) {
+        return student.isTaking(this);
     }
-}
-
-class Admin extends User {
-    private List<Admin> admins;
-    private List<Student> students;
-    private List<Lecturer> lecturers;
-    private List<Course> courses;
-    private Set<String> courseCodeSet;
-    private Map<String, Integer> studentCreditsMap;
 
     /**
-     * Constructor for Admin.
+     * Gets the number of students enrolled in the course.
      *
-     * @param username The username of the admin.
-     * @param password The password of the admin.
+     * @return The number of enrolled students.
      */
+    public int getEnrolledCount() {
+        return enrolledCount.get();
+    }
 
-    public Admin(String username, String password) {
-        super(username, password);
-
-        this.admins = new ArrayList<>();
-        this.students = new ArrayList<>();
-        this.lecturers = new ArrayList<>();
-        this.courses = new ArrayList<>();
-        this.courseCodeSet = new HashSet<>();
-        this.studentCreditsMap = new HashMap<>();
+    /**
+     * Adjusts the seats taken in the course by the students of every shard of
+     * a sharded deployment. Only the shard that owns the course keeps this
+     * count; its enrolled count stays the number of its own students.
+     *
+     * @param delta The number of seats taken, or released if negative.
+     * @return The number of seats taken across all shards, or -1 if taking
+     *         the seats would exceed the capacity of the course.
+     */
+    synchronized int reserveSeats(int delta) {
+        int limit = capacity;
+        if (delta > 0 && limit > 0 && reservedSeats + delta > limit) {
+            return -1;
+        }
+        reservedSeats += delta;
+        return reservedSeats;
+    }
 
+    /**
+     * Takes up to a number of seats across all shards of a sharded deployment,
+     * as many as the capacity of the course leaves free.
+     *
+     * @param wanted The number of seats wanted.
+     * @return The number of seats taken, from 0 to {@code wanted}.
+     */
+    synchronized int leaseSeats(int wanted) {
+        int limit = capacity;
+        int granted = limit == 0 ? wanted : Math.max(0, Math.min(wanted, limit - reservedSeats));
+        reservedSeats += granted;
+        return granted;
     }
 
     /**
-     * adds course codes to a set
+     * Checks if a student has completed the prerequisites for the course.
+     *
+     * @param student The student to be checked.
+     * @return True if the student has completed all prerequisites, false otherwise.
      */
+    public boolean hasCompletedPrerequisites(Student student) {
+        if (graph != null) {
+            return graph.isSatisfiedBy(id, student);
+        }
 
-    public void addCourseCodeToSet(String courseCode) {
-        courseCodeSet.add(courseCode);
-    }
+        for (Course prerequisites : prerequisites) {
+            if (!student.hasCompletedCourse(prerequisites)) {
+                return false;
+            }
+        }
 
-    public void addStudentCredits(String studentUsername, int credits) {
-        studentCreditsMap.put(studentUsername, credits);
+        return true;
     }
 
-    public void printStudentCredistMap() {
-        System.out.println("Student Credits in the Map");
-        for (Map.Entry<String, Integer> entry : studentCreditsMap.entrySet()) {
-            System.out.println("-" + entry.getKey() + ": " + entry.getValue() + " credits");
-        }
+    /**
+     * Checks if a student meets the prerequisites of the course and the
+     * requirements the catalog's rules put on it.
+     *
+     * @param student The student to be checked.
+     * @return True if the student meets the requirements, false otherwise.
+     */
+    public boolean meetsPrerequisites(Student student) {
+        return unmetRequirement(student) == null;
     }
 
-    public void printCourseCodesSet() {
-        System.out.println("Course Code int the Set:");
-        for (String courseCode : courseCodeSet) {
-            System.out.println("- " + courseCode);
+    /**
+     * Finds the first requirement of the course a student does not meet.
+     *
+     * @param student The student to be checked.
+     * @return The reason from {@link Metrics}, or {@code null} if the student
+     *         meets every requirement.
+     */
+    public String unmetRequirement(Student student) {
+        if (!hasCompletedPrerequisites(student)) {
+            return Metrics.PREREQUISITE;
         }
-    }
 
-    public void registerFirstAdmin() {
-        Admin firstAdmin = new Admin("Farajalla", "Farajalla");
-        admins.add(firstAdmin);
-        System.out.println("First Admin registered successfully");
+        RegistrationRules rules = graph == null ? null : graph.getRules();
+        return rules == null || !rules.hasRequirements(id) ? null
+                : rules.unmetRequirement(id, student.getCompletedCourseSet(), student.getCompletedCredits());
     }
 
-    public Admin loginAdmin(String username, String password) {
-        if (getUsername().equals(username) && getPassword().equals(password)) {
-            return this;
+    /**
+     * Checks whether the course has any requirement a student might not meet,
+     * either prerequisites or a rule of the catalog.
+     *
+     * @return True if the course has requirements, false if it is open to all.
+     */
+
+    public boolean hasRequirements() {
+        if (graph == null) {
+            return !prerequisites.isEmpty();
         }
+        return graph.hasPrerequisites(id) || graph.getRules().hasRequirements(id);
+    }
 
-        for (Admin admin : admins) {
-            if (admin.getUsername().equals(username) && admin.getPassword().equals(password)) {
-                return admin;
+    /**
+     * Checks the same requirements as {@link #meetsPrerequisites(Student)}
+     * against a hypothetical record, as used when planning future trimesters.
+     *
+     * @param completed        The IDs of the completed courses.
+     * @param completedCredits The credits of the completed courses.
+     * @return True if the requirements are met, false otherwise.
+     */
+    public boolean meetsPrerequisites(CourseSet completed, int completedCredits) {
+        if (graph != null) {
+            if (!graph.isSatisfiedBy(id, completed)) {
+                return false;
+            }
+        } else {
+            for (Course prerequisite : prerequisites) {
+                if (!completed.contains(prerequisite.getId())) {
+                    return false;
+                }
             }
         }
 
-        return null;
+        return graph == null || graph.getRules().unmetRequirement(id, completed, completedCredits) == null;
     }
 
-    public Student loginStudent(String username, String password) {
-        for (Student student : students) {
-            if (student.authenticate(username, password)) {
-                return student;
-            }
+    /**
+     * Gets one page of the enrolled students, ordered by username.
+     *
+     * @param afterKey The key of the page, or {@code null} for the first page.
+     * @param limit    The maximum number of students on the page.
+     * @return The page.
+     */
+    public Page<Student> pageEnrolledStudents(String afterKey, int limit) {
+        CatalogVersion version = getCatalogVersion();
+        Page<Integer> keys = Page.ofSorted(enrolledByUsername(version), afterKey, limit);
+        List<Student> students = new ArrayList<>(keys.getItems().size());
+        for (int key : keys.getItems()) {
+            students.add(version.studentAt(key));
         }
-        return null;
+        return new Page<>(students, keys.getNextKey());
     }
 
-    public Lecturer loginLecturer(String username, String password) {
-        for (Lecturer lecturer : lecturers) {
-            if (lecturer.authenticate(username, password)) {
-                return lecturer;
-            }
+    /**
+     * Gets the roster keys of the enrolled students, by username. The index
+     * is built once per roster and reused until the roster changes, so each
+     * page is a range lookup rather than a scan, and building it reads only
+     * usernames, so students kept in a record file are not loaded.
+     *
+     * @param version The version, or {@code null} for none.
+     * @return The roster keys of the enrolled students by username.
+     */
+    private NavigableMap<String, Integer> enrolledByUsername(CatalogVersion version) {
+        if (version == null) {
+            return Collections.emptyNavigableMap();
         }
-        return null;
+        RosterSet current = roster.get();
+        RosterIndex index = rosterIndex;
+        if (index == null || index.roster != current) {
+            NavigableMap<String, Integer> byUsername = new TreeMap<>();
+            current.forEach(key -> byUsername.put(version.usernameOf(key), key));
+            index = new RosterIndex(current, Collections.unmodifiableNavigableMap(byUsername));
+            rosterIndex = index;
+        }
+        return index.byUsername;
     }
 
-    public Course findCourseByCode(String courseCode) {
-        for (Course course : courses) {
-            if (course.getcourseCode().equals(courseCode)) {
-                return course;
-            }
-        }
+    /**
+     * A roster and its roster keys sorted by username.
+     */
+    private static final class RosterIndex {
+        final RosterSet roster;
+        final NavigableMap<String, Integer> byUsername;
 
-        return null;
+        RosterIndex(RosterSet roster, NavigableMap<String, Integer> byUsername) {
+            this.roster = roster;
+            this.byUsername = byUsername;
+        }
+    }
 
+    /**
+     * Writes the usernames of the enrolled students to a report, sorted.
+     *
+     * @param report The report to write to.
+     */
+    void writeRoster(ReportWriter report) {
+        Registry current = registry;
+        writeRoster(report, current == null ? null : current.snapshot());
     }
 
-    public void createStudent(String username, String password) {
-        Student student = new Student(username, password);
-        students.add(student);
+    /**
+     * Writes the usernames of the students enrolled in the course to a
+     * report, sorted. The roster is taken once, so a registration made while
+     * the report is written cannot make a student appear twice or not at all.
+     *
+     * @param report  The report to write to.
+     * @param version The version, or {@code null} if the course is not in a
+     *                registry.
+     */
+    void writeRoster(ReportWriter report, CatalogVersion version) {
+        NavigableMap<String, Integer> enrolled = enrolledByUsername(version);
+        if (enrolled.isEmpty()) {
+            report.line("No students enrolled in this course.");
+        }
+        for (String username : enrolled.keySet()) {
+            report.item(username);
+        }
     }
 
-    public void createLecturer(String username, String password) {
-        Lecturer lecturer = new Lecturer(username, password);
-        lecturers.add(lecturer);
+    /**
+     * Gets the students enrolled in the course, in the order they were added
+     * to the registry, from its current roster. Takes no lock, so it never
+     * waits for a registration.
+     *
+     * @return The enrolled students, or an empty list if the course is not in
+     *         a registry.
+     */
+    public List<Student> getEnrolledStudents() {
+        Registry current = registry;
+        return getEnrolledStudents(current == null ? null : current.snapshot());
     }
 
-    public void createCourse(String courseCode, Lecturer lecturer, List<Course> prerequisites, int credits) {
-        Course course = new Course(courseCode, lecturer, prerequisites, credits);
-        courses.add(course);
+    /**
+     * Gets the students enrolled in the course, looked up in a version of the
+     * catalog.
+     *
+     * @param version The version, or {@code null} for none.
+     * @return The enrolled students, in the order they were added to the
+     *         registry.
+     */
+    public List<Student> getEnrolledStudents(CatalogVersion version) {
+        return version == null ? new ArrayList<>() : version.getEnrolledStudents(this);
     }
 
-    public void assignCourseToLecturer(Course course, Lecturer lecturer) {
-        course.setAssignedLecturer(lecturer);
+    /**
+     * Gets the current version of the catalog the course is in.
+     *
+     * @return The version, or {@code null} if the course is not in a registry.
+     */
+    CatalogVersion getCatalogVersion() {
+        Registry current = registry;
+        return current == null ? null : current.snapshot();
     }
 
-    public void saveToCSV(String fileName) {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(fileName))) {
-            writer.println("Type,User,Password");
+    public synchronized Lecturer getAssignedLecturer() {
+        return assignedLecturer;
+    }
 
-            for (Admin admin : admins) {
-                writer.println("Admin," + admin.getUsername() + "," + admin.getPassword());
-            }
+    /**
+     * Assigns a lecturer to the course. The course moves from the previous
+     * lecturer's assigned courses to the new lecturer's while the course's
+     * monitor is held, so concurrent assignments leave the course with
+     * exactly one lecturer. Lecturer monitors are only taken inside a
+     * course's, never the other way round.
+     *
+     * @param assignedLecturer The lecturer to assign, or {@code null} for none.
+     */
+    public synchronized void setAssignedLecturer(Lecturer assignedLecturer) {
+        Lecturer previous = this.assignedLecturer;
+        if (previous == assignedLecturer) {
+            return;
+        }
+        this.assignedLecturer = assignedLecturer;
+        if (previous != null) {
+            previous.removeAssignedCourse(this);
+        }
+        if (assignedLecturer != null) {
+            assignedLecturer.addAssignedCourse(this);
+        }
+    }
 
-            for (Student student : students) {
-                writer.println("Student," + student.getUsername() + "," + student.getPassword());
-            }
+    /**
+     * Gets the course code
+     *
+     * @return the course code.
+     */
 
-            for (Lecturer lecturer : lecturers) {
-                writer.println("Lecturer," + lecturer.getUsername() + "," + lecturer.getPassword());
-            }
+    public String getcourseCode() {
+        return courseCode;
+    }
 
-            for (Course course : courses) {
-                writer.println("Course," + course.getcourseCode() + "," + course.getAssignedLecturer().getUsername());
-            }
+    /**
+     * Gets the prerequisites of a course
+     *
+     * @return the prerequisites.
+     */
 
-            System.out.println("Data saved to CSV fille: " + fileName);
-        } catch (IOException e) {
-            e.printStackTrace();
+    public List<Course> getprerequisites() {
+        if (graph != null) {
+            return graph.prerequisitesOf(courseCode);
         }
+        return prerequisites;
     }
 
-    public static Admin loadFromCSV(String fileName) {
-        Admin loadedAdmin = new Admin("Farajalla", "Farajalla");
-
-        try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
+    /**
+     * Attaches the course to the prerequisite graph of the catalog. From then
+     * on the graph is the source of the course's prerequisites.
+     *
+     * @param graph The prerequisite graph.
+     * @param id    The dense ID of the course in the graph.
+     */
+
+    void attach(PrerequisiteGraph graph, int id) {
+        this.graph = graph;
+        this.id = id;
+        this.courseCode = graph.codeOf(id);
+    }
+
+    /**
+     * Attaches the course to the registry that keeps its roster.
+     *
+     * @param registry The registry.
+     */
+
+    void attachRegistry(Registry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Gets the dense ID of the course in the catalog.
+     *
+     * @return the ID, or -1 if the course is not in a catalog.
+     */
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Gets the prerequisite graph of the catalog the course belongs to.
+     *
+     * @return the graph, or {@code null} if the course is not in a catalog.
+     */
+
+    PrerequisiteGraph getCatalog() {
+        return graph;
+    }
+
+    /**
+     * Gets the credits of a course
+     *
+     * @return the credits.
+     */
+
+    public int getCredits() {
+        return credits;
+    }
+}
+
+/**
+ * The {@code CourseSet} class is a growable bitset of dense course IDs.
+ * Membership tests are a single word lookup, and subset tests compare whole
+ * 64-bit words without allocating. The number of IDs is kept as the set
+ * changes, so size queries do not scan the words.
+ */
+
+class CourseSet {
+    private long[] words;
+    private int size;
+
+    /**
+     * Constructs an empty set.
+     */
+
+    public CourseSet() {
+        this.words = new long[1];
+    }
+
+    private CourseSet(long[] words, int size) {
+        this.words = words;
+        this.size = size;
+    }
+
+    /**
+     * Creates a set over words of course IDs, as stored in a
+     * {@link StudentTable}.
+     *
+     * @param words The words, which the set takes ownership of.
+     * @return The set.
+     */
+
+    static CourseSet of(long[] words) {
+        int size = 0;
+        for (long word : words) {
+            size += Long.bitCount(word);
+        }
+        return new CourseSet(words.length == 0 ? new long[1] : words, size);
+    }
+
+    /**
+     * Adds a course ID to the set.
+     *
+     * @param id The course ID.
+     */
+
+    public void add(int id) {
+        int word = id >>> 6;
+        if (word >= words.length) {
+            words = Arrays.copyOf(words, Math.max(word + 1, words.length * 2));
+        }
+        if ((words[word] & (1L << id)) == 0) {
+            words[word] |= 1L << id;
+            size++;
+        }
+    }
+
+    /**
+     * Removes a course ID from the set.
+     *
+     * @param id The course ID.
+     */
+
+    public void remove(int id) {
+        int word = id >>> 6;
+        if (word < words.length && (words[word] & (1L << id)) != 0) {
+            words[word] &= ~(1L << id);
+            size--;
+        }
+    }
+
+    /**
+     * Checks if a course ID is in the set.
+     *
+     * @param id The course ID.
+     * @return True if the ID is in the set, false otherwise.
+     */
+
+    public boolean contains(int id) {
+        int word = id >>> 6;
+        return id >= 0 && word < words.length && (words[word] & (1L << id)) != 0;
+    }
+
+    /**
+     * Checks if every ID of another set is also in this set.
+     *
+     * @param other The set to compare with.
+     * @return True if {@code other} is a subset of this set, false otherwise.
+     */
+
+    public boolean containsAll(CourseSet other) {
+        long[] otherWords = other.words;
+        for (int i = 0; i < otherWords.length; i++) {
+            long word = i < words.length ? words[i] : 0L;
+            if ((otherWords[i] & ~word) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds every ID of another set to this set.
+     *
+     * @param other The set to merge in.
+     */
+
+    public void addAll(CourseSet other) {
+        long[] otherWords = other.words;
+        if (otherWords.length > words.length) {
+            words = Arrays.copyOf(words, otherWords.length);
+        }
+        for (int i = 0; i < otherWords.length; i++) {
+            size += Long.bitCount(otherWords[i] & ~words[i]);
+            words[i] |= otherWords[i];
+        }
+    }
+
+    /**
+     * Finds the next ID in the set.
+     *
+     * @param from The ID to start searching from, inclusive.
+     * @return The next ID in the set, or -1 if there is none.
+     */
+
+    public int nextSetBit(int from) {
+        int word = from >>> 6;
+        if (from < 0 || word >= words.length) {
+            return -1;
+        }
+        long bits = words[word] & (-1L << from);
+        while (true) {
+            if (bits != 0) {
+                return (word << 6) + Long.numberOfTrailingZeros(bits);
+            }
+            if (++word == words.length) {
+                return -1;
+            }
+            bits = words[word];
+        }
+    }
+
+    /**
+     * Gets the number of IDs in the set.
+     *
+     * @return The number of IDs.
+     */
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Creates an independent copy of the set.
+     *
+     * @return The copy.
+     */
+
+    public CourseSet copy() {
+        return new CourseSet(words.clone(), size);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof CourseSet)) {
+            return false;
+        }
+        CourseSet set = (CourseSet) other;
+        if (size != set.size) {
+            return false;
+        }
+        int common = Math.min(words.length, set.words.length);
+        for (int i = 0; i < common; i++) {
+            if (words[i] != set.words[i]) {
+                return false;
+            }
+        }
+        // The longer array may only hold zero words past the shorter one.
+        for (int i = common; i < words.length; i++) {
+            if (words[i] != 0) {
+                return false;
+            }
+        }
+        for (int i = common; i < set.words.length; i++) {
+            if (set.words[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int last = words.length - 1;
+        while (last >= 0 && words[last] == 0) {
+            last--;
+        }
+        int hash = 1;
+        for (int i = 0; i <= last; i++) {
+            hash = 31 * hash + Long.hashCode(words[i]);
+        }
+        return hash;
+    }
+}
+
+/**
+ * The {@code PrerequisiteGraph} class stores course dependencies as a directed
+ * acyclic graph keyed by course code.
+ * Every course code gets a dense integer ID the first time it is mentioned,
+ * so a dependency may name a course that has not been created yet. The graph
+ * keeps the direct prerequisites and the transitive closure of every course as
+ * {@link CourseSet}s, rejects any edge that would create a cycle, and derives a
+ * topological order of the catalog on demand.
+ */
+
+class PrerequisiteGraph {
+    private final Map<String, Integer> idsByCode;
+    private final List<String> codes;
+    private final List<Course> courses;
+    private final List<CourseSet> direct;
+    private final List<CourseSet> closure;
+    private int[] topologicalOrder;
+    private volatile int version;
+    private volatile RegistrationRules rules;
+    private final List<Runnable> changeListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Constructs an empty graph.
+     */
+
+    public PrerequisiteGraph() {
+        this.idsByCode = new HashMap<>();
+        this.codes = new ArrayList<>();
+        this.courses = new ArrayList<>();
+        this.direct = new ArrayList<>();
+        this.closure = new ArrayList<>();
+        this.rules = RegistrationRules.parse(RegistrationRules.DEFAULT_RULES, this);
+    }
+
+    /**
+     * Gets the ID of a course code, assigning the next free ID if the code has
+     * not been seen before.
+     *
+     * @param courseCode The course code.
+     * @return The dense ID of the course.
+     */
+
+    public synchronized int idOf(String courseCode) {
+        Integer id = idsByCode.get(courseCode);
+        if (id != null) {
+            return id;
+        }
+
+        int newId = codes.size();
+        idsByCode.put(courseCode, newId);
+        codes.add(courseCode);
+        courses.add(null);
+        direct.add(new CourseSet());
+        closure.add(new CourseSet());
+        return newId;
+    }
+
+    /**
+     * Finds a course by its code, without assigning an ID to an unknown code.
+     *
+     * @param courseCode The course code.
+     * @return The course, or {@code null} if no course has that code.
+     */
+
+    public synchronized Course find(String courseCode) {
+        Integer id = idsByCode.get(courseCode);
+        return id == null ? null : courses.get(id);
+    }
+
+    /**
+     * Gets the course registered under an ID.
+     *
+     * @param id The course ID.
+     * @return The course, or {@code null} if no course with that ID exists yet.
+     */
+
+    public synchronized Course courseAt(int id) {
+        return id >= 0 && id < courses.size() ? courses.get(id) : null;
+    }
+
+    /**
+     * Gets the code of a course ID.
+     *
+     * @param id The course ID.
+     * @return The course code.
+     */
+
+    public synchronized String codeOf(int id) {
+        return codes.get(id);
+    }
+
+    /**
+     * Gets the number of course codes known to the graph.
+     *
+     * @return The number of IDs handed out.
+     */
+
+    public synchronized int size() {
+        return codes.size();
+    }
+
+    /**
+     * Gets the registration rules of the catalog.
+     *
+     * @return The compiled rules.
+     */
+
+    public RegistrationRules getRules() {
+        return rules;
+    }
+
+    /**
+     * Replaces the registration rules of the catalog.
+     *
+     * @param rules The compiled rules, resolved against this graph.
+     */
+
+    public synchronized void setRules(RegistrationRules rules) {
+        this.rules = rules;
+        changed();
+    }
+
+    /**
+     * Gets a counter that changes whenever a course is registered, a
+     * prerequisite is added or the rules are replaced, so that derived data
+     * can tell it is out of date.
+     *
+     * @return The version of the graph.
+     */
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Adds a listener run whenever the version changes. Listeners run while
+     * the graph's monitor is held, so they must only hand work off.
+     *
+     * @param listener The listener.
+     */
+
+    public void addChangeListener(Runnable listener) {
+        changeListeners.add(listener);
+    }
+
+    private void changed() {
+        version++;
+        for (Runnable listener : changeListeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Registers a course and its direct prerequisites. Nothing is changed if
+     * any of the prerequisites would create a cycle.
+     *
+     * @param course            The course to register.
+     * @param prerequisiteCodes The codes of the direct prerequisites.
+     * @return The ID of the course.
+     * @throws IllegalArgumentException If a prerequisite would create a cycle.
+     */
+
+    public synchronized int addCourse(Course course, Collection<String> prerequisiteCodes) {
+        int id = idOf(course.getcourseCode());
+        addPrerequisites(course.getcourseCode(), prerequisiteCodes);
+        courses.set(id, course);
+        course.attach(this, id);
+        changed();
+        return id;
+    }
+
+    /**
+     * Adds direct prerequisites to a course. Nothing is changed if any of them
+     * would create a cycle.
+     *
+     * @param courseCode        The code of the dependent course.
+     * @param prerequisiteCodes The codes of the prerequisites.
+     * @throws IllegalArgumentException If a prerequisite would create a cycle.
+     */
+
+    public synchronized void addPrerequisites(String courseCode, Collection<String> prerequisiteCodes) {
+        int id = idOf(courseCode);
+        int[] prerequisiteIds = new int[prerequisiteCodes.size()];
+        int count = 0;
+        for (String prerequisiteCode : prerequisiteCodes) {
+            int prerequisiteId = idOf(prerequisiteCode);
+            if (prerequisiteId == id || closure.get(prerequisiteId).contains(id)) {
+                throw new IllegalArgumentException(
+                        "Prerequisite " + prerequisiteCode + " of " + courseCode + " would create a cycle");
+            }
+            prerequisiteIds[count++] = prerequisiteId;
+        }
+
+        for (int i = 0; i < count; i++) {
+            addEdge(id, prerequisiteIds[i]);
+        }
+    }
+
+    /**
+     * Adds one edge and extends the closure of the course and of every course
+     * that already depends on it.
+     */
+
+    private void addEdge(int id, int prerequisiteId) {
+        if (direct.get(id).contains(prerequisiteId)) {
+            return;
+        }
+        direct.get(id).add(prerequisiteId);
+        changed();
+
+        CourseSet reached = closure.get(prerequisiteId).copy();
+        reached.add(prerequisiteId);
+        for (int node = 0; node < closure.size(); node++) {
+            if (node == id || closure.get(node).contains(id)) {
+                closure.get(node).addAll(reached);
+            }
+        }
+        topologicalOrder = null;
+    }
+
+    /**
+     * Gets the direct prerequisites of a course that exist in the catalog.
+     *
+     * @param courseCode The course code.
+     * @return The prerequisite courses.
+     */
+
+    public synchronized List<Course> prerequisitesOf(String courseCode) {
+        List<Course> prerequisites = new ArrayList<>();
+        Integer id = idsByCode.get(courseCode);
+        if (id == null) {
+            return prerequisites;
+        }
+
+        CourseSet set = direct.get(id);
+        for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+            Course course = courses.get(i);
+            if (course != null) {
+                prerequisites.add(course);
+            }
+        }
+        return prerequisites;
+    }
+
+    /**
+     * Gets the codes of the direct prerequisites of a course, including those
+     * not yet in the catalog.
+     *
+     * @param courseCode The course code.
+     * @return The prerequisite course codes.
+     */
+
+    public synchronized List<String> prerequisiteCodesOf(String courseCode) {
+        List<String> prerequisiteCodes = new ArrayList<>();
+        Integer id = idsByCode.get(courseCode);
+        if (id == null) {
+            return prerequisiteCodes;
+        }
+
+        CourseSet set = direct.get(id);
+        for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+            prerequisiteCodes.add(codes.get(i));
+        }
+        return prerequisiteCodes;
+    }
+
+    /**
+     * Gets every course that must be completed, directly or transitively,
+     * before a course can be taken.
+     *
+     * @param id The course ID.
+     * @return A copy of the transitive prerequisites of the course.
+     */
+
+    public synchronized CourseSet requirementsOf(int id) {
+        return closure.get(id).copy();
+    }
+
+    /**
+     * Checks whether a course has any prerequisite, in the catalog or not.
+     *
+     * @param id The course ID.
+     * @return True if the course has prerequisites, false otherwise.
+     */
+
+    public synchronized boolean hasPrerequisites(int id) {
+        return !closure.get(id).isEmpty();
+    }
+
+    /**
+     * Gets the direct prerequisites of a course.
+     *
+     * @param id The course ID.
+     * @return A copy of the IDs of the direct prerequisites.
+     */
+
+    public synchronized CourseSet directPrerequisitesOf(int id) {
+        return direct.get(id).copy();
+    }
+
+    /**
+     * Checks if a set of completed courses covers every transitive
+     * prerequisite of a course.
+     *
+     * @param id        The course ID.
+     * @param completed The IDs of the completed courses.
+     * @return True if the course may be taken, false otherwise.
+     */
+
+    public synchronized boolean isSatisfiedBy(int id, CourseSet completed) {
+        return completed.containsAll(closure.get(id));
+    }
+
+    /**
+     * Checks if a student has completed every transitive prerequisite of a
+     * course, reading the student's record in place.
+     *
+     * @param id      The course ID.
+     * @param student The student.
+     * @return True if the course may be taken, false otherwise.
+     */
+
+    public synchronized boolean isSatisfiedBy(int id, Student student) {
+        return student.hasCompletedAll(closure.get(id));
+    }
+
+    /**
+     * Gets the course IDs ordered so that every course comes after all of its
+     * prerequisites.
+     *
+     * @return The topological order of the graph.
+     */
+
+    public synchronized int[] topologicalOrder() {
+        if (topologicalOrder != null) {
+            return topologicalOrder;
+        }
+
+        int size = codes.size();
+        int[] order = new int[size];
+        CourseSet placed = new CourseSet();
+        int count = 0;
+        while (count < size) {
+            for (int id = 0; id < size; id++) {
+                if (!placed.contains(id) && placed.containsAll(direct.get(id))) {
+                    placed.add(id);
+                    order[count++] = id;
+                }
+            }
+        }
+
+        topologicalOrder = order;
+        return order;
+    }
+}
+
+/**
+ * The {@code RegistrationRules} class holds the rules a registration must
+ * satisfy beyond the prerequisite graph, compiled from a plain rule file.
+ * Each line of the file is one rule; blank lines and text after {@code #} are
+ * ignored:
+ * <pre>
+ * term_credits &lt;min&gt; &lt;max&gt;          credits a student may take in one trimester
+ * min_credits &lt;course&gt; &lt;credits&gt;   completed credits needed before taking the course
+ * corequisite &lt;course&gt; &lt;other&gt;    the other course must be completed or taken alongside
+ * exclusive &lt;course&gt; &lt;other&gt;      at most one of the two courses may be taken
+ * </pre>
+ * A file replaces only the rules it sets: the credit band and the
+ * {@code min_credits} of a course fall back to {@link #DEFAULT_RULES} when the
+ * file has no line for them.
+ * Every rule is compiled into a lambda over dense course IDs and kept in a
+ * flat array per course. Requirements depend only on the completed courses, so
+ * they decide eligibility and are checked by the planner; restrictions also
+ * look at the courses being taken, so they are checked at registration.
+ */
+
+class RegistrationRules {
+    /**
+     * A compiled rule, true when the student's record satisfies it.
+     */
+    @FunctionalInterface
+    interface Rule {
+        boolean test(CourseSet completed, int completedCredits, CourseSet current);
+    }
+
+    /**
+     * The rules used when no rule file is given.
+     */
+    static final List<String> DEFAULT_RULES = Arrays.asList("term_credits 3 12", "min_credits CS316 15");
+    /**
+     * The default credit band, for students who are not in a catalog yet.
+     */
+    static final RegistrationRules DEFAULT = parse(DEFAULT_RULES, null);
+
+    private static final Rule[] NO_RULES = new Rule[0];
+    private static final String[] NO_REASONS = new String[0];
+
+    private final List<String> lines;
+    private final int minTermCredits;
+    private final int maxTermCredits;
+    private final Rule[][] requirements;
+    private final String[][] requirementReasons;
+    private final Rule[][] restrictions;
+    private final String[][] restrictionReasons;
+
+    private RegistrationRules(List<String> lines, int minTermCredits, int maxTermCredits, Rule[][] requirements,
+            String[][] requirementReasons, Rule[][] restrictions, String[][] restrictionReasons) {
+        this.lines = lines;
+        this.minTermCredits = minTermCredits;
+        this.maxTermCredits = maxTermCredits;
+        this.requirements = requirements;
+        this.requirementReasons = requirementReasons;
+        this.restrictions = restrictions;
+        this.restrictionReasons = restrictionReasons;
+    }
+
+    /**
+     * Reads and compiles a rule file.
+     *
+     * @param path  The rule file.
+     * @param graph The catalog the course codes are resolved in.
+     * @return The compiled rules.
+     * @throws IOException              If the file cannot be read.
+     * @throws IllegalArgumentException If a line is not a valid rule.
+     */
+
+    public static RegistrationRules load(Path path, PrerequisiteGraph graph) throws IOException {
+        return parse(Files.readAllLines(path, StandardCharsets.UTF_8), graph);
+    }
+
+    /**
+     * Compiles rule lines, together with the default rules they do not
+     * override. Course codes are given IDs in the catalog, so a rule may name
+     * a course that has not been created yet.
+     *
+     * @param lines The rule lines.
+     * @param graph The catalog the course codes are resolved in, or
+     *              {@code null} to keep only the credit band.
+     * @return The compiled rules.
+     * @throws IllegalArgumentException If a line is not a valid rule.
+     */
+
+    public static RegistrationRules parse(List<String> lines, PrerequisiteGraph graph) {
+        lines = withDefaults(lines);
+        int minTermCredits = 0;
+        int maxTermCredits = Integer.MAX_VALUE;
+        Map<Integer, List<Rule>> requirements = new HashMap<>();
+        Map<Integer, List<String>> requirementReasons = new HashMap<>();
+        Map<Integer, List<Rule>> restrictions = new HashMap<>();
+        Map<Integer, List<String>> restrictionReasons = new HashMap<>();
+
+        for (int number = 1; number <= lines.size(); number++) {
+            String line = lines.get(number - 1);
+            int comment = line.indexOf('#');
+            String[] words = (comment >= 0 ? line.substring(0, comment) : line).trim().split("\\s+");
+            if (words[0].isEmpty()) {
+                continue;
+            }
+            if (words.length != 3) {
+                throw new IllegalArgumentException("Rule line " + number + " needs two arguments: " + line);
+            }
+
+            switch (words[0]) {
+                case "term_credits":
+                    minTermCredits = number(words[1], number);
+                    maxTermCredits = number(words[2], number);
+                    if (minTermCredits > maxTermCredits) {
+                        throw new IllegalArgumentException("Rule line " + number + " has min above max: " + line);
+                    }
+                    if (maxTermCredits < 1) {
+                        throw new IllegalArgumentException("Rule line " + number + " needs a max of at least 1: "
+                                + line);
+                    }
+                    break;
+                case "min_credits": {
+                    if (graph == null) {
+                        break;
+                    }
+                    int credits = number(words[2], number);
+                    add(requirements, requirementReasons, graph.idOf(words[1]),
+                            (completed, completedCredits, current) -> completedCredits >= credits,
+                            Metrics.MINIMUM_CREDITS);
+                    break;
+                }
+                case "corequisite": {
+                    if (graph == null) {
+                        break;
+                    }
+                    int other = graph.idOf(words[2]);
+                    add(restrictions, restrictionReasons, graph.idOf(words[1]),
+                            (completed, completedCredits, current) -> completed.contains(other)
+                                    || current.contains(other),
+                            Metrics.COREQUISITE);
+                    break;
+                }
+                case "exclusive": {
+                    if (graph == null) {
+                        break;
+                    }
+                    int first = graph.idOf(words[1]);
+                    int second = graph.idOf(words[2]);
+                    add(restrictions, restrictionReasons, first,
+                            (completed, completedCredits, current) -> !completed.contains(second)
+                                    && !current.contains(second),
+                            Metrics.EXCLUSIVE);
+                    add(restrictions, restrictionReasons, second,
+                            (completed, completedCredits, current) -> !completed.contains(first)
+                                    && !current.contains(first),
+                            Metrics.EXCLUSIVE);
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("Rule line " + number + " has an unknown rule: " + line);
+            }
+        }
+
+        int courses = graph == null ? 0 : graph.size();
+        Rule[][] requirementTable = new Rule[courses][];
+        String[][] requirementReasonTable = new String[courses][];
+        Rule[][] restrictionTable = new Rule[courses][];
+        String[][] restrictionReasonTable = new String[courses][];
+        for (int id = 0; id < courses; id++) {
+            requirementTable[id] = requirements.getOrDefault(id, Collections.emptyList()).toArray(NO_RULES);
+            requirementReasonTable[id] = requirementReasons.getOrDefault(id, Collections.emptyList())
+                    .toArray(NO_REASONS);
+            restrictionTable[id] = restrictions.getOrDefault(id, Collections.emptyList()).toArray(NO_RULES);
+            restrictionReasonTable[id] = restrictionReasons.getOrDefault(id, Collections.emptyList())
+                    .toArray(NO_REASONS);
+        }
+        return new RegistrationRules(Collections.unmodifiableList(new ArrayList<>(lines)), minTermCredits,
+                maxTermCredits, requirementTable, requirementReasonTable, restrictionTable, restrictionReasonTable);
+    }
+
+    /**
+     * Appends the default rules whose setting the lines leave out: the
+     * credit band, and the {@code min_credits} of each course.
+     */
+
+    private static List<String> withDefaults(List<String> lines) {
+        Set<String> set = new HashSet<>();
+        for (String line : lines) {
+            String key = keyOf(line);
+            if (key != null) {
+                set.add(key);
+            }
+        }
+        List<String> merged = new ArrayList<>(lines);
+        for (String line : DEFAULT_RULES) {
+            if (!set.contains(keyOf(line))) {
+                merged.add(line);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Gets the setting a rule line overrides, or {@code null} if rules of its
+     * kind add up rather than override each other.
+     */
+
+    private static String keyOf(String line) {
+        int comment = line.indexOf('#');
+        String[] words = (comment >= 0 ? line.substring(0, comment) : line).trim().split("\\s+");
+        if (words[0].equals("term_credits")) {
+            return words[0];
+        }
+        return words[0].equals("min_credits") && words.length > 1 ? words[0] + " " + words[1] : null;
+    }
+
+    private static int number(String word, int line) {
+        try {
+            return Integer.parseInt(word);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Rule line " + line + " needs a number instead of " + word);
+        }
+    }
+
+    private static void add(Map<Integer, List<Rule>> rules, Map<Integer, List<String>> reasons, int id, Rule rule,
+            String reason) {
+        rules.computeIfAbsent(id, key -> new ArrayList<>()).add(rule);
+        reasons.computeIfAbsent(id, key -> new ArrayList<>()).add(reason);
+    }
+
+    /**
+     * Gets the rule lines the rules were compiled from, including the
+     * defaults that were filled in.
+     *
+     * @return The rule lines.
+     */
+
+    public List<String> getLines() {
+        return lines;
+    }
+
+    public int getMinTermCredits() {
+        return minTermCredits;
+    }
+
+    public int getMaxTermCredits() {
+        return maxTermCredits;
+    }
+
+    /**
+     * Checks whether a course has requirements beyond its prerequisites.
+     *
+     * @param courseId The ID of the course.
+     * @return True if the course has at least one requirement.
+     */
+
+    public boolean hasRequirements(int courseId) {
+        return courseId >= 0 && courseId < requirements.length && requirements[courseId].length > 0;
+    }
+
+    /**
+     * Checks whether a course has restrictions.
+     *
+     * @param courseId The ID of the course.
+     * @return True if the course has at least one restriction.
+     */
+
+    public boolean hasRestrictions(int courseId) {
+        return courseId >= 0 && courseId < restrictions.length && restrictions[courseId].length > 0;
+    }
+
+    /**
+     * Finds the first requirement of a course that a record does not meet.
+     *
+     * @param courseId         The ID of the course.
+     * @param completed        The IDs of the completed courses.
+     * @param completedCredits The credits of the completed courses.
+     * @return The failure reason from {@link Metrics}, or {@code null} if
+     *         every requirement is met.
+     */
+
+    public String unmetRequirement(int courseId, CourseSet completed, int completedCredits) {
+        if (courseId < 0 || courseId >= requirements.length) {
+            return null;
+        }
+        Rule[] rules = requirements[courseId];
+        for (int i = 0; i < rules.length; i++) {
+            if (!rules[i].test(completed, completedCredits, null)) {
+                return requirementReasons[courseId][i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the first restriction of a course that a record breaks.
+     *
+     * @param courseId  The ID of the course.
+     * @param completed The IDs of the completed courses.
+     * @param current   The IDs of the courses being taken, including any
+     *                  registered together with this one.
+     * @return The failure reason from {@link Metrics}, or {@code null} if no
+     *         restriction is broken.
+     */
+
+    public String brokenRestriction(int courseId, CourseSet completed, CourseSet current) {
+        if (courseId < 0 || courseId >= restrictions.length) {
+            return null;
+        }
+        Rule[] rules = restrictions[courseId];
+        for (int i = 0; i < rules.length; i++) {
+            if (!rules[i].test(completed, 0, current)) {
+                return restrictionReasons[courseId][i];
+            }
+        }
+        return null;
+    }
+}
+
+/**
+ * The {@code StringIntMap} class maps strings to primitive {@code int} values
+ * using open addressing with linear probing.
+ * Keys and values live in two parallel arrays, so reads and updates neither
+ * box values nor allocate entry objects. Keys cannot be removed, which keeps
+ * probing free of tombstones.
+ */
+
+class StringIntMap {
+    private String[] keys;
+    private int[] values;
+    private int size;
+
+    /**
+     * Constructs an empty map.
+     */
+
+    public StringIntMap() {
+        this.keys = new String[16];
+        this.values = new int[16];
+    }
+
+    /**
+     * Sets the value of a key.
+     *
+     * @param key   The key.
+     * @param value The value.
+     */
+
+    public void put(String key, int value) {
+        int slot = slotOf(key);
+        if (keys[slot] == null) {
+            keys[slot] = key;
+            if (++size * 2 > keys.length) {
+                values[slot] = value;
+                resize();
+                return;
+            }
+        }
+        values[slot] = value;
+    }
+
+    /**
+     * Gets the value of a key.
+     *
+     * @param key          The key.
+     * @param defaultValue The value to return if the key is absent.
+     * @return The value, or {@code defaultValue} if the key is absent.
+     */
+
+    public int get(String key, int defaultValue) {
+        int slot = slotOf(key);
+        return keys[slot] == null ? defaultValue : values[slot];
+    }
+
+    public boolean containsKey(String key) {
+        return keys[slotOf(key)] != null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Calls an action for every key and value in the map.
+     *
+     * @param action The action to call.
+     */
+
+    public void forEach(Entry action) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                action.accept(keys[i], values[i]);
+            }
+        }
+    }
+
+    /**
+     * Finds the slot holding a key, or the empty slot where it belongs.
+     */
+
+    private int slotOf(String key) {
+        int mask = keys.length - 1;
+        int hash = key.hashCode();
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (keys[slot] != null && !keys[slot].equals(key)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void resize() {
+        String[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new String[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = slotOf(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * Receives the entries of a {@link StringIntMap}.
+     */
+
+    interface Entry {
+        void accept(String key, int value);
+    }
+}
+
+/**
+ * The {@code PasswordHasher} class turns passwords into salted, cost-tunable
+ * PBKDF2 hashes and verifies them in constant time.
+ * A hash is encoded as {@code pbkdf2$<iterations>$<salt>$<hash>}, so the cost
+ * can be raised at any time without invalidating existing hashes. The default
+ * cost can be set with the {@code university.hashIterations} system property.
+ */
+
+class PasswordHasher {
+    private static final String PREFIX = "pbkdf2$";
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    /**
+     * The highest cost accepted in a stored hash, so that a crafted hash
+     * cannot tie up a verification thread for long.
+     */
+    static final int MAX_ITERATIONS = 1_000_000;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static volatile int iterations = Math.min(Integer.getInteger("university.hashIterations", 10_000),
+            MAX_ITERATIONS);
+    private static volatile String dummyHash;
+
+    /**
+     * Hashes a password with a fresh salt at the current cost.
+     *
+     * @param password The plaintext password.
+     * @return The encoded hash.
+     */
+
+    public static String hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        int cost = iterations;
+        Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+        return PREFIX + cost + "$" + encoder.encodeToString(salt) + "$"
+                + encoder.encodeToString(derive(password, salt, cost));
+    }
+
+    /**
+     * Checks a password against an encoded hash. The comparison takes the same
+     * time whether the first or the last byte differs.
+     *
+     * @param password    The plaintext password to check.
+     * @param encodedHash The hash produced by {@link #hash(String)}.
+     * @return True if the password matches, false otherwise.
+     */
+
+    public static boolean verify(String password, String encodedHash) {
+        if (!isEncoded(encodedHash)) {
+            return false;
+        }
+        String[] parts = encodedHash.split("\\$");
+        Base64.Decoder decoder = Base64.getDecoder();
+        byte[] salt = decoder.decode(parts[2]);
+        byte[] expected = decoder.decode(parts[3]);
+        return MessageDigest.isEqual(expected, derive(password, salt, Integer.parseInt(parts[1])));
+    }
+
+    /**
+     * Gets a hash of a password no user has, at the current cost. Checking a
+     * password against it when a username is unknown makes a failed login
+     * take as long whether or not the username exists.
+     *
+     * @return The encoded hash.
+     */
+
+    static String dummyHash() {
+        String dummy = dummyHash;
+        if (dummy == null || !dummy.startsWith(PREFIX + iterations + "$")) {
+            byte[] password = new byte[SALT_BYTES];
+            RANDOM.nextBytes(password);
+            dummy = hash(Base64.getEncoder().encodeToString(password));
+            dummyHash = dummy;
+        }
+        return dummy;
+    }
+
+    /**
+     * Checks if a string is an encoded hash rather than a plaintext password.
+     * A hash whose cost is above {@link #MAX_ITERATIONS} is not accepted.
+     *
+     * @param value The string to check.
+     * @return True if the string is an encoded hash, false otherwise.
+     */
+
+    public static boolean isEncoded(String value) {
+        if (value == null || !value.startsWith(PREFIX)) {
+            return false;
+        }
+        String[] parts = value.split("\\$");
+        if (parts.length != 4 || parts[1].isEmpty() || parts[1].length() > 7) {
+            return false;
+        }
+        for (int i = 0; i < parts[1].length(); i++) {
+            if (!Character.isDigit(parts[1].charAt(i))) {
+                return false;
+            }
+        }
+        int cost = Integer.parseInt(parts[1]);
+        return cost >= 1 && cost <= MAX_ITERATIONS;
+    }
+
+    /**
+     * Packs an encoded hash into bytes: a marker byte of 1, the iteration
+     * count, the salt and the hash, which is 53 bytes instead of a string of
+     * about 80 characters. Any other value is kept as UTF-8 after a marker
+     * byte of 0.
+     *
+     * @param encodedHash The hash produced by {@link #hash(String)}.
+     * @return The packed bytes, read back with {@link #unpack(byte[])}.
+     */
+
+    static byte[] pack(String encodedHash) {
+        if (isEncoded(encodedHash)) {
+            String[] parts = encodedHash.split("\\$");
+            try {
+                Base64.Decoder decoder = Base64.getDecoder();
+                Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+                int cost = Integer.parseInt(parts[1]);
+                byte[] salt = decoder.decode(parts[2]);
+                byte[] hash = decoder.decode(parts[3]);
+                // Only values that unpack to the same string are packed.
+                if (salt.length == SALT_BYTES && hash.length == HASH_BITS / 8
+                        && parts[1].equals(Integer.toString(cost))
+                        && encoder.encodeToString(salt).equals(parts[2])
+                        && encoder.encodeToString(hash).equals(parts[3])) {
+                    return ByteBuffer.allocate(1 + 4 + SALT_BYTES + HASH_BITS / 8)
+                            .put((byte) 1).putInt(cost).put(salt).put(hash).array();
+                }
+            } catch (IllegalArgumentException e) {
+                // Not valid Base64 or out of range; kept as text below.
+            }
+        }
+        byte[] text = encodedHash.getBytes(StandardCharsets.UTF_8);
+        byte[] packed = new byte[text.length + 1];
+        System.arraycopy(text, 0, packed, 1, text.length);
+        return packed;
+    }
+
+    /**
+     * Unpacks a hash packed by {@link #pack(String)}.
+     *
+     * @param packed The packed bytes.
+     * @return The encoded hash.
+     */
+
+    static String unpack(byte[] packed) {
+        if (packed[0] == 0) {
+            return new String(packed, 1, packed.length - 1, StandardCharsets.UTF_8);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(packed, 1, packed.length - 1);
+        int cost = buffer.getInt();
+        byte[] salt = new byte[SALT_BYTES];
+        byte[] hash = new byte[HASH_BITS / 8];
+        buffer.get(salt).get(hash);
+        Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+        return PREFIX + cost + "$" + encoder.encodeToString(salt) + "$" + encoder.encodeToString(hash);
+    }
+
+    /**
+     * Sets the number of PBKDF2 iterations used for new hashes.
+     *
+     * @param cost The number of iterations.
+     */
+
+    public static void setIterations(int cost) {
+        iterations = Math.min(Math.max(1, cost), MAX_ITERATIONS);
+    }
+
+    private static byte[] derive(String password, byte[] salt, int cost) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, cost, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
+
+/**
+ * The {@code Authenticator} class verifies passwords on a small, bounded pool
+ * of worker threads.
+ * Hash verification is deliberately expensive, so it is kept off the threads
+ * that serve registrations: the pool has a fixed number of threads and a
+ * bounded queue, and a login that arrives when the queue is full is turned
+ * away instead of piling up. Throughput therefore depends only on the pool
+ * size and the hash cost.
+ */
+
+class Authenticator {
+    private static final Authenticator DEFAULT = new Authenticator(
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2), 1024, 10);
+
+    private final ThreadPoolExecutor pool;
+    private final long timeoutSeconds;
+
+    /**
+     * Constructor for Authenticator.
+     *
+     * @param threads        The number of verification threads.
+     * @param queueCapacity  The number of logins that may wait for a thread.
+     * @param timeoutSeconds How long a login waits for its verification.
+     */
+
+    public Authenticator(int threads, int queueCapacity, long timeoutSeconds) {
+        this.pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "password-verifier");
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        this.pool.allowCoreThreadTimeOut(true);
+        this.timeoutSeconds = timeoutSeconds;
+    }
+
+    /**
+     * Gets the authenticator shared by every registry in this JVM.
+     *
+     * @return The shared authenticator.
+     */
+
+    public static Authenticator getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Verifies a user's password on the pool. When no user was found the
+     * password is checked against a dummy hash, so that the time taken does
+     * not reveal whether the username exists. A verification that times out
+     * is cancelled.
+     *
+     * @param user     The user found by username, or {@code null}.
+     * @param password The entered password.
+     * @return True if the password matches, false if it does not, the user is
+     *         {@code null}, or the pool is saturated.
+     */
+
+    public boolean verify(User user, String password) {
+        if (password == null) {
+            return false;
+        }
+
+        Future<Boolean> verification;
+        try {
+            verification = pool.submit(() -> {
+                if (user == null) {
+                    PasswordHasher.verify(password, PasswordHasher.dummyHash());
+                    return false;
+                }
+                return user.checkPassword(password);
+            });
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+        try {
+            return verification.get(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            verification.cancel(true);
+            return false;
+        } catch (InterruptedException e) {
+            verification.cancel(true);
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
+
+class User {
+    private String username;
+    private String passwordHash;
+
+    /**
+     * Constructor for User. The password is always hashed, even if it looks
+     * like an encoded hash.
+     *
+     * @param username The username of the user.
+     * @param password The plaintext password of the user.
+     */
+    public User(String username, String password) {
+        this(username, password, false);
+    }
+
+    /**
+     * Constructor for a user read back from a snapshot, a journal, a record
+     * file or a CSV export, where the password is normally an encoded hash
+     * and is kept as is. Plaintext passwords of older exports are hashed.
+     *
+     * @param username The username of the user.
+     * @param password The encoded hash, or a plaintext password.
+     * @param stored   True if the password was read back from storage.
+     */
+    User(String username, String password, boolean stored) {
+        this.username = username;
+        this.passwordHash = stored && PasswordHasher.isEncoded(password) ? password : PasswordHasher.hash(password);
+    }
+
+    /**
+     * Constructor for a user whose credentials are kept elsewhere; such a
+     * subclass overrides {@link #getUsername()} and {@link #getPasswordHash()}.
+     */
+    User() {
+    }
+
+    /**
+     * Gets the username of the user.
+     *
+     * @return The username.
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Gets the encoded hash of the user's password.
+     *
+     * @return the password hash.
+     */
+    public String getPasswordHash() {
+        return passwordHash;
+    }
+
+    /**
+     * Authenticates the user with the provided username and password. The hash
+     * is verified on the shared {@link Authenticator} pool.
+     *
+     * @param enteredUsername The entered username for authentication.
+     * @param enteredPassword The entered password for authentication.
+     * @return True if authentication is successful, false otherwise.
+     */
+
+    public boolean authenticate(String enteredUsername, String enteredPassword) {
+        return getUsername().equals(enteredUsername) && Authenticator.getDefault().verify(this, enteredPassword);
+    }
+
+    /**
+     * Checks a password against the stored hash on the calling thread.
+     *
+     * @param enteredPassword The entered password.
+     * @return True if the password matches, false otherwise.
+     */
+
+    boolean checkPassword(String enteredPassword) {
+        return PasswordHasher.verify(enteredPassword, getPasswordHash());
+    }
+}
+
+/**
+ * The {@code SessionCache} class issues opaque tokens for logged-in users and
+ * resolves them back to the user without checking the password again.
+ * A session ends when it has been idle for too long, when it reaches its
+ * absolute lifetime, or when it is evicted because the cache is full. Eviction
+ * removes the oldest sessions first.
+ */
+
+class SessionCache {
+    private static final int TOKEN_BYTES = 24;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final ConcurrentHashMap<String, Session> sessions;
+    private final ConcurrentLinkedQueue<String> issueOrder;
+    private final AtomicInteger queuedTokens;
+    private final long idleNanos;
+    private final long lifetimeNanos;
+    private final int maxSessions;
+
+    /**
+     * A user's session and its timestamps.
+     */
+
+    private static class Session {
+        private final User user;
+        private final long createdAt;
+        private volatile long lastUsedAt;
+
+        private Session(User user, long now) {
+            this.user = user;
+            this.createdAt = now;
+            this.lastUsedAt = now;
+        }
+    }
+
+    /**
+     * Constructor for SessionCache.
+     *
+     * @param idleTimeout The time a session may go unused.
+     * @param lifetime    The time a session may live in total.
+     * @param unit        The unit of both times.
+     * @param maxSessions The number of sessions kept at most.
+     */
+
+    public SessionCache(long idleTimeout, long lifetime, TimeUnit unit, int maxSessions) {
+        this.sessions = new ConcurrentHashMap<>();
+        this.issueOrder = new ConcurrentLinkedQueue<>();
+        this.queuedTokens = new AtomicInteger();
+        this.idleNanos = unit.toNanos(idleTimeout);
+        this.lifetimeNanos = unit.toNanos(lifetime);
+        this.maxSessions = maxSessions;
+    }
+
+    /**
+     * Starts a session for a user who has just authenticated.
+     *
+     * @param user The authenticated user.
+     * @return The session token.
+     */
+
+    public String issue(User user) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        RANDOM.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        sessions.put(token, new Session(user, System.nanoTime()));
+        issueOrder.add(token);
+        queuedTokens.incrementAndGet();
+        evictOverflow();
+        return token;
+    }
+
+    /**
+     * Resolves a token to the user of its session, if the session is still
+     * alive and belongs to a user of the given type.
+     *
+     * @param token The session token.
+     * @param type  The expected type of user.
+     * @return The user, or {@code null} if there is no such live session.
+     */
+
+    public <T extends User> T resolve(String token, Class<T> type) {
+        if (token == null) {
+            return null;
+        }
+        Session session = sessions.get(token);
+        if (session == null) {
+            return null;
+        }
+
+        long now = System.nanoTime();
+        if (isExpired(session, now)) {
+            sessions.remove(token, session);
+            return null;
+        }
+        if (!type.isInstance(session.user)) {
+            return null;
+        }
+        session.lastUsedAt = now;
+        return type.cast(session.user);
+    }
+
+    /**
+     * Ends a session.
+     *
+     * @param token The session token; {@code null} is ignored.
+     */
+
+    public void invalidate(String token) {
+        if (token != null) {
+            sessions.remove(token);
+        }
+    }
+
+    /**
+     * Removes every expired session.
+     */
+
+    public void purgeExpired() {
+        long now = System.nanoTime();
+        sessions.entrySet().removeIf(entry -> isExpired(entry.getValue(), now));
+        dropEndedTokens();
+    }
+
+    /**
+     * Gets the number of sessions held, including expired sessions that have
+     * not been purged yet.
+     *
+     * @return The number of sessions.
+     */
+
+    public int size() {
+        return sessions.size();
+    }
+
+    private boolean isExpired(Session session, long now) {
+        return now - session.lastUsedAt > idleNanos || now - session.createdAt > lifetimeNanos;
+    }
+
+    /**
+     * Removes the oldest sessions until the cache is within its bound. Tokens
+     * of sessions that already ended are skipped on the way.
+     */
+
+    private void evictOverflow() {
+        while (sessions.size() > maxSessions) {
+            String oldest = issueOrder.poll();
+            if (oldest == null) {
+                return;
+            }
+            queuedTokens.decrementAndGet();
+            sessions.remove(oldest);
+        }
+        if (queuedTokens.get() > 2 * maxSessions) {
+            dropEndedTokens();
+        }
+    }
+
+    private void dropEndedTokens() {
+        issueOrder.removeIf(token -> {
+            if (sessions.containsKey(token)) {
+                return false;
+            }
+            queuedTokens.decrementAndGet();
+            return true;
+        });
+    }
+}
+
+/**
+ * The {@code Page} class is one page of a listing, together with the key to
+ * pass back for the page after it.
+ * Keys are opaque to callers. A page always starts right after the key it was
+ * asked for, so listing a large collection page by page never re-reads the
+ * rows that came before.
+ *
+ * @param <T> The type of the listed items.
+ */
+
+class Page<T> {
+    private final List<T> items;
+    private final String nextKey;
+
+    /**
+     * Constructor for Page.
+     *
+     * @param items   The items on the page.
+     * @param nextKey The key of the next page, or {@code null} on the last page.
+     */
+
+    public Page(List<T> items, String nextKey) {
+        this.items = items;
+        this.nextKey = nextKey;
+    }
+
+    public List<T> getItems() {
+        return items;
+    }
+
+    public String getNextKey() {
+        return nextKey;
+    }
+
+    public boolean hasNext() {
+        return nextKey != null;
+    }
+
+    /**
+     * Pages through a list that is only ever appended to. The key is the
+     * position after the last item, which stays valid however many items are
+     * appended later.
+     *
+     * @param list     The append-only list.
+     * @param afterKey The key of the page, or {@code null} for the first page.
+     * @param limit    The maximum number of items on the page.
+     * @return The page.
+     */
+
+    public static <T> Page<T> ofAppendOnly(List<T> list, String afterKey, int limit) {
+        int from = afterKey == null ? 0 : Integer.parseInt(afterKey);
+        int to = (int) Math.min(list.size(), (long) from + limit);
+        List<T> items = new ArrayList<>(list.subList(Math.min(from, to), to));
+        return new Page<>(items, to < list.size() ? Integer.toString(to) : null);
+    }
+
+    /**
+     * Pages through an index sorted by a unique key. The key of a page is the
+     * sort key of the last item before it, so a page only reads the entries
+     * it returns and never those before it.
+     *
+     * @param index    The items by sort key.
+     * @param afterKey The key of the page, or {@code null} for the first page.
+     * @param limit    The maximum number of items on the page.
+     * @return The page.
+     */
+
+    public static <T> Page<T> ofSorted(NavigableMap<String, T> index, String afterKey, int limit) {
+        NavigableMap<String, T> rest = afterKey == null ? index : index.tailMap(afterKey, false);
+        Iterator<Map.Entry<String, T>> entries = rest.entrySet().iterator();
+        List<T> items = new ArrayList<>(Math.max(0, Math.min(limit, 1024)));
+        String lastKey = null;
+        while (items.size() < limit && entries.hasNext()) {
+            Map.Entry<String, T> entry = entries.next();
+            items.add(entry.getValue());
+            lastKey = entry.getKey();
+        }
+        return new Page<>(items, lastKey != null && entries.hasNext() ? lastKey : null);
+    }
+}
+
+/**
+ * The {@code ReportWriter} class renders listings through one large buffer,
+ * optionally gzip-compressed, instead of one console write per row.
+ * Reports written to the console are flushed once when the writer is closed;
+ * reports written to a file whose name ends in {@code .gz} are compressed.
+ */
+
+class ReportWriter implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Writer writer;
+    private final boolean ownsStream;
+
+    private ReportWriter(OutputStream out, boolean gzip, boolean ownsStream) throws IOException {
+        OutputStream stream = gzip ? new GZIPOutputStream(out, BUFFER_SIZE) : out;
+        this.writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), BUFFER_SIZE);
+        this.ownsStream = ownsStream;
+    }
+
+    /**
+     * Opens a report on the console. Closing the report flushes it but leaves
+     * the console open.
+     *
+     * @return The report writer.
+     */
+
+    public static ReportWriter toConsole() {
+        try {
+            return new ReportWriter(System.out, false, false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Opens a report file, compressing it if the name ends in {@code .gz}.
+     *
+     * @param path The report file.
+     * @return The report writer.
+     * @throws IOException If the file cannot be created.
+     */
+
+    public static ReportWriter toFile(Path path) throws IOException {
+        return new ReportWriter(Files.newOutputStream(path), path.toString().endsWith(".gz"), true);
+    }
+
+    /**
+     * Writes one line of the report.
+     *
+     * @param line The line.
+     * @return This writer.
+     */
+
+    public ReportWriter line(String line) {
+        try {
+            writer.write(line);
+            writer.write('\n');
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Writes one list item of the report.
+     *
+     * @param item The item.
+     * @return This writer.
+     */
+
+    public ReportWriter item(String item) {
+        return line("- " + item);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (ownsStream) {
+            writer.close();
+        } else {
+            writer.flush();
+        }
+    }
+}
+
+/**
+ * The {@code EligibilityMatrix} class keeps, for every student, a bitset of the
+ * gated courses the student is eligible for.
+ * Courses without prerequisites or rule requirements are open to everyone and
+ * have no column. Rows
+ * are built in parallel for the whole cohort and read without evaluating any
+ * prerequisites. When a student completes a course only that student's row is
+ * recomputed. When the catalog changes, the columns whose requirements changed
+ * are recomputed straight away on a background thread while the other
+ * columns are carried over; until that finishes, reads evaluate the
+ * prerequisites directly.
+ */
+
+class EligibilityMatrix {
+    private final Registry registry;
+    private volatile Layout layout;
+    private Queue<Student> invalidatedDuringRebuild;
+    /**
+     * Shared by row updates, which never wait for each other, and taken
+     * exclusively only to start and to publish a build.
+     */
+    private final ReentrantReadWriteLock publishLock = new ReentrantReadWriteLock();
+    private final AtomicBoolean refreshQueued = new AtomicBoolean();
+    private final Object rebuildLock = new Object();
+    private ScheduledExecutorService refresher;
+
+    /**
+     * The columns of one build: the gated courses, what each of them requires
+     * and the catalog version they were read at, together with the rows built
+     * against them.
+     */
+
+    private static final class Layout {
+        final int catalogVersion;
+        final RegistrationRules rules;
+        final Course[] columns;
+        final CourseSet[] requirements;
+        final int[] columnsById;
+        volatile AtomicReferenceArray<long[]> rows;
+        /**
+         * Shared by row stores, which never wait for each other, and taken
+         * exclusively only to grow the row array.
+         */
+        private final ReentrantReadWriteLock growLock = new ReentrantReadWriteLock();
+
+        Layout(int catalogVersion, RegistrationRules rules, Course[] columns, CourseSet[] requirements,
+                int[] columnsById) {
+            this.catalogVersion = catalogVersion;
+            this.rules = rules;
+            this.columns = columns;
+            this.requirements = requirements;
+            this.columnsById = columnsById;
+        }
+
+        int columnOf(Course course) {
+            int id = course.getId();
+            return id >= 0 && id < columnsById.length ? columnsById[id] : -1;
+        }
+
+        long[] rowAt(int index) {
+            AtomicReferenceArray<long[]> current = rows;
+            return index >= 0 && index < current.length() ? current.get(index) : null;
+        }
+
+        /**
+         * Stores a row, growing the row array when students were added since
+         * the build. A row is never stored into an array that is being
+         * copied, so no row is lost to a concurrent grow.
+         */
+
+        void store(int index, long[] row) {
+            while (true) {
+                growLock.readLock().lock();
+                try {
+                    AtomicReferenceArray<long[]> current = rows;
+                    if (index < current.length()) {
+                        current.set(index, row);
+                        return;
+                    }
+                } finally {
+                    growLock.readLock().unlock();
+                }
+                grow(index);
+            }
+        }
+
+        private void grow(int index) {
+            growLock.writeLock().lock();
+            try {
+                AtomicReferenceArray<long[]> current = rows;
+                if (index >= current.length()) {
+                    AtomicReferenceArray<long[]> grown =
+                            new AtomicReferenceArray<>(Math.max(index + 1, current.length() * 2));
+                    for (int i = 0; i < current.length(); i++) {
+                        grown.set(i, current.get(i));
+                    }
+                    rows = grown;
+                }
+            } finally {
+                growLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Constructor for EligibilityMatrix. The matrix is empty until it is
+     * first rebuilt.
+     *
+     * @param registry The registry whose students and courses are covered.
+     */
+
+    public EligibilityMatrix(Registry registry) {
+        this.registry = registry;
+        registry.getPrerequisiteGraph().addChangeListener(this::catalogChanged);
+    }
+
+    /**
+     * Checks whether the matrix was built against the current catalog.
+     *
+     * @return True if the matrix can answer reads, false if it must be rebuilt.
+     */
+
+    public boolean isCurrent() {
+        Layout current = layout;
+        return current != null && current.catalogVersion == registry.getPrerequisiteGraph().getVersion();
+    }
+
+    /**
+     * Recomputes every row against the current catalog, using all cores.
+     * Students whose records change while the rebuild runs are recomputed
+     * again before it returns.
+     */
+
+    public void rebuild() {
+        synchronized (rebuildLock) {
+            build(null);
+        }
+    }
+
+    /**
+     * Brings the matrix up to date with the catalog, recomputing only the
+     * columns whose requirements changed since the last build. Does nothing
+     * until the matrix has been built.
+     */
+
+    public void refresh() {
+        synchronized (rebuildLock) {
+            Layout previous = layout;
+            if (previous != null && !isCurrent()) {
+                build(previous);
+            }
+        }
+    }
+
+    /**
+     * Builds rows against the current catalog. Callers hold the rebuild lock.
+     *
+     * @param previous The layout whose unchanged columns are carried over, or
+     *                 {@code null} to compute every column.
+     */
+
+    private void build(Layout previous) {
+        Layout next;
+        List<Student> students;
+        synchronized (registry) {
+            next = layoutOf(registry.getPrerequisiteGraph());
+            // Students hydrated from a record file have no row and are checked directly.
+            students = new ArrayList<>(registry.getStudentTable().asList());
+        }
+        int[] carried = carriedColumns(previous, next);
+        publishLock.writeLock().lock();
+        try {
+            invalidatedDuringRebuild = new ConcurrentLinkedQueue<>();
+        } finally {
+            publishLock.writeLock().unlock();
+        }
+
+        AtomicReferenceArray<long[]> built = new AtomicReferenceArray<>(students.size());
+        students.parallelStream().forEach(student -> {
+            int index = student.getHistoryIndex();
+            built.set(index, rowOf(student, next, carried, previous == null ? null : previous.rowAt(index)));
+        });
+        next.rows = built;
+
+        publishLock.writeLock().lock();
+        try {
+            layout = next;
+            for (Student student : invalidatedDuringRebuild) {
+                next.store(student.getHistoryIndex(), rowOf(student, next, null, null));
+            }
+            invalidatedDuringRebuild = null;
+        } finally {
+            publishLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Recomputes the row of one student after their completed courses changed.
+     * Does nothing until the matrix has been built. Only shares the matrix's
+     * lock, so completions by different students never wait for each other.
+     *
+     * @param student The student whose record changed.
+     */
+
+    public void invalidate(Student student) {
+        int index = student.getHistoryIndex();
+        if (index < 0) {
+            return;
+        }
+        publishLock.readLock().lock();
+        try {
+            if (invalidatedDuringRebuild != null) {
+                invalidatedDuringRebuild.add(student);
+            }
+            Layout current = layout;
+            if (current != null) {
+                current.store(index, rowOf(student, current, null, null));
+            }
+        } finally {
+            publishLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Checks whether a student meets the prerequisites of a course.
+     *
+     * @param student The student.
+     * @param course  The course.
+     * @return True if the student is eligible for the course, false otherwise.
+     */
+
+    public boolean isEligible(Student student, Course course) {
+        Layout current = layout;
+        if (current == null || current.catalogVersion != registry.getPrerequisiteGraph().getVersion()) {
+            return course.meetsPrerequisites(student);
+        }
+        int column = current.columnOf(course);
+        if (column < 0) {
+            return !course.hasRequirements() || course.meetsPrerequisites(student);
+        }
+        long[] row = current.rowAt(student.getHistoryIndex());
+        if (row == null) {
+            return course.meetsPrerequisites(student);
+        }
+        return (row[column >>> 6] & (1L << column)) != 0;
+    }
+
+    /**
+     * Lists the courses a student meets the prerequisites of and has not
+     * completed yet.
+     *
+     * @param student The student.
+     * @return The eligible courses in catalog order.
+     */
+
+    public List<Course> eligibleCourses(Student student) {
+        List<Course> courses = registry.getCourses();
+        List<Course> eligible = new ArrayList<>();
+        for (Course course : courses) {
+            if (!student.hasCompletedCourse(course) && isEligible(student, course)) {
+                eligible.add(course);
+            }
+        }
+        return eligible;
+    }
+
+    /**
+     * Counts the students who meet the prerequisites of a course.
+     *
+     * @param course The course.
+     * @return The number of eligible students.
+     */
+
+    public int countEligible(Course course) {
+        List<Student> students = registry.getStudents();
+        int count = 0;
+        for (Student student : students) {
+            if (isEligible(student, course)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Starts a background thread that rebuilds the matrix whenever the catalog
+     * has changed since the last build.
+     *
+     * @param periodSeconds How often the catalog version is checked.
+     */
+
+    public synchronized void startBackgroundRefresh(long periodSeconds) {
+        if (refresher != null) {
+            return;
+        }
+        refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "eligibility-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refresher.scheduleWithFixedDelay(this::refresh, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the background refresh, if it was started.
+     */
+
+    public synchronized void stopBackgroundRefresh() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+    }
+
+    /**
+     * Queues a refresh on the background thread after the catalog changed.
+     * Runs under the monitor of the prerequisite graph, so it only hands the
+     * work off.
+     */
+
+    private void catalogChanged() {
+        if (layout == null || !refreshQueued.compareAndSet(false, true)) {
+            return;
+        }
+        synchronized (this) {
+            if (refresher == null) {
+                refreshQueued.set(false);
+                return;
+            }
+            refresher.execute(() -> {
+                refreshQueued.set(false);
+                refresh();
+            });
+        }
+    }
+
+    /**
+     * Maps each column of a new layout to the column of the previous layout
+     * it can be copied from: the same course, with the same requirements and
+     * rules.
+     *
+     * @return The previous column of each new column, -1 where the column
+     *         must be computed, or {@code null} if nothing carries over.
+     */
+
+    private static int[] carriedColumns(Layout previous, Layout next) {
+        if (previous == null || previous.rules != next.rules) {
+            return null;
+        }
+        int[] carried = new int[next.columns.length];
+        for (int column = 0; column < carried.length; column++) {
+            int old = previous.columnOf(next.columns[column]);
+            carried[column] = old >= 0 && previous.columns[old] == next.columns[column]
+                    && previous.requirements[old].equals(next.requirements[column]) ? old : -1;
+        }
+        return carried;
+    }
+
+    /**
+     * Reads the gated courses of the catalog. The graph's monitor is held
+     * throughout, so the version matches the courses read.
+     */
+
+    private static Layout layoutOf(PrerequisiteGraph graph) {
+        synchronized (graph) {
+            List<Course> columns = new ArrayList<>();
+            int size = graph.size();
+            for (int id = 0; id < size; id++) {
+                Course course = graph.courseAt(id);
+                if (course != null && course.hasRequirements()) {
+                    columns.add(course);
+                }
+            }
+            int[] columnsById = new int[size];
+            Arrays.fill(columnsById, -1);
+            CourseSet[] requirements = new CourseSet[columns.size()];
+            for (int column = 0; column < columns.size(); column++) {
+                columnsById[columns.get(column).getId()] = column;
+                requirements[column] = graph.requirementsOf(columns.get(column).getId());
+            }
+            return new Layout(graph.getVersion(), graph.getRules(), columns.toArray(new Course[0]), requirements,
+                    columnsById);
+        }
+    }
+
+    /**
+     * Computes a student's row. The completed courses are read once, and every
+     * column is checked with the same test a registration uses.
+     *
+     * @param carried  The previous column of each column, or {@code null} to
+     *                 compute every column.
+     * @param previous The student's previous row, or {@code null} if none.
+     */
+
+    private static long[] rowOf(Student student, Layout layout, int[] carried, long[] previous) {
+        long[] row = new long[(layout.columns.length + 63) >>> 6];
+        CourseSet completed = null;
+        int completedCredits = 0;
+        for (int column = 0; column < layout.columns.length; column++) {
+            int old = carried == null || previous == null ? -1 : carried[column];
+            boolean eligible;
+            if (old >= 0) {
+                eligible = (previous[old >>> 6] & (1L << old)) != 0;
+            } else {
+                if (completed == null) {
+                    completed = student.getCompletedCourseSet();
+                    completedCredits = student.getCompletedCredits();
+                }
+                eligible = layout.columns[column].meetsPrerequisites(completed, completedCredits);
+            }
+            if (eligible) {
+                row[column >>> 6] |= 1L << column;
+            }
+        }
+        return row;
+    }
+}
+
+/**
+ * The {@code PersistentVector} class is an immutable list that is changed by
+ * making new versions of it. A version shares every part it did not change
+ * with the version it was made from: items are kept in a tree of 32-way
+ * nodes plus a tail of up to 32 items, so appending or replacing an item
+ * copies at most one node per level rather than the whole list. Older
+ * versions stay valid and unchanged, so they can be read without locks while
+ * newer ones are made.
+ *
+ * @param <T> The type of the items.
+ */
+
+final class PersistentVector<T> extends AbstractList<T> implements RandomAccess {
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+    private static final PersistentVector<Object> EMPTY =
+            new PersistentVector<>(0, BITS, new Object[WIDTH], new Object[0]);
+
+    private final int size;
+    private final int shift;
+    private final Object[] root;
+    private final Object[] tail;
+
+    private PersistentVector(int size, int shift, Object[] root, Object[] tail) {
+        this.size = size;
+        this.shift = shift;
+        this.root = root;
+        this.tail = tail;
+    }
+
+    /**
+     * Gets the empty vector.
+     *
+     * @return The empty vector.
+     */
+
+    @SuppressWarnings("unchecked")
+    static <T> PersistentVector<T> empty() {
+        return (PersistentVector<T>) EMPTY;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " of " + size);
+        }
+        return (T) nodeOf(index)[index & MASK];
+    }
+
+    /**
+     * Makes a version with an item appended.
+     *
+     * @param item The item.
+     * @return The new version.
+     */
+
+    PersistentVector<T> append(T item) {
+        if (size - tailOffset() < WIDTH) {
+            Object[] newTail = Arrays.copyOf(tail, tail.length + 1);
+            newTail[tail.length] = item;
+            return new PersistentVector<>(size + 1, shift, root, newTail);
+        }
+        Object[] newRoot;
+        int newShift = shift;
+        if ((size >>> BITS) > 1 << shift) {
+            newRoot = new Object[WIDTH];
+            newRoot[0] = root;
+            newRoot[1] = pathTo(shift, tail);
+            newShift += BITS;
+        } else {
+            newRoot = pushTail(shift, root, tail);
+        }
+        return new PersistentVector<>(size + 1, newShift, newRoot, new Object[] {item});
+    }
+
+    /**
+     * Makes a version with one item replaced.
+     *
+     * @param index The index of the item.
+     * @param item  The new item.
+     * @return The new version.
+     */
+
+    PersistentVector<T> with(int index, T item) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " of " + size);
+        }
+        if (index >= tailOffset()) {
+            Object[] newTail = tail.clone();
+            newTail[index & MASK] = item;
+            return new PersistentVector<>(size, shift, root, newTail);
+        }
+        return new PersistentVector<>(size, shift, replace(shift, root, index, item), tail);
+    }
+
+    /**
+     * Gets the index of the first item kept in the tail.
+     */
+
+    private int tailOffset() {
+        return size < WIDTH ? 0 : (size - 1) >>> BITS << BITS;
+    }
+
+    /**
+     * Gets the leaf node, or the tail, that holds an item.
+     */
+
+    private Object[] nodeOf(int index) {
+        if (index >= tailOffset()) {
+            return tail;
+        }
+        Object[] node = root;
+        for (int level = shift; level > 0; level -= BITS) {
+            node = (Object[]) node[(index >>> level) & MASK];
+        }
+        return node;
+    }
+
+    /**
+     * Copies the path from a node down to where a full tail goes and puts the
+     * tail there as a new leaf.
+     */
+
+    private Object[] pushTail(int level, Object[] parent, Object[] leaf) {
+        int child = ((size - 1) >>> level) & MASK;
+        Object[] copy = parent.clone();
+        if (level == BITS) {
+            copy[child] = leaf;
+        } else {
+            Object[] below = (Object[]) parent[child];
+            copy[child] = below == null ? pathTo(level - BITS, leaf) : pushTail(level - BITS, below, leaf);
+        }
+        return copy;
+    }
+
+    private static Object[] pathTo(int level, Object[] leaf) {
+        if (level == 0) {
+            return leaf;
+        }
+        Object[] node = new Object[WIDTH];
+        node[0] = pathTo(level - BITS, leaf);
+        return node;
+    }
+
+    private static Object[] replace(int level, Object[] node, int index, Object item) {
+        Object[] copy = node.clone();
+        if (level == 0) {
+            copy[index & MASK] = item;
+        } else {
+            int child = (index >>> level) & MASK;
+            copy[child] = replace(level - BITS, (Object[]) node[child], index, item);
+        }
+        return copy;
+    }
+}
+
+/**
+ * The {@code RosterSet} class is an immutable set of the students on a
+ * course's roster, identified by their roster keys (see
+ * {@link Student#getRosterKey()}). Keys are kept as bits in blocks of 1024,
+ * held in a {@link PersistentVector}, so adding or removing a student copies
+ * one 128-byte block and the vector's path to it while every other block is
+ * shared with the previous version. Keys are listed in ascending order, which
+ * is the order the students were added to the registry.
+ */
+
+final class RosterSet {
+    private static final int BLOCK_BITS = 10;
+    private static final int BLOCK_WORDS = 1 << BLOCK_BITS >>> 6;
+
+    static final RosterSet EMPTY = new RosterSet(PersistentVector.empty(), 0);
+
+    private final PersistentVector<long[]> blocks;
+    private final int size;
+
+    private RosterSet(PersistentVector<long[]> blocks, int size) {
+        this.blocks = blocks;
+        this.size = size;
+    }
+
+    /**
+     * Creates a set of keys.
+     *
+     * @param keys The keys.
+     * @return The set.
+     */
+
+    static RosterSet of(BitSet keys) {
+        PersistentVector<long[]> blocks = PersistentVector.empty();
+        long[] words = keys.toLongArray();
+        for (int from = 0; from < words.length; from += BLOCK_WORDS) {
+            long[] block = Arrays.copyOfRange(words, from, from + BLOCK_WORDS);
+            blocks = blocks.append(block);
+        }
+        return new RosterSet(blocks, keys.cardinality());
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Checks if a key is in the set.
+     *
+     * @param key The key.
+     * @return True if the key is in the set, false otherwise.
+     */
+
+    public boolean contains(int key) {
+        int block = key >>> BLOCK_BITS;
+        if (key < 0 || block >= blocks.size()) {
+            return false;
+        }
+        long[] words = blocks.get(block);
+        return words != null && (words[(key >>> 6) & (BLOCK_WORDS - 1)] & 1L << key) != 0;
+    }
+
+    /**
+     * Makes a version of the set with a key added.
+     *
+     * @param key The key, which must not be negative.
+     * @return The new version, or this set if the key was in it already.
+     */
+
+    RosterSet with(int key) {
+        if (contains(key)) {
+            return this;
+        }
+        int block = key >>> BLOCK_BITS;
+        PersistentVector<long[]> grown = blocks;
+        while (grown.size() <= block) {
+            grown = grown.append(null);
+        }
+        long[] words = grown.get(block);
+        words = words == null ? new long[BLOCK_WORDS] : words.clone();
+        words[(key >>> 6) & (BLOCK_WORDS - 1)] |= 1L << key;
+        return new RosterSet(grown.with(block, words), size + 1);
+    }
+
+    /**
+     * Makes a version of the set with a key removed.
+     *
+     * @param key The key.
+     * @return The new version, or this set if the key was not in it.
+     */
+
+    RosterSet without(int key) {
+        if (!contains(key)) {
+            return this;
+        }
+        int block = key >>> BLOCK_BITS;
+        long[] words = blocks.get(block).clone();
+        words[(key >>> 6) & (BLOCK_WORDS - 1)] &= ~(1L << key);
+        return new RosterSet(blocks.with(block, words), size - 1);
+    }
+
+    /**
+     * Calls an action for every key, in ascending order.
+     *
+     * @param action The action.
+     */
+
+    void forEach(IntConsumer action) {
+        for (int block = 0; block < blocks.size(); block++) {
+            long[] words = blocks.get(block);
+            if (words == null) {
+                continue;
+            }
+            for (int word = 0; word < BLOCK_WORDS; word++) {
+                for (long bits = words[word]; bits != 0; bits &= bits - 1) {
+                    action.accept(block << BLOCK_BITS | word << 6 | Long.numberOfTrailingZeros(bits));
+                }
+            }
+        }
+    }
+}
+
+/**
+ * The {@code StudentList} class is a read-only list of a registry's students,
+ * indexed by roster key, that can also give a student's username without
+ * loading the student.
+ */
+
+abstract class StudentList extends AbstractList<Student> implements RandomAccess {
+    /**
+     * Gets the username of a student.
+     *
+     * @param index The roster key of the student.
+     * @return The username.
+     */
+
+    String usernameAt(int index) {
+        return get(index).getUsername();
+    }
+}
+
+/**
+ * The {@code CatalogVersion} class is an immutable, point-in-time view of a
+ * {@link Registry}: its admins, lecturers and courses, and how many students
+ * it had.
+ * The registry publishes a new version for every change to any of these,
+ * built from the previous one with {@link PersistentVector}, so a change
+ * copies only the parts it touches. A reader takes the current version with
+ * {@link Registry#snapshot()} and every listing it reads from it belongs to
+ * the same moment, however long it takes, without taking a lock. Rosters are
+ * not part of the version, so that registrations and drops never replace it:
+ * each course keeps its own immutable {@link RosterSet}, and a roster read
+ * through a version is the course's current one. The students themselves are
+ * the registry's live records; only which students exist is frozen.
+ */
+
+final class CatalogVersion {
+    private final long number;
+    private final PersistentVector<Admin> admins;
+    private final PersistentVector<Lecturer> lecturers;
+    private final PersistentVector<Course> courses;
+    /**
+     * The registry's students, indexed by roster key, of which the first
+     * {@link #studentCount} existed in this version.
+     */
+    private final StudentList students;
+    private final int studentCount;
+
+    private CatalogVersion(long number, PersistentVector<Admin> admins, PersistentVector<Lecturer> lecturers,
+            PersistentVector<Course> courses, StudentList students, int studentCount) {
+        this.number = number;
+        this.admins = admins;
+        this.lecturers = lecturers;
+        this.courses = courses;
+        this.students = students;
+        this.studentCount = studentCount;
+    }
+
+    /**
+     * Creates the first version of an empty registry.
+     *
+     * @param students The registry's students, indexed by roster key.
+     * @return The version.
+     */
+
+    static CatalogVersion initial(StudentList students) {
+        return new CatalogVersion(0, PersistentVector.empty(), PersistentVector.empty(), PersistentVector.empty(),
+                students, 0);
+    }
+
+    /**
+     * Gets the number of the version, which grows by one with every change.
+     *
+     * @return The version number.
+     */
+
+    public long getNumber() {
+        return number;
+    }
+
+    public List<Admin> getAdmins() {
+        return admins;
+    }
+
+    public List<Lecturer> getLecturers() {
+        return lecturers;
+    }
+
+    public List<Course> getCourses() {
+        return courses;
+    }
+
+    /**
+     * Gets the students that existed in this version, in the order they were
+     * added to the registry.
+     *
+     * @return A read-only list of the students.
+     */
+
+    public List<Student> getStudents() {
+        return students.subList(0, studentCount);
+    }
+
+    /**
+     * Gets a student by roster key.
+     *
+     * @param key The roster key.
+     * @return The student.
+     */
+
+    Student studentAt(int key) {
+        return students.get(key);
+    }
+
+    /**
+     * Gets the username of a student by roster key, without loading a student
+     * kept in a record file.
+     *
+     * @param key The roster key.
+     * @return The username.
+     */
+
+    String usernameOf(int key) {
+        return students.usernameAt(key);
+    }
+
+    /**
+     * Gets the students enrolled in a course.
+     *
+     * @param course The course.
+     * @return The enrolled students, in the order they were added to the
+     *         registry.
+     */
+
+    public List<Student> getEnrolledStudents(Course course) {
+        RosterSet roster = course.getRoster();
+        List<Student> result = new ArrayList<>(roster.size());
+        roster.forEach(key -> result.add(students.get(key)));
+        return result;
+    }
+
+    CatalogVersion withAdmin(Admin admin) {
+        return new CatalogVersion(number + 1, admins.append(admin), lecturers, courses, students, studentCount);
+    }
+
+    CatalogVersion withLecturer(Lecturer lecturer) {
+        return new CatalogVersion(number + 1, admins, lecturers.append(lecturer), courses, students, studentCount);
+    }
+
+    /**
+     * Makes a version with a course added.
+     *
+     * @param course The course.
+     * @return The new version.
+     */
+
+    CatalogVersion withCourse(Course course) {
+        return new CatalogVersion(number + 1, admins, lecturers, courses.append(course), students, studentCount);
+    }
+
+    /**
+     * Makes a version with a different number of students.
+     *
+     * @param students     The registry's students, indexed by roster key.
+     * @param studentCount The number of students.
+     * @return The new version.
+     */
+
+    CatalogVersion withStudents(StudentList students, int studentCount) {
+        return new CatalogVersion(number + 1, admins, lecturers, courses, students, studentCount);
+    }
+}
+
+/**
+ * The {@code Registry} class owns every admin, student, lecturer and course in
+ * the university system.
+ * Each entity is kept in insertion order for listings and in a hash index keyed
+ * by username or course code, so lookups and logins stay constant-time no
+ * matter how many entities are registered. Lookups read concurrent maps and
+ * never block; additions are serialized. Usernames are unique per user type
+ * and course codes are unique across the catalog.
+ * Listings are read from an immutable {@link CatalogVersion} that every
+ * change replaces, and rosters from an immutable set each course replaces on
+ * its own, so readers never lock and never see a listing change under them.
+ */
+
+class Registry implements Closeable {
+    private volatile StudentList students;
+    private final AtomicReference<CatalogVersion> version;
+    private final Map<String, Admin> adminsByUsername;
+    private final Map<String, Student> studentsByUsername;
+    private final StudentTable studentTable;
+    private final Map<String, Lecturer> lecturersByUsername;
+    private final Map<String, Course> coursesByCode;
+    private final PrerequisiteGraph prerequisiteGraph;
+    private final EnrollmentEngine enrollmentEngine;
+    private final SessionCache sessions;
+    private final AcademicHistory history;
+    private final EligibilityMatrix eligibility;
+    private final WaitlistScheduler waitlistScheduler;
+    private volatile int currentTerm;
+    private volatile Journal journal;
+    private volatile StudentRecordStore records;
+
+    /**
+     * Constructs an empty registry, with compact student storage if the
+     * {@code university.compactStudents} system property is set.
+     */
+
+    public Registry() {
+        this(Boolean.getBoolean("university.compactStudents"));
+    }
+
+    /**
+     * Constructs an empty registry.
+     *
+     * @param compactStudents True to keep students only as columns of a
+     *                        {@link StudentTable}, with no object per student.
+     *                        Lookups of students then return new views.
+     */
+
+    public Registry(boolean compactStudents) {
+        this.adminsByUsername = new ConcurrentHashMap<>();
+        this.studentsByUsername = compactStudents ? null : new ConcurrentHashMap<>();
+        this.lecturersByUsername = new ConcurrentHashMap<>();
+        this.coursesByCode = new ConcurrentHashMap<>();
+        this.prerequisiteGraph = new PrerequisiteGraph();
+        this.enrollmentEngine = new EnrollmentEngine();
+        this.sessions = new SessionCache(30, 8 * 60, TimeUnit.MINUTES, 10_000);
+        this.history = new AcademicHistory();
+        this.eligibility = new EligibilityMatrix(this);
+        this.waitlistScheduler = new WaitlistScheduler(this);
+        this.studentTable = new StudentTable(compactStudents, prerequisiteGraph, history, eligibility);
+        this.students = studentTable.asList();
+        this.version = new AtomicReference<>(CatalogVersion.initial(students));
+    }
+
+    /**
+     * Adds an admin to the registry.
+     *
+     * @param admin The admin to be added.
+     * @return True if the admin was added, false if the username is already taken.
+     */
+
+    public synchronized boolean addAdmin(Admin admin) {
+        if (adminsByUsername.putIfAbsent(admin.getUsername(), admin) != null) {
+            return false;
+        }
+        version.updateAndGet(current -> current.withAdmin(admin));
+        return true;
+    }
+
+    /**
+     * Adds a student to the registry.
+     *
+     * @param student The student to be added.
+     * @return True if the student was added, false if the username is already taken.
+     */
+
+    public synchronized boolean addStudent(Student student) {
+        if (records != null) {
+            if (!records.add(student, this)) {
+                return false;
+            }
+        } else if (studentsByUsername == null ? studentTable.find(student.getUsername()) >= 0
+                : studentsByUsername.putIfAbsent(student.getUsername(), student) != null) {
+            return false;
+        } else {
+            studentTable.add(student, currentTerm);
+            eligibility.invalidate(student);
+        }
+        int count = students.size();
+        version.updateAndGet(current -> current.withStudents(students, count));
+        // Courses the student registered for before joining only counted them.
+        if (student.getRegisteredCourseCount() > 0) {
+            for (Course course : student.getRegisteredCourses()) {
+                updateRoster(course, student, true);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds a lecturer to the registry.
+     *
+     * @param lecturer The lecturer to be added.
+     * @return True if the lecturer was added, false if the username is already taken.
+     */
+
+    public synchronized boolean addLecturer(Lecturer lecturer) {
+        if (lecturersByUsername.putIfAbsent(lecturer.getUsername(), lecturer) != null) {
+            return false;
+        }
+        version.updateAndGet(current -> current.withLecturer(lecturer));
+        return true;
+    }
+
+    /**
+     * Adds a course to the registry, with the prerequisites given to its
+     * constructor.
+     *
+     * @param course The course to be added.
+     * @return True if the course was added, false if the course code is already taken.
+     * @throws IllegalArgumentException If a prerequisite would create a cycle.
+     */
+
+    public boolean addCourse(Course course) {
+        List<String> prerequisiteCodes = new ArrayList<>();
+        for (Course prerequisite : course.getprerequisites()) {
+            if (prerequisite != null) {
+                prerequisiteCodes.add(prerequisite.getcourseCode());
+            }
+        }
+        return addCourse(course, prerequisiteCodes);
+    }
+
+    /**
+     * Adds a course to the registry and records its prerequisites in the
+     * prerequisite graph.
+     *
+     * @param course            The course to be added.
+     * @param prerequisiteCodes The codes of the direct prerequisites.
+     * @return True if the course was added, false if the course code is already taken.
+     * @throws IllegalArgumentException If a prerequisite would create a cycle.
+     */
+
+    public synchronized boolean addCourse(Course course, Collection<String> prerequisiteCodes) {
+        if (coursesByCode.containsKey(course.getcourseCode())) {
+            return false;
+        }
+        prerequisiteGraph.addCourse(course, prerequisiteCodes);
+        course.attachRegistry(this);
+        if (records != null) {
+            course.addEnrolled(records.enrolledAtOpen(course.getcourseCode()));
+        }
+        coursesByCode.put(course.getcourseCode(), course);
+        version.updateAndGet(current -> current.withCourse(course));
+        Lecturer lecturer = course.getAssignedLecturer();
+        if (lecturer != null) {
+            lecturer.addAssignedCourse(course);
+        }
+        return true;
+    }
+
+    /**
+     * Finds an admin by username.
+     *
+     * @param username The username to look up.
+     * @return The admin, or {@code null} if no admin has that username.
+     */
+
+    public Admin findAdmin(String username) {
+        return adminsByUsername.get(username);
+    }
+
+    /**
+     * Finds a student by username.
+     *
+     * @param username The username to look up.
+     * @return The student, or {@code null} if no student has that username.
+     */
+
+    public Student findStudent(String username) {
+        StudentRecordStore current = records;
+        if (current != null) {
+            return current.find(username, this);
+        }
+        if (studentsByUsername != null) {
+            return studentsByUsername.get(username);
+        }
+        int row = studentTable.find(username);
+        return row < 0 ? null : studentTable.studentAt(row);
+    }
+
+    /**
+     * Finds a lecturer by username.
+     *
+     * @param username The username to look up.
+     * @return The lecturer, or {@code null} if no lecturer has that username.
+     */
+
+    public Lecturer findLecturer(String username) {
+        return lecturersByUsername.get(username);
+    }
+
+    /**
+     * Finds a course by its code.
+     *
+     * @param courseCode The course code to look up.
+     * @return The course, or {@code null} if no course has that code.
+     */
+
+    public Course findCourse(String courseCode) {
+        return coursesByCode.get(courseCode);
+    }
+
+    /**
+     * Gets the current version of the registry's listings and rosters.
+     *
+     * @return The version, which never changes.
+     */
+
+    public CatalogVersion snapshot() {
+        return version.get();
+    }
+
+    /**
+     * Adds a student to or removes a student from the roster of a course. A
+     * student who is not in the registry yet is listed once they are added.
+     *
+     * @param course   The course.
+     * @param student  The student.
+     * @param enrolled True if the student registered, false if they left.
+     */
+
+    void updateRoster(Course course, Student student, boolean enrolled) {
+        int key = student.getRosterKey();
+        if (key >= 0 && course.getId() >= 0) {
+            course.updateRoster(key, enrolled);
+        }
+    }
+
+    public List<Admin> getAdmins() {
+        return snapshot().getAdmins();
+    }
+
+    public List<Student> getStudents() {
+        return snapshot().getStudents();
+    }
+
+    StudentTable getStudentTable() {
+        return studentTable;
+    }
+
+    /**
+     * Keeps the students of this registry in a record file instead of its
+     * student table. Students are then hydrated from their records when they
+     * are looked up, and {@link #getStudents()} reads through the file.
+     * Must be called while the registry has no students or courses.
+     *
+     * @param records The record file.
+     * @throws IllegalStateException If the registry already has students or
+     *                               courses.
+     */
+
+    public synchronized void attachStudentRecords(StudentRecordStore records) {
+        if (studentTable.size() > 0 || !snapshot().getCourses().isEmpty()) {
+            throw new IllegalStateException("Student records must be attached to an empty registry");
+        }
+        this.records = records;
+        this.students = records.asList(this);
+        int count = students.size();
+        version.updateAndGet(current -> current.withStudents(students, count));
+    }
+
+    StudentRecordStore getStudentRecords() {
+        return records;
+    }
+
+    public List<Lecturer> getLecturers() {
+        return snapshot().getLecturers();
+    }
+
+    public List<Course> getCourses() {
+        return snapshot().getCourses();
+    }
+
+    public PrerequisiteGraph getPrerequisiteGraph() {
+        return prerequisiteGraph;
+    }
+
+    public EnrollmentEngine getEnrollmentEngine() {
+        return enrollmentEngine;
+    }
+
+    public SessionCache getSessions() {
+        return sessions;
+    }
+
+    public AcademicHistory getHistory() {
+        return history;
+    }
+
+    public EligibilityMatrix getEligibility() {
+        return eligibility;
+    }
+
+    public WaitlistScheduler getWaitlistScheduler() {
+        return waitlistScheduler;
+    }
+
+    /**
+     * Stops the registry's background work: the waitlist scheduler finishes
+     * the batch it is serving and promotes no one after that. Students still
+     * waiting stay on their waitlists.
+     */
+
+    @Override
+    public void close() {
+        waitlistScheduler.close();
+    }
+
+    /**
+     * Gets the index of the current trimester.
+     *
+     * @return The current trimester.
+     */
+
+    public int getCurrentTerm() {
+        return currentTerm;
+    }
+
+    /**
+     * Sets the current trimester of an empty registry, when restoring saved
+     * state. Students added afterwards start in that trimester.
+     *
+     * @param term The current trimester.
+     */
+
+    public synchronized void setCurrentTerm(int term) {
+        this.currentTerm = term;
+    }
+
+    /**
+     * Moves the whole university to the next trimester. Each student moves
+     * while holding their enrollment lock, so no registration of theirs is
+     * half-applied across the change.
+     *
+     * @return The new current trimester.
+     */
+
+    public synchronized int advanceTerm() {
+        currentTerm++;
+        // Students still in their records are hydrated into the new trimester.
+        for (Student student : records != null ? records.liveStudents() : students) {
+            enrollmentEngine.advanceTrimester(student);
+        }
+        return currentTerm;
+    }
+
+    /**
+     * Finds the students with a course in a given status in a given
+     * trimester, with a scan of the academic history.
+     *
+     * @param course The course.
+     * @param term   The trimester.
+     * @param status The status, one of the {@link AcademicHistory} constants.
+     * @return The matching students, in the order they were added to the
+     *         registry.
+     */
+
+    public List<Student> findStudents(Course course, int term, byte status) {
+        StudentRecordStore current = records;
+        if (current != null) {
+            return current.studentsWith(this, course, term, status);
+        }
+        int[] indexes = history.findStudents(course.getId(), term, status);
+        List<Student> result = new ArrayList<>(indexes.length);
+        synchronized (this) {
+            for (int index : indexes) {
+                result.add(students.get(index));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets one page of the students in registration order.
+     *
+     * @param afterKey The key of the page, or {@code null} for the first page.
+     * @param limit    The maximum number of students on the page.
+     * @return The page.
+     */
+
+    public Page<Student> pageStudents(String afterKey, int limit) {
+        return Page.ofAppendOnly(getStudents(), afterKey, limit);
+    }
+
+    /**
+     * Gets one page of the lecturers in registration order.
+     *
+     * @param afterKey The key of the page, or {@code null} for the first page.
+     * @param limit    The maximum number of lecturers on the page.
+     * @return The page.
+     */
+
+    public Page<Lecturer> pageLecturers(String afterKey, int limit) {
+        return Page.ofAppendOnly(getLecturers(), afterKey, limit);
+    }
+
+    /**
+     * Gets one page of the courses in creation order.
+     *
+     * @param afterKey The key of the page, or {@code null} for the first page.
+     * @param limit    The maximum number of courses on the page.
+     * @return The page.
+     */
+
+    public Page<Course> pageCourses(String afterKey, int limit) {
+        return Page.ofAppendOnly(getCourses(), afterKey, limit);
+    }
+
+    /**
+     * Attaches the journal that records mutations of this registry.
+     *
+     * @param journal The journal, or {@code null} to stop journaling.
+     */
+
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Marks the start of a mutation so that compaction cannot run until
+     * {@link #endMutation(Journal)} is called.
+     *
+     * @return The journal the mutation should be recorded in, or {@code null}.
+     */
+
+    public Journal beginMutation() {
+        Journal current = journal;
+        if (current != null) {
+            current.beginMutation();
+        }
+        return current;
+    }
+
+    /**
+     * Marks the end of a mutation started with {@link #beginMutation()}.
+     *
+     * @param current The journal returned by {@link #beginMutation()}.
+     */
+
+    public void endMutation(Journal current) {
+        if (current != null) {
+            current.endMutation();
+        }
+    }
+}
+
+/**
+ * The {@code RegistrationResult} class reports the outcome of a batch
+ * registration: either every course was registered, or none was and the
+ * reasons are listed.
+ */
+
+class RegistrationResult {
+    private final List<Course> registered;
+    private final List<String> errors;
+
+    /**
+     * Constructs an empty result.
+     */
+
+    public RegistrationResult() {
+        this.registered = new ArrayList<>();
+        this.errors = new ArrayList<>();
+    }
+
+    void addError(String error) {
+        errors.add(error);
+    }
+
+    void addRegistered(Course course) {
+        registered.add(course);
+    }
+
+    /**
+     * Checks if the whole batch was registered.
+     *
+     * @return True if every course was registered, false if none was.
+     */
+
+    public boolean isSuccessful() {
+        return errors.isEmpty();
+    }
+
+    /**
+     * Gets the courses that were registered.
+     *
+     * @return The registered courses, empty if the batch failed.
+     */
+
+    public List<Course> getRegistered() {
+        return registered;
+    }
+
+    /**
+     * Gets the reasons the batch was rejected.
+     *
+     * @return The error messages, empty if the batch succeeded.
+     */
+
+    public List<String> getErrors() {
+        return errors;
+    }
+}
+
+/**
+ * The {@code Waitlist} class is the queue of students waiting for a seat in a
+ * full course, served first come, first served.
+ * Joining and leaving never lock. Every join takes the next ticket, and the
+ * queue is a concurrent skip list ordered by ticket, so students are served
+ * in the order of their tickets however many join at once, and a place can be
+ * restored exactly from the ticket saved in a snapshot or journal. A
+ * concurrent map from username to ticket records who is still waiting and
+ * tells a place apart from an earlier place of the same student who left and
+ * joined again.
+ */
+
+class Waitlist {
+    private final ConcurrentSkipListMap<Long, String> queue = new ConcurrentSkipListMap<>();
+    private final ConcurrentHashMap<String, Long> tickets = new ConcurrentHashMap<>();
+    private final AtomicLong nextTicket = new AtomicLong();
+
+    /**
+     * A student's place in the queue.
+     */
+
+    static final class Entry {
+        final String username;
+        final long ticket;
+
+        Entry(String username, long ticket) {
+            this.username = username;
+            this.ticket = ticket;
+        }
+    }
+
+    /**
+     * Adds a student to the end of the queue.
+     *
+     * @param username The student's username.
+     * @return True if the student joined, false if they are already waiting.
+     */
+
+    public boolean join(String username) {
+        return join(username, ticket -> { });
+    }
+
+    /**
+     * Adds a student to the end of the queue, running an action once they
+     * hold a ticket but before they can be served, such as journaling the
+     * join so that it is always recorded before the student's promotion.
+     *
+     * @param username The student's username.
+     * @param joined   The action, given the student's ticket.
+     * @return True if the student joined, false if they are already waiting.
+     */
+
+    boolean join(String username, LongConsumer joined) {
+        long ticket = nextTicket.incrementAndGet();
+        if (tickets.putIfAbsent(username, ticket) != null) {
+            return false;
+        }
+        joined.accept(ticket);
+        queue.put(ticket, username);
+        return true;
+    }
+
+    /**
+     * Puts a student back in their place, as saved in a snapshot or journal.
+     * Later joins get later tickets.
+     *
+     * @param username The student's username.
+     * @param ticket   The student's ticket.
+     */
+
+    void restore(String username, long ticket) {
+        nextTicket.accumulateAndGet(ticket, Math::max);
+        Long previous = tickets.put(username, ticket);
+        if (previous != null) {
+            queue.remove(previous, username);
+        }
+        queue.put(ticket, username);
+    }
+
+    /**
+     * Takes a student off the queue.
+     *
+     * @param username The student's username.
+     * @return True if the student was waiting, false otherwise.
+     */
+
+    public boolean leave(String username) {
+        return remove(username) >= 0;
+    }
+
+    /**
+     * Takes a student off the queue.
+     *
+     * @param username The student's username.
+     * @return The ticket of the place the student gave up, or -1 if they were
+     *         not waiting.
+     */
+
+    long remove(String username) {
+        Long ticket = tickets.remove(username);
+        if (ticket == null) {
+            return -1;
+        }
+        queue.remove(ticket, username);
+        return ticket;
+    }
+
+    /**
+     * Takes a student off the queue if they still hold a given place.
+     *
+     * @param username The student's username.
+     * @param ticket   The ticket of the place.
+     */
+
+    void remove(String username, long ticket) {
+        if (tickets.remove(username, ticket)) {
+            queue.remove(ticket, username);
+        }
+    }
+
+    public boolean contains(String username) {
+        return tickets.containsKey(username);
+    }
+
+    public boolean isEmpty() {
+        return tickets.isEmpty();
+    }
+
+    public int size() {
+        return tickets.size();
+    }
+
+    /**
+     * Removes the student at the head of the queue.
+     *
+     * @return The student's place, or {@code null} if no one is waiting.
+     */
+
+    Entry poll() {
+        for (Map.Entry<Long, String> head = queue.pollFirstEntry(); head != null; head = queue.pollFirstEntry()) {
+            if (tickets.remove(head.getValue(), head.getKey())) {
+                return new Entry(head.getValue(), head.getKey());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets a student's place in the queue, with a scan of the queue.
+     *
+     * @param username The student's username.
+     * @return The place, starting at 1, or -1 if the student is not waiting.
+     */
+
+    public int positionOf(String username) {
+        int position = 0;
+        for (Map.Entry<Long, String> entry : queue.entrySet()) {
+            if (isCurrent(entry)) {
+                position++;
+                if (entry.getValue().equals(username)) {
+                    return position;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Lists the waiting students in the order they will be served.
+     *
+     * @return The usernames.
+     */
+
+    public List<String> getUsernames() {
+        List<String> usernames = new ArrayList<>();
+        for (Entry entry : getEntries()) {
+            usernames.add(entry.username);
+        }
+        return usernames;
+    }
+
+    /**
+     * Lists the places in the queue in the order they will be served.
+     *
+     * @return The places.
+     */
+
+    List<Entry> getEntries() {
+        List<Entry> entries = new ArrayList<>();
+        for (Map.Entry<Long, String> entry : queue.entrySet()) {
+            if (isCurrent(entry)) {
+                entries.add(new Entry(entry.getValue(), entry.getKey()));
+            }
+        }
+        return entries;
+    }
+
+    private boolean isCurrent(Map.Entry<Long, String> entry) {
+        Long ticket = tickets.get(entry.getValue());
+        return ticket != null && ticket.longValue() == entry.getKey();
+    }
+}
+
+/**
+ * The {@code WaitlistScheduler} class registers waitlisted students into the
+ * seats that open in their courses, on a background thread of its own.
+ * Courses signal it without locking whenever a seat may have opened: a drop,
+ * a completion, a larger capacity or a new student on the waitlist. It serves
+ * the signalled courses in turn and fills at most {@link #BATCH_SIZE} seats
+ * of a course before moving to the next, so a mass drop in one course does
+ * not hold up the others. Each batch is recorded under one journal mutation,
+ * and each promotion is an ordinary registration through the
+ * {@link EnrollmentEngine}, committed like one made by the registry's first
+ * admin, which checks the student's prerequisites and trimester credits again
+ * at that moment. A student who no longer qualifies loses their place and the
+ * next student is tried; either way the place given up is journaled. The seat
+ * is claimed before anyone leaves the waitlist, so a direct registration can
+ * never take it from the student whose turn it is.
+ * While a registry is being restored the scheduler is held, so that replayed
+ * drops do not promote anyone twice; signals are kept until it is released.
+ */
+
+class WaitlistScheduler implements Closeable {
+    static final int BATCH_SIZE = 64;
+
+    private final Registry registry;
+    private final ConcurrentLinkedQueue<Course> pending = new ConcurrentLinkedQueue<>();
+    private final Set<Course> signalled = ConcurrentHashMap.newKeySet();
+    private final AtomicLong promoted = new AtomicLong();
+    private volatile Admin admin;
+    private volatile Thread thread;
+    private volatile boolean held;
+    private volatile boolean closed;
+
+    /**
+     * Constructs a scheduler for a registry. Its thread starts when a course
+     * first signals it.
+     *
+     * @param registry The registry.
+     */
+
+    public WaitlistScheduler(Registry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Gets the number of students promoted from waitlists so far.
+     *
+     * @return The number of promotions.
+     */
+
+    public long getPromotedCount() {
+        return promoted.get();
+    }
+
+    /**
+     * Sets the admin whose commit action promotions use, unless one is set
+     * already, so that the registry's first admin keeps it.
+     *
+     * @param admin The admin.
+     */
+
+    synchronized void attachAdmin(Admin admin) {
+        if (this.admin == null) {
+            this.admin = admin;
+        }
+    }
+
+    /**
+     * Stops serving waitlists until {@link #release()}, while the registry is
+     * restored.
+     */
+
+    void hold() {
+        held = true;
+    }
+
+    /**
+     * Starts serving waitlists again after {@link #hold()}, including every
+     * course whose students may have a free seat after the restore.
+     */
+
+    void release() {
+        held = false;
+        for (Course course : registry.getCourses()) {
+            if (!course.getWaitlist().isEmpty()) {
+                seatOpened(course);
+            }
+        }
+        if (!pending.isEmpty()) {
+            Thread current = thread;
+            LockSupport.unpark(current != null ? current : start());
+        }
+    }
+
+    /**
+     * Asks for a course's waitlist to be served. Signals for a course that is
+     * already waiting to be served are merged.
+     *
+     * @param course The course.
+     */
+
+    void seatOpened(Course course) {
+        if (closed || !signalled.add(course)) {
+            return;
+        }
+        pending.offer(course);
+        if (held) {
+            return;
+        }
+        Thread current = thread;
+        LockSupport.unpark(current != null ? current : start());
+    }
+
+    private synchronized Thread start() {
+        if (thread == null) {
+            Thread started = new Thread(this::run, "waitlist-scheduler");
+            started.setDaemon(true);
+            started.start();
+            thread = started;
+        }
+        return thread;
+    }
+
+    private void run() {
+        while (!closed) {
+            Course course = held ? null : pending.poll();
+            if (course == null) {
+                LockSupport.park(this);
+                continue;
+            }
+            signalled.remove(course);
+            try {
+                if (promote(course) == BATCH_SIZE) {
+                    // More may be waiting; serve the other courses first.
+                    seatOpened(course);
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Fills the free seats of a course from its waitlist, up to one batch.
+     *
+     * @param course The course.
+     * @return The number of students promoted.
+     */
+
+    int promote(Course course) {
+        Waitlist waitlist = course.getWaitlist();
+        int count = 0;
+        Journal journal = registry.beginMutation();
+        try {
+            while (count < BATCH_SIZE && !waitlist.isEmpty() && course.claimSeat(true)) {
+                if (!promoteNext(course, journal)) {
+                    course.releaseSeat();
+                    break;
+                }
+                count++;
+            }
+        } finally {
+            registry.endMutation(journal);
+        }
+        promoted.addAndGet(count);
+        return count;
+    }
+
+    /**
+     * Registers the first student on the waitlist who still qualifies into a
+     * seat already claimed for them.
+     *
+     * @return True if a student was registered, false if no one qualified.
+     */
+
+    private boolean promoteNext(Course course, Journal journal) {
+        for (Waitlist.Entry entry = course.getWaitlist().poll(); entry != null;
+                entry = course.getWaitlist().poll()) {
+            if (promote(course, entry, journal)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Registers a student taken off the waitlist into a seat already claimed
+     * for them, and journals the place they gave up.
+     *
+     * @return True if the student was registered, false if they no longer
+     *         qualify.
+     */
+
+    private boolean promote(Course course, Waitlist.Entry entry, Journal journal) {
+        long start = Metrics.PROMOTE_FROM_WAITLIST.start();
+        Student student = registry.findStudent(entry.username);
+        Runnable left = () -> {
+            if (journal != null) {
+                journal.leaveWaitlist(course, entry.username, entry.ticket);
+            }
+        };
+        if (student == null) {
+            left.run();
+            Metrics.PROMOTE_FROM_WAITLIST.failure(start, Metrics.NOT_FOUND);
+            return false;
+        }
+        Admin current = admin;
+        Runnable register = current != null ? current.registrationCommit(student, course, journal) : () -> {
+            if (journal != null) {
+                journal.registerForCourse(student, course);
+            }
+        };
+        // The place is journaled as given up after the registration, so a
+        // crash in between leaves a waiting student who is then skipped.
+        if (registry.getEnrollmentEngine().promote(student, course, () -> {
+            register.run();
+            left.run();
+        })) {
+            Metrics.PROMOTE_FROM_WAITLIST.success(start);
+            return true;
+        }
+        left.run();
+        Metrics.PROMOTE_FROM_WAITLIST.failure(start, Metrics.NOT_ELIGIBLE);
+        return false;
+    }
+
+    /**
+     * Stops the scheduler and waits for the batch it is serving, if any.
+     * Students still waiting stay on their waitlists.
+     */
+
+    @Override
+    public void close() {
+        closed = true;
+        Thread current = thread;
+        if (current != null && current != Thread.currentThread()) {
+            LockSupport.unpark(current);
+            try {
+                current.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
+
+/**
+ * The {@code EnrollmentEngine} class applies registrations, drops and
+ * completions atomically across a student and a course.
+ * Instead of one global lock it uses lock striping: each student and each
+ * course hashes onto one of a fixed set of locks, so registrations for
+ * different students and courses proceed in parallel and only operations that
+ * share a stripe wait for each other. Locks are always taken student stripe
+ * first, then course stripe, which rules out deadlock.
+ */
+
+class EnrollmentEngine {
+    /**
+     * Number of lock stripes per side. Must be a power of two.
+     */
+    static final int STRIPES = 256;
+    private final ReentrantLock[] studentLocks;
+    private final ReentrantLock[] courseLocks;
+
+    /**
+     * Constructs an engine with a fresh set of lock stripes.
+     */
+
+    public EnrollmentEngine() {
+        this.studentLocks = new ReentrantLock[STRIPES];
+        this.courseLocks = new ReentrantLock[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            studentLocks[i] = new ReentrantLock();
+            courseLocks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Registers a student for a course and enrolls the student in the course's
+     * roster as one atomic step.
+     *
+     * @param student  The student registering.
+     * @param course   The course to register for.
+     * @param onCommit Run while the locks are still held if the registration succeeds.
+     * @return True if the student was registered, false otherwise.
+     */
+
+    public boolean register(Student student, Course course, Runnable onCommit) {
+        return register(student, course, false, onCommit);
+    }
+
+    /**
+     * Registers a student promoted from a course's waitlist into a seat
+     * already claimed for them, checking every requirement of an ordinary
+     * registration again.
+     *
+     * @param student  The student promoted.
+     * @param course   The course.
+     * @param onCommit Run while the locks are still held if the registration succeeds.
+     * @return True if the student was registered, false if they no longer
+     *         qualify; the seat is then still claimed.
+     */
+
+    public boolean promote(Student student, Course course, Runnable onCommit) {
+        return register(student, course, true, onCommit);
+    }
+
+    /**
+     * Changes a course while holding its stripe, the lock registrations for
+     * it also hold. Applying a change and journaling it in the same step
+     * keeps the journal in the order the changes to a course were applied.
+     *
+     * @param course The course.
+     * @param change The change, including its journal record.
+     */
+
+    public void changeCourse(Course course, Runnable change) {
+        ReentrantLock courseLock = lockFor(courseLocks, course.getcourseCode());
+        courseLock.lock();
+        try {
+            change.run();
+        } finally {
+            courseLock.unlock();
+        }
+    }
+
+    private boolean register(Student student, Course course, boolean seatClaimed, Runnable onCommit) {
+        ReentrantLock studentLock = lockFor(studentLocks, student.getUsername());
+        ReentrantLock courseLock = lockFor(courseLocks, course.getcourseCode());
+        studentLock.lock();
+        courseLock.lock();
+        try {
+            if (!student.registerForCourse(course, seatClaimed)) {
+                return false;
+            }
+            onCommit.run();
+            return true;
+        } finally {
+            courseLock.unlock();
+            studentLock.unlock();
+        }
+    }
+
+    /**
+     * Registers a student for a whole set of courses, all or nothing.
+     * The student's stripe and every course stripe are locked in ascending
+     * order, the batch is validated once against prerequisites, duplicates and
+     * the per-trimester credit range, and only then are all courses applied.
+     *
+     * @param student  The student registering.
+     * @param courses  The courses to register for, without duplicates.
+     * @param result   The result to add the registered courses or errors to.
+     * @param onCommit Run with the registered courses while the locks are still held.
+     */
+
+    public void registerAll(Student student, List<Course> courses, RegistrationResult result,
+            Runnable onCommit) {
+        ReentrantLock studentLock = lockFor(studentLocks, student.getUsername());
+        ReentrantLock[] batchLocks = new ReentrantLock[courses.size()];
+        boolean[] stripes = new boolean[STRIPES];
+        int lockCount = 0;
+        for (Course course : courses) {
+            stripes[stripeOf(course.getcourseCode())] = true;
+        }
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            if (stripes[stripe]) {
+                batchLocks[lockCount++] = courseLocks[stripe];
+            }
+        }
+
+        studentLock.lock();
+        for (int i = 0; i < lockCount; i++) {
+            batchLocks[i].lock();
+        }
+        try {
+            int batchCredits = 0;
+            for (Course course : courses) {
+                if (course.getId() < 0) {
+                    result.addError(course.getcourseCode() + " is not in the catalog.");
+                } else if (student.isTaking(course)) {
+                    result.addError("Already registered for " + course.getcourseCode() + ".");
+                } else if (student.hasCompletedCourse(course)) {
+                    result.addError(course.getcourseCode() + " has already been completed.");
+                } else if (!student.isEligible(course)) {
+                    result.addError("Prerequisites not met for " + course.getcourseCode() + ".");
+                }
+                batchCredits += course.getCredits();
+            }
+            if (result.isSuccessful()) {
+                CourseSet taking = student.getCurrentCourseSet().copy();
+                for (Course course : courses) {
+                    taking.add(course.getId());
+                }
+                RegistrationRules rules = student.getRules();
+                CourseSet completed = student.getCompletedCourseSet();
+                for (Course course : courses) {
+                    String broken = rules.brokenRestriction(course.getId(), completed, taking);
+                    if (broken != null) {
+                        result.addError(course.getcourseCode() + " breaks the " + broken + " rule.");
+                    }
+                }
+            }
+            if (!student.isValidCreditRange(batchCredits)) {
+                result.addError("Total of " + (student.getTotalCredits() + batchCredits)
+                        + " credits is outside the allowed range for a trimester.");
+            }
+            if (!result.isSuccessful()) {
+                return;
+            }
+
+            List<Course> seated = new ArrayList<>(courses.size());
+            for (Course course : courses) {
+                if (course.claimSeat(false)) {
+                    seated.add(course);
+                } else {
+                    result.addError(course.getcourseCode() + " is full.");
+                }
+            }
+            if (!result.isSuccessful()) {
+                for (Course course : seated) {
+                    course.releaseSeat();
+                }
+                return;
+            }
+
+            for (Course course : courses) {
+                student.addRegisteredCourse(course, true);
+                result.addRegistered(course);
+            }
+            onCommit.run();
+        } finally {
+            for (int i = lockCount - 1; i >= 0; i--) {
+                batchLocks[i].unlock();
+            }
+            studentLock.unlock();
+        }
+    }
+
+    /**
+     * Drops a student from a course and removes the student from the course's
+     * roster as one atomic step.
+     *
+     * @param student  The student dropping the course.
+     * @param course   The course to drop.
+     * @param onCommit Run while the locks are still held if the drop succeeds.
+     * @return True if the course was dropped, false otherwise.
+     */
+
+    public boolean drop(Student student, Course course, Runnable onCommit) {
+        ReentrantLock studentLock = lockFor(studentLocks, student.getUsername());
+        ReentrantLock courseLock = lockFor(courseLocks, course.getcourseCode());
+        studentLock.lock();
+        courseLock.lock();
+        try {
+            if (!student.dropCourse(course)) {
+                return false;
+            }
+            onCommit.run();
+            return true;
+        } finally {
+            courseLock.unlock();
+            studentLock.unlock();
+        }
+    }
+
+    /**
+     * Marks a course as completed for a student.
+     *
+     * @param student  The student who completed the course.
+     * @param course   The completed course.
+     * @param grade    The grade, or {@link AcademicHistory#NO_GRADE}.
+     * @param onCommit Run while the student's lock is still held if the completion succeeds.
+     * @return True if the completion was recorded, false otherwise.
+     */
+
+    public boolean complete(Student student, Course course, int grade, Runnable onCommit) {
+        ReentrantLock studentLock = lockFor(studentLocks, student.getUsername());
+        studentLock.lock();
+        try {
+            if (!student.completeCourse(course, grade)) {
+                return false;
+            }
+            onCommit.run();
+            return true;
+        } finally {
+            studentLock.unlock();
+        }
+    }
+
+    /**
+     * Runs an action on a student while holding the student's lock.
+     *
+     * @param student The student.
+     * @param action  The action.
+     */
+
+    public void update(Student student, Runnable action) {
+        ReentrantLock studentLock = lockFor(studentLocks, student.getUsername());
+        studentLock.lock();
+        try {
+            action.run();
+        } finally {
+            studentLock.unlock();
+        }
+    }
+
+    /**
+     * Moves a student to the next trimester.
+     *
+     * @param student The student.
+     */
+
+    public void advanceTrimester(Student student) {
+        ReentrantLock studentLock = lockFor(studentLocks, student.getUsername());
+        studentLock.lock();
+        try {
+            student.advanceTrimester();
+        } finally {
+            studentLock.unlock();
+        }
+    }
+
+    /**
+     * Picks the stripe a key belongs to.
+     */
+
+    private static ReentrantLock lockFor(ReentrantLock[] locks, String key) {
+        return locks[stripeOf(key)];
+    }
+
+    /**
+     * Gets the stripe a student or course hashes onto.
+     *
+     * @param key The student's username or the course code.
+     * @return The stripe, below {@link #STRIPES}.
+     */
+
+    static int stripeOf(String key) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+}
+
+class Admin extends User {
+    /**
+     * Prerequisites every new catalog starts with.
+     */
+    private static final String[][] DEFAULT_PREREQUISITES = {
+            { "CS214", "CS113", "CS123" },
+            { "CS224", "CS113", "CS123" },
+            { "CS316", "CS133", "CS214" },
+    };
+    private static final int REPORT_PAGE_SIZE = 1000;
+    private Registry registry;
+    private Set<String> courseCodeSet;
+    /**
+     * The credits of the students this admin registered, one map per
+     * {@link EnrollmentEngine} student stripe. Each map is guarded by its own
+     * monitor, so only registrations of students on the same stripe, which
+     * already take turns on the stripe lock, take turns on it.
+     */
+    private StringIntMap[] studentCreditsMaps;
+
+    /**
+     * Constructor for Admin.
+     *
+     * @param username The username of the admin.
+     * @param password The password of the admin.
+     */
+
+    public Admin(String username, String password) {
+        this(username, password, false);
+    }
+
+    /**
+     * Constructor for the root Admin of a new registry.
+     *
+     * @param username The username of the admin.
+     * @param password The password of the admin.
+     * @param stored   True if the password was read back from storage.
+     */
+
+    Admin(String username, String password, boolean stored) {
+        this(username, password, new Registry(), stored);
+
+        for (String[] rule : DEFAULT_PREREQUISITES) {
+            registry.getPrerequisiteGraph().addPrerequisites(rule[0], Arrays.asList(rule).subList(1, rule.length));
+        }
+    }
+
+    /**
+     * Constructor for an Admin that manages an existing registry.
+     *
+     * @param username The username of the admin.
+     * @param password The password of the admin.
+     * @param registry The registry shared with the other admins.
+     */
+
+    Admin(String username, String password, Registry registry) {
+        this(username, password, registry, false);
+    }
+
+    /**
+     * Constructor for an Admin that manages an existing registry.
+     *
+     * @param username The username of the admin.
+     * @param password The password of the admin.
+     * @param registry The registry shared with the other admins.
+     * @param stored   True if the password was read back from storage.
+     */
+
+    Admin(String username, String password, Registry registry, boolean stored) {
+        super(username, password, stored);
+
+        this.registry = registry;
+        this.courseCodeSet = new HashSet<>();
+        this.studentCreditsMaps = new StringIntMap[EnrollmentEngine.STRIPES];
+        for (int i = 0; i < studentCreditsMaps.length; i++) {
+            studentCreditsMaps[i] = new StringIntMap();
+        }
+        registry.getWaitlistScheduler().attachAdmin(this);
+    }
+
+    /**
+     * adds course codes to a set
+     */
+
+    public void addCourseCodeToSet(String courseCode) {
+        courseCodeSet.add(courseCode);
+    }
+
+    public void addStudentCredits(String studentUsername, int credits) {
+        StringIntMap map = creditsMapOf(studentUsername);
+        synchronized (map) {
+            map.put(studentUsername, credits);
+        }
+    }
+
+    public void printStudentCredistMap() {
+        System.out.println("Student Credits in the Map");
+        for (StringIntMap credits : studentCreditsMaps) {
+            synchronized (credits) {
+                credits.forEach((username, total) -> System.out.println("-" + username + ": " + total + " credits"));
+            }
+        }
+    }
+
+    public void printCourseCodesSet() {
+        System.out.println("Course Code int the Set:");
+        for (String courseCode : courseCodeSet) {
+            System.out.println("- " + courseCode);
+        }
+    }
+
+    public void registerFirstAdmin() {
+        Admin firstAdmin = new Admin("Farajalla", "Farajalla", registry);
+        Journal journal = registry.beginMutation();
+        try {
+            if (registry.addAdmin(firstAdmin)) {
+                if (journal != null) {
+                    journal.createAdmin(firstAdmin.getUsername(), firstAdmin.getPasswordHash());
+                }
+                System.out.println("First Admin registered successfully");
+            } else {
+                System.out.println("First Admin is already registered");
+            }
+        } finally {
+            registry.endMutation(journal);
+        }
+    }
+
+    public Admin loginAdmin(String username, String password) {
+        Admin admin = getUsername().equals(username) ? this : registry.findAdmin(username);
+        return Authenticator.getDefault().verify(admin, password) ? admin : null;
+    }
+
+    public Student loginStudent(String username, String password) {
+        return Student.loginStudent(registry, username, password);
+    }
+
+    public Lecturer loginLecturer(String username, String password) {
+        return Lecturer.loginLecturer(registry, username, password);
+    }
+
+    public Course findCourseByCode(String courseCode) {
+        return registry.findCourse(courseCode);
+    }
+
+    /**
+     * Creates a student account.
+     *
+     * @param username The username of the student.
+     * @param password The password of the student.
+     * @return True if the student was created, false if the username is already taken.
+     */
+
+    public boolean createStudent(String username, String password) {
+        Journal journal = registry.beginMutation();
+        try {
+            if (!registry.addStudent(new Student(username, password))) {
+                return false;
+            }
+            if (journal != null) {
+                journal.createStudent(username, registry.findStudent(username).getPasswordHash());
+            }
+            return true;
+        } finally {
+            registry.endMutation(journal);
+        }
+    }
+
+    /**
+     * Creates a lecturer account.
+     *
+     * @param username The username of the lecturer.
+     * @param password The password of the lecturer.
+     * @return True if the lecturer was created, false if the username is already taken.
+     */
+
+    public boolean createLecturer(String username, String password) {
+        Journal journal = registry.beginMutation();
+        try {
+            if (!registry.addLecturer(new Lecturer(username, password))) {
+                return false;
+            }
+            if (journal != null) {
+                journal.createLecturer(username, registry.findLecturer(username).getPasswordHash());
+            }
+            return true;
+        } finally {
+            registry.endMutation(journal);
+        }
+    }
+
+    /**
+     * Creates a course in the catalog.
+     *
+     * @param courseCode    The code identifying the course.
+     * @param lecturer      The lecturer assigned to the course.
+     * @param prerequisites The list of prerequisite courses.
+     * @param credits       The number of credits for the course.
+     * @return True if the course was created, false if the course code is already taken.
+     */
+
+    public boolean createCourse(String courseCode, Lecturer lecturer, List<Course> prerequisites, int credits) {
+        List<String> prerequisiteCodes = new ArrayList<>();
+        for (Course prerequisite : prerequisites) {
+            if (prerequisite != null) {
+                prerequisiteCodes.add(prerequisite.getcourseCode());
+            }
+        }
+        return createCourseWithPrerequisites(courseCode, lecturer, prerequisiteCodes, credits);
+    }
+
+    /**
+     * Creates a course in the catalog together with its prerequisites, which
+     * need not be in the catalog yet. Nothing is changed or journaled unless
+     * the course is created: the code must be free and the prerequisites must
+     * not create a cycle.
+     *
+     * @param courseCode        The code identifying the course.
+     * @param lecturer          The lecturer assigned to the course.
+     * @param prerequisiteCodes The codes of the direct prerequisites.
+     * @param credits           The number of credits for the course.
+     * @return True if the course was created, false if the course code is
+     *         already taken or a prerequisite would create a cycle.
+     */
+
+    public boolean createCourseWithPrerequisites(String courseCode, Lecturer lecturer, List<String> prerequisiteCodes,
+            int credits) {
+        Course course = new Course(courseCode, lecturer, new ArrayList<>(), credits);
+        Journal journal = registry.beginMutation();
+        try {
+            if (!registry.addCourse(course, prerequisiteCodes)) {
+                return false;
+            }
+            if (journal != null) {
+                journal.createCourse(course, registry.getPrerequisiteGraph().prerequisiteCodesOf(courseCode));
+            }
+            return true;
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return false;
+        } finally {
+            registry.endMutation(journal);
+        }
+    }
+
+    public void assignCourseToLecturer(Course course, Lecturer lecturer) {
+        Journal journal = registry.beginMutation();
+        try {
+            registry.getEnrollmentEngine().changeCourse(course, () -> {
+                course.setAssignedLecturer(lecturer);
+                if (journal != null) {
+                    journal.assignCourseToLecturer(course, lecturer);
+                }
+            });
+        } finally {
+            registry.endMutation(journal);
+        }
+    }
+
+    /**
+     * Sets the number of seats in a course and records it.
+     *
+     * @param course   The course.
+     * @param capacity The capacity, or 0 for no seat limit.
+     * @return True if the capacity was set, false if it is negative.
+     */
+
+    public boolean setCourseCapacity(Course course, int capacity) {
+        if (capacity < 0) {
+            return false;
+        }
+        Journal journal = registry.beginMutation();
+        try {
+            // The waitlist is served only once the new capacity is journaled,
+            // and its promotions register under the same course stripe, so
+            // they are always journaled after it.
+            registry.getEnrollmentEngine().changeCourse(course, () -> {
+                boolean opened = course.resize(capacity);
+                if (journal != null) {
+                    journal.setCapacity(course, capacity);
+                }
+                if (opened) {
+                    course.seatOpened();
+                }
+            });
+            return true;
+        } finally {
+            registry.endMutation(journal);
+        }
+    }
+
+    /**
+     * Records that a student has completed a course they are taking, without
+     * a grade.
+     *
+     * @param student The student who completed the course.
+     * @param course  The completed course.
+     * @return True if the completion was recorded, false if the student is not taking the course.
+     */
+
+    public boolean completeCourseForStudent(Student student, Course course) {
+        return completeCourseForStudent(student, course, AcademicHistory.NO_GRADE);
+    }
+
+    /**
+     * Records that a student has completed a course they are taking, with the
+     * grade they received.
+     *
+     * @param student The student who completed the course.
+     * @param course  The completed course.
+     * @param grade   The grade from 0 to 100, or {@link AcademicHistory#NO_GRADE}.
+     * @return True if the completion was recorded, false if the student is not
+     *         taking the course or the grade is out of range.
+     */
+
+    public boolean completeCourseForStudent(Student student, Course course, int grade) {
+        if (grade != AcademicHistory.NO_GRADE && (grade < 0 || grade > 100)) {
+            return false;
+        }
+
+        Journal journal = registry.beginMutation();
+        try {
+            return registry.getEnrollmentEngine().complete(student, course, grade, () -> {
+                if (journal != null) {
+                    journal.completeCourse(student, course, grade);
+                }
+            });
+        } finally {
+            registry.endMutation(journal);
+        }
+    }
+
+    /**
+     * Moves the university to the next trimester and records the change.
+     * Courses still in progress carry over.
+     *
+     * @return The new current trimester.
+     */
+
+    public int advanceTrimester() {
+        Journal journal = registry.beginMutation();
+        try {
+            int term = registry.advanceTerm();
+            if (journal != null) {
+                journal.advanceTrimester();
+            }
+            return term;
+        } finally {
+            registry.endMutation(journal);
+        }
+    }
+
+    /**
+     * Replaces the registration rules with the rules in a file. The current
+     * rules are kept if the file cannot be read or has an invalid rule.
+     *
+     * @param fileName The rule file.
+     * @return True if the rules were replaced, false otherwise.
+     */
+
+    public boolean loadRules(String fileName) {
+        PrerequisiteGraph graph = registry.getPrerequisiteGraph();
+        RegistrationRules rules;
+        try {
+            rules = RegistrationRules.load(Paths.get(fileName), graph);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return false;
+        }
+
+        Journal journal = registry.beginMutation();
+        try {
+            graph.setRules(rules);
+            if (journal != null) {
+                journal.setRules(rules);
+            }
+            return true;
+        } finally {
+            registry.endMutation(journal);
+        }
+    }
+
+    /**
+     * Finds the students who completed a course in a given trimester.
+     *
+     * @param course The course.
+     * @param term   The trimester.
+     * @return The students who completed the course in that trimester.
+     */
+
+    public List<Student> findStudentsWhoCompleted(Course course, int term) {
+        return registry.findStudents(course, term, AcademicHistory.COMPLETED);
+    }
+
+    /**
+     * Counts the students who meet the prerequisites of a course, as read from
+     * the eligibility matrix.
+     *
+     * @param course The course.
+     * @return The number of eligible students.
+     */
+
+    public int countEligibleStudents(Course course) {
+        return registry.getEligibility().countEligible(course);
+    }
+
+    /**
+     * Lists the courses a student meets the prerequisites of and has not
+     * completed yet, as read from the eligibility matrix.
+     *
+     * @param student The student.
+     * @return The eligible courses.
+     */
+
+    public List<Course> getEligibleCourses(Student student) {
+        return registry.getEligibility().eligibleCourses(student);
+    }
+
+    /**
+     * Gets the courses at the end of the default prerequisite chains, the
+     * goals a degree plan aims for when none are given.
+     *
+     * @return The default goal courses that exist in the catalog.
+     */
+
+    public List<Course> getDefaultPlanGoals() {
+        List<Course> goals = new ArrayList<>();
+        for (String[] chain : DEFAULT_PREREQUISITES) {
+            Course course = registry.findCourse(chain[0]);
+            if (course != null) {
+                goals.add(course);
+            }
+        }
+        return goals;
+    }
+
+    /**
+     * Plans a student's path to a set of goal courses and makes it the
+     * student's plan.
+     *
+     * @param student The student to plan for.
+     * @param goals   The courses the student wants to complete.
+     * @return The courses to take in each future trimester, or {@code null}
+     *         if no feasible schedule exists.
+     */
+
+    public List<List<Course>> planDegree(Student student, Collection<Course> goals) {
+        List<List<Course>> schedule = new DegreePlanner(registry.getPrerequisiteGraph(),
+                registry.getEnrollmentEngine()).plan(student, goals);
+        if (schedule != null) {
+            applyPlan(student, schedule);
+        }
+        return schedule;
+    }
+
+    /**
+     * Plans every student's path to a set of goal courses in parallel and
+     * makes each feasible schedule the student's plan.
+     *
+     * @param goals The courses every student should complete.
+     * @return The number of students for whom a feasible plan was found.
+     */
+
+    public int planCohort(Collection<Course> goals) {
+        List<Student> students = registry.getStudents();
+        Map<Student, List<List<Course>>> schedules = new DegreePlanner(registry.getPrerequisiteGraph(),
+                registry.getEnrollmentEngine()).planCohort(students, goals);
+        for (Map.Entry<Student, List<List<Course>>> entry : schedules.entrySet()) {
+            applyPlan(entry.getKey(), entry.getValue());
+        }
+        return schedules.size();
+    }
+
+    private void applyPlan(Student student, List<List<Course>> schedule) {
+        Journal journal = registry.beginMutation();
+        try {
+            registry.getEnrollmentEngine().update(student, () -> {
+                int firstTerm = student.getTrimester() + 1;
+                if (student.replacePlan(schedule, firstTerm) && journal != null) {
+                    journal.replacePlan(student, schedule, firstTerm);
+                }
+            });
+        } finally {
+            registry.endMutation(journal);
+        }
+    }
+
+    /**
+     * Registers a student for a course and records the registration.
+     *
+     * @param student The student registering.
+     * @param course  The course to register for.
+     * @return True if the registration succeeded, false otherwise.
+     */
+
+    public boolean registerStudentForCourse(Student student, Course course) {
+        Journal journal = registry.beginMutation();
+        try {
+            return registry.getEnrollmentEngine().register(student, course,
+                    registrationCommit(student, course, journal));
+        } finally {
+            registry.endMutation(journal);
+        }
+    }
+
+    /**
+     * Makes the action that commits a registration for a course: it journals
+     * the registration and updates the student's credits. Also used for the
+     * students the waitlist scheduler promotes.
+     *
+     * @param student The student registering.
+     * @param course  The course.
+     * @param journal The journal of the mutation, or {@code null}.
+     * @return The action, to run while the enrollment locks are held.
+     */
+
+    Runnable registrationCommit(Student student, Course course, Journal journal) {
+        return () -> {
+            if (journal != null) {
+                journal.registerForCourse(student, course);
+            }
+            updateStudentCredits(student);
+        };
+    }
+
+    /**
+     * Registers a student for every course of a trimester plan, all or
+     * nothing. Duplicates, unknown codes, prerequisites and the trimester
+     * credit range are checked for the whole plan before anything changes.
+     *
+     * @param student     The student registering.
+     * @param courseCodes The codes of the courses in the plan.
+     * @return The outcome of the batch.
+     */
+
+    public RegistrationResult registerStudentForCourses(Student student, List<String> courseCodes) {
+        RegistrationResult result = new RegistrationResult();
+        Set<String> seen = new HashSet<>();
+        List<Course> courses = new ArrayList<>(courseCodes.size());
+        for (String courseCode : courseCodes) {
+            Course course = registry.findCourse(courseCode);
+            if (!seen.add(courseCode)) {
+                result.addError(courseCode + " is listed more than once.");
+            } else if (course == null) {
+                result.addError("Course " + courseCode + " not found.");
+            } else {
+                courses.add(course);
+            }
+        }
+        if (courses.isEmpty() && result.isSuccessful()) {
+            result.addError("No courses to register.");
+        }
+        if (!result.isSuccessful()) {
+            return result;
+        }
+
+        Journal journal = registry.beginMutation();
+        try {
+            registry.getEnrollmentEngine().registerAll(student, courses, result, () -> {
+                if (journal != null) {
+                    journal.registerForCourses(student, courses);
+                }
+                updateStudentCredits(student);
+            });
+            return result;
+        } finally {
+            registry.endMutation(journal);
+        }
+    }
+
+    /**
+     * Drops a course a student is registered for and records the drop.
+     *
+     * @param student The student dropping the course.
+     * @param course  The course to drop.
+     * @return True if the course was dropped, false if the student is not taking it.
+     */
+
+    public boolean dropStudentFromCourse(Student student, Course course) {
+        Journal journal = registry.beginMutation();
+        try {
+            return registry.getEnrollmentEngine().drop(student, course, () -> {
+                if (journal != null) {
+                    journal.dropCourse(student, course);
+                }
+                updateStudentCredits(student);
+            });
+        } finally {
+            registry.endMutation(journal);
+        }
+    }
+
+    /**
+     * Gets the credits a student is taking this trimester, as last seen by this
+     * admin.
+     *
+     * @param studentUsername The username of the student.
+     * @return The credits, or 0 if the student has not registered for anything.
+     */
+
+    public int getStudentCredits(String studentUsername) {
+        StringIntMap credits = creditsMapOf(studentUsername);
+        synchronized (credits) {
+            return credits.get(studentUsername, 0);
+        }
+    }
+
+    private void updateStudentCredits(Student student) {
+        StringIntMap credits = creditsMapOf(student.getUsername());
+        synchronized (credits) {
+            credits.put(student.getUsername(), student.getTotalCredits());
+        }
+    }
+
+    private StringIntMap creditsMapOf(String studentUsername) {
+        return studentCreditsMaps[EnrollmentEngine.stripeOf(studentUsername)];
+    }
+
+    public void saveToCSV(String fileName) {
+        long start = Metrics.SAVE_TO_CSV.start();
+        try (PrintWriter writer = new PrintWriter(new FileWriter(fileName))) {
+            writer.println("Type,User,PasswordHash");
+
+            for (Admin admin : registry.getAdmins()) {
+                writer.println("Admin," + admin.getUsername() + "," + admin.getPasswordHash());
+            }
+
+            for (Student student : registry.getStudents()) {
+                writer.println("Student," + student.getUsername() + "," + student.getPasswordHash());
+            }
+
+            for (Lecturer lecturer : registry.getLecturers()) {
+                writer.println("Lecturer," + lecturer.getUsername() + "," + lecturer.getPasswordHash());
+            }
+
+            for (Course course : registry.getCourses()) {
+                Lecturer lecturer = course.getAssignedLecturer();
+                writer.println("Course," + course.getcourseCode() + ",," + (lecturer == null ? "" : lecturer.getUsername())
+                        + "," + course.getCredits() + ","
+                        + String.join(";", registry.getPrerequisiteGraph().prerequisiteCodesOf(course.getcourseCode())));
+            }
+
+            System.out.println("Data saved to CSV fille: " + fileName);
+        } catch (IOException e) {
+            e.printStackTrace();
+            Metrics.SAVE_TO_CSV.failure(start, Metrics.IO_ERROR);
+            return;
+        }
+        Metrics.SAVE_TO_CSV.success(start);
+    }
+
+    /**
+     * Loads an admin and everything it manages from a CSV file.
+     * The file is parsed in parallel by {@link CsvBulkLoader}; lecturers and
+     * prerequisites are linked once every row has been read, so rows may refer
+     * to courses and lecturers that appear later in the file.
+     *
+     * @param fileName The CSV file to load.
+     * @return The loaded admin, or an empty admin if the file could not be read.
+     */
+
+    public static Admin loadFromCSV(String fileName) {
+        long start = Metrics.LOAD_FROM_CSV.start();
+        try {
+            Admin loadedAdmin = new CsvBulkLoader().load(fileName);
+            System.out.println("Data loaded from CSV file: " + fileName);
+            Metrics.LOAD_FROM_CSV.success(start);
+            return loadedAdmin;
+        } catch (IOException e) {
+            e.printStackTrace();
+            Metrics.LOAD_FROM_CSV.failure(start, Metrics.IO_ERROR);
+            return new Admin("Farajalla", "Farajalla");
+        }
+    }
+
+    Lecturer findLecturerByUsername(String username) {
+        return registry.findLecturer(username);
+    }
+
+    /**
+     * Finds the direct prerequisites of a course that already exist in the
+     * catalog.
+     *
+     * @param courseCode The course code.
+     * @return The prerequisite courses.
+     */
+
+    public List<Course> findCoursePrerequisites(String courseCode) {
+        return registry.getPrerequisiteGraph().prerequisitesOf(courseCode);
+    }
+
+    public Registry getRegistry() {
+        return registry;
+    }
+
+    public List<Student> getStudents() {
+        return registry.getStudents();
+    }
+
+    public List<Lecturer> getLecturers() {
+        return registry.getLecturers();
+    }
+
+    public List<Course> getCourses() {
+        return registry.getCourses();
+    }
+
+    public Set<String> getCourseCodeSet() {
+        return courseCodeSet;
+    }
+
+    public void viewStudentsInCourse(Lecturer lecturer, Course course) {
+        try (ReportWriter report = ReportWriter.toConsole()) {
+            report.line("Students enrolled in " + course.getcourseCode() + " for " + lecturer.getUsername() + ":");
+            course.writeRoster(report);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void viewAllStudentsAndLecturers() {
+        try (ReportWriter report = ReportWriter.toConsole()) {
+            writeUsers(report);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes every student, lecturer and course, with each course's lecturer
+     * and roster, to a report file.
+     *
+     * @param fileName The report file; a name ending in {@code .gz} is compressed.
+     */
+
+    public void writeReport(String fileName) {
+        try (ReportWriter report = ReportWriter.toFile(Paths.get(fileName))) {
+            writeUsers(report);
+            report.line("\nAll Courses:");
+            String key = null;
+            do {
+                Page<Course> page = registry.pageCourses(key, REPORT_PAGE_SIZE);
+                for (Course course : page.getItems()) {
+                    Lecturer lecturer = course.getAssignedLecturer();
+                    report.line("Course: " + course.getcourseCode() + " (" + course.getCredits() + " credits, "
+                            + (lecturer == null ? "no lecturer" : lecturer.getUsername()) + ")");
+                    course.writeRoster(report);
+                }
+                key = page.getNextKey();
+            } while (key != null);
+            System.out.println("Report written to " + fileName);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void writeUsers(ReportWriter report) {
+        report.line("\nAll Students:");
+        String key = null;
+        do {
+            Page<Student> page = registry.pageStudents(key, REPORT_PAGE_SIZE);
+            for (Student student : page.getItems()) {
+                report.item(student.getUsername());
+            }
+            key = page.getNextKey();
+        } while (key != null);
+
+        report.line("\nAll Lecturers:");
+        do {
+            Page<Lecturer> page = registry.pageLecturers(key, REPORT_PAGE_SIZE);
+            for (Lecturer lecturer : page.getItems()) {
+                report.item(lecturer.getUsername());
+            }
+            key = page.getNextKey();
+        } while (key != null);
+    }
+
+}
+
+/**
+ * The {@code CsvBulkLoader} class loads the CSV export written by
+ * {@link Admin#saveToCSV(String)}.
+ * The file is memory-mapped in chunks that end on line boundaries, and each
+ * chunk is scanned byte by byte on its own worker thread instead of being
+ * split with a regular expression. Entities are registered in file order in a
+ * first pass, and lecturers and prerequisites are linked in a second pass once
+ * every course is known.
+ */
+
+class CsvBulkLoader {
+    /**
+     * Nominal number of bytes handed to each parsing task.
+     */
+    private static final int CHUNK_SIZE = 16 * 1024 * 1024;
+    /**
+     * Maximum number of fields read from a single row.
+     */
+    private static final int MAX_FIELDS = 8;
+    private final int parallelism;
+
+    /**
+     * Constructs a loader that uses one parsing thread per available core.
+     */
+
+    public CsvBulkLoader() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructs a loader with a fixed number of parsing threads.
+     *
+     * @param parallelism The number of chunks parsed at the same time.
+     */
+
+    public CsvBulkLoader(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Loads a CSV file into a new admin.
+     *
+     * @param fileName The CSV file to load.
+     * @return The admin holding every loaded entity.
+     * @throws IOException If the file cannot be read.
+     */
+
+    public Admin load(String fileName) throws IOException {
+        List<ParsedChunk> chunks = parse(Paths.get(fileName));
+        Admin loadedAdmin = new Admin("Farajalla", "Farajalla");
+        Registry registry = loadedAdmin.getRegistry();
+        List<String[]> courseRows = new ArrayList<>();
+
+        for (ParsedChunk chunk : chunks) {
+            for (int i = 0; i < chunk.rows.size(); i++) {
+                String[] row = chunk.rows.get(i);
+                User user = chunk.users.get(i);
+
+                switch (row[0]) {
+                    case "Admin":
+                        registry.addAdmin(new Admin(row[1], row[2], registry, true));
+                        break;
+
+                    case "Student":
+                        registry.addStudent((Student) user);
+                        break;
+
+                    case "Lecturer":
+                        registry.addLecturer((Lecturer) user);
+                        break;
+
+                    case "Course":
+                        if (row.length < 5) {
+                            System.out.println("Invalid data for Course. Skipping...");
+                            break;
+                        }
+                        int credits;
+                        try {
+                            credits = Integer.parseInt(row[4].trim());
+                        } catch (NumberFormatException e) {
+                            System.out.println("Invalid credits \"" + row[4] + "\" for Course " + row[1]
+                                    + ". Skipping...");
+                            break;
+                        }
+                        if (registry.addCourse(new Course(row[1], null, new ArrayList<>(), credits))) {
+                            courseRows.add(row);
+                        }
+                        break;
+
+                    default:
+                        break;
+                }
+            }
+        }
+
+        for (String[] row : courseRows) {
+            Course course = registry.findCourse(row[1]);
+            course.setAssignedLecturer(registry.findLecturer(row[3]));
+            if (row.length >= 6 && !row[5].isEmpty()) {
+                try {
+                    registry.getPrerequisiteGraph().addPrerequisites(row[1], splitCodes(row[5]));
+                } catch (IllegalArgumentException e) {
+                    System.out.println("Invalid prerequisites \"" + row[5] + "\" for Course " + row[1]
+                            + ". " + e.getMessage() + ". Skipping...");
+                }
+            }
+        }
+
+        return loadedAdmin;
+    }
+
+    /**
+     * Splits a list of course codes separated by semicolons.
+     *
+     * @param field The field holding the codes.
+     * @return The course codes.
+     */
+
+    static List<String> splitCodes(String field) {
+        List<String> codes = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i <= field.length(); i++) {
+            if (i == field.length() || field.charAt(i) == ';') {
+                if (i > start) {
+                    codes.add(field.substring(start, i).trim());
+                }
+                start = i + 1;
+            }
+        }
+        return codes;
+    }
+
+    /**
+     * Splits the file into line-aligned chunks and parses them in parallel.
+     *
+     * @param path The file to parse.
+     * @return The parsed chunks in file order.
+     * @throws IOException If the file cannot be read.
+     */
+
+    private List<ParsedChunk> parse(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            List<long[]> bounds = chunkBounds(channel);
+            List<ParsedChunk> chunks = new ArrayList<>();
+            if (bounds.size() == 1) {
+                long[] bound = bounds.get(0);
+                chunks.add(parseChunk(channel.map(FileChannel.MapMode.READ_ONLY, bound[0], bound[1] - bound[0]),
+                        bound[0] == 0));
+                return chunks;
+            }
+
+            ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallelism, bounds.size()));
+            try {
+                List<Future<ParsedChunk>> futures = new ArrayList<>();
+                for (long[] bound : bounds) {
+                    futures.add(pool.submit(() -> parseChunk(
+                            channel.map(FileChannel.MapMode.READ_ONLY, bound[0], bound[1] - bound[0]),
+                            bound[0] == 0)));
+                }
+                for (Future<ParsedChunk> future : futures) {
+                    chunks.add(future.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("CSV load interrupted");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Failed to parse CSV chunk", e.getCause());
+            } finally {
+                pool.shutdownNow();
+            }
+            return chunks;
+        }
+    }
+
+    /**
+     * Computes chunk boundaries so that every chunk ends just after a newline.
+     *
+     * @param channel The channel of the file being loaded.
+     * @return Pairs of start (inclusive) and end (exclusive) offsets.
+     * @throws IOException If the file cannot be read.
+     */
+
+    private static List<long[]> chunkBounds(FileChannel channel) throws IOException {
+        long size = channel.size();
+        List<long[]> bounds = new ArrayList<>();
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        long start = 0;
+
+        while (start < size) {
+            long end = Math.min(size, start + CHUNK_SIZE);
+            while (end < size) {
+                probe.clear();
+                int read = channel.read(probe, end);
+                if (read <= 0) {
+                    end = size;
+                    break;
+                }
+                int newline = -1;
+                for (int i = 0; i < read; i++) {
+                    if (probe.get(i) == '\n') {
+                        newline = i;
+                        break;
+                    }
+                }
+                if (newline >= 0) {
+                    end += newline + 1;
+                    break;
+                }
+                end += read;
+            }
+            bounds.add(new long[] { start, Math.min(end, size) });
+            start = end;
+        }
+
+        if (bounds.isEmpty()) {
+            bounds.add(new long[] { 0, 0 });
+        }
+        return bounds;
+    }
+
+    /**
+     * Parses every row in a chunk. Students and lecturers are constructed here
+     * so that their construction cost is spread across the worker threads.
+     *
+     * @param buffer     The mapped bytes of the chunk.
+     * @param skipHeader Whether the first line is the CSV header.
+     * @return The parsed rows of the chunk.
+     */
+
+    private static ParsedChunk parseChunk(ByteBuffer buffer, boolean skipHeader) {
+        ParsedChunk chunk = new ParsedChunk();
+        byte[] field = new byte[256];
+        String[] fields = new String[MAX_FIELDS];
+        int fieldCount = 0;
+        int fieldLength = 0;
+        boolean header = skipHeader;
+        int limit = buffer.limit();
+
+        for (int i = 0; i <= limit; i++) {
+            byte b = i < limit ? buffer.get(i) : (byte) '\n';
+
+            if (b == ',' || b == '\n') {
+                if (fieldCount < MAX_FIELDS) {
+                    fields[fieldCount++] = new String(field, 0, fieldLength, StandardCharsets.UTF_8);
+                }
+                fieldLength = 0;
+
+                if (b == '\n') {
+                    if (header) {
+                        header = false;
+                    } else if (fieldCount > 1 || !fields[0].isEmpty()) {
+                        chunk.add(Arrays.copyOf(fields, fieldCount));
+                    }
+                    fieldCount = 0;
+                }
+            } else if (b != '\r') {
+                if (fieldLength == field.length) {
+                    field = Arrays.copyOf(field, field.length * 2);
+                }
+                field[fieldLength++] = b;
+            }
+        }
+
+        return chunk;
+    }
+
+    /**
+     * Rows parsed from one chunk, with the student or lecturer built from each
+     * row where applicable.
+     */
+
+    private static class ParsedChunk {
+        private final List<String[]> rows = new ArrayList<>();
+        private final List<User> users = new ArrayList<>();
+
+        private void add(String[] row) {
+            if (row.length < 3) {
+                System.out.println("Invalid data for " + row[0] + ". Skipping...");
+                return;
+            }
+
+            User user = null;
+            if (row[0].equals("Student")) {
+                user = new Student(row[1], row[2], true);
+            } else if (row[0].equals("Lecturer")) {
+                user = new Lecturer(row[1], row[2], true);
+            }
+            rows.add(row);
+            users.add(user);
+        }
+    }
+}
+
+/**
+ * The {@code Journal} class is an append-only log of the mutations made
+ * through {@link Admin}.
+ * Every mutation costs one small framed record (length, payload, CRC32) instead
+ * of a full rewrite of the data. Mutations hold the shared side of a
+ * read-write lock while they change the registry and append their record, so
+ * that compaction can take the exclusive side and fold a consistent state into
+ * a snapshot.
+ *
+ * <p>A mutation is not finished until its record is on disk. Mutations that
+ * end while another one is forcing the file wait for that force and are
+ * covered by the next one together, so one force commits a whole group of
+ * records.
+ */
+
+class Journal implements Closeable {
+    static final byte CREATE_ADMIN = 1;
+    static final byte CREATE_STUDENT = 2;
+    static final byte CREATE_LECTURER = 3;
+    static final byte CREATE_COURSE = 4;
+    static final byte ASSIGN_LECTURER = 5;
+    static final byte REGISTER_COURSE = 6;
+    static final byte ADD_PREREQUISITES = 7;
+    static final byte COMPLETE_COURSE = 8;
+    static final byte DROP_COURSE = 9;
+    static final byte REGISTER_COURSES = 10;
+    static final byte COMPLETE_COURSE_GRADED = 11;
+    static final byte ADVANCE_TRIMESTER = 12;
+    static final byte REPLACE_PLAN = 13;
+    static final byte SET_CAPACITY = 14;
+    static final byte WAITLIST_JOIN = 15;
+    static final byte WAITLIST_LEAVE = 16;
+    static final byte SET_RULES = 17;
+
+    private final Path path;
+    private final ReentrantReadWriteLock lock;
+    private final ByteArrayOutputStream recordBytes;
+    private final DataOutputStream record;
+    private FileChannel channel;
+    private volatile LogShipper shipper;
+    /**
+     * The number of bytes appended to the file, guarded by this journal.
+     */
+    private long written;
+    /**
+     * Held while the file is forced, and guards {@link #forced}.
+     */
+    private final Object forceLock;
+    /**
+     * The number of bytes known to be on disk.
+     */
+    private long forced;
+
+    /**
+     * Opens a journal for appending, creating the file if it does not exist.
+     *
+     * @param path The journal file.
+     * @throws IOException If the file cannot be opened.
+     */
+
+    public Journal(Path path) throws IOException {
+        this.path = path;
+        this.lock = new ReentrantReadWriteLock();
+        this.recordBytes = new ByteArrayOutputStream(256);
+        this.record = new DataOutputStream(recordBytes);
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        this.written = channel.size();
+        this.forceLock = new Object();
+        this.forced = written;
+    }
+
+    /**
+     * Marks the start of a mutation. Must be paired with {@link #endMutation()}.
+     */
+
+    public void beginMutation() {
+        lock.readLock().lock();
+    }
+
+    /**
+     * Marks the end of a mutation started with {@link #beginMutation()}, once
+     * the records appended so far are on disk.
+     *
+     * @throws UncheckedIOException If the file cannot be forced.
+     */
+
+    public void endMutation() {
+        try {
+            awaitDurable();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Forces the file unless a force that started after the last append
+     * already covered it.
+     */
+
+    private void awaitDurable() throws IOException {
+        long target;
+        synchronized (this) {
+            target = written;
+        }
+        synchronized (forceLock) {
+            if (forced >= target) {
+                return;
+            }
+            long upTo;
+            synchronized (this) {
+                upTo = written;
+            }
+            channel.force(false);
+            forced = upTo;
+        }
+    }
+
+    public void createAdmin(String username, String passwordHash) {
+        append(CREATE_ADMIN, username, passwordHash);
+    }
+
+    public void createStudent(String username, String passwordHash) {
+        append(CREATE_STUDENT, username, passwordHash);
+    }
+
+    public void createLecturer(String username, String passwordHash) {
+        append(CREATE_LECTURER, username, passwordHash);
+    }
+
+    /**
+     * Records the creation of a course.
+     *
+     * @param course            The course that was created.
+     * @param prerequisiteCodes The codes of its direct prerequisites.
+     */
+
+    public synchronized void createCourse(Course course, List<String> prerequisiteCodes) {
+        try {
+            startRecord(CREATE_COURSE);
+            record.writeUTF(course.getcourseCode());
+            record.writeUTF(course.getAssignedLecturer() == null ? "" : course.getAssignedLecturer().getUsername());
+            record.writeInt(course.getCredits());
+            writeCodes(prerequisiteCodes);
+            writeRecord();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeCodes(List<String> codes) throws IOException {
+        record.writeShort(codes.size());
+        for (String code : codes) {
+            record.writeUTF(code);
+        }
+    }
+
+    public void assignCourseToLecturer(Course course, Lecturer lecturer) {
+        append(ASSIGN_LECTURER, course.getcourseCode(), lecturer.getUsername());
+    }
+
+    public void registerForCourse(Student student, Course course) {
+        append(REGISTER_COURSE, student.getUsername(), course.getcourseCode());
+    }
+
+    /**
+     * Records a batch registration as a single record, so that replay never
+     * sees half of a batch.
+     *
+     * @param student The student who registered.
+     * @param courses The courses registered.
+     */
+
+    public synchronized void registerForCourses(Student student, List<Course> courses) {
+        try {
+            startRecord(REGISTER_COURSES);
+            record.writeUTF(student.getUsername());
+            List<String> courseCodes = new ArrayList<>(courses.size());
+            for (Course course : courses) {
+                courseCodes.add(course.getcourseCode());
+            }
+            writeCodes(courseCodes);
+            writeRecord();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Records a completion together with its grade.
+     *
+     * @param student The student who completed the course.
+     * @param course  The completed course.
+     * @param grade   The grade, or {@link AcademicHistory#NO_GRADE}.
+     */
+
+    public synchronized void completeCourse(Student student, Course course, int grade) {
+        try {
+            startRecord(COMPLETE_COURSE_GRADED);
+            record.writeUTF(student.getUsername());
+            record.writeUTF(course.getcourseCode());
+            record.writeByte(grade);
+            writeRecord();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void advanceTrimester() {
+        append(ADVANCE_TRIMESTER);
+    }
+
+    /**
+     * Records a new capacity of a course.
+     *
+     * @param course   The course.
+     * @param capacity The capacity, or 0 for no seat limit.
+     */
+
+    public synchronized void setCapacity(Course course, int capacity) {
+        try {
+            startRecord(SET_CAPACITY);
+            record.writeUTF(course.getcourseCode());
+            record.writeInt(capacity);
+            writeRecord();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Records a student's place on the waitlist of a course.
+     *
+     * @param course   The course.
+     * @param username The student's username.
+     * @param ticket   The ticket of the student's place.
+     */
+
+    public synchronized void joinWaitlist(Course course, String username, long ticket) {
+        try {
+            startRecord(WAITLIST_JOIN);
+            record.writeUTF(course.getcourseCode());
+            record.writeUTF(username);
+            record.writeLong(ticket);
+            writeRecord();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Records a student leaving the waitlist of a course, by choice or
+     * because their turn came.
+     *
+     * @param course   The course.
+     * @param username The student's username.
+     * @param ticket   The ticket of the place the student gave up.
+     */
+
+    public synchronized void leaveWaitlist(Course course, String username, long ticket) {
+        try {
+            startRecord(WAITLIST_LEAVE);
+            record.writeUTF(course.getcourseCode());
+            record.writeUTF(username);
+            record.writeLong(ticket);
+            writeRecord();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Records new registration rules.
+     *
+     * @param rules The rules.
+     */
+
+    public synchronized void setRules(RegistrationRules rules) {
+        try {
+            startRecord(SET_RULES);
+            writeCodes(rules.getLines());
+            writeRecord();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Records a student's new degree plan.
+     *
+     * @param student   The student.
+     * @param schedule  The courses planned for each trimester.
+     * @param firstTerm The trimester of the first entry of the schedule.
+     */
+
+    public synchronized void replacePlan(Student student, List<List<Course>> schedule, int firstTerm) {
+        try {
+            startRecord(REPLACE_PLAN);
+            record.writeUTF(student.getUsername());
+            record.writeInt(firstTerm);
+            record.writeShort(schedule.size());
+            for (List<Course> term : schedule) {
+                List<String> courseCodes = new ArrayList<>(term.size());
+                for (Course course : term) {
+                    courseCodes.add(course.getcourseCode());
+                }
+                writeCodes(courseCodes);
+            }
+            writeRecord();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void dropCourse(Student student, Course course) {
+        append(DROP_COURSE, student.getUsername(), course.getcourseCode());
+    }
+
+    /**
+     * Appends a record made of an operation code and string fields.
+     *
+     * @param op     The operation code.
+     * @param fields The fields of the record.
+     */
+
+    private synchronized void append(byte op, String... fields) {
+        try {
+            startRecord(op);
+            for (String field : fields) {
+                record.writeUTF(field);
+            }
+            writeRecord();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void startRecord(byte op) throws IOException {
+        recordBytes.reset();
+        record.writeByte(op);
+    }
+
+    /**
+     * Frames the pending record with its length and checksum and appends it.
+     */
+
+    private void writeRecord() throws IOException {
+        record.flush();
+        byte[] payload = recordBytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+
+        ByteBuffer frame = ByteBuffer.allocate(payload.length + 8);
+        frame.putInt(payload.length).put(payload).putInt((int) crc.getValue());
+        frame.flip();
+        while (frame.hasRemaining()) {
+            channel.write(frame);
+        }
+        written += frame.limit();
+        LogShipper current = shipper;
+        if (current != null) {
+            current.ship(payload);
+        }
+    }
+
+    /**
+     * Attaches the shipper that streams every record appended from now on to
+     * the replicas.
+     *
+     * @param shipper The shipper, or {@code null} to stop shipping.
+     */
+
+    void setShipper(LogShipper shipper) {
+        this.shipper = shipper;
+    }
+
+    /**
+     * Runs an action while no mutation is in progress and no record is being
+     * appended, such as opening the snapshot that a replica starts from.
+     *
+     * @param action The action to run.
+     * @throws IOException If the action fails.
+     */
+
+    public void exclusive(IOAction action) throws IOException {
+        lock.writeLock().lock();
+        try {
+            synchronized (this) {
+                action.run();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the current size of the journal file.
+     *
+     * @return The size in bytes.
+     * @throws IOException If the size cannot be read.
+     */
+
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * Runs an action while no mutation is in progress, then empties the
+     * journal. Used by compaction after the action has written a snapshot,
+     * which the shipper, if any, is told replicas now start from.
+     *
+     * @param action The action to run, typically writing a snapshot.
+     * @throws IOException If the action fails or the journal cannot be truncated.
+     */
+
+    public void compact(IOAction action) throws IOException {
+        lock.writeLock().lock();
+        try {
+            action.run();
+            synchronized (forceLock) {
+                synchronized (this) {
+                    channel.force(true);
+                    channel.truncate(0);
+                    written = 0;
+                    LogShipper current = shipper;
+                    if (current != null) {
+                        current.compacted();
+                    }
+                }
+                forced = 0;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replays every complete record of a journal file into an admin.
+     * A torn record at the end of the file, left by a crash mid-append, is
+     * discarded and cut off so that later appends start on a clean boundary.
+     *
+     * @param path  The journal file.
+     * @param admin The admin to apply the records to.
+     * @return The number of records replayed.
+     * @throws IOException If the file cannot be read.
+     */
+
+    public static int replay(Path path, Admin admin) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+
+        int replayed = 0;
+        long goodLength = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            while (true) {
+                byte[] payload;
+                try {
+                    int length = in.readInt();
+                    if (length <= 0) {
+                        break;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    CRC32 crc = new CRC32();
+                    crc.update(payload, 0, length);
+                    if (in.readInt() != (int) crc.getValue()) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+
+                apply(new DataInputStream(new ByteArrayInputStream(payload)), admin);
+                goodLength += payload.length + 8;
+                replayed++;
+            }
+        }
+
+        if (goodLength < Files.size(path)) {
+            try (FileChannel truncate = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                truncate.truncate(goodLength);
+            }
+        }
+        return replayed;
+    }
+
+    /**
+     * Applies a single record to an admin without journaling it again.
+     */
+
+    static void apply(DataInputStream in, Admin admin) throws IOException {
+        Registry registry = admin.getRegistry();
+        byte op = in.readByte();
+
+        switch (op) {
+            case CREATE_ADMIN:
+                registry.addAdmin(new Admin(in.readUTF(), in.readUTF(), registry, true));
+                break;
+
+            case CREATE_STUDENT:
+                registry.addStudent(new Student(in.readUTF(), in.readUTF(), true));
+                break;
+
+            case CREATE_LECTURER:
+                registry.addLecturer(new Lecturer(in.readUTF(), in.readUTF(), true));
+                break;
+
+            case CREATE_COURSE: {
+                String courseCode = in.readUTF();
+                Lecturer lecturer = registry.findLecturer(in.readUTF());
+                int credits = in.readInt();
+                registry.addCourse(new Course(courseCode, lecturer, new ArrayList<>(), credits), readCodes(in));
+                break;
+            }
+
+            case ADD_PREREQUISITES:
+                // No longer written, since snapshots keep only the edges of existing courses.
+                registry.getPrerequisiteGraph().addPrerequisites(in.readUTF(), readCodes(in));
+                break;
+
+            case ASSIGN_LECTURER: {
+                Course course = registry.findCourse(in.readUTF());
+                Lecturer lecturer = registry.findLecturer(in.readUTF());
+                if (course != null && lecturer != null) {
+                    course.setAssignedLecturer(lecturer);
+                }
+                break;
+            }
+
+            case REGISTER_COURSE: {
+                Student student = registry.findStudent(in.readUTF());
+                Course course = registry.findCourse(in.readUTF());
+                if (student != null && course != null && !student.isTaking(course)) {
+                    student.addRegisteredCourse(course);
+                }
+                break;
+            }
+
+            case REGISTER_COURSES: {
+                Student student = registry.findStudent(in.readUTF());
+                for (String courseCode : readCodes(in)) {
+                    Course course = registry.findCourse(courseCode);
+                    if (student != null && course != null && !student.isTaking(course)) {
+                        student.addRegisteredCourse(course);
+                    }
+                }
+                break;
+            }
+
+            case COMPLETE_COURSE: {
+                Student student = registry.findStudent(in.readUTF());
+                Course course = registry.findCourse(in.readUTF());
+                if (student != null && course != null) {
+                    student.completeCourse(course);
+                }
+                break;
+            }
+
+            case COMPLETE_COURSE_GRADED: {
+                Student student = registry.findStudent(in.readUTF());
+                Course course = registry.findCourse(in.readUTF());
+                byte grade = in.readByte();
+                if (student != null && course != null) {
+                    student.completeCourse(course, grade);
+                }
+                break;
+            }
+
+            case ADVANCE_TRIMESTER:
+                registry.advanceTerm();
+                break;
+
+            case SET_CAPACITY: {
+                Course course = registry.findCourse(in.readUTF());
+                int capacity = in.readInt();
+                if (course != null) {
+                    course.setCapacity(capacity);
+                }
+                break;
+            }
+
+            case WAITLIST_JOIN: {
+                Course course = registry.findCourse(in.readUTF());
+                String username = in.readUTF();
+                long ticket = in.readLong();
+                if (course != null) {
+                    course.getWaitlist().restore(username, ticket);
+                }
+                break;
+            }
+
+            case WAITLIST_LEAVE: {
+                Course course = registry.findCourse(in.readUTF());
+                String username = in.readUTF();
+                long ticket = in.readLong();
+                if (course != null) {
+                    course.getWaitlist().remove(username, ticket);
+                }
+                break;
+            }
+
+            case SET_RULES: {
+                PrerequisiteGraph graph = registry.getPrerequisiteGraph();
+                graph.setRules(RegistrationRules.parse(readCodes(in), graph));
+                break;
+            }
+
+            case REPLACE_PLAN: {
+                Student student = registry.findStudent(in.readUTF());
+                int firstTerm = in.readInt();
+                int terms = in.readShort();
+                List<List<Course>> schedule = new ArrayList<>(terms);
+                for (int term = 0; term < terms; term++) {
+                    List<Course> courses = new ArrayList<>();
+                    for (String courseCode : readCodes(in)) {
+                        Course course = registry.findCourse(courseCode);
+                        if (course != null) {
+                            courses.add(course);
+                        }
+                    }
+                    schedule.add(courses);
+                }
+                if (student != null) {
+                    student.replacePlan(schedule, firstTerm);
+                }
+                break;
+            }
+
+            case DROP_COURSE: {
+                Student student = registry.findStudent(in.readUTF());
+                Course course = registry.findCourse(in.readUTF());
+                if (student != null && course != null) {
+                    student.dropCourse(course);
+                }
+                break;
+            }
+
+            default:
+                throw new IOException("Unknown journal operation " + op);
+        }
+    }
+
+    static List<String> readCodes(DataInputStream in) throws IOException {
+        int count = in.readShort();
+        List<String> codes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            codes.add(in.readUTF());
+        }
+        return codes;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * An action that may throw an {@link IOException}.
+     */
+
+    interface IOAction {
+        void run() throws IOException;
+    }
+}
+
+/**
+ * The {@code SnapshotStore} class reads and writes a compact, versioned binary
+ * image of everything an {@link Admin} manages: admins, students, lecturers and
+ * courses, together with credits, prerequisites, lecturer assignments and
+ * the academic history. Snapshots are written to a temporary file and moved
+ * into place, so a crash never leaves a half-written snapshot behind.
+ *
+ * <p>Version 3 stores the academic history as its columns, with course IDs
+ * mapped through a table of course codes; older versions store each student's
+ * current, completed and planned courses instead. Version 4 adds the capacity
+ * of each course. Version 5 adds the registration rules, after the history
+ * so that the courses they name keep their IDs. Version 6 adds, after the
+ * version, the generation of the student record checkpoint the snapshot goes
+ * with. Version 7 adds, after the rules, the waitlist of each course: every
+ * waiting student's username and ticket, in the order they will be served.
+ */
+
+class SnapshotStore {
+    private static final int MAGIC = 0x554E4956;
+    private static final int VERSION = 7;
+
+    /**
+     * Writes a snapshot of an admin and everything it manages.
+     *
+     * @param admin The admin to snapshot.
+     * @param path  The snapshot file.
+     * @throws IOException If the snapshot cannot be written.
+     */
+
+    public static void write(Admin admin, Path path) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+
+        try (FileOutputStream file = new FileOutputStream(temp.toFile());
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            write(admin, out);
+            out.flush();
+            file.getFD().sync();
+        }
+
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes a snapshot of an admin and everything it manages to a stream.
+     *
+     * @param admin The admin to snapshot.
+     * @param out   The stream to write to.
+     * @throws IOException If the snapshot cannot be written.
+     */
+
+    static void write(Admin admin, DataOutputStream out) throws IOException {
+        Registry registry = admin.getRegistry();
+        // Students kept in a record file are saved there, not in the snapshot.
+        StudentTable studentTable = registry.getStudentTable();
+        boolean inRecords = registry.getStudentRecords() != null;
+        CatalogVersion version = registry.snapshot();
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(inRecords ? registry.getStudentRecords().getGeneration() : 0);
+        out.writeUTF(admin.getUsername());
+        out.writeUTF(admin.getPasswordHash());
+        out.writeInt(registry.getCurrentTerm());
+
+        out.writeInt(registry.getAdmins().size());
+        for (Admin other : registry.getAdmins()) {
+            out.writeUTF(other.getUsername());
+            out.writeUTF(other.getPasswordHash());
+        }
+
+        out.writeInt(registry.getLecturers().size());
+        for (Lecturer lecturer : registry.getLecturers()) {
+            out.writeUTF(lecturer.getUsername());
+            out.writeUTF(lecturer.getPasswordHash());
+        }
+
+        List<Student> students = studentTable.asList();
+        out.writeInt(students.size());
+        for (Student student : students) {
+            out.writeUTF(student.getUsername());
+            out.writeUTF(student.getPasswordHash());
+        }
+
+        out.writeInt(registry.getCourses().size());
+        for (Course course : registry.getCourses()) {
+            out.writeUTF(course.getcourseCode());
+            out.writeUTF(course.getAssignedLecturer() == null ? "" : course.getAssignedLecturer().getUsername());
+            out.writeInt(course.getCredits());
+            out.writeInt(course.getCapacity());
+        }
+
+        for (Course course : registry.getCourses()) {
+            List<String> prerequisites = registry.getPrerequisiteGraph().prerequisiteCodesOf(course.getcourseCode());
+            out.writeShort(prerequisites.size());
+            for (String prerequisite : prerequisites) {
+                out.writeUTF(prerequisite);
+            }
+            List<Student> enrolled = inRecords ? Collections.emptyList() : version.getEnrolledStudents(course);
+            out.writeInt(enrolled.size());
+            for (Student student : enrolled) {
+                out.writeUTF(student.getUsername());
+            }
+        }
+
+        for (Lecturer lecturer : registry.getLecturers()) {
+            List<Course> assigned = lecturer.getAssignedCourses();
+            out.writeShort(assigned.size());
+            for (Course course : assigned) {
+                out.writeUTF(course.getcourseCode());
+            }
+        }
+
+        writeHistory(out, registry);
+
+        List<String> rules = registry.getPrerequisiteGraph().getRules().getLines();
+        out.writeShort(rules.size());
+        for (String rule : rules) {
+            out.writeUTF(rule);
+        }
+
+        for (Course course : registry.getCourses()) {
+            List<Waitlist.Entry> waiting = course.getWaitlist().getEntries();
+            out.writeInt(waiting.size());
+            for (Waitlist.Entry entry : waiting) {
+                out.writeUTF(entry.username);
+                out.writeLong(entry.ticket);
+            }
+        }
+    }
+
+    /**
+     * Reads a snapshot written by {@link #write(Admin, Path)}.
+     *
+     * @param path The snapshot file.
+     * @return The admin restored from the snapshot.
+     * @throws IOException If the file cannot be read or is not a snapshot.
+     */
+
+    public static Admin read(Path path) throws IOException {
+        return read(path, null);
+    }
+
+    /**
+     * Reads the generation of the student record checkpoint a snapshot goes
+     * with, without reading the rest of it.
+     *
+     * @param path The snapshot file.
+     * @return The generation, 0 for a snapshot older than version 6.
+     * @throws IOException If the file cannot be read or is not a snapshot.
+     */
+
+    public static long readGeneration(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a snapshot");
+            }
+            return in.readInt() >= 6 ? in.readLong() : 0;
+        }
+    }
+
+    /**
+     * Reads a snapshot written by {@link #write(Admin, Path)} into a registry
+     * that keeps its students in a record file. Students found in the
+     * snapshot, from before the record file was used, are moved into it.
+     *
+     * @param path    The snapshot file.
+     * @param records The record file, or {@code null} to keep students in memory.
+     * @return The admin restored from the snapshot.
+     * @throws IOException If the file cannot be read or is not a snapshot.
+     */
+
+    public static Admin read(Path path, StudentRecordStore records) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            return read(in, records);
+        }
+    }
+
+    /**
+     * Reads a snapshot written by {@link #write(Admin, DataOutputStream)} from
+     * a stream.
+     *
+     * @param in      The stream to read from.
+     * @param records The record file, or {@code null} to keep students in memory.
+     * @return The admin restored from the snapshot.
+     * @throws IOException If the stream cannot be read or is not a snapshot.
+     */
+
+    static Admin read(DataInputStream in, StudentRecordStore records) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a snapshot");
+        }
+        int version = in.readInt();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        if (version >= 6) {
+            in.readLong();
+        }
+
+        Admin admin = new Admin(in.readUTF(), in.readUTF(), true);
+        Registry registry = admin.getRegistry();
+        if (records != null) {
+            registry.attachStudentRecords(records);
+        }
+        if (version >= 3) {
+            registry.setCurrentTerm(in.readInt());
+        }
+
+        int admins = in.readInt();
+        for (int i = 0; i < admins; i++) {
+            registry.addAdmin(new Admin(in.readUTF(), in.readUTF(), registry, true));
+        }
+
+        int lecturers = in.readInt();
+        for (int i = 0; i < lecturers; i++) {
+            registry.addLecturer(new Lecturer(in.readUTF(), in.readUTF(), true));
+        }
+
+        Student[] students = new Student[in.readInt()];
+        for (int i = 0; i < students.length; i++) {
+            Student student = new Student(in.readUTF(), in.readUTF(), true);
+            // A student already in the record file keeps the history saved there.
+            students[i] = registry.addStudent(student) ? student : null;
+        }
+
+        int courses = in.readInt();
+        for (int i = 0; i < courses; i++) {
+            String courseCode = in.readUTF();
+            Lecturer lecturer = registry.findLecturer(in.readUTF());
+            Course course = new Course(courseCode, lecturer, new ArrayList<>(), in.readInt());
+            if (version >= 4) {
+                course.setCapacity(in.readInt());
+            }
+            registry.addCourse(course);
+        }
+
+        for (Course course : registry.getCourses()) {
+            registry.getPrerequisiteGraph().addPrerequisites(course.getcourseCode(), Journal.readCodes(in));
+            // Rosters follow from the students' current courses, restored
+            // below, so they are only skipped over.
+            int enrolled = in.readInt();
+            for (int i = 0; i < enrolled; i++) {
+                in.readUTF();
+            }
+        }
+
+        // Lecturers' courses already follow from the courses' lecturers, so
+        // this section is only skipped over.
+        for (int lecturer = 0; lecturer < registry.getLecturers().size(); lecturer++) {
+            int assigned = in.readShort();
+            for (int i = 0; i < assigned; i++) {
+                in.readUTF();
+            }
+        }
+
+        if (version >= 3) {
+            readHistory(in, registry, students);
+            if (version >= 5) {
+                PrerequisiteGraph graph = registry.getPrerequisiteGraph();
+                graph.setRules(RegistrationRules.parse(Journal.readCodes(in), graph));
+            }
+            if (version >= 7) {
+                for (Course course : registry.getCourses()) {
+                    int waiting = in.readInt();
+                    for (int i = 0; i < waiting; i++) {
+                        course.getWaitlist().restore(in.readUTF(), in.readLong());
+                    }
+                }
+            }
+            return admin;
+        }
+
+        for (Student student : students) {
+            List<String> registered = Journal.readCodes(in);
+            List<String> completed = version >= 2 ? Journal.readCodes(in) : Collections.emptyList();
+            List<String> planned = version >= 2 ? Journal.readCodes(in) : Collections.emptyList();
+            if (student == null) {
+                continue;
+            }
+            for (String courseCode : registered) {
+                student.addRegisteredCourse(registry.findCourse(courseCode));
+            }
+            for (String courseCode : completed) {
+                student.addCompletedCourse(registry.findCourse(courseCode));
+            }
+            for (String courseCode : planned) {
+                student.planCourse(registry.findCourse(courseCode));
+            }
+        }
+
+        return admin;
+    }
+
+    /**
+     * Writes the table of course codes by course ID, then every history row.
+     */
+
+    private static void writeHistory(DataOutputStream out, Registry registry) throws IOException {
+        PrerequisiteGraph graph = registry.getPrerequisiteGraph();
+        int courseIds = graph.size();
+        out.writeInt(courseIds);
+        for (int id = 0; id < courseIds; id++) {
+            out.writeUTF(graph.codeOf(id));
+        }
+
+        AcademicHistory history = registry.getHistory();
+        out.writeInt(history.size());
+        IOException[] failure = new IOException[1];
+        history.forEachRow((student, course, term, status, grade) -> {
+            if (failure[0] != null) {
+                return;
+            }
+            try {
+                out.writeInt(student);
+                out.writeInt(course);
+                out.writeShort(term);
+                out.writeByte(status);
+                out.writeByte(grade);
+            } catch (IOException e) {
+                failure[0] = e;
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    /**
+     * Reads the history written by {@link #writeHistory(DataOutputStream, Registry)}
+     * and rebuilds each student's course sets and credits from it.
+     */
+
+    private static void readHistory(DataInputStream in, Registry registry, Student[] students) throws IOException {
+        String[] codesById = new String[in.readInt()];
+        for (int id = 0; id < codesById.length; id++) {
+            codesById[id] = in.readUTF();
+        }
+
+        int rows = in.readInt();
+        for (int i = 0; i < rows; i++) {
+            Student student = students[in.readInt()];
+            Course course = registry.findCourse(codesById[in.readInt()]);
+            int term = in.readShort();
+            byte status = in.readByte();
+            byte grade = in.readByte();
+            if (student == null || course == null) {
+                continue;
+            }
+            student.restoreHistoryRow(course, term, status, grade);
+        }
+    }
+}
+
+/**
+ * The {@code DurableStore} class keeps an {@link Admin} durable with a binary
+ * snapshot plus a {@link Journal} of the mutations made since that snapshot.
+ * Recovery loads the last snapshot and replays the journal tail; compaction,
+ * on demand or in the background, folds the journal into a new snapshot.
+ */
+
+class DurableStore implements Closeable {
+    private final Path snapshotPath;
+    private final Path journalPath;
+    private final StudentRecordStore records;
+    private Admin admin;
+    private Journal journal;
+    private ScheduledExecutorService compactor;
+
+    /**
+     * Constructor for DurableStore.
+     *
+     * @param snapshotPath The snapshot file.
+     * @param journalPath  The journal file.
+     */
+
+    public DurableStore(Path snapshotPath, Path journalPath) {
+        this(snapshotPath, journalPath, null);
+    }
+
+    /**
+     * Constructor for DurableStore that keeps students in a record file. The
+     * record file is written back whenever a snapshot is.
+     *
+     * @param snapshotPath The snapshot file.
+     * @param journalPath  The journal file.
+     * @param records      The record file, or {@code null} to keep students in
+     *                     the snapshot.
+     */
+
+    public DurableStore(Path snapshotPath, Path journalPath, StudentRecordStore records) {
+        this.snapshotPath = snapshotPath;
+        this.journalPath = journalPath;
+        this.records = records;
+    }
+
+    /**
+     * Restores the admin from the snapshot and journal, and attaches the
+     * journal so that further mutations are recorded.
+     *
+     * @param username The root admin username used when there is no snapshot yet.
+     * @param password The root admin password used when there is no snapshot yet.
+     * @return The recovered admin.
+     * @throws IOException If the snapshot or journal cannot be read.
+     */
+
+    public Admin recover(String username, String password) throws IOException {
+        if (records != null) {
+            records.recover(Files.exists(snapshotPath) ? SnapshotStore.readGeneration(snapshotPath) : -1);
+        }
+        if (Files.exists(snapshotPath)) {
+            admin = SnapshotStore.read(snapshotPath, records);
+        } else {
+            admin = new Admin(username, password);
+            if (records != null) {
+                admin.getRegistry().attachStudentRecords(records);
+            }
+        }
+        // Replayed drops must not promote anyone before the replayed promotions are in.
+        WaitlistScheduler scheduler = admin.getRegistry().getWaitlistScheduler();
+        scheduler.hold();
+        int replayed = Journal.replay(journalPath, admin);
+        journal = new Journal(journalPath);
+        admin.getRegistry().setJournal(journal);
+        scheduler.release();
+        if (replayed > 0) {
+            System.out.println("Replayed " + replayed + " journal entries.");
+        }
+        return admin;
+    }
+
+    /**
+     * Gets the journal attached by {@link #recover(String, String)}.
+     *
+     * @return The journal, or {@code null} before recovery.
+     */
+
+    Journal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Gets the admin restored by {@link #recover(String, String)}.
+     *
+     * @return The admin, or {@code null} before recovery.
+     */
+
+    Admin getAdmin() {
+        return admin;
+    }
+
+    /**
+     * Gets the snapshot file, written by every compaction.
+     *
+     * @return The snapshot path.
+     */
+
+    Path getSnapshotPath() {
+        return snapshotPath;
+    }
+
+    /**
+     * Writes a new snapshot and empties the journal. A checkpoint of the
+     * record file, if any, is prepared before the snapshot and finished after
+     * it, so that both describe the same state even if the process dies in
+     * between.
+     *
+     * @throws IOException If the snapshot cannot be written.
+     */
+
+    public void compact() throws IOException {
+        journal.compact(() -> {
+            if (records != null) {
+                records.prepareCheckpoint();
+            }
+            SnapshotStore.write(admin, snapshotPath);
+            if (records != null) {
+                records.finishCheckpoint();
+            }
+        });
+    }
+
+    /**
+     * Starts a background thread that compacts the journal whenever it grows
+     * past a size threshold.
+     *
+     * @param thresholdBytes The journal size that triggers compaction.
+     * @param periodSeconds  How often the journal size is checked.
+     */
+
+    public void startBackgroundCompaction(long thresholdBytes, long periodSeconds) {
+        compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "journal-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(() -> {
+            try {
+                if (journal.size() >= thresholdBytes) {
+                    compact();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (compactor != null) {
+            compactor.shutdownNow();
+        }
+        if (admin != null) {
+            admin.getRegistry().close();
+        }
+        if (journal != null) {
+            compact();
+            admin.getRegistry().setJournal(null);
+            journal.close();
+        }
+        if (records != null) {
+            records.close();
+        }
+    }
+}
+
+/**
+ * The {@code LogShipper} class streams a primary's journal to read-only
+ * replicas over loopback sockets.
+ * A replica first proves that it knows the secret shared with the primary by
+ * answering a random challenge. It then receives the snapshot file written by
+ * the last compaction, straight from disk, followed by every record appended
+ * since that compaction, in order, so a replica connecting never makes the
+ * primary serialize its state. Each record carries the time the primary
+ * appended it, and idle periods are filled with heartbeats, so a replica
+ * always knows how far behind the primary it is.
+ * The records appended since the last compaction are kept in memory, and each
+ * replica is challenged, sent the snapshot and then sent the records by a
+ * thread of its own at its own pace, so a slow or silent replica never holds
+ * up a registration or another replica's connection, and is never
+ * disconnected for being slow; it keeps the records of an older compaction
+ * until it has sent them.
+ */
+
+class LogShipper implements Closeable {
+    static final int MAGIC = 0x4C4F4753;
+    static final String SECRET_VARIABLE = "UNIVERSITY_REPLICATION_SECRET";
+    static final int CHALLENGE_BYTES = 32;
+    static final int PROOF_BYTES = 32;
+    private static final String PROOF_ALGORITHM = "HmacSHA256";
+    private static final int HANDSHAKE_MILLIS = 5_000;
+    private static final long HEARTBEAT_MILLIS = 100;
+    private static final byte[] HEARTBEAT = new byte[0];
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final Journal journal;
+    private final Path snapshotPath;
+    private final byte[] secret;
+    private final ServerSocket serverSocket;
+    private final Thread acceptor;
+    private final List<Follower> followers = new CopyOnWriteArrayList<>();
+    private volatile boolean closed;
+    /**
+     * The records appended since the last compaction. Only replaced while the
+     * journal's lock is held.
+     */
+    private volatile Segment segment;
+    /**
+     * The sequence number of the last record shipped. Only changed while the
+     * journal's lock is held.
+     */
+    private volatile long sequence;
+
+    /**
+     * A record on its way to a replica.
+     */
+
+    private static final class Shipped {
+        final long sequence;
+        final long appendedMillis;
+        final byte[] payload;
+
+        Shipped(long sequence, long appendedMillis, byte[] payload) {
+            this.sequence = sequence;
+            this.appendedMillis = appendedMillis;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * The records appended between two compactions. Records are added and
+     * read while holding the segment's monitor, which replicas wait on for
+     * new records.
+     */
+
+    private static final class Segment {
+        final long baseSequence;
+        final long startedMillis;
+        final List<Shipped> records = new ArrayList<>();
+        Segment next;
+
+        Segment(long baseSequence, long startedMillis) {
+            this.baseSequence = baseSequence;
+            this.startedMillis = startedMillis;
+        }
+    }
+
+    /**
+     * Starts shipping the journal of a recovered store on a loopback port.
+     * The store is compacted first, so that its snapshot file is where every
+     * replica starts.
+     *
+     * @param store  The store whose journal is shipped.
+     * @param port   The port replicas connect to, or 0 for any free port.
+     * @param secret The secret replicas must prove they know.
+     * @throws IOException           If the port cannot be bound or the store
+     *                               cannot be compacted.
+     * @throws IllegalStateException If there is no secret, or the students are
+     *                               kept in a record file, which snapshots do
+     *                               not include.
+     */
+
+    public LogShipper(DurableStore store, int port, String secret) throws IOException {
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalStateException("Log shipping needs a shared secret in " + SECRET_VARIABLE);
+        }
+        if (store.getAdmin().getRegistry().getStudentRecords() != null) {
+            throw new IllegalStateException("Log shipping needs the students in the snapshot, not in a record file");
+        }
+        this.journal = store.getJournal();
+        this.snapshotPath = store.getSnapshotPath();
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.segment = new Segment(0, System.currentTimeMillis());
+        this.serverSocket = new ServerSocket(port, 64, InetAddress.getLoopbackAddress());
+        journal.setShipper(this);
+        try {
+            store.compact();
+        } catch (IOException e) {
+            journal.setShipper(null);
+            serverSocket.close();
+            throw e;
+        }
+        this.acceptor = new Thread(this::acceptLoop, "log-shipper-acceptor");
+        this.acceptor.setDaemon(true);
+        this.acceptor.start();
+    }
+
+    /**
+     * Gets the port replicas connect to.
+     *
+     * @return The local port.
+     */
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Gets the sequence number of the last record shipped.
+     *
+     * @return The sequence number.
+     */
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Gets the number of replicas currently connected.
+     *
+     * @return The number of replicas.
+     */
+
+    public int getReplicaCount() {
+        return followers.size();
+    }
+
+    /**
+     * Adds a record that was just appended to the journal for every replica.
+     * Called by the journal while it holds its lock, so records are numbered
+     * in the order they were appended.
+     *
+     * @param payload The record.
+     */
+
+    void ship(byte[] payload) {
+        Segment current = segment;
+        synchronized (current) {
+            current.records.add(new Shipped(++sequence, System.currentTimeMillis(), payload));
+            current.notifyAll();
+        }
+    }
+
+    /**
+     * Starts a new segment once the journal has been emptied. Called by the
+     * journal while it holds its lock, right after the snapshot the new
+     * segment starts from was written.
+     */
+
+    void compacted() {
+        Segment old = segment;
+        Segment fresh = new Segment(sequence, System.currentTimeMillis());
+        segment = fresh;
+        synchronized (old) {
+            old.next = fresh;
+            old.notifyAll();
+        }
+    }
+
+    /**
+     * Computes the answer to a challenge that proves knowledge of a secret.
+     *
+     * @param secret    The shared secret.
+     * @param challenge The challenge sent by the shipper.
+     * @return The answer.
+     */
+
+    static byte[] prove(byte[] secret, byte[] challenge) {
+        try {
+            Mac mac = Mac.getInstance(PROOF_ALGORITHM);
+            mac.init(new SecretKeySpec(secret, PROOF_ALGORITHM));
+            return mac.doFinal(challenge);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(PROOF_ALGORITHM + " is not available", e);
+        }
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                try {
+                    new Follower(socket).thread.start();
+                } catch (IOException e) {
+                    socket.close();
+                    throw e;
+                }
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks that a new replica knows the secret, sends it the last snapshot
+     * file and makes the records appended after it the next ones it is sent.
+     * Runs on the replica's own thread.
+     *
+     * @throws IOException If the replica is not let in or goes away, or the
+     *                     shipper was closed.
+     */
+
+    private void start(Follower follower) throws IOException {
+        FileChannel[] snapshot = new FileChannel[1];
+        authenticate(follower);
+        journal.exclusive(() -> {
+            // Opened while no compaction runs, the file stays readable after the next one replaces it.
+            snapshot[0] = FileChannel.open(snapshotPath, StandardOpenOption.READ);
+            follower.segment = segment;
+            follower.sent = segment.baseSequence;
+            followers.add(follower);
+        });
+        try (FileChannel file = snapshot[0]) {
+            if (closed) {
+                throw new IOException("Log shipping was stopped");
+            }
+            follower.out.writeLong(follower.segment.baseSequence);
+            follower.out.writeLong(follower.segment.startedMillis);
+            follower.out.writeLong(file.size());
+            Channels.newInputStream(file).transferTo(follower.out);
+        }
+        follower.out.flush();
+    }
+
+    /**
+     * Challenges a new replica to prove that it knows the shared secret.
+     *
+     * @throws IOException If the replica answers wrongly or too late.
+     */
+
+    private void authenticate(Follower follower) throws IOException {
+        byte[] challenge = new byte[CHALLENGE_BYTES];
+        RANDOM.nextBytes(challenge);
+        follower.out.writeInt(MAGIC);
+        follower.out.write(challenge);
+        follower.out.flush();
+        byte[] answer = new byte[PROOF_BYTES];
+        follower.socket.setSoTimeout(HANDSHAKE_MILLIS);
+        new DataInputStream(follower.socket.getInputStream()).readFully(answer);
+        follower.socket.setSoTimeout(0);
+        if (!MessageDigest.isEqual(answer, prove(secret, challenge))) {
+            throw new IOException("Replica on port " + follower.socket.getPort() + " does not know the secret");
+        }
+    }
+
+    /**
+     * Stops shipping and disconnects every replica.
+     */
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        journal.setShipper(null);
+        serverSocket.close();
+        for (Follower follower : followers) {
+            follower.close();
+        }
+    }
+
+    /**
+     * One connected replica, with the thread that sends it records and its
+     * place in the segments.
+     */
+
+    private final class Follower {
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final Thread thread;
+        /**
+         * The segment being sent, the index of the next record in it, and the
+         * sequence number of the last record sent. Only used by the thread
+         * once it has started.
+         */
+        private Segment segment;
+        private int next;
+        private long sent;
+
+        Follower(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+            this.thread = new Thread(this::run, "log-shipper-" + socket.getPort());
+            this.thread.setDaemon(true);
+        }
+
+        private void run() {
+            try {
+                start(this);
+            } catch (IOException e) {
+                if (!closed) {
+                    e.printStackTrace();
+                }
+                close();
+                return;
+            }
+            try {
+                while (!socket.isClosed()) {
+                    Shipped record = take(0);
+                    if (record == null) {
+                        out.flush();
+                        record = take(HEARTBEAT_MILLIS);
+                    }
+                    out.writeLong(record.sequence);
+                    out.writeLong(record.appendedMillis);
+                    out.writeInt(record.payload.length);
+                    out.write(record.payload);
+                    sent = record.sequence;
+                }
+            } catch (IOException | InterruptedException e) {
+                // The replica went away or the shipper was closed.
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Takes the next record to send, moving on to the next segment once
+         * this one is sent. If every record has been sent, waits for a new
+         * one, and sends a heartbeat if none comes in time.
+         *
+         * @param timeoutMillis How long to wait, or 0 not to wait.
+         * @return The record or heartbeat, or {@code null} if every record has
+         *         been sent and no wait was asked for.
+         */
+
+        private Shipped take(long timeoutMillis) throws InterruptedException {
+            boolean waited = false;
+            while (true) {
+                Segment current = segment;
+                synchronized (current) {
+                    if (next < current.records.size()) {
+                        return current.records.get(next++);
+                    }
+                    if (current.next != null) {
+                        segment = current.next;
+                        next = 0;
+                        continue;
+                    }
+                    if (timeoutMillis == 0) {
+                        return null;
+                    }
+                    if (waited) {
+                        return new Shipped(sent, System.currentTimeMillis(), HEARTBEAT);
+                    }
+                    current.wait(timeoutMillis);
+                    waited = true;
+                }
+            }
+        }
+
+        void close() {
+            followers.remove(this);
+            thread.interrupt();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed.
+            }
+        }
+    }
+}
+
+/**
+ * The {@code LogReplica} class keeps a read-only copy of a primary's
+ * {@link Admin} up to date from the log streamed by the primary's
+ * {@link LogShipper}.
+ * It answers the primary's challenge with the shared secret, starts from the
+ * snapshot the primary sends, then applies each record with the same code
+ * that replays a journal after a restart. Records are applied while holding
+ * the write side of a lock whose read side readers hold, so a reader never
+ * sees a record half applied. The replica's lag is the time since the primary
+ * appended the last record or heartbeat the replica has processed: everything
+ * the primary did before then is visible on the replica. If the connection
+ * drops, the replica reconnects and starts over from a new snapshot, and
+ * readers keep the old copy until the new one has caught up.
+ */
+
+class LogReplica implements Closeable {
+    private static final long RECONNECT_MILLIS = 1000;
+
+    private final int primaryPort;
+    private final byte[] secret;
+    private final long maxLagMillis;
+    private final ReadWriteLock copyLock = new ReentrantReadWriteLock();
+    private final Thread follower;
+    private volatile Admin admin;
+    private volatile Socket socket;
+    private volatile boolean closed;
+    private volatile long appliedSequence;
+    private volatile long caughtUpMillis;
+
+    /**
+     * The part of a stream holding the snapshot, so that a snapshot of any
+     * size is loaded straight from the connection. Closing it leaves the
+     * connection open.
+     */
+
+    private static final class Limited extends FilterInputStream {
+        private long remaining;
+
+        Limited(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int count = in.read(b, off, (int) Math.min(len, remaining));
+            if (count > 0) {
+                remaining -= count;
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        /**
+         * Skips whatever of the snapshot was not read.
+         *
+         * @throws IOException If the connection ends first.
+         */
+
+        void skipRest() throws IOException {
+            in.skipNBytes(remaining);
+            remaining = 0;
+        }
+    }
+
+    /**
+     * Starts following a primary.
+     *
+     * @param primaryPort  The loopback port of the primary's log shipper.
+     * @param secret       The secret shared with the primary.
+     * @param maxLagMillis The lag beyond which the copy is considered stale.
+     * @throws IllegalStateException If there is no secret.
+     */
+
+    public LogReplica(int primaryPort, String secret, long maxLagMillis) {
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalStateException("Following a primary needs the shared secret in "
+                    + LogShipper.SECRET_VARIABLE);
+        }
+        this.primaryPort = primaryPort;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.maxLagMillis = maxLagMillis;
+        this.follower = new Thread(this::followLoop, "log-replica");
+        this.follower.setDaemon(true);
+        this.follower.start();
+    }
+
+    /**
+     * Gets the current copy of the primary's admin. Its state must only be
+     * read.
+     *
+     * @return The admin, or {@code null} before the first snapshot arrived.
+     */
+
+    public Admin getAdmin() {
+        return admin;
+    }
+
+    /**
+     * Gets the lock to hold while reading the copy, so that no record is
+     * applied to it mid-read.
+     *
+     * @return The read lock.
+     */
+
+    public Lock readLock() {
+        return copyLock.readLock();
+    }
+
+    /**
+     * Gets the sequence number of the last record applied.
+     *
+     * @return The sequence number.
+     */
+
+    public long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    /**
+     * Gets how far behind the primary the copy is.
+     *
+     * @return The lag in milliseconds, or {@link Long#MAX_VALUE} before the
+     *         first snapshot arrived.
+     */
+
+    public long getLagMillis() {
+        return admin == null ? Long.MAX_VALUE : Math.max(0, System.currentTimeMillis() - caughtUpMillis);
+    }
+
+    /**
+     * Checks whether the copy is recent enough to serve reads.
+     *
+     * @return True if the lag is within the bound given to the constructor.
+     */
+
+    public boolean isFresh() {
+        return getLagMillis() <= maxLagMillis;
+    }
+
+    private void followLoop() {
+        while (!closed) {
+            try (Socket primary = new Socket(InetAddress.getLoopbackAddress(), primaryPort)) {
+                socket = primary;
+                follow(primary);
+            } catch (IOException e) {
+                // Until the primary is back, the copy ages and stops serving once stale.
+            }
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Answers the primary's challenge and loads the snapshot at the start of
+     * the stream, then applies records until the stream ends. The new copy
+     * replaces the old one once it is recent enough to serve reads.
+     */
+
+    private void follow(Socket primary) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(primary.getInputStream(), 1 << 16));
+        if (in.readInt() != LogShipper.MAGIC) {
+            throw new IOException("Not a log shipper");
+        }
+        byte[] challenge = new byte[LogShipper.CHALLENGE_BYTES];
+        in.readFully(challenge);
+        OutputStream out = primary.getOutputStream();
+        out.write(LogShipper.prove(secret, challenge));
+        out.flush();
+
+        long sequence = in.readLong();
+        long appendedMillis = in.readLong();
+        Limited snapshot = new Limited(in, in.readLong());
+        Admin copy = SnapshotStore.read(new DataInputStream(snapshot), null);
+        snapshot.skipRest();
+        // Promotions arrive from the primary; the copy must not make its own.
+        copy.getRegistry().close();
+        boolean published = false;
+        while (!closed) {
+            if (!published && System.currentTimeMillis() - appendedMillis <= maxLagMillis) {
+                published = true;
+                admin = copy;
+            }
+            if (published) {
+                appliedSequence = sequence;
+                caughtUpMillis = appendedMillis;
+            }
+            sequence = in.readLong();
+            appendedMillis = in.readLong();
+            byte[] payload = new byte[in.readInt()];
+            in.readFully(payload);
+            if (payload.length > 0) {
+                Lock writing = copyLock.writeLock();
+                writing.lock();
+                try {
+                    Journal.apply(new DataInputStream(new ByteArrayInputStream(payload)), copy);
+                } finally {
+                    writing.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops following the primary. The last copy stays readable.
+     */
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        follower.interrupt();
+        Socket current = socket;
+        if (current != null) {
+            current.close();
+        }
+    }
+}
+
+/**
+ * The {@code AcademicHistory} class records every student's subjects, term by
+ * term, in columns of dense integers rather than as objects.
+ * Each row says that one student planned, took, completed or dropped one
+ * course in one trimester, with a grade once the course is completed. Rows are
+ * appended to parallel arrays, and each student's rows are chained together,
+ * so a student's own history is a walk over their rows while a question about
+ * the whole population, such as who completed a course last trimester, is a
+ * sequential scan over a few primitive arrays.
+ */
+
+class AcademicHistory {
+    static final byte PLANNED = 0;
+    static final byte CURRENT = 1;
+    static final byte COMPLETED = 2;
+    static final byte DROPPED = 3;
+    static final byte NO_GRADE = -1;
+
+    private static final int NO_ROW = -1;
+
+    private int[] studentColumn;
+    private int[] courseColumn;
+    private short[] termColumn;
+    private byte[] statusColumn;
+    private byte[] gradeColumn;
+    private int[] nextRowOfStudent;
+    private int[] firstRowByStudent;
+    private int[] lastRowByStudent;
+    private int rows;
+
+    /**
+     * A visitor of history rows.
+     */
+
+    interface RowVisitor {
+        /**
+         * Visits one row.
+         *
+         * @param student The index of the student.
+         * @param course  The ID of the course.
+         * @param term    The trimester of the row.
+         * @param status  The status of the course in that trimester.
+         * @param grade   The grade, or {@link #NO_GRADE}.
+         */
+        void visit(int student, int course, int term, byte status, byte grade);
+    }
+
+    /**
+     * Constructs an empty history.
+     */
+
+    public AcademicHistory() {
+        this(1024);
+    }
+
+    /**
+     * Constructs an empty history with room for a number of rows before it
+     * grows.
+     *
+     * @param capacity The initial number of rows.
+     */
+
+    public AcademicHistory(int capacity) {
+        this.studentColumn = new int[capacity];
+        this.courseColumn = new int[capacity];
+        this.termColumn = new short[capacity];
+        this.statusColumn = new byte[capacity];
+        this.gradeColumn = new byte[capacity];
+        this.nextRowOfStudent = new int[capacity];
+        this.firstRowByStudent = new int[0];
+        this.lastRowByStudent = new int[0];
+    }
+
+    /**
+     * Appends a row.
+     *
+     * @param student The index of the student.
+     * @param course  The ID of the course.
+     * @param term    The trimester of the row.
+     * @param status  The status of the course in that trimester.
+     * @param grade   The grade, or {@link #NO_GRADE}.
+     */
+
+    public synchronized void append(int student, int course, int term, byte status, byte grade) {
+        if (rows == studentColumn.length) {
+            int capacity = Math.max(1, rows * 2);
+            studentColumn = Arrays.copyOf(studentColumn, capacity);
+            courseColumn = Arrays.copyOf(courseColumn, capacity);
+            termColumn = Arrays.copyOf(termColumn, capacity);
+            statusColumn = Arrays.copyOf(statusColumn, capacity);
+            gradeColumn = Arrays.copyOf(gradeColumn, capacity);
+            nextRowOfStudent = Arrays.copyOf(nextRowOfStudent, capacity);
+        }
+        if (student >= firstRowByStudent.length) {
+            int length = firstRowByStudent.length;
+            int capacity = Math.max(student + 1, length * 2);
+            firstRowByStudent = Arrays.copyOf(firstRowByStudent, capacity);
+            lastRowByStudent = Arrays.copyOf(lastRowByStudent, capacity);
+            Arrays.fill(firstRowByStudent, length, capacity, NO_ROW);
+            Arrays.fill(lastRowByStudent, length, capacity, NO_ROW);
+        }
+
+        int row = rows++;
+        studentColumn[row] = student;
+        courseColumn[row] = course;
+        termColumn[row] = (short) term;
+        statusColumn[row] = status;
+        gradeColumn[row] = grade;
+        nextRowOfStudent[row] = NO_ROW;
+        if (lastRowByStudent[student] == NO_ROW) {
+            firstRowByStudent[student] = row;
+        } else {
+            nextRowOfStudent[lastRowByStudent[student]] = row;
+        }
+        lastRowByStudent[student] = row;
+    }
+
+    /**
+     * Moves a student's latest row for a course from one status to another.
+     *
+     * @param student The index of the student.
+     * @param course  The ID of the course.
+     * @param from    The status the row must have.
+     * @param to      The new status.
+     * @param term    The trimester in which the change happened.
+     * @param grade   The grade, or {@link #NO_GRADE}.
+     * @return True if a row was changed, false if there was no matching row.
+     */
+
+    public synchronized boolean update(int student, int course, byte from, byte to, int term, byte grade) {
+        int match = NO_ROW;
+        for (int row = firstRow(student); row != NO_ROW; row = nextRowOfStudent[row]) {
+            if (courseColumn[row] == course && statusColumn[row] == from) {
+                match = row;
+            }
+        }
+        if (match == NO_ROW) {
+            return false;
+        }
+        statusColumn[match] = to;
+        termColumn[match] = (short) term;
+        gradeColumn[match] = grade;
+        return true;
+    }
+
+    /**
+     * Visits one student's rows in the order they were recorded.
+     *
+     * @param student The index of the student.
+     * @param visitor The visitor.
+     */
+
+    public synchronized void forEachRowOf(int student, RowVisitor visitor) {
+        for (int row = firstRow(student); row != NO_ROW; row = nextRowOfStudent[row]) {
+            visitor.visit(student, courseColumn[row], termColumn[row], statusColumn[row], gradeColumn[row]);
+        }
+    }
+
+    /**
+     * Visits every row in the order it was recorded.
+     *
+     * @param visitor The visitor.
+     */
+
+    public synchronized void forEachRow(RowVisitor visitor) {
+        for (int row = 0; row < rows; row++) {
+            visitor.visit(studentColumn[row], courseColumn[row], termColumn[row], statusColumn[row],
+                    gradeColumn[row]);
+        }
+    }
+
+    /**
+     * Finds the students with a course in a given status in a given
+     * trimester, by scanning the course, term and status columns.
+     *
+     * @param course The ID of the course.
+     * @param term   The trimester.
+     * @param status The status.
+     * @return The indexes of the matching students, in ascending order.
+     */
+
+    public synchronized int[] findStudents(int course, int term, byte status) {
+        int[] matches = new int[16];
+        int count = 0;
+        short termValue = (short) term;
+        for (int row = 0; row < rows; row++) {
+            if (courseColumn[row] == course && termColumn[row] == termValue && statusColumn[row] == status) {
+                if (count == matches.length) {
+                    matches = Arrays.copyOf(matches, count * 2);
+                }
+                matches[count++] = studentColumn[row];
+            }
+        }
+        int[] students = Arrays.copyOf(matches, count);
+        Arrays.sort(students);
+        return students;
+    }
+
+    /**
+     * Gets the number of rows recorded.
+     *
+     * @return The number of rows.
+     */
+
+    public synchronized int size() {
+        return rows;
+    }
+
+    private int firstRow(int student) {
+        return student >= 0 && student < firstRowByStudent.length ? firstRowByStudent[student] : NO_ROW;
+    }
+}
+
+/**
+ * The {@code DegreePlanner} class searches for the shortest sequence of
+ * future trimesters that takes a student through a set of goal courses.
+ * A schedule is feasible when every course comes after its prerequisites,
+ * every trimester stays within the credit band of the catalog's rules, and
+ * every course's own requirements, such as a minimum of completed credits, are
+ * met by the courses completed before it. The search is a depth-first search
+ * over completion states, memoized on the completed-course bitset, that only
+ * tries trimesters no further course would fit into, and stops as soon as a
+ * schedule reaches the lower bound of the remaining credits and prerequisite
+ * chain. Whole cohorts are planned in parallel on a fork-join pool.
+ */
+
+class DegreePlanner {
+    /**
+     * Completion states searched per student before giving up.
+     */
+    private static final int MAX_STATES = 200_000;
+    /**
+     * Candidate trimesters tried from one completion state.
+     */
+    private static final int MAX_CANDIDATES = 4096;
+    /**
+     * Students planned by one fork-join task before it stops splitting.
+     */
+    private static final int COHORT_SPLIT_THRESHOLD = 64;
+
+    private final PrerequisiteGraph graph;
+    private final EnrollmentEngine engine;
+    private final ForkJoinPool pool;
+
+    /**
+     * Constructor for DegreePlanner, using the common fork-join pool.
+     *
+     * @param graph The prerequisite graph of the catalog.
+     */
+
+    public DegreePlanner(PrerequisiteGraph graph) {
+        this(graph, null, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Constructor for DegreePlanner, using the common fork-join pool.
+     *
+     * @param graph  The prerequisite graph of the catalog.
+     * @param engine The engine whose student locks guard the records read,
+     *               or {@code null} to read them without locking.
+     */
+
+    public DegreePlanner(PrerequisiteGraph graph, EnrollmentEngine engine) {
+        this(graph, engine, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Constructor for DegreePlanner.
+     *
+     * @param graph  The prerequisite graph of the catalog.
+     * @param engine The engine whose student locks guard the records read,
+     *               or {@code null} to read them without locking.
+     * @param pool   The pool cohorts are planned on.
+     */
+
+    public DegreePlanner(PrerequisiteGraph graph, EnrollmentEngine engine, ForkJoinPool pool) {
+        this.graph = graph;
+        this.engine = engine;
+        this.pool = pool;
+    }
+
+    /**
+     * Plans a student's path to a set of goal courses. Courses the student is
+     * taking now are assumed to be completed this trimester, so the plan
+     * starts in the next one.
+     *
+     * @param student The student to plan for.
+     * @param goals   The courses the student wants to complete.
+     * @return The courses to take in each future trimester, or {@code null}
+     *         if no feasible schedule was found.
+     */
+
+    public List<List<Course>> plan(Student student, Collection<Course> goals) {
+        CourseSet done = new CourseSet();
+        int[] credits = new int[1];
+        Runnable read = () -> {
+            done.addAll(student.getCompletedCourseSet());
+            credits[0] = student.getCompletedCredits();
+            for (Course course : student.getRegisteredCourses()) {
+                done.add(course.getId());
+                credits[0] += course.getCredits();
+            }
+        };
+        if (engine == null) {
+            read.run();
+        } else {
+            engine.update(student, read);
+        }
+
+        CourseSet required = new CourseSet();
+        for (Course goal : goals) {
+            if (goal.getId() < 0) {
+                return null;
+            }
+            required.add(goal.getId());
+            required.addAll(graph.requirementsOf(goal.getId()));
+        }
+
+        List<CourseSet> terms = new Search(required).solve(done, credits[0]);
+        if (terms == null) {
+            return null;
+        }
+
+        List<List<Course>> schedule = new ArrayList<>(terms.size());
+        for (CourseSet term : terms) {
+            List<Course> courses = new ArrayList<>();
+            for (int id = term.nextSetBit(0); id >= 0; id = term.nextSetBit(id + 1)) {
+                courses.add(graph.courseAt(id));
+            }
+            schedule.add(courses);
+        }
+        return schedule;
+    }
+
+    /**
+     * Plans every student of a cohort towards the same goals in parallel.
+     *
+     * @param students The students to plan for.
+     * @param goals    The courses every student wants to complete.
+     * @return The schedule of each student for whom a feasible one was found.
+     */
+
+    public Map<Student, List<List<Course>>> planCohort(List<Student> students, Collection<Course> goals) {
+        Map<Student, List<List<Course>>> schedules = new ConcurrentHashMap<>();
+        pool.invoke(new CohortTask(students, 0, students.size(), goals, schedules));
+        return schedules;
+    }
+
+    /**
+     * Plans a range of a cohort, splitting it in halves until it is small.
+     */
+
+    private class CohortTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Student> students;
+        private final int from;
+        private final int to;
+        private final Collection<Course> goals;
+        private final Map<Student, List<List<Course>>> schedules;
+
+        CohortTask(List<Student> students, int from, int to, Collection<Course> goals,
+                Map<Student, List<List<Course>>> schedules) {
+            this.students = students;
+            this.from = from;
+            this.to = to;
+            this.goals = goals;
+            this.schedules = schedules;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= COHORT_SPLIT_THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    List<List<Course>> schedule = plan(students.get(i), goals);
+                    if (schedule != null) {
+                        schedules.put(students.get(i), schedule);
+                    }
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new CohortTask(students, from, middle, goals, schedules),
+                    new CohortTask(students, middle, to, goals, schedules));
+        }
+    }
+
+    /**
+     * One student's search. The completed credits follow from the completed
+     * set, so the set alone is the memo key.
+     */
+
+    private class Search {
+        private final List<CourseSet> infeasible = new ArrayList<>(0);
+        private final CourseSet required;
+        private final Course[] courses;
+        private final int[][] prerequisitePositions;
+        private final Map<CourseSet, List<CourseSet>> memo = new HashMap<>();
+        private final int minTermCredits;
+        private final int maxTermCredits;
+
+        Search(CourseSet required) {
+            this.required = required;
+            RegistrationRules rules = graph.getRules();
+            this.minTermCredits = rules.getMinTermCredits();
+            this.maxTermCredits = rules.getMaxTermCredits();
+            List<Integer> ids = new ArrayList<>();
+            for (int id : graph.topologicalOrder()) {
+                if (required.contains(id)) {
+                    ids.add(id);
+                }
+            }
+
+            this.courses = new Course[ids.size()];
+            this.prerequisitePositions = new int[ids.size()][];
+            for (int i = 0; i < courses.length; i++) {
+                courses[i] = graph.courseAt(ids.get(i));
+                CourseSet direct = graph.directPrerequisitesOf(ids.get(i));
+                int[] positions = new int[direct.size()];
+                int count = 0;
+                for (int j = 0; j < i; j++) {
+                    if (direct.contains(ids.get(j))) {
+                        positions[count++] = j;
+                    }
+                }
+                prerequisitePositions[i] = Arrays.copyOf(positions, count);
+            }
+        }
+
+        List<CourseSet> solve(CourseSet done, int credits) {
+            if (done.containsAll(required)) {
+                return new ArrayList<>();
+            }
+            List<CourseSet> cached = memo.get(done);
+            if (cached != null) {
+                return cached == infeasible ? null : cached;
+            }
+            if (memo.size() >= MAX_STATES) {
+                return null;
+            }
+
+            List<Integer> available = new ArrayList<>();
+            for (int i = 0; i < courses.length; i++) {
+                Course course = courses[i];
+                if (course != null && !done.contains(course.getId()) && course.meetsPrerequisites(done, credits)) {
+                    available.add(i);
+                }
+            }
+
+            int lowerBound = lowerBound(done);
+            List<CourseSet> best = null;
+            for (int[] term : candidateTerms(available)) {
+                CourseSet next = done.copy();
+                int nextCredits = credits;
+                CourseSet termSet = new CourseSet();
+                for (int position : term) {
+                    next.add(courses[position].getId());
+                    termSet.add(courses[position].getId());
+                    nextCredits += courses[position].getCredits();
+                }
+
+                List<CourseSet> rest = solve(next, nextCredits);
+                if (rest != null && (best == null || rest.size() + 1 < best.size())) {
+                    best = new ArrayList<>(rest.size() + 1);
+                    best.add(termSet);
+                    best.addAll(rest);
+                    if (best.size() <= lowerBound) {
+                        break;
+                    }
+                }
+            }
+
+            memo.put(done.copy(), best == null ? infeasible : best);
+            return best;
+        }
+
+        /**
+         * Finds the trimesters worth trying: sets of available courses within
+         * the credit band that no other available course fits into, most
+         * credits first.
+         */
+
+        private List<int[]> candidateTerms(List<Integer> available) {
+            List<int[]> candidates = new ArrayList<>();
+            collectTerms(available, 0, new int[available.size()], 0, 0, candidates);
+            candidates.sort((a, b) -> Integer.compare(creditsOf(b), creditsOf(a)));
+            return candidates;
+        }
+
+        private void collectTerms(List<Integer> available, int next, int[] chosen, int count, int credits,
+                List<int[]> candidates) {
+            if (candidates.size() >= MAX_CANDIDATES) {
+                return;
+            }
+            if (next == available.size()) {
+                if (credits >= minTermCredits && isMaximal(available, chosen, count, credits)) {
+                    candidates.add(Arrays.copyOf(chosen, count));
+                }
+                return;
+            }
+
+            int position = available.get(next);
+            int withCourse = credits + courses[position].getCredits();
+            if (withCourse <= maxTermCredits) {
+                chosen[count] = position;
+                collectTerms(available, next + 1, chosen, count + 1, withCourse, candidates);
+            }
+            collectTerms(available, next + 1, chosen, count, credits, candidates);
+        }
+
+        private boolean isMaximal(List<Integer> available, int[] chosen, int count, int credits) {
+            int room = maxTermCredits - credits;
+            int c = 0;
+            for (int position : available) {
+                if (c < count && chosen[c] == position) {
+                    c++;
+                } else if (courses[position].getCredits() <= room) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int creditsOf(int[] term) {
+            int credits = 0;
+            for (int position : term) {
+                credits += courses[position].getCredits();
+            }
+            return credits;
+        }
+
+        /**
+         * The larger of the trimesters needed for the remaining credits and the
+         * length of the longest remaining prerequisite chain.
+         */
+
+        private int lowerBound(CourseSet done) {
+            int remainingCredits = 0;
+            int longestChain = 0;
+            int[] chain = new int[courses.length];
+            for (int i = 0; i < courses.length; i++) {
+                if (courses[i] == null || done.contains(courses[i].getId())) {
+                    continue;
+                }
+                remainingCredits += courses[i].getCredits();
+                int length = 1;
+                for (int position : prerequisitePositions[i]) {
+                    length = Math.max(length, chain[position] + 1);
+                }
+                chain[i] = length;
+                longestChain = Math.max(longestChain, length);
+            }
+            int byCredits = remainingCredits / maxTermCredits + (remainingCredits % maxTermCredits == 0 ? 0 : 1);
+            return Math.max(byCredits, longestChain);
+        }
+    }
+}
+
+/**
+ * The {@code StudentRecordStore} class keeps students in a memory-mapped file
+ * of fixed-size records, so that a registry can start without building a
+ * single {@link Student}.
+ * A record holds the username, the packed password hash and up to
+ * {@link #MAX_ENTRIES} rows of academic history; course codes are stored once,
+ * in a table in the file header. Rows beyond that, or whose course code no
+ * longer fits in the table, continue in a chain of blocks in an overflow file
+ * next to the record file, so a history is never cut short. Opening the file
+ * only builds an index from username to record, with one pass over the names.
+ * A student is hydrated from its record the first time it is looked up and
+ * kept in a bounded LRU cache. Evicting a student drops only the object:
+ * students that are still referenced, by a session for instance, are found
+ * again through weak references, so there is never more than one object per
+ * record. Lookups take no lock on the store; records are read and written
+ * under striped locks, and scans over every record hydrate students without
+ * promoting them into the cache.
+ * Changes are written back at checkpoints, in two steps around the snapshot:
+ * {@link #prepareCheckpoint()} saves the rows to write in a pending file under
+ * a new generation, which the snapshot then records, and
+ * {@link #finishCheckpoint()} writes them to the records. Recovery redoes a
+ * pending file whose generation the snapshot reached and discards one it did
+ * not, so the file and the snapshot describe the same moment and the journal
+ * replays on top of both. Students changed since the last checkpoint stay
+ * pinned in memory until then.
+ */
+
+class StudentRecordStore implements Closeable {
+    private static final int MAGIC = 0x53524543;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 1 << 16;
+    private static final int CODES_OFFSET = 16;
+
+    private static final int RECORD_BYTES = 512;
+    private static final int NAME_OFFSET = 0;
+    private static final int HASH_OFFSET = 64;
+    private static final int FIELD_BYTES = 63;
+    private static final int ENTRY_COUNT_OFFSET = 128;
+    private static final int CHAIN_OFFSET = 132;
+    private static final int ENTRIES_OFFSET = 136;
+    private static final int ENTRY_BYTES = 8;
+    static final int MAX_ENTRIES = (RECORD_BYTES - ENTRIES_OFFSET) / ENTRY_BYTES;
+    private static final int SEGMENT_RECORDS = 1 << 14;
+
+    /**
+     * The overflow file starts with a block holding its magic number and the
+     * generation of the last checkpoint; every other block holds the next
+     * block of its chain, 0 at the end, and the number of bytes of rows it
+     * carries.
+     */
+    private static final int OVERFLOW_MAGIC = 0x53524f56;
+    private static final int BLOCK_BYTES = 512;
+    private static final int BLOCK_HEADER_BYTES = 6;
+    private static final int PENDING_MAGIC = 0x53525044;
+    private static final int STRIPES = 64;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final FileChannel overflow;
+    private final MappedByteBuffer header;
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    private final List<String> codes = new CopyOnWriteArrayList<>();
+    private final Map<String, Integer> codeIds = new ConcurrentHashMap<>();
+    private int codesEnd;
+    private volatile int recordCount;
+    private volatile UsernameIndex index;
+    private volatile Map<String, BitSet> enrolledByCode;
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+
+    /**
+     * The blocks of the overflow file and those not in any chain. Blocks
+     * released by a checkpoint are only reused by the next one, so a
+     * checkpoint cut short never overwrites a chain the records still point
+     * to.
+     */
+    private int blockCount;
+    private final BitSet freeBlocks = new BitSet();
+
+    private volatile long generation;
+    private Map<Integer, List<Row>> pending;
+    private Map<Integer, Student> flushing = new LinkedHashMap<>();
+
+    private final LinkedHashMap<Integer, Student> recent;
+    private final Map<Integer, LiveStudent> live = new ConcurrentHashMap<>();
+    private final ReferenceQueue<Student> collected = new ReferenceQueue<>();
+    private final Map<Integer, Student> dirty = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private long evictions;
+
+    /**
+     * A weak reference to a hydrated student that remembers its record.
+     */
+
+    private static final class LiveStudent extends WeakReference<Student> {
+        final int record;
+
+        LiveStudent(Student student, int record, ReferenceQueue<Student> queue) {
+            super(student, queue);
+            this.record = record;
+        }
+    }
+
+    /**
+     * A history row on its way to a record, with its course by code.
+     */
+
+    private static final class Row {
+        final String code;
+        final int term;
+        final byte status;
+        final byte grade;
+
+        Row(String code, int term, byte status, byte grade) {
+            this.code = code;
+            this.term = term;
+            this.status = status;
+            this.grade = grade;
+        }
+    }
+
+    private interface RowVisitor {
+        void visit(String code, int term, byte status, byte grade);
+    }
+
+    private StudentRecordStore(Path path, FileChannel channel, FileChannel overflow, int cacheCapacity)
+            throws IOException {
+        this.path = path;
+        this.channel = channel;
+        this.overflow = overflow;
+        boolean fresh = channel.size() == 0;
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        if (fresh) {
+            header.putInt(0, MAGIC);
+            header.putInt(4, VERSION);
+        } else if (header.getInt(0) != MAGIC) {
+            throw new IOException("Not a student record file");
+        } else if (header.getInt(4) != VERSION) {
+            throw new IOException("Unsupported student record version " + header.getInt(4));
+        }
+
+        if (overflow.size() == 0) {
+            ByteBuffer block = ByteBuffer.allocate(BLOCK_BYTES);
+            block.putInt(0, OVERFLOW_MAGIC);
+            writeFully(overflow, block, 0);
+        } else if (readFully(overflow, 0, 12).getInt(0) != OVERFLOW_MAGIC) {
+            throw new IOException("Not a student overflow file");
+        }
+        this.generation = readFully(overflow, 4, 8).getLong(0);
+        this.blockCount = (int) Math.max(1, (overflow.size() + BLOCK_BYTES - 1) / BLOCK_BYTES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+
+        int codeCount = header.getInt(12);
+        List<String> table = new ArrayList<>(codeCount);
+        int at = CODES_OFFSET;
+        for (int id = 0; id < codeCount; id++) {
+            byte[] code = new byte[header.get(at) & 0xFF];
+            header.get(at + 1, code);
+            table.add(new String(code, StandardCharsets.UTF_8));
+            codeIds.put(table.get(id), id);
+            at += 1 + code.length;
+        }
+        codes.addAll(table);
+        this.codesEnd = at;
+
+        this.recordCount = header.getInt(8);
+        while ((long) segments.length * SEGMENT_RECORDS < recordCount) {
+            mapSegment();
+        }
+        int slots = 16;
+        while (slots < recordCount * 2) {
+            slots *= 2;
+        }
+        UsernameIndex names = new UsernameIndex(slots);
+        byte[] name = new byte[FIELD_BYTES];
+        for (int record = 0; record < recordCount; record++) {
+            ByteBuffer segment = segmentOf(record);
+            int base = baseOf(record);
+            int length = segment.get(base + NAME_OFFSET) & 0xFF;
+            segment.get(base + NAME_OFFSET + 1, name, 0, length);
+            names.place(hashOf(name, length), record + 1);
+        }
+        this.index = names;
+        scanRecords();
+
+        this.recent = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Student> eldest) {
+                if (size() > cacheCapacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Opens a record file, creating it and its overflow file if they do not
+     * exist.
+     *
+     * @param path          The record file.
+     * @param cacheCapacity The number of hydrated students kept in the cache.
+     * @return The store.
+     * @throws IOException If the file cannot be opened or is not a record file.
+     */
+
+    public static StudentRecordStore open(Path path, int cacheCapacity) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        FileChannel overflow = null;
+        try {
+            overflow = FileChannel.open(siblingOf(path, ".overflow"), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return new StudentRecordStore(path, channel, overflow, cacheCapacity);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            if (overflow != null) {
+                overflow.close();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the number of students in the store.
+     *
+     * @return The number of records.
+     */
+
+    public int size() {
+        return recordCount;
+    }
+
+    /**
+     * Gets the students registered for a course when the store was opened,
+     * from the rows of every record.
+     *
+     * @param courseCode The course code.
+     * @return The records of the students taking the course.
+     */
+
+    RosterSet enrolledAtOpen(String courseCode) {
+        BitSet enrolled = enrolledByCode.get(courseCode);
+        return enrolled == null ? RosterSet.EMPTY : RosterSet.of(enrolled);
+    }
+
+    /**
+     * Finds a student by username, hydrating it if it is not in memory.
+     *
+     * @param username The username.
+     * @param registry The registry whose courses the history refers to.
+     * @return The student, or {@code null} if no student has that username.
+     */
+
+    public Student find(String username, Registry registry) {
+        int record = recordOf(username.getBytes(StandardCharsets.UTF_8));
+        return record < 0 ? null : hydrate(record, registry, true);
+    }
+
+    /**
+     * Gets the student of a record, hydrating it if it is not in memory.
+     *
+     * @param record   The record.
+     * @param registry The registry whose courses the history refers to.
+     * @return The student.
+     */
+
+    public Student get(int record, Registry registry) {
+        return hydrate(record, registry, true);
+    }
+
+    /**
+     * Adds a new student. The student's username and password hash are
+     * written at once, so the username stays taken; its history is written at
+     * the next checkpoint.
+     *
+     * @param student  The student.
+     * @param registry The registry the student joins.
+     * @return True if the student was added, false if the username is already taken.
+     * @throws IllegalArgumentException If the username or hash is too long for a record.
+     */
+
+    public synchronized boolean add(Student student, Registry registry) {
+        byte[] name = student.getUsername().getBytes(StandardCharsets.UTF_8);
+        if (recordOf(name) >= 0) {
+            return false;
+        }
+        byte[] hash = PasswordHasher.pack(student.getPasswordHash());
+        if (name.length > FIELD_BYTES || hash.length > FIELD_BYTES) {
+            throw new IllegalArgumentException("Credentials of " + student.getUsername() + " do not fit in a record");
+        }
+
+        int record = recordCount;
+        if (record == segments.length * SEGMENT_RECORDS) {
+            try {
+                mapSegment();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        ByteBuffer segment = segmentOf(record);
+        int base = baseOf(record);
+        segment.put(base + NAME_OFFSET, (byte) name.length);
+        segment.put(base + NAME_OFFSET + 1, name);
+        segment.put(base + HASH_OFFSET, (byte) hash.length);
+        segment.put(base + HASH_OFFSET + 1, hash);
+        segment.putShort(base + ENTRY_COUNT_OFFSET, (short) 0);
+        segment.putInt(base + CHAIN_OFFSET, 0);
+        recordCount = record + 1;
+        header.putInt(8, record + 1);
+        UsernameIndex names = index;
+        if ((record + 1) * 2 > names.rows.length()) {
+            names = names.grown();
+            index = names;
+        }
+        names.place(hashOf(name, name.length), record + 1);
+
+        StudentTable table = StudentTable.forRecord(registry.getPrerequisiteGraph(), this, record);
+        int term = registry.getCurrentTerm();
+        table.add(student, term);
+        // Courses the student already had get a row each, so the record keeps them.
+        byte[] statuses = { AcademicHistory.COMPLETED, AcademicHistory.CURRENT, AcademicHistory.PLANNED };
+        int[] sets = { StudentTable.COMPLETED, StudentTable.CURRENT, StudentTable.PLANNED };
+        for (int i = 0; i < sets.length; i++) {
+            CourseSet courses = table.courseSet(sets[i], 0);
+            for (int id = courses.nextSetBit(0); id >= 0; id = courses.nextSetBit(id + 1)) {
+                table.getHistory().append(0, id, term, statuses[i], AcademicHistory.NO_GRADE);
+            }
+        }
+        remember(record, student, true);
+        if (table.getHistory().size() > 0) {
+            dirty.put(record, student);
+        }
+        return true;
+    }
+
+    /**
+     * Notes that a hydrated student changed, so that it is kept in memory and
+     * written back at the next checkpoint.
+     *
+     * @param record  The student's record.
+     * @param student The student.
+     */
+
+    void markDirty(int record, Student student) {
+        dirty.put(record, student);
+    }
+
+    /**
+     * Gets the students currently in memory, whether cached, pinned or still
+     * referenced elsewhere.
+     *
+     * @return The students.
+     */
+
+    List<Student> liveStudents() {
+        expunge();
+        List<Student> result = new ArrayList<>(live.size());
+        for (LiveStudent reference : live.values()) {
+            Student student = reference.get();
+            if (student != null) {
+                result.add(student);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets a read-only list of every student, in record order. Reading an
+     * element hydrates that student without adding it to the cache, so a
+     * pass over the list does not evict the students in use; reading a
+     * username only reads the record's name.
+     *
+     * @param registry The registry whose courses the history refers to.
+     * @return The list.
+     */
+
+    StudentList asList(Registry registry) {
+        class Students extends StudentList {
+            @Override
+            public Student get(int index) {
+                if (index < 0 || index >= size()) {
+                    throw new IndexOutOfBoundsException("Record " + index + " of " + size());
+                }
+                return hydrate(index, registry, false);
+            }
+
+            @Override
+            String usernameAt(int index) {
+                if (index < 0 || index >= size()) {
+                    throw new IndexOutOfBoundsException("Record " + index + " of " + size());
+                }
+                ByteBuffer segment = segmentOf(index);
+                int base = baseOf(index);
+                byte[] name = new byte[segment.get(base + NAME_OFFSET) & 0xFF];
+                segment.get(base + NAME_OFFSET + 1, name);
+                return new String(name, StandardCharsets.UTF_8);
+            }
+
+            @Override
+            public int size() {
+                return StudentRecordStore.this.size();
+            }
+        }
+        return new Students();
+    }
+
+    /**
+     * Finds the students with a history row for a course, with a scan of the
+     * records. Students in memory are checked against their own history,
+     * which may be newer than their record; only matching students are
+     * hydrated, and they are not added to the cache.
+     *
+     * @param registry The registry whose courses the history refers to.
+     * @param course   The course.
+     * @param term     The trimester of the row, or -1 for any trimester.
+     * @param status   The status of the row, one of the {@link AcademicHistory}
+     *                 constants.
+     * @return The matching students, in record order.
+     */
+
+    List<Student> studentsWith(Registry registry, Course course, int term, byte status) {
+        List<Student> result = new ArrayList<>();
+        String code = course.getcourseCode();
+        int count = recordCount;
+        for (int record = 0; record < count; record++) {
+            LiveStudent reference = live.get(record);
+            Student student = reference == null ? null : reference.get();
+            if (student != null) {
+                if (hasRow(student, course.getId(), term, status)) {
+                    result.add(student);
+                }
+            } else if (recordHasRow(record, code, term, status)) {
+                result.add(hydrate(record, registry, false));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes every student changed since the last checkpoint to its record
+     * and forces the file to disk, without a snapshot in between.
+     */
+
+    public synchronized void checkpoint() {
+        try {
+            prepareCheckpoint();
+            finishCheckpoint();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Starts a checkpoint: takes the rows of every student changed since the
+     * last one and forces them to a pending file under the next generation.
+     * A snapshot written after this records that generation.
+     *
+     * @return The generation of the checkpoint.
+     * @throws IOException If the pending file cannot be written.
+     */
+
+    public synchronized long prepareCheckpoint() throws IOException {
+        for (Integer record : dirty.keySet()) {
+            Student student = dirty.remove(record);
+            if (student != null) {
+                flushing.put(record, student);
+            }
+        }
+        if (flushing.isEmpty()) {
+            pending = null;
+            return generation;
+        }
+        Map<Integer, List<Row>> rows = new LinkedHashMap<>();
+        for (Map.Entry<Integer, Student> entry : flushing.entrySet()) {
+            rows.put(entry.getKey(), rowsOf(entry.getValue()));
+        }
+        long next = generation + 1;
+        Path file = siblingOf(path, ".pending");
+        Path temp = siblingOf(path, ".pending.tmp");
+        try (FileOutputStream stream = new FileOutputStream(temp.toFile());
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16))) {
+            out.writeInt(PENDING_MAGIC);
+            out.writeLong(next);
+            out.writeInt(rows.size());
+            for (Map.Entry<Integer, List<Row>> entry : rows.entrySet()) {
+                out.writeInt(entry.getKey());
+                writeRows(out, entry.getValue());
+            }
+            out.writeInt(PENDING_MAGIC);
+            out.flush();
+            stream.getFD().sync();
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        pending = rows;
+        generation = next;
+        return next;
+    }
+
+    /**
+     * Finishes the checkpoint started by {@link #prepareCheckpoint()}, once
+     * the snapshot of its generation is written: writes the rows to the
+     * records, forces both files and removes the pending file.
+     *
+     * @throws IOException If the files cannot be written.
+     */
+
+    public synchronized void finishCheckpoint() throws IOException {
+        if (pending != null) {
+            apply(pending, generation);
+            Files.deleteIfExists(siblingOf(path, ".pending"));
+            pending = null;
+        }
+        flushing = new LinkedHashMap<>();
+    }
+
+    /**
+     * Brings the records to the checkpoint a snapshot was written at, before
+     * the snapshot is read: a pending checkpoint of the snapshot's generation
+     * is written to the records, and any other is discarded.
+     *
+     * @param snapshotGeneration The generation of the snapshot, or -1 if there is none.
+     * @throws IOException If the pending file cannot be read, or the records
+     *                     belong to another checkpoint than the snapshot.
+     */
+
+    public synchronized void recover(long snapshotGeneration) throws IOException {
+        Path file = siblingOf(path, ".pending");
+        if (Files.exists(file)) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+                long pendingGeneration = in.readInt() == PENDING_MAGIC ? in.readLong() : -1;
+                if (pendingGeneration >= 0 && pendingGeneration == snapshotGeneration) {
+                    Map<Integer, List<Row>> rows = new LinkedHashMap<>();
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        rows.put(in.readInt(), readRows(in));
+                    }
+                    if (in.readInt() != PENDING_MAGIC) {
+                        throw new IOException("Pending student checkpoint is incomplete");
+                    }
+                    // The chains of these records may be half written: drop them before reusing their blocks.
+                    for (int record : rows.keySet()) {
+                        segmentOf(record).putInt(baseOf(record) + CHAIN_OFFSET, 0);
+                    }
+                    scanRecords();
+                    apply(rows, pendingGeneration);
+                    generation = pendingGeneration;
+                }
+            }
+            Files.delete(file);
+        }
+        if (snapshotGeneration >= 0 && snapshotGeneration != generation) {
+            throw new IOException("Student records are at checkpoint " + generation + " but the snapshot is at "
+                    + snapshotGeneration);
+        }
+        scanRecords();
+    }
+
+    /**
+     * Gets the generation of the last checkpoint started.
+     *
+     * @return The generation, 0 before the first checkpoint.
+     */
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public long getCacheHits() {
+        return hits.get();
+    }
+
+    public long getCacheMisses() {
+        return misses.get();
+    }
+
+    public long getCacheEvictions() {
+        synchronized (recent) {
+            return evictions;
+        }
+    }
+
+    public int getCachedCount() {
+        synchronized (recent) {
+            return recent.size();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            checkpoint();
+        } finally {
+            channel.close();
+            overflow.close();
+        }
+    }
+
+    /**
+     * Returns the student of a record from memory, or builds it from the
+     * record under the record's stripe: a fresh student in a table of its
+     * own, starting in the registry's current trimester, with its history
+     * rows applied.
+     *
+     * @param cache True to keep the student in the cache, false to only
+     *              remember it while it is referenced.
+     */
+
+    private Student hydrate(int record, Registry registry, boolean cache) {
+        Student student = inMemory(record, cache);
+        if (student != null) {
+            hits.incrementAndGet();
+            return student;
+        }
+        ReentrantLock stripe = stripeOf(record);
+        stripe.lock();
+        try {
+            student = inMemory(record, cache);
+            if (student != null) {
+                hits.incrementAndGet();
+                return student;
+            }
+
+            long start = Metrics.HYDRATE_STUDENT.start();
+            misses.incrementAndGet();
+            ByteBuffer segment = segmentOf(record);
+            int base = baseOf(record);
+            byte[] name = new byte[segment.get(base + NAME_OFFSET) & 0xFF];
+            segment.get(base + NAME_OFFSET + 1, name);
+            byte[] hash = new byte[segment.get(base + HASH_OFFSET) & 0xFF];
+            segment.get(base + HASH_OFFSET + 1, hash);
+            Student hydrated = new Student(new String(name, StandardCharsets.UTF_8), PasswordHasher.unpack(hash),
+                    true);
+            StudentTable.forRecord(registry.getPrerequisiteGraph(), this, record).add(hydrated,
+                    registry.getCurrentTerm());
+            forEachRow(record, null, (code, term, status, grade) -> {
+                Course course = registry.findCourse(code);
+                if (course != null) {
+                    hydrated.loadHistoryRow(course, term, status, grade);
+                }
+            });
+            remember(record, hydrated, cache);
+            Metrics.HYDRATE_STUDENT.success(start);
+            return hydrated;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    private Student inMemory(int record, boolean cache) {
+        if (cache) {
+            synchronized (recent) {
+                Student student = recent.get(record);
+                if (student != null) {
+                    return student;
+                }
+            }
+        }
+        LiveStudent reference = live.get(record);
+        Student student = reference == null ? null : reference.get();
+        if (student != null && cache) {
+            synchronized (recent) {
+                recent.put(record, student);
+            }
+        }
+        return student;
+    }
+
+    private void remember(int record, Student student, boolean cache) {
+        expunge();
+        live.put(record, new LiveStudent(student, record, collected));
+        if (cache) {
+            synchronized (recent) {
+                recent.put(record, student);
+            }
+        }
+    }
+
+    /**
+     * Forgets the students that have been garbage collected.
+     */
+
+    private void expunge() {
+        for (Reference<? extends Student> reference = collected.poll(); reference != null;
+                reference = collected.poll()) {
+            LiveStudent gone = (LiveStudent) reference;
+            live.remove(gone.record, gone);
+        }
+    }
+
+    private ReentrantLock stripeOf(int record) {
+        return stripes[record & (STRIPES - 1)];
+    }
+
+    /**
+     * Gets a student's history rows, in the order they were appended.
+     */
+
+    private static List<Row> rowsOf(Student student) {
+        StudentTable table = student.getTable();
+        PrerequisiteGraph catalog = table.getCatalog();
+        List<Row> rows = new ArrayList<>();
+        table.getHistory().forEachRowOf(0, (row, course, term, status, grade) -> {
+            String code = catalog == null ? null : catalog.codeOf(course);
+            if (code != null) {
+                rows.add(new Row(code, term, status, grade));
+            }
+        });
+        return rows;
+    }
+
+    /**
+     * Writes rows to their records under the records' stripes, forces the
+     * files and then records the generation in the overflow file.
+     */
+
+    private void apply(Map<Integer, List<Row>> rows, long checkpoint) throws IOException {
+        BitSet released = new BitSet();
+        for (Map.Entry<Integer, List<Row>> entry : rows.entrySet()) {
+            ReentrantLock stripe = stripeOf(entry.getKey());
+            stripe.lock();
+            try {
+                write(entry.getKey(), entry.getValue(), released);
+            } finally {
+                stripe.unlock();
+            }
+        }
+        header.putInt(12, codes.size());
+        header.force();
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+        overflow.force(true);
+        ByteBuffer marker = ByteBuffer.allocate(8);
+        marker.putLong(0, checkpoint);
+        writeFully(overflow, marker, 4);
+        overflow.force(true);
+        freeBlocks.or(released);
+    }
+
+    /**
+     * Writes a student's history rows to its record. The rows fill the record
+     * in order until one does not fit, either because the record is full or
+     * because its code cannot be added to the table; that row and every row
+     * after it go to a new overflow chain. The blocks of the old chain are
+     * added to the released set.
+     */
+
+    private void write(int record, List<Row> rows, BitSet released) throws IOException {
+        ByteBuffer segment = segmentOf(record);
+        int base = baseOf(record);
+        int inRecord = 0;
+        while (inRecord < rows.size() && inRecord < MAX_ENTRIES) {
+            Row row = rows.get(inRecord);
+            int code = codeIdOf(row.code);
+            if (code < 0) {
+                break;
+            }
+            int offset = base + ENTRIES_OFFSET + inRecord * ENTRY_BYTES;
+            segment.putShort(offset, (short) code);
+            segment.putShort(offset + 2, (short) row.term);
+            segment.put(offset + 4, row.status);
+            segment.put(offset + 5, row.grade);
+            inRecord++;
+        }
+        int chain = inRecord < rows.size() ? writeChain(rows.subList(inRecord, rows.size())) : 0;
+        int block = segment.getInt(base + CHAIN_OFFSET);
+        for (int hops = 0; block > 0 && block < blockCount && hops < blockCount; hops++) {
+            released.set(block);
+            block = readFully(overflow, (long) block * BLOCK_BYTES, 4).getInt(0);
+        }
+        segment.putShort(base + ENTRY_COUNT_OFFSET, (short) inRecord);
+        segment.putInt(base + CHAIN_OFFSET, chain);
+    }
+
+    /**
+     * Writes rows to a new chain of free blocks.
+     *
+     * @return The first block of the chain.
+     */
+
+    private int writeChain(List<Row> rows) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeRows(new DataOutputStream(bytes), rows);
+        byte[] payload = bytes.toByteArray();
+        int perBlock = BLOCK_BYTES - BLOCK_HEADER_BYTES;
+        int[] blocks = new int[(payload.length + perBlock - 1) / perBlock];
+        for (int i = 0; i < blocks.length; i++) {
+            int block = freeBlocks.nextSetBit(1);
+            if (block < 0) {
+                block = blockCount++;
+            }
+            freeBlocks.clear(block);
+            blocks[i] = block;
+        }
+        for (int i = 0; i < blocks.length; i++) {
+            int length = Math.min(perBlock, payload.length - i * perBlock);
+            ByteBuffer block = ByteBuffer.allocate(BLOCK_BYTES);
+            block.putInt(i + 1 < blocks.length ? blocks[i + 1] : 0);
+            block.putShort((short) length);
+            block.put(payload, i * perBlock, length);
+            block.clear();
+            writeFully(overflow, block, (long) blocks[i] * BLOCK_BYTES);
+        }
+        return blocks[0];
+    }
+
+    /**
+     * Visits the rows of a record, then those of its overflow chain.
+     *
+     * @param used The set to add the blocks of the chain to, or {@code null}.
+     */
+
+    private void forEachRow(int record, BitSet used, RowVisitor visitor) throws IOException {
+        ByteBuffer segment = segmentOf(record);
+        int base = baseOf(record);
+        int entries = segment.getShort(base + ENTRY_COUNT_OFFSET) & 0xFFFF;
+        for (int entry = 0; entry < entries; entry++) {
+            int offset = base + ENTRIES_OFFSET + entry * ENTRY_BYTES;
+            visitor.visit(codes.get(segment.getShort(offset) & 0xFFFF), segment.getShort(offset + 2),
+                    segment.get(offset + 4), segment.get(offset + 5));
+        }
+        int chain = segment.getInt(base + CHAIN_OFFSET);
+        if (chain == 0) {
+            return;
+        }
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        for (int block = chain, hops = 0; block > 0 && block < blockCount && hops < blockCount; hops++) {
+            ByteBuffer buffer = readFully(overflow, (long) block * BLOCK_BYTES, BLOCK_BYTES);
+            int length = Math.min(buffer.getShort(4) & 0xFFFF, BLOCK_BYTES - BLOCK_HEADER_BYTES);
+            payload.write(buffer.array(), BLOCK_HEADER_BYTES, length);
+            if (used != null) {
+                used.set(block);
+            }
+            block = buffer.getInt(0);
+        }
+        for (Row row : readRows(new DataInputStream(new ByteArrayInputStream(payload.toByteArray())))) {
+            visitor.visit(row.code, row.term, row.status, row.grade);
+        }
+    }
+
+    /**
+     * Finds the blocks not in any chain and the students registered for
+     * each course, with a pass over every record.
+     */
+
+    private void scanRecords() throws IOException {
+        Map<String, BitSet> enrolled = new HashMap<>();
+        BitSet used = new BitSet();
+        for (int record = 0; record < recordCount; record++) {
+            int current = record;
+            forEachRow(record, used, (code, term, status, grade) -> {
+                if (status == AcademicHistory.CURRENT) {
+                    enrolled.computeIfAbsent(code, key -> new BitSet()).set(current);
+                }
+            });
+        }
+        freeBlocks.clear();
+        freeBlocks.set(1, blockCount);
+        freeBlocks.andNot(used);
+        enrolledByCode = enrolled;
+    }
+
+    private static void writeRows(DataOutputStream out, List<Row> rows) throws IOException {
+        out.writeInt(rows.size());
+        for (Row row : rows) {
+            out.writeUTF(row.code);
+            out.writeShort(row.term);
+            out.writeByte(row.status);
+            out.writeByte(row.grade);
+        }
+    }
+
+    private static List<Row> readRows(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<Row> rows = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            rows.add(new Row(in.readUTF(), in.readShort(), in.readByte(), in.readByte()));
+        }
+        return rows;
+    }
+
+    /**
+     * Gets the ID of a course code in the header table, adding it if needed.
+     *
+     * @return The ID, or -1 if the table is full.
+     */
+
+    private int codeIdOf(String courseCode) {
+        Integer id = codeIds.get(courseCode);
+        if (id != null) {
+            return id;
+        }
+        byte[] code = courseCode.getBytes(StandardCharsets.UTF_8);
+        if (code.length > 0xFF || codesEnd + 1 + code.length > HEADER_BYTES || codes.size() > 0xFFFF) {
+            return -1;
+        }
+        header.put(codesEnd, (byte) code.length);
+        header.put(codesEnd + 1, code);
+        codesEnd += 1 + code.length;
+        codes.add(courseCode);
+        codeIds.put(courseCode, codes.size() - 1);
+        return codes.size() - 1;
+    }
+
+    private static boolean hasRow(Student student, int course, int term, byte status) {
+        boolean[] found = new boolean[1];
+        student.getTable().getHistory().forEachRowOf(0, (row, rowCourse, rowTerm, rowStatus, grade) -> {
+            if (rowCourse == course && rowStatus == status && (term < 0 || rowTerm == term)) {
+                found[0] = true;
+            }
+        });
+        return found[0];
+    }
+
+    private boolean recordHasRow(int record, String courseCode, int term, byte status) {
+        boolean[] found = new boolean[1];
+        ReentrantLock stripe = stripeOf(record);
+        stripe.lock();
+        try {
+            forEachRow(record, null, (code, rowTerm, rowStatus, grade) -> {
+                if (rowStatus == status && (term < 0 || rowTerm == term) && code.equals(courseCode)) {
+                    found[0] = true;
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            stripe.unlock();
+        }
+        return found[0];
+    }
+
+    private void mapSegment() throws IOException {
+        MappedByteBuffer[] current = segments;
+        long position = HEADER_BYTES + (long) current.length * SEGMENT_RECORDS * RECORD_BYTES;
+        MappedByteBuffer[] grown = Arrays.copyOf(current, current.length + 1);
+        grown[current.length] = channel.map(FileChannel.MapMode.READ_WRITE, position,
+                (long) SEGMENT_RECORDS * RECORD_BYTES);
+        segments = grown;
+    }
+
+    private ByteBuffer segmentOf(int record) {
+        return segments[record / SEGMENT_RECORDS];
+    }
+
+    private static int baseOf(int record) {
+        return (record % SEGMENT_RECORDS) * RECORD_BYTES;
+    }
+
+    private int recordOf(byte[] name) {
+        int hash = hashOf(name, name.length);
+        UsernameIndex names = index;
+        int mask = names.rows.length() - 1;
+        for (int slot = UsernameIndex.mix(hash) & mask, entry; (entry = names.rows.get(slot)) != 0;
+                slot = (slot + 1) & mask) {
+            int record = entry - 1;
+            if (names.hashes.get(slot) == hash && nameEquals(record, name)) {
+                return record;
+            }
+        }
+        return -1;
+    }
+
+    private boolean nameEquals(int record, byte[] name) {
+        ByteBuffer segment = segmentOf(record);
+        int base = baseOf(record) + NAME_OFFSET;
+        if ((segment.get(base) & 0xFF) != name.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (segment.get(base + 1 + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Path siblingOf(Path path, String suffix) {
+        return path.resolveSibling(path.getFileName() + suffix);
+    }
+
+    private static ByteBuffer readFully(FileChannel file, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        int read = 0;
+        while (buffer.hasRemaining() && read >= 0) {
+            read = file.read(buffer, position + buffer.position());
+        }
+        return buffer;
+    }
+
+    private static void writeFully(FileChannel file, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            file.write(buffer, position + buffer.position());
+        }
+    }
+
+    private static int hashOf(byte[] name, int length) {
+        int hash = 1;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + name[i];
+        }
+        return hash;
+    }
+}
+
+/**
+ * The {@code UsernameIndex} class is an open-addressing index from the hash
+ * of a username to a row + 1, shared by the student table and the record
+ * file. A slot's hash is stored before its row, so a reader that sees the
+ * row sees the hash; a full index is replaced by a larger one rather than
+ * rehashed in place. Lookups take no lock; places need a single writer.
+ */
+
+class UsernameIndex {
+    final AtomicIntegerArray rows;
+    final AtomicIntegerArray hashes;
+
+    /**
+     * Constructor for UsernameIndex.
+     *
+     * @param capacity The number of slots, a power of two.
+     */
+
+    UsernameIndex(int capacity) {
+        this.rows = new AtomicIntegerArray(capacity);
+        this.hashes = new AtomicIntegerArray(capacity);
+    }
+
+    void place(int hash, int entry) {
+        int mask = rows.length() - 1;
+        int slot = mix(hash) & mask;
+        while (rows.get(slot) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        hashes.set(slot, hash);
+        rows.set(slot, entry);
+    }
+
+    /**
+     * Copies the index into one twice its size.
+     *
+     * @return The larger index.
+     */
+
+    UsernameIndex grown() {
+        UsernameIndex grown = new UsernameIndex(rows.length() * 2);
+        for (int slot = 0; slot < rows.length(); slot++) {
+            if (rows.get(slot) != 0) {
+                grown.place(hashes.get(slot), rows.get(slot));
+            }
+        }
+        return grown;
+    }
+
+    static int mix(int hash) {
+        return hash * 0x9E3779B9 ^ hash >>> 16;
+    }
+}
+
+/**
+ * The {@code StudentTable} class stores the records of students as parallel
+ * primitive columns indexed by the student's row, so that a registry of a
+ * million students is a few hundred arrays rather than millions of small
+ * objects.
+ * Each column is split into fixed-size chunks that never move once allocated:
+ * growing the table only adds chunks, so rows can be read and written without
+ * copying while other rows are added. Course sets are kept as one column of
+ * 64-bit words per word of course IDs, allocated per chunk only once a row of
+ * the chunk uses it. Columns are atomic arrays, so a row read on one thread
+ * while another changes it sees each value whole, and a chunk or column is
+ * only published once it is complete.
+ * In classic mode the table also keeps the {@link Student} object of every
+ * row. In compact mode it keeps no objects at all: usernames and packed
+ * password hashes go into a shared byte arena with a hash index on the
+ * username, and {@link #studentAt(int)} hands out short-lived views.
+ */
+
+class StudentTable {
+    static final int TRIMESTER = 0;
+    static final int TERM_CREDITS = 1;
+    static final int COMPLETED_CREDITS = 2;
+    private static final int CREDENTIALS = 3;
+    private static final int INT_COLUMNS = 4;
+
+    static final int COMPLETED = 0;
+    static final int CURRENT = 1;
+    static final int PLANNED = 2;
+    private static final int SETS = 3;
+
+    private static final int CHUNK_BITS = 12;
+    private static final int PAGE_BITS = 16;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final AtomicLongArray[] NO_WORDS = new AtomicLongArray[0];
+
+    private final int chunkBits;
+    private final int chunkMask;
+    private final boolean compact;
+    private final AcademicHistory history;
+    private final EligibilityMatrix eligibility;
+    private volatile PrerequisiteGraph catalog;
+    /**
+     * The record file a student hydrated from a {@link StudentRecordStore} is
+     * written back to, and its record there.
+     */
+    private StudentRecordStore records;
+    private int record;
+
+    /**
+     * Int columns, indexed by column and chunk, with an element per row
+     * within the chunk.
+     */
+    private volatile AtomicIntegerArray[][] ints;
+    /**
+     * Course set columns, indexed by {@link #slot(int, int)} of the set and
+     * chunk, then by word of course IDs, with an element per row within the
+     * chunk. A word column is {@code null} until a row of its chunk has a
+     * course of that word. The arrays of word columns are replaced, never
+     * changed, once published.
+     */
+    private volatile AtomicReferenceArray<AtomicLongArray[]> bits;
+    /**
+     * The student object of every row, in classic mode only.
+     */
+    private volatile Student[][] objects;
+    private volatile int chunks;
+    private volatile int size;
+
+    /**
+     * The credential arena of compact mode, and the index of its usernames.
+     */
+    private volatile byte[][] pages;
+    private int pageCount;
+    private int pageUsed;
+    private volatile UsernameIndex usernames;
+
+    /**
+     * Constructs an empty table for a registry.
+     *
+     * @param compact     True to keep no student objects and pack credentials.
+     * @param catalog     The catalog the course IDs refer to.
+     * @param history     The history the students' subjects are recorded in.
+     * @param eligibility The eligibility matrix kept up to date by the students.
+     */
+
+    StudentTable(boolean compact, PrerequisiteGraph catalog, AcademicHistory history, EligibilityMatrix eligibility) {
+        this(CHUNK_BITS, compact, catalog, history, eligibility);
+    }
+
+    private StudentTable(int chunkBits, boolean compact, PrerequisiteGraph catalog, AcademicHistory history,
+            EligibilityMatrix eligibility) {
+        this.chunkBits = chunkBits;
+        this.chunkMask = (1 << chunkBits) - 1;
+        this.compact = compact;
+        this.catalog = catalog;
+        this.history = history;
+        this.eligibility = eligibility;
+        this.ints = new AtomicIntegerArray[INT_COLUMNS][0];
+        this.bits = new AtomicReferenceArray<>(0);
+        this.objects = new Student[0][];
+        if (compact) {
+            this.pages = new byte[0][];
+            this.usernames = new UsernameIndex(16);
+        }
+    }
+
+    /**
+     * Creates a table holding the single record of a student that is not in a
+     * registry yet.
+     *
+     * @return The table, with row 0 allocated.
+     */
+
+    static StudentTable detached() {
+        StudentTable table = new StudentTable(0, false, null, null, null);
+        table.ensureChunk(0);
+        table.size = 1;
+        return table;
+    }
+
+    /**
+     * Creates a table for the single student of a record in a record file,
+     * with a history of its own. The student is added to it with
+     * {@link #add(Student, int)}.
+     *
+     * @param catalog The catalog the course IDs refer to.
+     * @param records The record file.
+     * @param record  The student's record.
+     * @return The empty table.
+     */
+
+    static StudentTable forRecord(PrerequisiteGraph catalog, StudentRecordStore records, int record) {
+        StudentTable table = new StudentTable(0, false, catalog, new AcademicHistory(8), null);
+        table.records = records;
+        table.record = record;
+        return table;
+    }
+
+    public boolean isCompact() {
+        return compact;
+    }
+
+    /**
+     * Checks whether the table holds a single student outside the registry's
+     * table, either not registered yet or hydrated from a record file.
+     *
+     * @return True for a table of one student.
+     */
+
+    boolean isDetached() {
+        return chunkBits == 0;
+    }
+
+    /**
+     * Notes that a student of the table changed, so that a hydrated student is
+     * written back to its record.
+     *
+     * @param student The student.
+     */
+
+    void changed(Student student) {
+        if (records != null) {
+            records.markDirty(record, student);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the roster key of a row (see {@link Student#getRosterKey()}).
+     *
+     * @param row The row.
+     * @return The key, or -1 for a student not in a registry.
+     */
+
+    int rosterKeyOf(int row) {
+        if (records != null) {
+            return record;
+        }
+        return isDetached() ? -1 : row;
+    }
+
+    PrerequisiteGraph getCatalog() {
+        return catalog;
+    }
+
+    /**
+     * Remembers the catalog of a course once a detached student touches one.
+     *
+     * @param catalog The catalog of the course, or {@code null}.
+     */
+
+    void noteCatalog(PrerequisiteGraph catalog) {
+        if (this.catalog == null) {
+            this.catalog = catalog;
+        }
+    }
+
+    AcademicHistory getHistory() {
+        return history;
+    }
+
+    EligibilityMatrix getEligibility() {
+        return eligibility;
+    }
+
+    /**
+     * Adds a student at the end of the table. The student's record is copied
+     * from its current table, and the student becomes a view of the new row.
+     *
+     * @param student The student.
+     * @param term    The trimester the student starts in.
+     * @return The row of the student.
+     */
+
+    synchronized int add(Student student, int term) {
+        int row = size;
+        ensureChunk(row >>> chunkBits);
+
+        StudentTable from = student.getTable();
+        int fromRow = student.getRow();
+        set(TERM_CREDITS, row, from.get(TERM_CREDITS, fromRow));
+        set(COMPLETED_CREDITS, row, from.get(COMPLETED_CREDITS, fromRow));
+        for (int set = 0; set < SETS; set++) {
+            CourseSet courses = from.courseSet(set, fromRow);
+            for (int id = courses.nextSetBit(0); id >= 0; id = courses.nextSetBit(id + 1)) {
+                addCourse(set, row, id);
+            }
+        }
+        set(TRIMESTER, row, term);
+
+        if (compact) {
+            set(CREDENTIALS, row, appendCredentials(student.getUsername(), student.getPasswordHash()));
+            index(student.getUsername(), row);
+        } else {
+            objects[row >>> chunkBits][row & chunkMask] = student;
+        }
+        size = row + 1;
+        student.moveTo(this, row);
+        return row;
+    }
+
+    /**
+     * Gets the student of a row.
+     *
+     * @param row The row.
+     * @return The student object in classic mode, or a new view in compact
+     *         mode.
+     */
+
+    Student studentAt(int row) {
+        if (compact) {
+            return new Student(this, row);
+        }
+        return objects[row >>> chunkBits][row & chunkMask];
+    }
+
+    /**
+     * Gets a read-only list of the students, in row order, backed by the
+     * table.
+     *
+     * @return The list.
+     */
+
+    StudentList asList() {
+        class Students extends StudentList {
+            @Override
+            public Student get(int index) {
+                if (index < 0 || index >= size) {
+                    throw new IndexOutOfBoundsException("Row " + index + " of " + size);
+                }
+                return studentAt(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        }
+        return new Students();
+    }
+
+    int get(int column, int row) {
+        return ints[column][row >>> chunkBits].get(row & chunkMask);
+    }
+
+    void set(int column, int row, int value) {
+        ints[column][row >>> chunkBits].set(row & chunkMask, value);
+    }
+
+    void add(int column, int row, int delta) {
+        ints[column][row >>> chunkBits].addAndGet(row & chunkMask, delta);
+    }
+
+    /**
+     * Adds a course to one of a row's course sets.
+     *
+     * @return True if the course was not in the set before.
+     */
+
+    boolean addCourse(int set, int row, int course) {
+        AtomicLongArray column = column(set, row >>> chunkBits, course >>> 6);
+        if (column == null) {
+            column = allocate(set, row >>> chunkBits, course >>> 6);
+        }
+        long bit = 1L << course;
+        long before = column.getAndAccumulate(row & chunkMask, bit, (word, mask) -> word | mask);
+        return (before & bit) == 0;
+    }
+
+    /**
+     * Removes a course from one of a row's course sets.
+     *
+     * @return True if the course was in the set before.
+     */
+
+    boolean removeCourse(int set, int row, int course) {
+        AtomicLongArray column = course < 0 ? null : column(set, row >>> chunkBits, course >>> 6);
+        if (column == null) {
+            return false;
+        }
+        long bit = 1L << course;
+        long before = column.getAndAccumulate(row & chunkMask, ~bit, (word, mask) -> word & mask);
+        return (before & bit) != 0;
+    }
+
+    boolean containsCourse(int set, int row, int course) {
+        AtomicLongArray column = course < 0 ? null : column(set, row >>> chunkBits, course >>> 6);
+        return column != null && (column.get(row & chunkMask) & 1L << course) != 0;
+    }
+
+    /**
+     * Checks whether one of a row's course sets holds every course of
+     * another set, without copying the row's set.
+     *
+     * @param set     The set of the row.
+     * @param row     The row.
+     * @param courses The courses to look for.
+     * @return True if every course is in the row's set.
+     */
+
+    boolean containsAllCourses(int set, int row, CourseSet courses) {
+        for (int id = courses.nextSetBit(0); id >= 0; id = courses.nextSetBit(id + 1)) {
+            if (!containsCourse(set, row, id)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int countCourses(int set, int row) {
+        int count = 0;
+        for (AtomicLongArray column : bits.get(slot(set, row >>> chunkBits))) {
+            if (column != null) {
+                count += Long.bitCount(column.get(row & chunkMask));
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Copies one of a row's course sets.
+     *
+     * @return The copy.
+     */
+
+    CourseSet courseSet(int set, int row) {
+        AtomicLongArray[] words = bits.get(slot(set, row >>> chunkBits));
+        long[] copy = new long[Math.max(1, words.length)];
+        for (int word = 0; word < words.length; word++) {
+            if (words[word] != null) {
+                copy[word] = words[word].get(row & chunkMask);
+            }
+        }
+        return CourseSet.of(copy);
+    }
+
+    /**
+     * Gets the position of a chunk of a course set in {@link #bits}.
+     */
+
+    private static int slot(int set, int chunk) {
+        return chunk * SETS + set;
+    }
+
+    /**
+     * Gets the column of one word of a course set within a chunk.
+     *
+     * @return The column, or {@code null} if no row of the chunk has ever had
+     *         a course of that word in the set.
+     */
+
+    private AtomicLongArray column(int set, int chunk, int word) {
+        AtomicLongArray[] words = bits.get(slot(set, chunk));
+        return word < words.length ? words[word] : null;
+    }
+
+    /**
+     * Allocates the column of one word of a course set within a chunk.
+     * Columns are only allocated where a course is added, so a course ID far
+     * above the others costs one column per chunk that uses it rather than a
+     * word for every course ID below it in every row.
+     */
+
+    private synchronized AtomicLongArray allocate(int set, int chunk, int word) {
+        int slot = slot(set, chunk);
+        AtomicLongArray[] words = bits.get(slot);
+        if (word < words.length && words[word] != null) {
+            return words[word];
+        }
+        AtomicLongArray[] grown = Arrays.copyOf(words, Math.max(words.length, word + 1));
+        grown[word] = new AtomicLongArray(chunkMask + 1);
+        bits.set(slot, grown);
+        return grown[word];
+    }
+
+    /**
+     * Allocates the chunks of every column up to a chunk index.
+     */
+
+    private synchronized void ensureChunk(int chunk) {
+        if (chunk < chunks) {
+            return;
+        }
+        int count = chunk + 1;
+        int rows = chunkMask + 1;
+        AtomicIntegerArray[][] newInts = new AtomicIntegerArray[INT_COLUMNS][];
+        for (int column = 0; column < INT_COLUMNS; column++) {
+            newInts[column] = Arrays.copyOf(ints[column], count);
+            for (int i = chunks; i < count; i++) {
+                newInts[column][i] = new AtomicIntegerArray(rows);
+            }
+        }
+        AtomicReferenceArray<AtomicLongArray[]> newBits = new AtomicReferenceArray<>(count * SETS);
+        for (int slot = 0; slot < count * SETS; slot++) {
+            newBits.set(slot, slot < chunks * SETS ? bits.get(slot) : NO_WORDS);
+        }
+        if (!compact) {
+            Student[][] newObjects = Arrays.copyOf(objects, count);
+            for (int i = chunks; i < count; i++) {
+                newObjects[i] = new Student[rows];
+            }
+            objects = newObjects;
+        }
+        ints = newInts;
+        bits = newBits;
+        chunks = count;
+    }
+
+    /**
+     * Finds the row of a username, in compact mode.
+     *
+     * @param username The username.
+     * @return The row, or -1 if no student has that username.
+     */
+
+    int find(String username) {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        int hash = Arrays.hashCode(name);
+        UsernameIndex index = usernames;
+        int mask = index.rows.length() - 1;
+        for (int slot = UsernameIndex.mix(hash) & mask, entry; (entry = index.rows.get(slot)) != 0;
+                slot = (slot + 1) & mask) {
+            int row = entry - 1;
+            if (index.hashes.get(slot) == hash && nameEquals(get(CREDENTIALS, row), name)) {
+                return row;
+            }
+        }
+        return -1;
+    }
+
+    String usernameOf(int row) {
+        int offset = get(CREDENTIALS, row);
+        byte[] page = pages[offset >>> PAGE_BITS];
+        int at = offset & (PAGE_SIZE - 1);
+        int length = readShort(page, at);
+        return new String(page, at + 2, length, StandardCharsets.UTF_8);
+    }
+
+    String passwordHashOf(int row) {
+        int offset = get(CREDENTIALS, row);
+        byte[] page = pages[offset >>> PAGE_BITS];
+        int at = offset & (PAGE_SIZE - 1);
+        at += 2 + readShort(page, at);
+        int length = readShort(page, at);
+        return PasswordHasher.unpack(Arrays.copyOfRange(page, at + 2, at + 2 + length));
+    }
+
+    private boolean nameEquals(int offset, byte[] name) {
+        byte[] page = pages[offset >>> PAGE_BITS];
+        int at = offset & (PAGE_SIZE - 1);
+        return readShort(page, at) == name.length
+                && Arrays.equals(page, at + 2, at + 2 + name.length, name, 0, name.length);
+    }
+
+    /**
+     * Appends a username and password hash to the arena. An entry never
+     * spans two pages.
+     *
+     * @return The offset of the entry.
+     */
+
+    private int appendCredentials(String username, String passwordHash) {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        byte[] hash = PasswordHasher.pack(passwordHash);
+        int length = 4 + name.length + hash.length;
+        if (name.length > 0xFFFF || hash.length > 0xFFFF || length > PAGE_SIZE) {
+            throw new IllegalArgumentException("Credentials of " + username + " are too long");
+        }
+        if (pageCount == 0 || pageUsed + length > PAGE_SIZE) {
+            byte[][] newPages = Arrays.copyOf(pages, pageCount + 1);
+            newPages[pageCount++] = new byte[PAGE_SIZE];
+            pages = newPages;
+            pageUsed = 0;
+        }
+        byte[] page = pages[pageCount - 1];
+        int at = pageUsed;
+        writeShort(page, at, name.length);
+        System.arraycopy(name, 0, page, at + 2, name.length);
+        writeShort(page, at + 2 + name.length, hash.length);
+        System.arraycopy(hash, 0, page, at + 4 + name.length, hash.length);
+        pageUsed += length;
+        return (pageCount - 1) << PAGE_BITS | at;
+    }
+
+    private void index(String username, int row) {
+        UsernameIndex index = usernames;
+        if ((size + 1) * 2 > index.rows.length()) {
+            usernames = index = index.grown();
+        }
+        index.place(Arrays.hashCode(username.getBytes(StandardCharsets.UTF_8)), row + 1);
+    }
+
+    private static int readShort(byte[] page, int at) {
+        return (page[at] & 0xFF) << 8 | page[at + 1] & 0xFF;
+    }
+
+    private static void writeShort(byte[] page, int at, int value) {
+        page[at] = (byte) (value >>> 8);
+        page[at + 1] = (byte) value;
+    }
+}
+
+/**
+ * The {@code Student} class represents a user with student privileges in a
+ * university system.
+ * It extends the {@link User} class, inheriting basic authentication
+ * functionality.
+ * This class includes features specific to students, such as course
+ * registration,
+ * viewing past, current, and future subjects, and checking credit limits.
+ * A student object is a view of one row of a {@link StudentTable}; two
+ * objects for the same row are equal and see the same record.
+ *
+ * @author [Salah]
+ * @version 1.0
+ * @since [18/02/2024]
+ */
+
+class Student extends User {
+    /**
+     * The table the student's record lives in, and the student's row in it.
+     * A student that is not in a registry yet has a table of its own.
+     */
+    private StudentTable table;
+    private int id;
+    /**
+     * The username of a view whose credentials are kept in the table, decoded
+     * on first use.
+     */
+    private String viewUsername;
+
+    /**
+     * Constructs a new {@code Student} object with the specified username and
+     * password, with an empty record of its own.
+     *
+     * @param username The username of the student.
+     * @param password The password of the student.
+     */
+
+    public Student(String username, String password) {
+        this(username, password, false);
+    }
+
+    /**
+     * Constructs a student with an empty record of its own.
+     *
+     * @param username The username of the student.
+     * @param password The password of the student.
+     * @param stored   True if the password was read back from storage.
+     */
+
+    Student(String username, String password, boolean stored) {
+        super(username, password, stored);
+        this.table = StudentTable.detached();
+        this.id = 0;
+    }
+
+    /**
+     * Constructs a view of a row of a compact table, whose credentials are
+     * kept in the table.
+     *
+     * @param table The table.
+     * @param id    The row of the student.
+     */
+
+    Student(StudentTable table, int id) {
+        super();
+        this.table = table;
+        this.id = id;
+    }
+
+    @Override
+    public String getUsername() {
+        String username = super.getUsername();
+        if (username == null) {
+            username = viewUsername;
+            if (username == null) {
+                username = table.usernameOf(id);
+                viewUsername = username;
+            }
+        }
+        return username;
+    }
+
+    @Override
+    public String getPasswordHash() {
+        String passwordHash = super.getPasswordHash();
+        return passwordHash != null ? passwordHash : table.passwordHashOf(id);
+    }
+
+    /**
+     * Returns the total number of credits registered in the current trimester.
+     * The total is kept up to date on every registration and drop.
+     *
+     * @return The total number of credits for registered courses.
+     */
+
+    public int getTotalCredits() {
+        return table.get(StudentTable.TERM_CREDITS, id);
+    }
+
+    /**
+     * Returns the number of credits registered in a trimester. Past
+     * trimesters are summed from the academic history.
+     *
+     * @param trimester The index of the trimester.
+     * @return The credits registered in that trimester.
+     */
+
+    public int getTrimesterCredits(int trimester) {
+        if (trimester == getTrimester()) {
+            return getTotalCredits();
+        }
+        AcademicHistory history = table.getHistory();
+        PrerequisiteGraph catalog = table.getCatalog();
+        if (history == null || catalog == null) {
+            return 0;
+        }
+        int[] credits = new int[1];
+        history.forEachRowOf(id, (student, course, term, status, grade) -> {
+            Course taken = catalog.courseAt(course);
+            if (term == trimester && taken != null
+                    && (status == AcademicHistory.CURRENT || status == AcademicHistory.COMPLETED)) {
+                credits[0] += taken.getCredits();
+            }
+        });
+        return credits[0];
+    }
+
+    /**
+     * Returns the cumulative number of credits of every completed course.
+     *
+     * @return The completed credits.
+     */
+
+    public int getCompletedCredits() {
+        return table.get(StudentTable.COMPLETED_CREDITS, id);
+    }
+
+    /**
+     * Gets the index of the trimester the student is currently in.
+     *
+     * @return The current trimester.
+     */
+
+    public int getTrimester() {
+        return table.get(StudentTable.TRIMESTER, id);
+    }
+
+    /**
+     * Moves the student to the next trimester. Courses still in progress carry
+     * their credits over to the new trimester.
+     */
+
+    public void advanceTrimester() {
+        int carriedCredits = 0;
+        for (Course course : getRegisteredCourses()) {
+            carriedCredits += course.getCredits();
+        }
+        table.add(StudentTable.TRIMESTER, id, 1);
+        table.set(StudentTable.TERM_CREDITS, id, carriedCredits);
+    }
+
+    /**
+     * Points the student at its row in another table, once the record has
+     * been copied there.
+     *
+     * @param table The table.
+     * @param id    The student's row in it.
+     */
+
+    void moveTo(StudentTable table, int id) {
+        this.table = table;
+        this.id = id;
+    }
+
+    StudentTable getTable() {
+        return table;
+    }
+
+    int getRow() {
+        return id;
+    }
+
+    /**
+     * Gets the student's row in the registry, which is also the student's
+     * index in the academic history.
+     *
+     * @return The index, or -1 if the student is not in the registry's
+     *         table.
+     */
+
+    int getHistoryIndex() {
+        return table.isDetached() ? -1 : id;
+    }
+
+    /**
+     * Gets the key the student is listed under in course rosters: their row
+     * in the registry, or their record if they are kept in a record file.
+     *
+     * @return The key, or -1 if the student is not in a registry.
+     */
+
+    int getRosterKey() {
+        return table.rosterKeyOf(id);
+    }
+
+    /**
+     * Records a row read back from a saved history and applies it to the
+     * course sets, credit totals and the course's roster.
+     *
+     * @param course The course of the row.
+     * @param term   The trimester of the row.
+     * @param status The status of the row.
+     * @param grade  The grade of the row.
+     */
+
+    void restoreHistoryRow(Course course, int term, byte status, byte grade) {
+        AcademicHistory history = table.getHistory();
+        if (history != null) {
+            history.append(id, course.getId(), term, status, grade);
+        }
+        applyHistoryRow(course, status, true);
+        table.changed(this);
+    }
+
+    /**
+     * Records a row of a student being hydrated from its record and applies
+     * it to the course sets and credit totals. The course already counts the
+     * student, so its roster is left alone.
+     *
+     * @param course The course of the row.
+     * @param term   The trimester of the row.
+     * @param status The status of the row.
+     * @param grade  The grade of the row.
+     */
+
+    void loadHistoryRow(Course course, int term, byte status, byte grade) {
+        table.getHistory().append(id, course.getId(), term, status, grade);
+        applyHistoryRow(course, status, false);
+    }
+
+    private void applyHistoryRow(Course course, byte status, boolean enroll) {
+        table.noteCatalog(course.getCatalog());
+        switch (status) {
+            case AcademicHistory.PLANNED:
+                table.addCourse(StudentTable.PLANNED, id, course.getId());
+                break;
+            case AcademicHistory.CURRENT:
+                if (table.addCourse(StudentTable.CURRENT, id, course.getId())) {
+                    table.add(StudentTable.TERM_CREDITS, id, course.getCredits());
+                    if (enroll) {
+                        course.enrollStudent(this, false);
+                    }
+                }
+                break;
+            case AcademicHistory.COMPLETED:
+                if (table.addCourse(StudentTable.COMPLETED, id, course.getId())) {
+                    table.add(StudentTable.COMPLETED_CREDITS, id, course.getCredits());
+                    invalidateEligibility();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Displays the list of past, current, and future subjects for the student.
+     */
+
+    public void viewSubjects() {
+        AcademicHistory history = table.getHistory();
+        PrerequisiteGraph catalog = table.getCatalog();
+        try (ReportWriter report = ReportWriter.toConsole()) {
+            if (history == null || catalog == null) {
+                report.line("Past Subjects:");
+                for (Course course : getCompletedCourses()) {
+                    report.item(course.getcourseCode());
+                }
+                report.line("Current Subjects:");
+                for (Course course : getRegisteredCourses()) {
+                    report.item(course.getcourseCode());
+                }
+                report.line("Future Subjects:");
+                for (Course course : getPlannedCourses()) {
+                    report.item(course.getcourseCode());
+                }
+                return;
+            }
+
+            List<String> past = new ArrayList<>();
+            List<String> current = new ArrayList<>();
+            List<String> future = new ArrayList<>();
+            history.forEachRowOf(id, (student, course, term, status, grade) -> {
+                String subject = catalog.codeOf(course) + " (trimester " + term
+                        + (grade == AcademicHistory.NO_GRADE ? "" : ", grade " + grade) + ")";
+                if (status == AcademicHistory.COMPLETED) {
+                    past.add(subject);
+                } else if (status == AcademicHistory.CURRENT) {
+                    current.add(subject);
+                } else if (status == AcademicHistory.PLANNED) {
+                    future.add(subject);
+                }
+            });
+
+            report.line("Past Subjects:");
+            past.forEach(report::item);
+            report.line("Current Subjects:");
+            current.forEach(report::item);
+            report.line("Future Subjects:");
+            future.forEach(report::item);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Checks if adding a specified number of credits falls within the valid credit
+     * range
+     * for a trimester.
+     *
+     * @param creditsToAdd The number of credits to be added.
+     * @return {@code true} if the credit range is valid, {@code false} otherwise.
+     */
+
+    public boolean isValidCreditRange(int creditsToAdd) {
+        RegistrationRules rules = getRules();
+        int totalCredits = getTotalCredits() + creditsToAdd;
+        return totalCredits >= rules.getMinTermCredits() && totalCredits <= rules.getMaxTermCredits();
+    }
+
+    /**
+     * Registers the student for a course if the prerequisites are met and the
+     * course has a free seat.
+     *
+     * @param course The course to register for.
+     * @return {@code true} if the student was registered, {@code false} otherwise.
+     */
+
+    public boolean registerForCourse(Course course) {
+        return registerForCourse(course, false);
+    }
+
+    /**
+     * Registers the student for a course if the prerequisites are met, in a
+     * seat claimed for them beforehand or in a free seat.
+     *
+     * @param course      The course to register for.
+     * @param seatClaimed True if a seat was claimed for the student with
+     *                    {@link Course#claimSeat(boolean)}. If the
+     *                    registration fails, the caller still holds it.
+     * @return {@code true} if the student was registered, {@code false} otherwise.
+     */
+
+    boolean registerForCourse(Course course, boolean seatClaimed) {
+        long start = Metrics.REGISTER_FOR_COURSE.start();
+        String failure = registrationFailure(course);
+        if (failure == null && !seatClaimed && !course.claimSeat(false)) {
+            failure = Metrics.COURSE_FULL;
+        }
+        if (failure != null) {
+            Metrics.REGISTER_FOR_COURSE.failure(start, failure);
+            return false;
+        }
+        addRegisteredCourse(course, true);
+        Metrics.REGISTER_FOR_COURSE.success(start);
+        return true;
+    }
+
+    /**
+     * Finds why the student cannot register for a course.
+     *
+     * @param course The course to check.
+     * @return The failure reason from {@link Metrics}, or {@code null} if the
+     *         student can register.
+     */
+
+    private String registrationFailure(Course course) {
+        if (course == null || course.getId() < 0) {
+            return Metrics.NOT_FOUND;
+        }
+        if (isTaking(course)) {
+            return Metrics.ALREADY_REGISTERED;
+        }
+        RegistrationRules rules = course.getCatalog().getRules();
+        if (getTotalCredits() + course.getCredits() > rules.getMaxTermCredits()) {
+            return Metrics.CREDIT_LIMIT;
+        }
+        if (!isEligible(course)) {
+            return Metrics.PREREQUISITE;
+        }
+        if (!rules.hasRestrictions(course.getId())) {
+            return null;
+        }
+        return rules.brokenRestriction(course.getId(), getCompletedCourseSet(), getCurrentCourseSet());
+    }
+
+    /**
+     * Gets the rules of the student's catalog.
+     *
+     * @return The rules, or the default rules if the student is not in a
+     *         catalog yet.
+     */
+
+    RegistrationRules getRules() {
+        PrerequisiteGraph catalog = table.getCatalog();
+        return catalog != null ? catalog.getRules() : RegistrationRules.DEFAULT;
+    }
+
+    /**
+     * Adds a course to the registered courses without any checks. Used when
+     * restoring a registration that was already validated. The course's
+     * roster is updated with the student's side, here and in every other
+     * method that changes the current courses.
+     *
+     * @param course The course to add.
+     */
+
+    void addRegisteredCourse(Course course) {
+        addRegisteredCourse(course, false);
+    }
+
+    /**
+     * Adds a course to the registered courses without any checks.
+     *
+     * @param course    The course to add.
+     * @param seatTaken True if a seat was claimed for the student with
+     *                  {@link Course#claimSeat(boolean)}, which the
+     *                  registration then uses or gives back.
+     */
+
+    void addRegisteredCourse(Course course, boolean seatTaken) {
+        table.noteCatalog(course.getCatalog());
+        table.removeCourse(StudentTable.PLANNED, id, course.getId());
+        if (!table.addCourse(StudentTable.CURRENT, id, course.getId())) {
+            if (seatTaken) {
+                course.releaseSeat();
+            }
+            return;
+        }
+        table.add(StudentTable.TERM_CREDITS, id, course.getCredits());
+        course.enrollStudent(this, seatTaken);
+        AcademicHistory history = table.getHistory();
+        int trimester = getTrimester();
+        if (history != null && !history.update(id, course.getId(), AcademicHistory.PLANNED,
+                AcademicHistory.CURRENT, trimester, AcademicHistory.NO_GRADE)) {
+            history.append(id, course.getId(), trimester, AcademicHistory.CURRENT, AcademicHistory.NO_GRADE);
+        }
+        table.changed(this);
+    }
+
+    /**
+     * Drops a course the student is currently registered for.
+     *
+     * @param course The course to drop.
+     * @return {@code true} if the course was dropped, {@code false} if the
+     *         student is not taking it.
+     */
+
+    public boolean dropCourse(Course course) {
+        if (course == null || course.getId() < 0 || !table.removeCourse(StudentTable.CURRENT, id, course.getId())) {
+            return false;
+        }
+        table.add(StudentTable.TERM_CREDITS, id, -course.getCredits());
+        course.unenrollStudent(this);
+        AcademicHistory history = table.getHistory();
+        if (history != null) {
+            history.update(id, course.getId(), AcademicHistory.CURRENT, AcademicHistory.DROPPED, getTrimester(),
+                    AcademicHistory.NO_GRADE);
+        }
+        table.changed(this);
+        return true;
+    }
+
+    /**
+     * Adds a course to the completed courses without any checks. Used when
+     * restoring a completion that was already recorded.
+     *
+     * @param course The course to add.
+     */
+
+    void addCompletedCourse(Course course) {
+        table.noteCatalog(course.getCatalog());
+        if (!table.addCourse(StudentTable.COMPLETED, id, course.getId())) {
+            return;
+        }
+        table.add(StudentTable.COMPLETED_CREDITS, id, course.getCredits());
+        AcademicHistory history = table.getHistory();
+        if (history != null) {
+            history.append(id, course.getId(), getTrimester(), AcademicHistory.COMPLETED, AcademicHistory.NO_GRADE);
+        }
+        table.changed(this);
+        invalidateEligibility();
+    }
+
+    private void invalidateEligibility() {
+        EligibilityMatrix eligibility = table.getEligibility();
+        if (eligibility != null) {
+            eligibility.invalidate(this);
+        }
+    }
+
+    /**
+     * Marks a course the student is currently taking as completed, without a
+     * grade.
+     *
+     * @param course The course that was completed.
+     * @return {@code true} if the course was completed, {@code false} if the
+     *         student is not taking it.
+     */
+
+    public boolean completeCourse(Course course) {
+        return completeCourse(course, AcademicHistory.NO_GRADE);
+    }
+
+    /**
+     * Marks a course the student is currently taking as completed in the
+     * current trimester.
+     *
+     * @param course The course that was completed.
+     * @param grade  The grade from 0 to 100, or {@link AcademicHistory#NO_GRADE}.
+     * @return {@code true} if the course was completed, {@code false} if the
+     *         student is not taking it.
+     */
+
+    public boolean completeCourse(Course course, int grade) {
+        if (course == null || course.getId() < 0 || !table.removeCourse(StudentTable.CURRENT, id, course.getId())) {
+            return false;
+        }
+        table.addCourse(StudentTable.COMPLETED, id, course.getId());
+        table.add(StudentTable.COMPLETED_CREDITS, id, course.getCredits());
+        course.unenrollStudent(this);
+        AcademicHistory history = table.getHistory();
+        if (history != null) {
+            history.update(id, course.getId(), AcademicHistory.CURRENT, AcademicHistory.COMPLETED, getTrimester(),
+                    (byte) grade);
+        }
+        table.changed(this);
+        invalidateEligibility();
+        return true;
+    }
+
+    /**
+     * Adds a course to the courses the student plans to take.
+     *
+     * @param course The course to plan.
+     */
+
+    public void planCourse(Course course) {
+        planCourse(course, getTrimester() + 1);
+    }
+
+    /**
+     * Adds a course to the courses the student plans to take in a given
+     * trimester.
+     *
+     * @param course The course to plan.
+     * @param term   The trimester the course is planned for.
+     */
+
+    public void planCourse(Course course, int term) {
+        if (course != null && course.getId() >= 0 && !hasCompletedCourse(course) && !isTaking(course)) {
+            table.noteCatalog(course.getCatalog());
+            AcademicHistory history = table.getHistory();
+            if (table.addCourse(StudentTable.PLANNED, id, course.getId()) && history != null) {
+                history.append(id, course.getId(), term, AcademicHistory.PLANNED, AcademicHistory.NO_GRADE);
+            }
+            table.changed(this);
+        }
+    }
+
+    /**
+     * Replaces the student's planned courses with a schedule, such as one
+     * found by the {@link DegreePlanner}. Courses that stay planned for the
+     * same trimester are left alone; the rest of the old plan is marked as
+     * dropped in the history.
+     *
+     * @param schedule  The courses to take in each trimester.
+     * @param firstTerm The trimester of the first entry of the schedule.
+     * @return True if the plan changed, false if it was already the same.
+     */
+
+    public boolean replacePlan(List<List<Course>> schedule, int firstTerm) {
+        AcademicHistory history = table.getHistory();
+        Map<Integer, Integer> plannedTerms = new HashMap<>();
+        if (history != null) {
+            history.forEachRowOf(id, (student, course, term, status, grade) -> {
+                if (status == AcademicHistory.PLANNED) {
+                    plannedTerms.put(course, term);
+                }
+            });
+        }
+
+        CourseSet plannedCourses = getPlannedCourseSet();
+        CourseSet kept = new CourseSet();
+        int scheduled = 0;
+        for (int term = 0; term < schedule.size(); term++) {
+            for (Course course : schedule.get(term)) {
+                Integer plannedTerm = plannedTerms.get(course.getId());
+                if (plannedTerm != null && plannedTerm == firstTerm + term && plannedCourses.contains(course.getId())) {
+                    kept.add(course.getId());
+                }
+                scheduled++;
+            }
+        }
+        if (kept.size() == scheduled && kept.size() == plannedCourses.size()) {
+            return false;
+        }
+
+        int trimester = getTrimester();
+        for (int course = plannedCourses.nextSetBit(0); course >= 0; course = plannedCourses.nextSetBit(course + 1)) {
+            if (kept.contains(course)) {
+                continue;
+            }
+            table.removeCourse(StudentTable.PLANNED, id, course);
+            if (history != null) {
+                history.update(id, course, AcademicHistory.PLANNED, AcademicHistory.DROPPED, trimester,
+                        AcademicHistory.NO_GRADE);
+            }
+        }
+        table.changed(this);
+        for (int term = 0; term < schedule.size(); term++) {
+            for (Course course : schedule.get(term)) {
+                if (!kept.contains(course.getId())) {
+                    planCourse(course, firstTerm + term);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if the student is currently registered for a course.
+     *
+     * @param course The course to check.
+     * @return {@code true} if the student is taking the course, {@code false} otherwise.
+     */
+
+    public boolean isTaking(Course course) {
+        return table.containsCourse(StudentTable.CURRENT, id, course.getId());
+    }
+
+    /**
+     * Gets the number of courses the student is currently registered for.
+     *
+     * @return The number of registered courses.
+     */
+
+    public int getRegisteredCourseCount() {
+        return table.countCourses(StudentTable.CURRENT, id);
+    }
+
+
+    /**
+     * Checks if the student meets the prerequisites of a specific course, as
+     * recorded in the registry's eligibility matrix. Registrations call this,
+     * so it is where the check is timed in {@link Metrics}; planning and
+     * counting eligible students do not show up there.
+     *
+     * @param course The course to check for eligibility.
+     * @return {@code true} if eligible, {@code false} otherwise.
+     */
+
+    boolean isEligible(Course course) {
+        long start = Metrics.MEETS_PREREQUISITES.start();
+        EligibilityMatrix eligibility = table.getEligibility();
+        if (eligibility != null ? eligibility.isEligible(this, course) : course.meetsPrerequisites(this)) {
+            Metrics.MEETS_PREREQUISITES.success(start);
+            return true;
+        }
+        String unmet = course.unmetRequirement(this);
+        Metrics.MEETS_PREREQUISITES.failure(start, unmet != null ? unmet : Metrics.PREREQUISITE);
+        return false;
+    }
+
+    /**
+     * Checks if the student has completed a specific course.
+     *
+     * @param course The course to check for completion.
+     * @return {@code true} if the course is completed, {@code false} otherwise.
+     */
+
+    public boolean hasCompletedCourse(Course course) {
+        return table.containsCourse(StudentTable.COMPLETED, id, course.getId());
+    }
+
+    /**
+     * Checks if the student has completed every course of a set, without
+     * copying the completed courses.
+     *
+     * @param courses The IDs of the courses.
+     * @return {@code true} if every course is completed, {@code false} otherwise.
+     */
+
+    public boolean hasCompletedAll(CourseSet courses) {
+        return table.containsAllCourses(StudentTable.COMPLETED, id, courses);
+    }
+
+    /**
+     * Gets the IDs of the courses the student has completed.
+     *
+     * @return A copy of the completed course IDs.
+     */
+
+    public CourseSet getCompletedCourseSet() {
+        return table.courseSet(StudentTable.COMPLETED, id);
+    }
+
+    /**
+     * Gets the IDs of the courses the student is currently taking.
+     *
+     * @return A copy of the current course IDs.
+     */
+
+    public CourseSet getCurrentCourseSet() {
+        return table.courseSet(StudentTable.CURRENT, id);
+    }
+
+    /**
+     * Gets the IDs of the courses the student plans to take.
+     *
+     * @return A copy of the planned course IDs.
+     */
+
+    public CourseSet getPlannedCourseSet() {
+        return table.courseSet(StudentTable.PLANNED, id);
+    }
+
+    /**
+     * Attempts to log in a student based on provided username and password.
+     *
+     * @param registry The registry to look the username up in.
+     * @param username The username for authentication.
+     * @param password The password for authentication.
+     * @return The logged-in student or {@code null} if login fails.
+     */
+
+    public static Student loginStudent(Registry registry, String username, String password) {
+        long start = Metrics.LOGIN_STUDENT.start();
+        Student student = registry.findStudent(username);
+        if (student == null) {
+            Authenticator.getDefault().verify(null, password);
+            Metrics.LOGIN_STUDENT.failure(start, Metrics.NOT_FOUND);
+            return null;
+        }
+        if (!student.authenticate(username, password)) {
+            Metrics.LOGIN_STUDENT.failure(start, Metrics.WRONG_PASSWORD);
+            return null;
+        }
+        Metrics.LOGIN_STUDENT.success(start);
+        return student;
+    }
+
+    /**
+     * Retrieves the list of registered courses for the student.
+     *
+     * @return The list of registered courses.
+     */
+
+    public List<Course> getRegisteredCourses() {
+        return toCourses(getCurrentCourseSet());
+    }
+
+    /**
+     * Retrieves the list of courses the student has completed.
+     *
+     * @return The list of completed courses.
+     */
+
+    public List<Course> getCompletedCourses() {
+        return toCourses(getCompletedCourseSet());
+    }
+
+    /**
+     * Retrieves the list of courses the student plans to take.
+     *
+     * @return The list of planned courses.
+     */
+
+    public List<Course> getPlannedCourses() {
+        return toCourses(getPlannedCourseSet());
+    }
+
+    /**
+     * Resolves a set of course IDs against the catalog.
+     */
+
+    private List<Course> toCourses(CourseSet set) {
+        List<Course> result = new ArrayList<>();
+        PrerequisiteGraph catalog = table.getCatalog();
+        if (catalog == null) {
+            return result;
+        }
+        for (int course = set.nextSetBit(0); course >= 0; course = set.nextSetBit(course + 1)) {
+            Course resolved = catalog.courseAt(course);
+            if (resolved != null) {
+                result.add(resolved);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds a course of the student's catalog by its code.
+     *
+     * @param courseCode The course code.
+     * @return The course, or {@code null} if the catalog has no such course.
+     */
+
+    public Course findCourseByCode(String courseCode) {
+        PrerequisiteGraph catalog = table.getCatalog();
+        return catalog == null ? null : catalog.find(courseCode);
+    }
+
+    public void viewRegisteredCourses() {
+        try (ReportWriter report = ReportWriter.toConsole()) {
+            report.line("Registered Courses:");
+            for (Course course : getRegisteredCourses()) {
+                report.item(course.getcourseCode());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof Student)) {
+            return false;
+        }
+        Student student = (Student) other;
+        return table == student.table && id == student.id;
+    }
+
+    /**
+     * Hashes the username, which stays the same when the student moves from
+     * a table of its own into the registry's, so a student can be added to a
+     * hash set before it joins the registry.
+     */
+
+    @Override
+    public int hashCode() {
+        return getUsername().hashCode();
+    }
+}
+
+/**
+ * The {@code Lecturer} class represents a user with lecturer privileges in a
+ * university system.
+ * It extends the {@link User} class, inheriting basic authentication
+ * functionality.
+ * This class includes features specific to lecturers,
+ * such as viewing students
+ * in assigned courses
+ * and assigning courses to lecturers.
+ * 
+ * @author [Salah]
+ * @version 1.0
+ * @since [18/02/2024]
+ */
+
+class Lecturer extends User {
+    /**
+     * Courses assigned to the lecturer, in assignment order.
+     */
+    private Set<Course> assignedCourses;
+    /**
+     * The same courses by course code, for paging.
+     */
+    private final NavigableMap<String, Course> assignedByCode = new TreeMap<>();
+
+    /**
+     * Constructor for Lecturer.
+     *
+     * @param username The username of the lecturer.
+     * @param password The password of the lecturer.
+     */
+
+    public Lecturer(String username, String password) {
+        this(username, password, false);
+    }
+
+    /**
+     * Constructor for Lecturer.
+     *
+     * @param username The username of the lecturer.
+     * @param password The password of the lecturer.
+     * @param stored   True if the password was read back from storage.
+     */
+
+    Lecturer(String username, String password, boolean stored) {
+        super(username, password, stored);
+        this.assignedCourses = new LinkedHashSet<>();
+    }
+
+    /**
+     * Attempts to log in a lecturer based on provided username and password.
+     *
+     * @param registry The registry to look the username up in.
+     * @param username The username for authentication.
+     * @param password The password for authentication.
+     * @return The logged-in lecturer or {@code null} if login fails.
+     */
+
+    public static Lecturer loginLecturer(Registry registry, String username, String password) {
+        Lecturer lecturer = registry.findLecturer(username);
+        return Authenticator.getDefault().verify(lecturer, password) ? lecturer : null;
+    }
+
+    /**
+     * Displays the list of students in the courses assigned to the lecturer.
+     * If no courses are assigned, a corresponding message is printed.
+     */
+
+    public void viewStudentsInAssignedCourses() {
+        List<Course> courses = getAssignedCourses();
+        try (ReportWriter report = ReportWriter.toConsole()) {
+            if (courses.isEmpty()) {
+                report.line("You are not assigned to any courses.");
+            } else {
+                report.line("Students in Assigned Courses:");
+                CatalogVersion version = courses.get(0).getCatalogVersion();
+                for (Course course : courses) {
+                    report.line("Course: " + course.getcourseCode());
+                    course.writeRoster(report, version);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Assigns a course to the lecturer, taking it away from any lecturer it
+     * was assigned to before.
+     *
+     * @param course The course to be assigned.
+     */
+
+    public void assignCourse(Course course) {
+        course.setAssignedLecturer(this);
+    }
+
+    /**
+     * Checks if a course is assigned to the lecturer.
+     *
+     * @param course The course to be checked.
+     * @return True if the course is assigned to the lecturer, false otherwise.
+     */
+
+    public synchronized boolean teaches(Course course) {
+        return assignedCourses.contains(course);
+    }
+
+    /**
+     * Gets the number of courses assigned to the lecturer.
+     *
+     * @return The number of assigned courses.
+     */
+
+    public synchronized int getAssignedCourseCount() {
+        return assignedCourses.size();
+    }
+
+    /**
+     * Retrieves the list of courses assigned to the lecturer.
+     *
+     * @return A copy of the assigned courses.
+     */
+
+    public synchronized List<Course> getAssignedCourses() {
+        return new ArrayList<>(assignedCourses);
+    }
+
+    /**
+     * Gets one page of the assigned courses, ordered by course code.
+     *
+     * @param afterKey The key of the page, or {@code null} for the first page.
+     * @param limit    The maximum number of courses on the page.
+     * @return The page.
+     */
+
+    public synchronized Page<Course> pageAssignedCourses(String afterKey, int limit) {
+        return Page.ofSorted(assignedByCode, afterKey, limit);
+    }
+
+    /**
+     * Records the lecturer's side of an assignment. Only
+     * {@link Course#setAssignedLecturer(Lecturer)} and the registry call this,
+     * so both sides stay in step.
+     */
+
+    synchronized void addAssignedCourse(Course course) {
+        assignedCourses.add(course);
+        assignedByCode.put(course.getcourseCode(), course);
+    }
+
+    synchronized void removeAssignedCourse(Course course) {
+        assignedCourses.remove(course);
+        assignedByCode.remove(course.getcourseCode());
+    }
+}
+
+
+/**
+ * The {@code LatencyHistogram} class counts latencies in log-linear buckets,
+ * in the manner of an HDR histogram, without locking.
+ * Values below 128 nanoseconds have a bucket each; above that every power of
+ * two is split into 64 buckets, so a reported percentile or maximum is within
+ * about 1.6% of the true value. Recording is one atomic increment and one
+ * striped add; counts are summed only when the histogram is read.
+ */
+
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+    private static final long MAX_VALUE = (1L << 40) - 1;
+
+    private final AtomicLongArray counts;
+    private final LongAdder sum;
+
+    /**
+     * Constructs an empty histogram for values up to about 18 minutes in
+     * nanoseconds. Larger values are recorded as the largest.
+     */
+
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray(indexOf(MAX_VALUE) + 1);
+        this.sum = new LongAdder();
+    }
+
+    /**
+     * Records one value.
+     *
+     * @param nanos The latency in nanoseconds.
+     */
+
+    public void record(long nanos) {
+        long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+        counts.incrementAndGet(indexOf(value));
+        sum.add(value);
+    }
+
+    public long getCount() {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Gets the largest recorded value.
+     *
+     * @return The upper bound of the highest non-empty bucket, in nanoseconds,
+     *         or 0 if nothing was recorded.
+     */
+
+    public long getMax() {
+        for (int i = counts.length() - 1; i >= 0; i--) {
+            if (counts.get(i) != 0) {
+                return highestValueIn(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Gets the mean of the recorded values.
+     *
+     * @return The mean in nanoseconds, or 0 if nothing was recorded.
+     */
+
+    public double getMean() {
+        long n = getCount();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Gets the value below which a given fraction of the recorded values fall.
+     *
+     * @param quantile The fraction, from 0 to 1.
+     * @return The upper bound of the bucket holding the quantile, in
+     *         nanoseconds, or 0 if nothing was recorded.
+     */
+
+    public long getValueAtQuantile(double quantile) {
+        long[] snapshot = new long[counts.length()];
+        long total = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return highestValueIn(i);
+            }
+        }
+        return 0;
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + (shift - 1) * HALF_SUB_BUCKETS + (int) (value >>> shift) - HALF_SUB_BUCKETS;
+    }
+
+    private static long highestValueIn(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+        long subBucket = (index - SUB_BUCKETS) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
+
+/**
+ * The {@code OperationMetrics} class records the calls of one operation: how
+ * many there were, why the failed ones failed, and how long they took.
+ * Calls and failures are always counted. Operations that take well under a
+ * microsecond time only a random sample of their calls, because reading the
+ * clock twice would cost as much as the operation itself. It is exposed over
+ * JMX as a read-only MBean.
+ */
+
+class OperationMetrics implements DynamicMBean {
+    private static final String[] ATTRIBUTES = { "Count", "Failures", "FailureReasons", "MeanMicros", "P50Micros",
+            "P99Micros", "P999Micros", "MaxMicros" };
+
+    private static final long NOT_TIMED = Long.MIN_VALUE;
+
+    private final String name;
+    private final int sampleMask;
+    private final LatencyHistogram latency;
+    private final LongAdder calls;
+    private final LongAdder failures;
+    private final ConcurrentHashMap<String, LongAdder> failuresByReason;
+    private long countAtLastSample;
+    private long nanosAtLastSample;
+
+    /**
+     * Constructor for OperationMetrics.
+     *
+     * @param name        The name of the operation.
+     * @param sampleEvery One in how many calls is timed, a power of two.
+     */
+
+    public OperationMetrics(String name, int sampleEvery) {
+        if (Integer.bitCount(sampleEvery) != 1) {
+            throw new IllegalArgumentException("sampleEvery must be a power of two: " + sampleEvery);
+        }
+        this.name = name;
+        this.sampleMask = sampleEvery - 1;
+        this.latency = new LatencyHistogram();
+        this.calls = new LongAdder();
+        this.failures = new LongAdder();
+        this.failuresByReason = new ConcurrentHashMap<>();
+        this.nanosAtLastSample = System.nanoTime();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Starts one call, timing it if it falls in the sample.
+     *
+     * @return The value to pass to {@link #success} or {@link #failure}.
+     */
+
+    public long start() {
+        if (sampleMask != 0 && (ThreadLocalRandom.current().nextInt() & sampleMask) != 0) {
+            return NOT_TIMED;
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Records a call that succeeded.
+     *
+     * @param startNanos The value returned by {@link #start()}.
+     */
+
+    public void success(long startNanos) {
+        calls.increment();
+        if (startNanos != NOT_TIMED) {
+            latency.record(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Records a call that failed.
+     *
+     * @param startNanos The value returned by {@link #start()}.
+     * @param reason     Why the call failed, one of the reasons in {@link Metrics}.
+     */
+
+    public void failure(long startNanos, String reason) {
+        success(startNanos);
+        failures.increment();
+        failuresByReason.computeIfAbsent(reason, key -> new LongAdder()).increment();
+    }
+
+    public long getCount() {
+        return calls.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Gets the throughput since the previous sample, and starts a new sample.
+     *
+     * @return The calls per second since the previous sample was taken.
+     */
+
+    public synchronized double sampleThroughput() {
+        long now = System.nanoTime();
+        long current = getCount();
+        double perSecond = (current - countAtLastSample) * 1e9 / Math.max(1, now - nanosAtLastSample);
+        countAtLastSample = current;
+        nanosAtLastSample = now;
+        return perSecond;
+    }
+
+    /**
+     * Gets the number of failures for each reason.
+     *
+     * @return The failures by reason, ordered by reason.
+     */
+
+    public Map<String, Long> getFailuresByReason() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        failuresByReason.forEach((reason, adder) -> snapshot.put(reason, adder.sum()));
+        return snapshot;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        switch (attribute) {
+            case "Count":
+                return getCount();
+            case "Failures":
+                return getFailures();
+            case "FailureReasons":
+                return getFailuresByReason().toString();
+            case "MeanMicros":
+                return latency.getMean() / 1000.0;
+            case "P50Micros":
+                return latency.getValueAtQuantile(0.5) / 1000.0;
+            case "P99Micros":
+                return latency.getValueAtQuantile(0.99) / 1000.0;
+            case "P999Micros":
+                return latency.getValueAtQuantile(0.999) / 1000.0;
+            case "MaxMicros":
+                return latency.getMax() / 1000.0;
+            default:
+                throw new AttributeNotFoundException(attribute);
+        }
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // Unknown attributes are left out, as the MBean contract allows.
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[ATTRIBUTES.length];
+        for (int i = 0; i < ATTRIBUTES.length; i++) {
+            String type = i < 2 ? "long" : i == 2 ? String.class.getName() : "double";
+            attributes[i] = new MBeanAttributeInfo(ATTRIBUTES[i], type, ATTRIBUTES[i] + " of " + name, true, false,
+                    false);
+        }
+        return new MBeanInfo(getClass().getName(), "Metrics of " + name, attributes, null, null, null);
+    }
+}
+
+/**
+ * The {@code Metrics} class holds the metrics of the hot operations and
+ * publishes them, over JMX and as a periodically rewritten text file.
+ */
+
+class Metrics {
+    public static final String NOT_FOUND = "notFound";
+    public static final String WRONG_PASSWORD = "wrongPassword";
+    public static final String ALREADY_REGISTERED = "alreadyRegistered";
+    public static final String PREREQUISITE = "prerequisite";
+    public static final String CREDIT_LIMIT = "creditLimit";
+    public static final String MINIMUM_CREDITS = "minimumCredits";
+    public static final String COREQUISITE = "corequisite";
+    public static final String EXCLUSIVE = "exclusive";
+    public static final String IO_ERROR = "ioError";
+    public static final String COURSE_FULL = "courseFull";
+    public static final String NOT_ELIGIBLE = "notEligible";
+
+    private static final Map<String, OperationMetrics> OPERATIONS = new LinkedHashMap<>();
+
+    public static final OperationMetrics LOGIN_STUDENT = operation("loginStudent", 1);
+    public static final OperationMetrics REGISTER_FOR_COURSE = operation("registerForCourse", 1);
+    public static final OperationMetrics MEETS_PREREQUISITES = operation("meetsPrerequisites", 16);
+    public static final OperationMetrics LOAD_FROM_CSV = operation("loadFromCSV", 1);
+    public static final OperationMetrics SAVE_TO_CSV = operation("saveToCSV", 1);
+    public static final OperationMetrics HYDRATE_STUDENT = operation("hydrateStudent", 1);
+    public static final OperationMetrics PROMOTE_FROM_WAITLIST = operation("promoteFromWaitlist", 1);
+
+    private static ScheduledExecutorService dumper;
+
+    private Metrics() {
+    }
+
+    private static OperationMetrics operation(String name, int sampleEvery) {
+        OperationMetrics metrics = new OperationMetrics(name, sampleEvery);
+        OPERATIONS.put(name, metrics);
+        return metrics;
+    }
+
+    /**
+     * Gets the metrics of every operation.
+     *
+     * @return The metrics in the order the operations were declared.
+     */
+
+    public static Collection<OperationMetrics> getOperations() {
+        return Collections.unmodifiableCollection(OPERATIONS.values());
+    }
+
+    /**
+     * Registers one MBean per operation with the platform MBean server, under
+     * {@code university:type=Operation,name=<operation>}.
+     *
+     * @return True if every MBean was registered, false otherwise.
+     */
+
+    public static synchronized boolean registerMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (OperationMetrics metrics : OPERATIONS.values()) {
+                ObjectName objectName = new ObjectName("university:type=Operation,name=" + metrics.getName());
+                if (!server.isRegistered(objectName)) {
+                    server.registerMBean(metrics, objectName);
+                }
+            }
+            return true;
+        } catch (JMException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Writes one line per operation with its counts, its throughput since the
+     * previous report and its latency percentiles.
+     *
+     * @param report The report to write to.
+     */
+
+    public static void write(ReportWriter report) {
+        report.line("operation count ops_per_s failures p50_us p99_us p999_us max_us failure_reasons");
+        for (OperationMetrics metrics : OPERATIONS.values()) {
+            LatencyHistogram latency = metrics.getLatency();
+            report.line(String.format(Locale.ROOT, "%s %d %.1f %d %.1f %.1f %.1f %.1f %s", metrics.getName(),
+                    metrics.getCount(), metrics.sampleThroughput(), metrics.getFailures(),
+                    latency.getValueAtQuantile(0.5) / 1000.0,
+                    latency.getValueAtQuantile(0.99) / 1000.0, latency.getValueAtQuantile(0.999) / 1000.0,
+                    latency.getMax() / 1000.0, metrics.getFailuresByReason()));
+        }
+    }
+
+    /**
+     * Rewrites the metrics to a file now, replacing the previous dump in one
+     * step so readers never see a partial file.
+     *
+     * @param path The dump file.
+     * @throws IOException If the file cannot be written.
+     */
+
+    public static void dump(Path path) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (ReportWriter report = ReportWriter.toFile(temp)) {
+            report.line("# " + new Date());
+            write(report);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Starts a background thread that rewrites the metrics dump periodically.
+     *
+     * @param path          The dump file.
+     * @param periodSeconds How often the file is rewritten.
+     */
+
+    public static synchronized void startDump(Path path, long periodSeconds) {
+        if (dumper != null) {
+            return;
+        }
+        dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleWithFixedDelay(() -> {
+            try {
+                dump(path);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the periodic dump, if it was started.
+     */
+
+    public static synchronized void stopDump() {
+        if (dumper != null) {
+            dumper.shutdownNow();
+            dumper = null;
+        }
+    }
+}
+
+/**
+ * The {@code UniversityServer} class serves the admin, student and lecturer
+ * operations over a line-based text protocol on the loopback interface.
+ * Every connection is its own session with its own logged-in user, handled on
+ * its own thread over the shared {@link Admin} state. Virtual threads are used
+ * when the running JVM provides them, so thousands of mostly idle sessions
+ * cost little; otherwise each connection gets a pooled platform thread.
+ *
+ * <p>Each request is one line of space-separated words. A reply is either
+ * {@code OK}, {@code OK <n>} followed by {@code n} lines, or
+ * {@code ERR <message>}. Send {@code HELP} for the list of commands.
+ *
+ * <p>A successful {@code LOGIN} replies with a session token. The session
+ * outlives the connection, so a client that reconnects can send
+ * {@code RESUME <token>} instead of its password until the session expires or
+ * the client sends {@code LOGOUT}.
+ *
+ * <p>A server can also serve a {@link LogReplica}'s copy of a primary. It
+ * then refuses every command that changes state, and every other command
+ * while the copy lags further behind the primary than the replica allows.
+ * {@code LAG} reports how far behind it is.
+ */
+
+class UniversityServer implements Closeable {
+    static final String HELP = "LOGIN ADMIN|STUDENT|LECTURER <username> <password>, RESUME <token>,"
+            + " LOGOUT, QUIT;"
+            + " admin: CREATE_STUDENT <u> <p>, CREATE_LECTURER <u> <p>,"
+            + " CREATE_COURSE <code> <lecturer> <credits> [prerequisites;...], ASSIGN <code> <lecturer>,"
+            + " COMPLETE <student> <code> [grade], ADVANCE, COMPLETED <code> [trimester],"
+            + " PLAN_ALL [goal;goal;...], ELIGIBLE <code>, LOAD_RULES <file>, USERS, CAPACITY <code> <seats>,"
+            + " WAITING <code>;"
+            + " student: REGISTER <code>, REGISTER_PLAN <code;code;...>, DROP <code>, COURSES, ELIGIBLE,"
+            + " SUBJECTS, PLAN [goal;goal;...], WAITLIST <code>, LEAVE_WAITLIST <code>;"
+            + " lecturer: ROSTER;"
+            + " replica: LAG";
+
+    /**
+     * The commands that change state, which a replica refuses.
+     */
+    private static final Set<String> WRITES = new HashSet<>(Arrays.asList("CREATE_STUDENT", "CREATE_LECTURER",
+            "CREATE_COURSE", "ASSIGN", "COMPLETE", "ADVANCE", "PLAN_ALL", "LOAD_RULES", "SEATS", "LEASE", "REGISTER",
+            "REGISTER_PLAN", "DROP", "PLAN", "CAPACITY", "WAITLIST", "LEAVE_WAITLIST"));
+
+    /**
+     * The changes to the catalog and the calendar, which a shard router makes
+     * on every shard after checking them on every shard.
+     */
+    static final Set<String> CATALOG_CHANGES = new HashSet<>(Arrays.asList("CREATE_LECTURER", "CREATE_COURSE",
+            "ASSIGN", "ADVANCE", "LOAD_RULES", "CAPACITY"));
+
+    /**
+     * The commands a shard router sends to its workers, which only a
+     * connection that proved it is the router may send.
+     */
+    private static final Set<String> ROUTER_COMMANDS = new HashSet<>(Arrays.asList("SEATS", "LEASE", "COUNTS",
+            "CHECK"));
+
+    private final Admin admin;
+    private final LogReplica replica;
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections;
+    private final Thread acceptor;
+    private volatile String routerSecret;
+
+    /**
+     * Starts a server on a loopback port.
+     *
+     * @param admin The admin whose state is served.
+     * @param port  The port to listen on, or 0 for any free port.
+     * @throws IOException If the port cannot be bound.
+     */
+
+    public UniversityServer(Admin admin, int port) throws IOException {
+        this(admin, null, port);
+    }
+
+    /**
+     * Starts a read-only server for a replica's copy of a primary, on a
+     * loopback port.
+     *
+     * @param replica The replica whose copy is served.
+     * @param port    The port to listen on, or 0 for any free port.
+     * @throws IOException If the port cannot be bound.
+     */
+
+    public UniversityServer(LogReplica replica, int port) throws IOException {
+        this(null, replica, port);
+    }
+
+    private UniversityServer(Admin admin, LogReplica replica, int port) throws IOException {
+        this.admin = admin;
+        this.replica = replica;
+        this.serverSocket = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+        this.connections = newConnectionExecutor();
+        this.acceptor = new Thread(this::acceptLoop, "university-acceptor");
+        this.acceptor.start();
+    }
+
+    /**
+     * Sets the secret a shard router proves itself with, when this server is
+     * one of its workers.
+     *
+     * @param secret The secret, or {@code null} to accept no router.
+     */
+
+    void setRouterSecret(String secret) {
+        this.routerSecret = secret;
+    }
+
+    /**
+     * Gets the port the server is listening on.
+     *
+     * @return The local port.
+     */
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Gets the admin whose state is served: the replica's latest copy, which
+     * changes when the replica starts over from a new snapshot.
+     */
+
+    private Admin admin() {
+        return replica != null ? replica.getAdmin() : admin;
+    }
+
+    /**
+     * Creates a virtual-thread-per-task executor when the JVM supports it, and
+     * an unbounded cached pool of platform threads otherwise.
+     */
+
+    static ExecutorService newConnectionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "university-session");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    e.printStackTrace();
+                }
+            } catch (RejectedExecutionException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Runs one session until the client quits or disconnects.
+     */
+
+    private void serve(Socket socket) {
+        try (Socket client = socket;
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+                PrintWriter out = new PrintWriter(new BufferedWriter(
+                        new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8)))) {
+            ServerSession session = new ServerSession();
             String line;
-            boolean isHeader = true;
+            while ((line = in.readLine()) != null) {
+                String[] words = line.trim().split("\\s+");
+                if (words[0].equalsIgnoreCase("QUIT")) {
+                    out.println("OK");
+                    out.flush();
+                    return;
+                }
+                List<String> reply = handle(session, words);
+                for (String replyLine : reply) {
+                    out.println(replyLine);
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The client went away; nothing to clean up beyond the socket.
+        }
+    }
+
+    /**
+     * Executes one request for a session.
+     *
+     * @param session The session the request belongs to.
+     * @param words   The words of the request line.
+     * @return The reply lines.
+     */
+
+    List<String> handle(ServerSession session, String[] words) {
+        String command = words[0].toUpperCase(Locale.ROOT);
+        if (replica != null) {
+            List<String> refusal = checkReplica(session, command);
+            if (refusal != null) {
+                return refusal;
+            }
+            Lock reading = replica.readLock();
+            reading.lock();
+            try {
+                return execute(session, command, words);
+            } finally {
+                reading.unlock();
+            }
+        }
+        return execute(session, command, words);
+    }
+
+    /**
+     * Executes one request that a replica, if any, has agreed to serve.
+     *
+     * @param session The session the request belongs to.
+     * @param command The upper-cased command.
+     * @param words   The words of the request line.
+     * @return The reply lines.
+     */
+
+    private List<String> execute(ServerSession session, String command, String[] words) {
+        switch (command) {
+            case "HELP":
+                return ok(Collections.singletonList(HELP));
+            case "LOGIN":
+                return login(session, words);
+            case "RESUME":
+                return resume(session, words);
+            case "LOGOUT":
+                admin().getRegistry().getSessions().invalidate(session.token);
+                session.logout();
+                return ok();
+            case "ROUTER":
+                return linkRouter(session, words);
+            default:
+                break;
+        }
+
+        // The session is looked up on every command, so that expiry and a LOGOUT sent on another
+        // connection end it here too.
+        User user = admin().getRegistry().getSessions().resolve(session.token, User.class);
+        if (user instanceof Admin) {
+            if (ROUTER_COMMANDS.contains(command) && !session.router) {
+                return error("Only the shard router may send " + command);
+            }
+            return handleAdmin((Admin) user, command, words);
+        } else if (user instanceof Student) {
+            return handleStudent((Student) user, command, words);
+        } else if (user instanceof Lecturer) {
+            return handleLecturer((Lecturer) user, command);
+        }
+        if (session.isLoggedIn()) {
+            session.logout();
+            return error("Session expired");
+        }
+        return error("Not logged in");
+    }
+
+    /**
+     * Decides whether a replica can serve a request. A session whose user
+     * belongs to an older copy is logged out, since that copy no longer
+     * changes.
+     *
+     * @return The reply refusing the request, or {@code null} to serve it.
+     */
+
+    private List<String> checkReplica(ServerSession session, String command) {
+        if (command.equals("LAG")) {
+            return ok(Collections.singletonList("applied " + replica.getAppliedSequence() + " lagMillis "
+                    + (replica.getAdmin() == null ? "-" : Long.toString(replica.getLagMillis()))));
+        }
+        if (WRITES.contains(command)) {
+            return error("Read-only replica; send " + command + " to the primary");
+        }
+        if (!command.equals("HELP") && !replica.isFresh()) {
+            return error("Replica is too far behind the primary");
+        }
+        if (session.origin != null && session.origin != replica.getAdmin()) {
+            session.logout();
+        }
+        return null;
+    }
+
+    private List<String> login(ServerSession session, String[] words) {
+        if (words.length != 4) {
+            return error("Usage: LOGIN ADMIN|STUDENT|LECTURER <username> <password>");
+        }
+
+        User user;
+        switch (words[1].toUpperCase(Locale.ROOT)) {
+            case "ADMIN":
+                user = admin().loginAdmin(words[2], words[3]);
+                break;
+            case "STUDENT":
+                user = admin().loginStudent(words[2], words[3]);
+                break;
+            case "LECTURER":
+                user = admin().loginLecturer(words[2], words[3]);
+                break;
+            default:
+                return error("Unknown role " + words[1]);
+        }
+        if (user == null) {
+            session.logout();
+            return error("Invalid username or password");
+        }
+
+        String token = admin().getRegistry().getSessions().issue(user);
+        session.attach(token);
+        session.origin = admin();
+        return ok(Collections.singletonList(token));
+    }
+
+    /**
+     * Marks a connection as the shard router's own link, if it knows the
+     * secret the router started this worker with.
+     */
+
+    private List<String> linkRouter(ServerSession session, String[] words) {
+        String secret = routerSecret;
+        if (secret == null || words.length != 2 || !MessageDigest.isEqual(
+                secret.getBytes(StandardCharsets.UTF_8), words[1].getBytes(StandardCharsets.UTF_8))) {
+            return error("Not the shard router");
+        }
+        session.router = true;
+        return ok();
+    }
+
+    private List<String> resume(ServerSession session, String[] words) {
+        if (words.length != 2) {
+            return error("Usage: RESUME <token>");
+        }
+
+        User user = admin().getRegistry().getSessions().resolve(words[1], User.class);
+        if (user == null) {
+            session.logout();
+            return error("Session expired");
+        }
+        session.attach(words[1]);
+        session.origin = admin();
+        return ok();
+    }
+
+    private List<String> handleAdmin(Admin loggedInAdmin, String command, String[] words) {
+        switch (command) {
+            case "CREATE_STUDENT":
+                if (words.length != 3) {
+                    return error("Usage: CREATE_STUDENT <username> <password>");
+                }
+                return loggedInAdmin.createStudent(words[1], words[2]) ? ok() : error("Username already taken");
+
+            case "CREATE_LECTURER": {
+                List<String> refusal = catalogRefusal(loggedInAdmin, command, words);
+                if (refusal != null) {
+                    return refusal;
+                }
+                return loggedInAdmin.createLecturer(words[1], words[2]) ? ok() : error("Username already taken");
+            }
+
+            case "CREATE_COURSE": {
+                List<String> refusal = catalogRefusal(loggedInAdmin, command, words);
+                if (refusal != null) {
+                    return refusal;
+                }
+                List<String> prerequisiteCodes = words.length == 5 ? CsvBulkLoader.splitCodes(words[4])
+                        : Collections.emptyList();
+                return loggedInAdmin.createCourseWithPrerequisites(words[1],
+                        loggedInAdmin.findLecturerByUsername(words[2]), prerequisiteCodes, Integer.parseInt(words[3]))
+                                ? ok()
+                                : error("Course code already exists or prerequisites would create a cycle");
+            }
+
+            case "ASSIGN": {
+                List<String> refusal = catalogRefusal(loggedInAdmin, command, words);
+                if (refusal != null) {
+                    return refusal;
+                }
+                loggedInAdmin.assignCourseToLecturer(loggedInAdmin.findCourseByCode(words[1]),
+                        loggedInAdmin.findLecturerByUsername(words[2]));
+                return ok();
+            }
+
+            case "COMPLETE": {
+                if (words.length < 3 || words.length > 4) {
+                    return error("Usage: COMPLETE <student> <code> [grade]");
+                }
+                Student student = loggedInAdmin.getRegistry().findStudent(words[1]);
+                Course course = loggedInAdmin.findCourseByCode(words[2]);
+                if (student == null || course == null) {
+                    return error("Student or course not found");
+                }
+                int grade;
+                try {
+                    grade = words.length == 4 ? Integer.parseInt(words[3]) : AcademicHistory.NO_GRADE;
+                } catch (NumberFormatException e) {
+                    return error("Grade must be a number");
+                }
+                return loggedInAdmin.completeCourseForStudent(student, course, grade) ? ok()
+                        : error("Student is not taking that course or the grade is out of range");
+            }
+
+            case "ADVANCE":
+                return ok(Collections.singletonList(Integer.toString(loggedInAdmin.advanceTrimester())));
+
+            case "COMPLETED": {
+                if (words.length < 2 || words.length > 3) {
+                    return error("Usage: COMPLETED <code> [trimester]");
+                }
+                Course course = loggedInAdmin.findCourseByCode(words[1]);
+                if (course == null) {
+                    return error("Course not found");
+                }
+                int term;
+                try {
+                    term = words.length == 3 ? Integer.parseInt(words[2])
+                            : loggedInAdmin.getRegistry().getCurrentTerm() - 1;
+                } catch (NumberFormatException e) {
+                    return error("Trimester must be a number");
+                }
+                List<String> lines = new ArrayList<>();
+                for (Student student : loggedInAdmin.findStudentsWhoCompleted(course, term)) {
+                    lines.add(student.getUsername());
+                }
+                return ok(lines);
+            }
+
+            case "PLAN_ALL": {
+                List<Course> goals = planGoals(words);
+                if (goals == null) {
+                    return error("Usage: PLAN_ALL [goal;goal;...] with existing courses");
+                }
+                return ok(Collections.singletonList(Integer.toString(loggedInAdmin.planCohort(goals))));
+            }
+
+            case "LOAD_RULES": {
+                List<String> refusal = catalogRefusal(loggedInAdmin, command, words);
+                if (refusal != null) {
+                    return refusal;
+                }
+                return loggedInAdmin.loadRules(words[1]) ? ok() : error("Rules not loaded");
+            }
+
+            case "ELIGIBLE": {
+                if (words.length != 2) {
+                    return error("Usage: ELIGIBLE <code>");
+                }
+                Course course = loggedInAdmin.findCourseByCode(words[1]);
+                if (course == null) {
+                    return error("Course not found");
+                }
+                return ok(Collections.singletonList(Integer.toString(loggedInAdmin.countEligibleStudents(course))));
+            }
+
+            case "SEATS": {
+                if (words.length != 3) {
+                    return error("Usage: SEATS <code> <delta>");
+                }
+                Course course = loggedInAdmin.findCourseByCode(words[1]);
+                if (course == null) {
+                    return error("Course not found");
+                }
+                int delta;
+                try {
+                    delta = Integer.parseInt(words[2]);
+                } catch (NumberFormatException e) {
+                    return error("Delta must be a number");
+                }
+                int taken = course.reserveSeats(delta);
+                return taken < 0 ? error("Course is full") : ok(Collections.singletonList(Integer.toString(taken)));
+            }
+
+            case "LEASE": {
+                if (words.length != 3) {
+                    return error("Usage: LEASE <code> <seats>");
+                }
+                Course course = loggedInAdmin.findCourseByCode(words[1]);
+                if (course == null) {
+                    return error("Course not found");
+                }
+                int wanted;
+                try {
+                    wanted = Integer.parseInt(words[2]);
+                } catch (NumberFormatException e) {
+                    return error("Seats must be a number");
+                }
+                if (wanted < 1) {
+                    return error("Seats must be positive");
+                }
+                return ok(Collections.singletonList(Integer.toString(course.leaseSeats(wanted))));
+            }
+
+            case "CAPACITY": {
+                List<String> refusal = catalogRefusal(loggedInAdmin, command, words);
+                if (refusal != null) {
+                    return refusal;
+                }
+                return loggedInAdmin.setCourseCapacity(loggedInAdmin.findCourseByCode(words[1]),
+                        Integer.parseInt(words[2])) ? ok() : error("Seats must not be negative");
+            }
+
+            case "CHECK": {
+                String checked = words.length < 2 ? "" : words[1].toUpperCase(Locale.ROOT);
+                if (!CATALOG_CHANGES.contains(checked)) {
+                    return error("Usage: CHECK <change to the catalog or calendar>");
+                }
+                List<String> refusal = catalogRefusal(loggedInAdmin, checked, Arrays.copyOfRange(words, 1,
+                        words.length));
+                return refusal == null ? ok() : refusal;
+            }
+
+            case "WAITING": {
+                if (words.length != 2) {
+                    return error("Usage: WAITING <code>");
+                }
+                Course course = loggedInAdmin.findCourseByCode(words[1]);
+                if (course == null) {
+                    return error("Course not found");
+                }
+                return ok(course.getWaitlist().getUsernames());
+            }
+
+            case "COUNTS": {
+                List<String> lines = new ArrayList<>();
+                for (Course course : loggedInAdmin.getRegistry().getCourses()) {
+                    lines.add(course.getcourseCode() + " " + course.getEnrolledCount());
+                }
+                return ok(lines);
+            }
+
+            case "USERS": {
+                // One version of the catalog, which no registration changes while it is listed.
+                CatalogVersion version = loggedInAdmin.getRegistry().snapshot();
+                List<String> lines = new ArrayList<>();
+                for (Student student : version.getStudents()) {
+                    lines.add("student " + student.getUsername());
+                }
+                for (Lecturer lecturer : version.getLecturers()) {
+                    lines.add("lecturer " + lecturer.getUsername());
+                }
+                return ok(lines);
+            }
 
-            while ((line = reader.readLine()) != null) {
-                if (isHeader) {
-                    isHeader = false;
-                    continue;
+            default:
+                return error("Unknown admin command " + command);
+        }
+    }
+
+    private List<String> handleStudent(Student student, String command, String[] words) {
+        switch (command) {
+            case "REGISTER": {
+                if (words.length != 2) {
+                    return error("Usage: REGISTER <code>");
+                }
+                Course course = admin().findCourseByCode(words[1]);
+                if (course == null) {
+                    return error("Course not found");
                 }
+                if (admin().registerStudentForCourse(student, course)) {
+                    return ok();
+                }
+                return course.hasFreeSeat() && course.getWaitlist().isEmpty() || student.isTaking(course)
+                        ? error("Unable to register for the course")
+                        : error("Course is full; send WAITLIST " + course.getcourseCode() + " to queue for a seat");
+            }
 
-                String[] parts = line.split(",");
-                String type = parts[0];
-                String username = parts[1];
-                String password = parts[2];
+            case "WAITLIST":
+            case "LEAVE_WAITLIST": {
+                if (words.length != 2) {
+                    return error("Usage: " + command + " <code>");
+                }
+                Course course = admin().findCourseByCode(words[1]);
+                if (course == null) {
+                    return error("Course not found");
+                }
+                if (command.equals("LEAVE_WAITLIST")) {
+                    return course.leaveWaitlist(student) ? ok() : error("Not on the waitlist");
+                }
+                if (!course.joinWaitlist(student)) {
+                    return error("Already registered for or waiting for that course");
+                }
+                // A student served before the reply was built has no place left.
+                int position = course.getWaitlist().positionOf(student.getUsername());
+                return ok(Collections.singletonList(position > 0 ? Integer.toString(position) : "served"));
+            }
 
-                switch (type) {
-                    case "Admin":
-                        loadedAdmin.admins.add(new Admin(username, password));
-                        break;
+            case "REGISTER_PLAN": {
+                if (words.length != 2) {
+                    return error("Usage: REGISTER_PLAN <code;code;...>");
+                }
+                RegistrationResult result = admin().registerStudentForCourses(student,
+                        CsvBulkLoader.splitCodes(words[1]));
+                return result.isSuccessful() ? ok() : error(String.join(" ", result.getErrors()));
+            }
 
-                    case "Student":
-                        loadedAdmin.students.add(new Student(username, password));
-                        break;
+            case "DROP": {
+                if (words.length != 2) {
+                    return error("Usage: DROP <code>");
+                }
+                Course course = admin().findCourseByCode(words[1]);
+                return course != null && admin().dropStudentFromCourse(student, course) ? ok()
+                        : error("Not registered for that course");
+            }
 
-                    case "Lecturer":
-                        loadedAdmin.lecturers.add(new Lecturer(username, password));
-                        break;
+            case "COURSES":
+                return ok(courseCodes(student.getRegisteredCourses(), ""));
 
-                    case "Course":
-                        if (parts.length >= 5) {
-                            Lecturer lecturer = loadedAdmin.findLecturerByUsername(parts[3]);
-                            List<Course> prerequisites = loadedAdmin.findCoursePrerequisites(parts[1]);
-                            int credits = Integer.parseInt(parts[4]);
-                            loadedAdmin.courses.add(new Course(parts[1], lecturer, prerequisites, credits));
-                        } else {
-                            System.out.println("Invalid data for Course. Skipping...");
-                        }
-                        break;
+            case "ELIGIBLE":
+                return ok(courseCodes(admin().getEligibleCourses(student), ""));
+
+            case "PLAN": {
+                List<Course> goals = planGoals(words);
+                if (goals == null) {
+                    return error("Usage: PLAN [goal;goal;...] with existing courses");
+                }
+                List<List<Course>> schedule = admin().planDegree(student, goals);
+                if (schedule == null) {
+                    return error("No schedule reaches those courses within the credit limits");
                 }
+                List<String> lines = new ArrayList<>(schedule.size());
+                for (List<Course> term : schedule) {
+                    lines.add(String.join(" ", courseCodes(term, "")));
+                }
+                return ok(lines);
             }
 
-            System.out.println("Data loaded from CSV file: " + fileName);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+            case "SUBJECTS": {
+                List<String> lines = courseCodes(student.getCompletedCourses(), "past ");
+                lines.addAll(courseCodes(student.getRegisteredCourses(), "current "));
+                lines.addAll(courseCodes(student.getPlannedCourses(), "future "));
+                return ok(lines);
+            }
 
-        return loadedAdmin;
+            default:
+                return error("Unknown student command " + command);
+        }
     }
 
-    Lecturer findLecturerByUsername(String username) {
-        for (Lecturer lecturer : lecturers) {
-            if (lecturer.getUsername().equals(username)) {
-                return lecturer;
+    private List<String> handleLecturer(Lecturer lecturer, String command) {
+        if (!command.equals("ROSTER")) {
+            return error("Unknown lecturer command " + command);
+        }
+
+        List<String> lines = new ArrayList<>();
+        List<Course> courses = lecturer.getAssignedCourses();
+        CatalogVersion version = courses.isEmpty() ? null : courses.get(0).getCatalogVersion();
+        for (Course course : courses) {
+            for (Student student : course.getEnrolledStudents(version)) {
+                lines.add(course.getcourseCode() + " " + student.getUsername());
             }
         }
+        return ok(lines);
+    }
 
-        return null;
+    /**
+     * Resolves the optional goal list of a planning request.
+     *
+     * @return The goal courses, the default goals if none were given, or
+     *         {@code null} if the request is malformed or names an unknown course.
+     */
+
+    private List<Course> planGoals(String[] words) {
+        if (words.length == 1) {
+            return admin().getDefaultPlanGoals();
+        }
+        if (words.length != 2) {
+            return null;
+        }
+        List<Course> goals = new ArrayList<>();
+        for (String code : CsvBulkLoader.splitCodes(words[1])) {
+            Course course = admin().findCourseByCode(code);
+            if (course == null) {
+                return null;
+            }
+            goals.add(course);
+        }
+        return goals;
     }
 
-    public List<Course> findCoursePrerequisites(String courseCode) {
-        List<Course> prerequisites = new ArrayList<>();
+    /**
+     * Checks a change to the catalog or the calendar without making it, so
+     * that a shard router can check it on every shard before making it on
+     * any.
+     *
+     * @param admin   The admin making the change.
+     * @param command The command, one of {@link #CATALOG_CHANGES}.
+     * @param words   The words of the request line.
+     * @return The reply refusing the change, or {@code null} if it can be made.
+     */
 
-        switch (courseCode) {
-            case "CS214":
-            case "CS224":
+    private static List<String> catalogRefusal(Admin admin, String command, String[] words) {
+        switch (command) {
+            case "CREATE_LECTURER":
+                if (words.length != 3) {
+                    return error("Usage: CREATE_LECTURER <username> <password>");
+                }
+                return admin.findLecturerByUsername(words[1]) != null ? error("Username already taken") : null;
 
-                prerequisites.add(findCourseByCode("CS113"));
-                prerequisites.add(findCourseByCode("CS123"));
-                break;
+            case "CREATE_COURSE": {
+                if (words.length < 4 || words.length > 5) {
+                    return error("Usage: CREATE_COURSE <code> <lecturer> <credits> [prerequisites;...]");
+                }
+                if (admin.findLecturerByUsername(words[2]) == null) {
+                    return error("Lecturer not found");
+                }
+                try {
+                    Integer.parseInt(words[3]);
+                } catch (NumberFormatException e) {
+                    return error("Credits must be a number");
+                }
+                if (admin.findCourseByCode(words[1]) != null) {
+                    return error("Course code already exists");
+                }
+                if (words.length == 5 && CsvBulkLoader.splitCodes(words[4]).contains(words[1])) {
+                    return error("Course code already exists or prerequisites would create a cycle");
+                }
+                return null;
+            }
 
-            case "CS316":
+            case "ASSIGN":
+                if (words.length != 3) {
+                    return error("Usage: ASSIGN <code> <lecturer>");
+                }
+                if (admin.findCourseByCode(words[1]) == null || admin.findLecturerByUsername(words[2]) == null) {
+                    return error("Course or lecturer not found");
+                }
+                return null;
 
-                prerequisites.add(findCourseByCode("CS133"));
-                prerequisites.add(findCourseByCode("CS214"));
-                break;
+            case "LOAD_RULES":
+                if (words.length != 2) {
+                    return error("Usage: LOAD_RULES <file>");
+                }
+                try {
+                    RegistrationRules.load(Paths.get(words[1]), null);
+                    return null;
+                } catch (IOException | IllegalArgumentException e) {
+                    return error("Rules not loaded");
+                }
+
+            case "CAPACITY": {
+                if (words.length != 3) {
+                    return error("Usage: CAPACITY <code> <seats>");
+                }
+                if (admin.findCourseByCode(words[1]) == null) {
+                    return error("Course not found");
+                }
+                int capacity;
+                try {
+                    capacity = Integer.parseInt(words[2]);
+                } catch (NumberFormatException e) {
+                    return error("Seats must be a number");
+                }
+                return capacity < 0 ? error("Seats must not be negative") : null;
+            }
 
             default:
-                break;
+                return null;
         }
+    }
 
-        return prerequisites;
+    private static List<String> courseCodes(List<Course> courses, String prefix) {
+        List<String> lines = new ArrayList<>(courses.size());
+        for (Course course : courses) {
+            lines.add(prefix + course.getcourseCode());
+        }
+        return lines;
     }
 
-    public List<Student> getStudents() {
-        return students;
+    static List<String> ok() {
+        return Collections.singletonList("OK");
     }
 
-    public List<Lecturer> getLecturers() {
-        return lecturers;
+    static List<String> ok(List<String> lines) {
+        List<String> reply = new ArrayList<>(lines.size() + 1);
+        reply.add("OK " + lines.size());
+        reply.addAll(lines);
+        return reply;
     }
 
-    public List<Course> getCourses() {
-        return courses;
+    static List<String> error(String message) {
+        return Collections.singletonList("ERR " + message);
     }
 
-    public Set<String> getCourseCodeSet() {
-        return courseCodeSet;
+    /**
+     * Stops accepting connections and closes the open sessions.
+     */
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        connections.shutdownNow();
     }
 
-    public void viewStudentsInCourse(Lecturer lecturer, Course course) {
-        List<Student> students = course.getEnrolledStudents();
-        System.out.println("Students enrolled in " + course.getcourseCode() + " for " + lecturer.getUsername() + ":");
-        for (Student student : students) {
-            System.out.println("- " + student.getUsername());
+    /**
+     * The session token of the user logged in on one connection. The user is
+     * resolved from the token on every command rather than kept here.
+     */
+
+    static class ServerSession {
+        private String token;
+        /**
+         * The admin whose state the user belongs to.
+         */
+        private Admin origin;
+        /**
+         * True once the connection proved it is a shard router's link.
+         */
+        private boolean router;
+
+        boolean isLoggedIn() {
+            return token != null;
+        }
+
+        void attach(String sessionToken) {
+            logout();
+            token = sessionToken;
+        }
+
+        void logout() {
+            token = null;
+            origin = null;
         }
     }
+}
 
-    public void viewAllStudentsAndLecturers() {
-        System.out.println("\nAll Students:");
-        for (Student student : students) {
-            System.out.println("- " + student.getUsername());
+/**
+ * The {@code ShardRing} class assigns keys, such as usernames and course
+ * codes, to shards with consistent hashing.
+ * Every shard owns many points on a ring of 64-bit hashes, and a key belongs
+ * to the shard of the first point at or after the key's hash. With enough
+ * points per shard the keys spread evenly, and a change in the number of
+ * shards only moves the keys of the points that changed hands.
+ */
+
+class ShardRing {
+    private static final int POINTS_PER_SHARD = 160;
+
+    private final int shards;
+    private final long[] points;
+    private final int[] owners;
+
+    /**
+     * Constructs a ring of shards.
+     *
+     * @param shards The number of shards.
+     * @throws IllegalArgumentException If there are no shards.
+     */
+
+    public ShardRing(int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("A ring needs at least one shard");
+        }
+        this.shards = shards;
+        long[] keyed = new long[shards * POINTS_PER_SHARD];
+        Map<Long, Integer> ownerOf = new HashMap<>();
+        for (int shard = 0; shard < shards; shard++) {
+            for (int point = 0; point < POINTS_PER_SHARD; point++) {
+                long hash = hash("shard-" + shard + "#" + point);
+                keyed[shard * POINTS_PER_SHARD + point] = hash;
+                ownerOf.putIfAbsent(hash, shard);
+            }
+        }
+        this.points = Arrays.stream(keyed).distinct().sorted().toArray();
+        this.owners = new int[points.length];
+        for (int i = 0; i < points.length; i++) {
+            owners[i] = ownerOf.get(points[i]);
         }
+    }
+
+    public int size() {
+        return shards;
+    }
+
+    /**
+     * Finds the shard a key belongs to.
+     *
+     * @param key The key.
+     * @return The index of the shard.
+     */
 
-        System.out.println("\nAll Lecturers:");
-        for (Lecturer lecturer : lecturers) {
-            System.out.println("- " + lecturer.getUsername());
+    public int shardOf(String key) {
+        int at = Arrays.binarySearch(points, hash(key));
+        if (at < 0) {
+            at = -at - 1;
         }
+        return owners[at == points.length ? 0 : at];
     }
 
+    /**
+     * Hashes a key with 64-bit FNV-1a over its UTF-8 bytes, followed by a
+     * final mix so that similar keys land far apart on the ring.
+     */
+
+    private static long hash(String key) {
+        long hash = 0xCBF29CE484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001B3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        return hash ^ hash >>> 33;
+    }
 }
 
 /**
- * The {@code Student} class represents a user with student privileges in a
- * university system.
- * It extends the {@link User} class, inheriting basic authentication
- * functionality.
- * This class includes features specific to students, such as course
- * registration,
- * viewing past, current, and future subjects, and checking credit limits.
- * 
- * @author [Salah]
- * @version 1.0
- * @since [18/02/2024]
+ * The {@code ShardRouter} class spreads the university over several worker
+ * processes, each a {@link UniversityServer} with its own {@link Admin}, and
+ * serves the same line-based protocol in front of them.
+ * Students are partitioned by a consistent hash of their username, so a
+ * student's login, registrations and subjects go to the single shard that
+ * owns them and shards never share a student. Courses, lecturers and rules
+ * are copied to every shard, so each shard can check prerequisites and credit
+ * limits on its own.
+ *
+ * <p>Every course is also owned by one shard, chosen by the same hash of its
+ * code, which keeps the number of seats taken in the course by students of
+ * all shards. The router leases seats from the owner a batch at a time and
+ * hands them to registrations itself, so most registrations never wait for
+ * the owner; a seat goes back to the lease if the student's shard refuses the
+ * registration, and drops and completions give seats back to it. A lease
+ * grown well past a batch returns its surplus to the owner, and a course's
+ * lease is returned before its capacity changes, so that seats are never
+ * given beyond the new capacity. Seat counts are rebuilt from the shards'
+ * enrolled counts when the router starts, which also reclaims the seats an
+ * earlier router still held.
+ *
+ * <p>Changes to the catalog and the calendar are made one at a time, and
+ * each is first checked on every shard, so that a change one shard would
+ * refuse is made on none. The router's own links prove themselves to the
+ * workers with a secret, and only they may move seats or check changes.
+ *
+ * <p>Tokens handed out by the router name the role and the shards' own
+ * tokens, so {@code RESUME} works as it does against a single server.
  */
 
-class Student extends User {
+class ShardRouter implements Closeable {
+    /**
+     * The environment variable a launched worker finds the router's secret in.
+     */
+    static final String SECRET_VARIABLE = "UNIVERSITY_ROUTER_SECRET";
+    private static final int COORDINATOR_LINKS = 4;
     /**
-     * List of courses that the student is currently registered for.
+     * The number of seats the router leases from a course's owner at a time.
      */
-    private List<Course> registeredCourses;
+    private static final int SEAT_LEASE = 16;
+    private static final long WORKER_START_TIMEOUT_MILLIS = 60_000;
+    private static final int SECRET_BYTES = 24;
     /**
-     * List of courses that the student has completed in the past.
+     * The JVM options a worker does not inherit, since a second JVM using
+     * them would compete for the parent's debug and management ports and
+     * recording files.
      */
-    private List<Course> pastSubjects;
+    private static final List<String> UNSHARED_JVM_OPTIONS = Arrays.asList("-agentlib:", "-agentpath:",
+            "-javaagent:", "-Xdebug", "-Xrunjdwp", "-XX:StartFlightRecording", "-XX:FlightRecorderOptions",
+            "-Dcom.sun.management.jmxremote");
+
+    private final ShardRing ring;
+    private final int[] workerPorts;
+    private final List<BlockingQueue<ShardLink>> coordinators;
+    private final List<Process> workers;
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections;
+    private final Thread acceptor;
     /**
-     * List of courses that the student is currently taking.
+     * Held while a change to the catalog or the calendar is checked and made.
      */
-    private List<Course> currentSubjects;
+    private final ReentrantLock catalogLock = new ReentrantLock();
+    private final ConcurrentMap<String, SeatLease> leases = new ConcurrentHashMap<>();
+
     /**
-     * List of courses that the student plans to take in the future.
+     * Starts a router in front of workers that are already listening.
+     *
+     * @param port          The port to listen on, or 0 for any free port.
+     * @param workerPorts   The loopback ports of the workers, in shard order.
+     * @param secret        The secret the workers were given with
+     *                      {@link UniversityServer#setRouterSecret(String)}.
+     * @param adminUsername The username of an admin that exists on every shard.
+     * @param adminPassword The password of that admin.
+     * @throws IOException If a worker cannot be reached, the admin cannot log
+     *                     in, the secret is refused, or the port cannot be bound.
      */
-    private List<Course> futureSubjects = new ArrayList<>();
+
+    public ShardRouter(int port, int[] workerPorts, String secret, String adminUsername, String adminPassword)
+            throws IOException {
+        this(port, workerPorts, secret, adminUsername, adminPassword, Collections.emptyList());
+    }
+
+    private ShardRouter(int port, int[] workerPorts, String secret, String adminUsername, String adminPassword,
+            List<Process> workers) throws IOException {
+        this.ring = new ShardRing(workerPorts.length);
+        this.workerPorts = workerPorts.clone();
+        this.workers = workers;
+        this.coordinators = new ArrayList<>(workerPorts.length);
+        for (int shard = 0; shard < workerPorts.length; shard++) {
+            BlockingQueue<ShardLink> links = new ArrayBlockingQueue<>(COORDINATOR_LINKS);
+            coordinators.add(links);
+            for (int i = 0; i < COORDINATOR_LINKS; i++) {
+                ShardLink link = new ShardLink(workerPorts[shard]);
+                links.add(link);
+                if (!isOk(link.call("LOGIN ADMIN " + adminUsername + " " + adminPassword))) {
+                    closeCoordinators();
+                    throw new IOException("Admin " + adminUsername + " cannot log in to shard " + shard);
+                }
+                if (!isOk(link.call("ROUTER " + secret))) {
+                    closeCoordinators();
+                    throw new IOException("Shard " + shard + " refused the router's secret");
+                }
+            }
+        }
+        rebuildSeats();
+
+        this.serverSocket = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+        this.connections = UniversityServer.newConnectionExecutor();
+        this.acceptor = new Thread(this::acceptLoop, "shard-router-acceptor");
+        this.acceptor.start();
+    }
+
     /**
-     * Maximum number of credits a student can take in a trimester.
+     * Starts one worker process per shard, on the ports following the
+     * router's, and a router in front of them. Each worker keeps its own
+     * snapshot and journal, inherits this JVM's options other than debugging
+     * and management agents, and gets a new secret for the router's links.
+     *
+     * @param port          The port of the router. The workers use the next ports.
+     * @param shards        The number of workers.
+     * @param adminUsername The username of the root admin of the workers.
+     * @param adminPassword The password of the root admin of the workers.
+     * @return The router.
+     * @throws IOException If a worker does not start or the router cannot start.
      */
-    private static final int MAX_CREDITS_PER_TRIMESTER = 12;
+
+    public static ShardRouter launch(int port, int shards, String adminUsername, String adminPassword)
+            throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<String> jvmOptions = new ArrayList<>();
+        for (String option : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (UNSHARED_JVM_OPTIONS.stream().noneMatch(option::startsWith)) {
+                jvmOptions.add(option);
+            }
+        }
+        byte[] secretBytes = new byte[SECRET_BYTES];
+        new SecureRandom().nextBytes(secretBytes);
+        String secret = Base64.getUrlEncoder().withoutPadding().encodeToString(secretBytes);
+        List<Process> workers = new ArrayList<>();
+        int[] workerPorts = new int[shards];
+        try {
+            for (int shard = 0; shard < shards; shard++) {
+                workerPorts[shard] = port + 1 + shard;
+                List<String> command = new ArrayList<>();
+                command.add(java);
+                command.addAll(jvmOptions);
+                command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), part2.class.getName(),
+                        "--worker", Integer.toString(shard), Integer.toString(workerPorts[shard])));
+                File log = new File("shard" + shard + ".log");
+                ProcessBuilder builder = new ProcessBuilder(command).redirectErrorStream(true)
+                        .redirectOutput(ProcessBuilder.Redirect.appendTo(log));
+                builder.environment().put(SECRET_VARIABLE, secret);
+                workers.add(builder.start());
+            }
+            for (int shard = 0; shard < shards; shard++) {
+                awaitWorker(workers.get(shard), workerPorts[shard]);
+            }
+            return new ShardRouter(port, workerPorts, secret, adminUsername, adminPassword, workers);
+        } catch (IOException | RuntimeException e) {
+            for (Process worker : workers) {
+                worker.destroy();
+            }
+            throw e;
+        }
+    }
+
     /**
-     * Minimum number of credits a student must take in a trimester.
+     * Waits until a worker accepts connections.
      */
-    private static final int MIN_CREDITS_PER_TRIMESTER = 3;
-    private List<Course> courses;
+
+    private static void awaitWorker(Process worker, int port) throws IOException {
+        long deadline = System.currentTimeMillis() + WORKER_START_TIMEOUT_MILLIS;
+        while (true) {
+            try {
+                new Socket(InetAddress.getLoopbackAddress(), port).close();
+                return;
+            } catch (IOException e) {
+                if (!worker.isAlive() || System.currentTimeMillis() > deadline) {
+                    throw new IOException("Worker on port " + port + " did not start", e);
+                }
+            }
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for port " + port);
+            }
+        }
+    }
 
     /**
-     * Constructs a new {@code Student} object with the specified username and
-     * password.
-     * Initializes the registeredCourses list.
+     * Gets the port the router is listening on.
      *
-     * @param username The username of the student.
-     * @param password The password of the student.
+     * @return The local port.
      */
 
-    public Student(String username, String password) {
-        super(username, password);
-        this.registeredCourses = new ArrayList<>();
-        this.courses = new ArrayList<>();
+    public int getPort() {
+        return serverSocket.getLocalPort();
     }
 
     /**
-     * Calculates and returns the total number of credits for the registered
-     * courses.
+     * Gets the ring that assigns students and courses to shards.
      *
-     * @return The total number of credits for registered courses.
+     * @return The ring.
      */
 
-    public int getTotalCredits() {
-        int totalCredits = 0;
-        for (Course course : registeredCourses) {
-            totalCredits += course.getCredits();
-        }
-        return totalCredits;
+    public ShardRing getRing() {
+        return ring;
     }
 
     /**
-     * Displays the list of past, current, and future subjects for the student.
+     * Sets every owner's seat counts to the sum of the enrolled counts of all
+     * shards.
      */
 
-    public void viewSubjects() {
-        System.out.println("Past Subjects:");
-        for (Course course : pastSubjects) {
-            System.out.println("- " + course.getcourseCode());
+    private void rebuildSeats() throws IOException {
+        Map<String, Integer> seats = new LinkedHashMap<>();
+        for (int shard = 0; shard < workerPorts.length; shard++) {
+            List<String> reply = coordinate(shard, "COUNTS");
+            for (String line : reply.subList(1, reply.size())) {
+                int space = line.lastIndexOf(' ');
+                seats.merge(line.substring(0, space), Integer.parseInt(line.substring(space + 1)), Integer::sum);
+            }
         }
+        for (Map.Entry<String, Integer> entry : seats.entrySet()) {
+            int owner = ring.shardOf(entry.getKey());
+            int taken = Integer.parseInt(coordinate(owner, "SEATS " + entry.getKey() + " 0").get(1));
+            coordinate(owner, "SEATS " + entry.getKey() + " " + (entry.getValue() - taken));
+        }
+    }
 
-        System.out.println("Current Subjects:");
-        for (Course course : currentSubjects) {
-            System.out.println("- " + course.getcourseCode());
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    e.printStackTrace();
+                }
+            } catch (RejectedExecutionException e) {
+                return;
+            }
         }
+    }
+
+    /**
+     * Runs one client session until the client quits or disconnects.
+     */
 
-        System.out.println("Future Subjects:");
-        for (Course course : futureSubjects) {
-            System.out.println("- " + course.getcourseCode());
+    private void serve(Socket socket) {
+        RouterSession session = new RouterSession(workerPorts.length);
+        try (Socket client = socket;
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+                PrintWriter out = new PrintWriter(new BufferedWriter(
+                        new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8)))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] words = line.trim().split("\\s+");
+                if (words[0].equalsIgnoreCase("QUIT")) {
+                    out.println("OK");
+                    out.flush();
+                    return;
+                }
+                List<String> reply;
+                try {
+                    reply = handle(session, words);
+                } catch (IOException e) {
+                    reply = UniversityServer.error("Shard unavailable");
+                }
+                for (String replyLine : reply) {
+                    out.println(replyLine);
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The client went away; its links to the shards are closed below.
+        } finally {
+            session.close();
         }
     }
 
     /**
-     * Checks if adding a specified number of credits falls within the valid credit
-     * range
-     * for a trimester.
+     * Executes one request for a session, on the shards it concerns.
      *
-     * @param creditsToAdd The number of credits to be added.
-     * @return {@code true} if the credit range is valid, {@code false} otherwise.
+     * @param session The session the request belongs to.
+     * @param words   The words of the request line.
+     * @return The reply lines.
+     * @throws IOException If a shard cannot be reached.
      */
 
-    public boolean isValidCreditRange(int creditsToAdd) {
-        int totalCredits = getTotalCredits() + creditsToAdd;
-        return totalCredits >= MIN_CREDITS_PER_TRIMESTER && totalCredits <= MAX_CREDITS_PER_TRIMESTER;
+    List<String> handle(RouterSession session, String[] words) throws IOException {
+        String command = words[0].toUpperCase(Locale.ROOT);
+        String line = String.join(" ", words);
+        switch (command) {
+            case "HELP":
+                return UniversityServer.ok(Collections.singletonList(UniversityServer.HELP));
+            case "LOGIN":
+                return login(session, words, line);
+            case "RESUME":
+                return resume(session, words);
+            case "LOGOUT":
+                for (int shard : session.openShards()) {
+                    session.link(shard).call(line);
+                }
+                session.role = null;
+                return UniversityServer.ok();
+            default:
+                break;
+        }
+
+        if ("STUDENT".equals(session.role)) {
+            return handleStudent(session, command, words, line);
+        } else if ("ADMIN".equals(session.role)) {
+            return handleAdmin(session, command, words, line);
+        } else if ("LECTURER".equals(session.role)) {
+            return command.equals("ROSTER") ? roster(session, line)
+                    : UniversityServer.error("Unknown lecturer command " + command);
+        }
+        return UniversityServer.error("Not logged in");
+    }
+
+    /**
+     * Logs a student in on their own shard, and an admin or lecturer on every
+     * shard.
+     */
+
+    private List<String> login(RouterSession session, String[] words, String line) throws IOException {
+        if (words.length != 4) {
+            return UniversityServer.error("Usage: LOGIN ADMIN|STUDENT|LECTURER <username> <password>");
+        }
+        String role = words[1].toUpperCase(Locale.ROOT);
+        int[] shards = role.equals("STUDENT") ? new int[] { ring.shardOf(words[2]) } : allShards();
+        session.role = null;
+        StringBuilder token = new StringBuilder(role).append('/');
+        for (int shard : shards) {
+            List<String> reply = session.link(shard).call(line);
+            if (!isOk(reply)) {
+                return reply;
+            }
+            token.append(shard == shards[0] ? "" : ",").append(shard).append(':').append(reply.get(1));
+        }
+        session.role = role;
+        session.studentShard = shards[0];
+        return UniversityServer.ok(Collections.singletonList(token.toString()));
+    }
+
+    private List<String> resume(RouterSession session, String[] words) throws IOException {
+        int slash = words.length == 2 ? words[1].indexOf('/') : -1;
+        if (slash < 0) {
+            return UniversityServer.error("Usage: RESUME <token>");
+        }
+        session.role = null;
+        int first = -1;
+        for (String part : words[1].substring(slash + 1).split(",")) {
+            int colon = part.indexOf(':');
+            int shard;
+            try {
+                shard = Integer.parseInt(part.substring(0, Math.max(colon, 0)));
+            } catch (NumberFormatException e) {
+                return UniversityServer.error("Session expired");
+            }
+            if (shard < 0 || shard >= workerPorts.length) {
+                return UniversityServer.error("Session expired");
+            }
+            List<String> reply = session.link(shard).call("RESUME " + part.substring(colon + 1));
+            if (!isOk(reply)) {
+                return reply;
+            }
+            first = first < 0 ? shard : first;
+        }
+        session.role = words[1].substring(0, slash);
+        session.studentShard = first;
+        return UniversityServer.ok();
+    }
+
+    private List<String> handleStudent(RouterSession session, String command, String[] words, String line)
+            throws IOException {
+        ShardLink own = session.link(session.studentShard);
+        switch (command) {
+            case "REGISTER":
+            case "REGISTER_PLAN": {
+                List<String> codes = words.length == 2 ? CsvBulkLoader.splitCodes(words[1])
+                        : Collections.emptyList();
+                List<String> taken = new ArrayList<>();
+                for (String code : codes) {
+                    List<String> refusal = takeSeat(code);
+                    if (refusal != null) {
+                        releaseSeats(taken);
+                        return refusal;
+                    }
+                    taken.add(code);
+                }
+                List<String> reply = own.call(line);
+                if (!isOk(reply)) {
+                    releaseSeats(taken);
+                }
+                return reply;
+            }
+
+            case "DROP": {
+                List<String> reply = own.call(line);
+                if (isOk(reply)) {
+                    releaseSeats(Collections.singletonList(words[1]));
+                }
+                return reply;
+            }
+
+            case "WAITLIST":
+            case "LEAVE_WAITLIST":
+                // A shard only sees its own students' seats, so it cannot serve a waitlist fairly.
+                return UniversityServer.error("Waitlists are not available on a sharded deployment");
+
+            default:
+                return own.call(line);
+        }
     }
 
-    public void registerForCourse(Course course) {
-        if (course != null && canRegisterForCourse(course)) {
-            registeredCourses.add(course);
-            System.out.println(getUsername() + " successfully registered for " + course.getcourseCode());
-        } else {
-            System.out.println("Unable to register for the course.");
+    private List<String> handleAdmin(RouterSession session, String command, String[] words, String line)
+            throws IOException {
+        switch (command) {
+            case "CREATE_STUDENT":
+            case "COMPLETE": {
+                if (words.length < 2) {
+                    return session.link(0).call(line);
+                }
+                List<String> reply = session.link(ring.shardOf(words[1])).call(line);
+                if (command.equals("COMPLETE") && isOk(reply)) {
+                    releaseSeats(Collections.singletonList(words[2]));
+                }
+                return reply;
+            }
+
+            case "SEATS":
+            case "LEASE":
+            case "COUNTS":
+            case "CHECK":
+                return UniversityServer.error("Only the shard router may send " + command);
+
+            case "COMPLETED": {
+                List<String> lines = new ArrayList<>();
+                for (int shard : allShards()) {
+                    List<String> reply = session.link(shard).call(line);
+                    if (!isOk(reply)) {
+                        return reply;
+                    }
+                    lines.addAll(reply.subList(1, reply.size()));
+                }
+                return UniversityServer.ok(lines);
+            }
+
+            case "ELIGIBLE":
+            case "PLAN_ALL": {
+                long total = 0;
+                for (int shard : allShards()) {
+                    List<String> reply = session.link(shard).call(line);
+                    if (!isOk(reply)) {
+                        return reply;
+                    }
+                    total += Long.parseLong(reply.get(1));
+                }
+                return UniversityServer.ok(Collections.singletonList(Long.toString(total)));
+            }
+
+            case "USERS": {
+                // Students are split between the shards; lecturers are on all of them.
+                List<String> lines = new ArrayList<>();
+                List<String> lecturers = new ArrayList<>();
+                for (int shard : allShards()) {
+                    List<String> reply = session.link(shard).call(line);
+                    if (!isOk(reply)) {
+                        return reply;
+                    }
+                    for (String user : reply.subList(1, reply.size())) {
+                        if (user.startsWith("student ")) {
+                            lines.add(user);
+                        } else if (shard == 0) {
+                            lecturers.add(user);
+                        }
+                    }
+                }
+                lines.addAll(lecturers);
+                return UniversityServer.ok(lines);
+            }
+
+            case "CAPACITY": {
+                SeatLease lease = words.length == 3 ? leases.get(words[1]) : null;
+                if (lease == null) {
+                    return changeCatalog(session, line);
+                }
+                // Registrations for the course wait until the new capacity is made.
+                synchronized (lease) {
+                    returnSeats(words[1], lease.available);
+                    lease.available = 0;
+                    return changeCatalog(session, line);
+                }
+            }
+
+            default: {
+                if (UniversityServer.CATALOG_CHANGES.contains(command)) {
+                    return changeCatalog(session, line);
+                }
+                // Every shard has the same catalog, so any of them can answer other requests.
+                return session.link(0).call(line);
+            }
         }
     }
-    
 
     /**
-     * Checks if the student is eligible to register for a specific course based on
-     * prerequisites.
-     *
-     * @param course The course to check for eligibility.
-     * @return {@code true} if eligible, {@code false} otherwise.
+     * Gathers a lecturer's rosters from every shard, keeping each course's
+     * students together.
      */
 
-    private boolean canRegisterForCourse(Course course) {
-        for (Course prerequisite : course.getprerequisites()) {
-            if (!hasCompletedCourse(prerequisite)) {
-                return false;
+    private List<String> roster(RouterSession session, String line) throws IOException {
+        Map<String, List<String>> byCourse = new LinkedHashMap<>();
+        for (int shard : allShards()) {
+            List<String> reply = session.link(shard).call(line);
+            if (!isOk(reply)) {
+                return reply;
+            }
+            for (String entry : reply.subList(1, reply.size())) {
+                byCourse.computeIfAbsent(entry.substring(0, entry.indexOf(' ')), code -> new ArrayList<>())
+                        .add(entry);
             }
         }
-        return true;
+        List<String> lines = new ArrayList<>();
+        for (List<String> entries : byCourse.values()) {
+            lines.addAll(entries);
+        }
+        return UniversityServer.ok(lines);
     }
 
     /**
-     * Checks if the student has completed a specific course.
-     *
-     * @param course The course to check for completion.
-     * @return {@code true} if the course is completed, {@code false} otherwise.
+     * Makes a change to the catalog or the calendar on every shard. The
+     * change is checked on every shard first and made on none if any shard
+     * refuses it, and changes are made one at a time, so that every shard
+     * makes the same changes in the same order.
      */
 
-    public boolean hasCompletedCourse(Course course) {
-        return registeredCourses.contains(course);
+    private List<String> changeCatalog(RouterSession session, String line) throws IOException {
+        catalogLock.lock();
+        try {
+            for (int shard : allShards()) {
+                List<String> reply = coordinate(shard, "CHECK " + line);
+                if (!isOk(reply)) {
+                    return reply;
+                }
+            }
+            List<String> first = null;
+            for (int shard : allShards()) {
+                List<String> reply = session.link(shard).call(line);
+                if (!isOk(reply)) {
+                    return shard == 0 ? reply : UniversityServer.error("Shard " + shard
+                            + " refused a change already made on shards 0 to " + (shard - 1) + ": " + reply.get(0));
+                }
+                first = first == null ? reply : first;
+            }
+            return first;
+        } finally {
+            catalogLock.unlock();
+        }
     }
 
     /**
-     * Attempts to log in a student based on provided username and password.
+     * Takes a seat in a course from the router's lease, leasing more from the
+     * course's owner if the lease is empty.
      *
-     * @param students List of students to search for the login credentials.
-     * @param username The username for authentication.
-     * @param password The password for authentication.
-     * @return The logged-in student or {@code null} if login fails.
+     * @return {@code null} if a seat was taken, or the reply that refused it.
      */
 
-    public static Student loginStudent(List<Student> students, String username, String password) {
-        for (Student student : students) {
-            if (student.authenticate(username, password)) {
-                return student;
+    private List<String> takeSeat(String code) throws IOException {
+        SeatLease lease = leases.computeIfAbsent(code, key -> new SeatLease());
+        synchronized (lease) {
+            if (lease.available == 0) {
+                List<String> reply = coordinate(ring.shardOf(code), "LEASE " + code + " " + SEAT_LEASE);
+                if (!isOk(reply)) {
+                    leases.remove(code, lease);
+                    return reply;
+                }
+                lease.available = Integer.parseInt(reply.get(1));
+                if (lease.available == 0) {
+                    return UniversityServer.error("Course is full");
+                }
             }
+            lease.available--;
+            return null;
         }
-        return null;
     }
 
     /**
-     * Retrieves the list of registered courses for the student.
-     *
-     * @return The list of registered courses.
+     * Gives seats back to the router's leases, returning a lease's surplus to
+     * the course's owner once it holds more than two batches.
      */
 
-    public List<Course> getRegisteredCourses() {
-        return registeredCourses;
-    }
-
-    public Course findCourseByCode(String courseCode) {
-        for (Course course : courses) {
-            if (course.getcourseCode().equals(courseCode)) {
-                return course;
+    private void releaseSeats(List<String> codes) throws IOException {
+        for (String code : codes) {
+            SeatLease lease = leases.computeIfAbsent(code, key -> new SeatLease());
+            synchronized (lease) {
+                lease.available++;
+                if (lease.available > 2 * SEAT_LEASE) {
+                    returnSeats(code, lease.available - SEAT_LEASE);
+                    lease.available = SEAT_LEASE;
+                }
             }
         }
-        return null;
     }
 
-    public void viewRegisteredCourses() {
-        System.out.println("Registered Courses:");
-        for (Course course : registeredCourses) {
-            System.out.println("- " + course.getcourseCode());
+    private void returnSeats(String code, int seats) throws IOException {
+        if (seats > 0) {
+            coordinate(ring.shardOf(code), "SEATS " + code + " " + -seats);
         }
     }
-}
 
-/**
- * The {@code Lecturer} class represents a user with lecturer privileges in a
- * university system.
- * It extends the {@link User} class, inheriting basic authentication
- * functionality.
- * This class includes features specific to lecturers,
- * such as viewing students
- * in assigned courses
- * and assigning courses to lecturers.
- * 
- * @author [Salah]
- * @version 1.0
- * @since [18/02/2024]
- */
-
-class Lecturer extends User {
     /**
-     * List of courses assigned to the lecturer.
+     * Sends a request to a shard as the router's own admin, on one of the
+     * shard's pooled links.
      */
-    private List<Course> assignedCourses;
 
-    /**
-     * Constructor for Lecturer.
-     *
-     * @param username The username of the lecturer.
-     * @param password The password of the lecturer.
-     */
+    private List<String> coordinate(int shard, String line) throws IOException {
+        BlockingQueue<ShardLink> links = coordinators.get(shard);
+        ShardLink link;
+        try {
+            link = links.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for shard " + shard);
+        }
+        try {
+            return link.call(line);
+        } finally {
+            links.add(link);
+        }
+    }
 
-    public Lecturer(String username, String password) {
-        super(username, password);
-        this.assignedCourses = new ArrayList<>();
+    private int[] allShards() {
+        int[] shards = new int[workerPorts.length];
+        for (int shard = 0; shard < shards.length; shard++) {
+            shards[shard] = shard;
+        }
+        return shards;
     }
 
-    /**
-     * Attempts to log in a lecturer based on provided username and password.
-     *
-     * @param lecturers List of lecturers to search for the login credentials.
-     * @param username  The username for authentication.
-     * @param password  The password for authentication.
-     * @return The logged-in lecturer or {@code null} if login fails.
-     */
+    private static boolean isOk(List<String> reply) {
+        return reply.get(0).startsWith("OK");
+    }
 
-    public static Lecturer loginLecturer(List<Lecturer> lecturers, String username, String password) {
-        for (Lecturer lecturer : lecturers) {
-            if (lecturer.authenticate(username, password)) {
-                return lecturer;
+    private void closeCoordinators() {
+        for (BlockingQueue<ShardLink> links : coordinators) {
+            for (ShardLink link : links) {
+                link.close();
             }
         }
-        return null;
     }
 
     /**
-     * Displays the list of students in the courses assigned to the lecturer.
-     * If no courses are assigned, a corresponding message is printed.
+     * Stops accepting connections, closes the sessions and stops the workers
+     * this router started. Workers save their state as they shut down.
      */
 
-    public void viewStudentsInAssignedCourses() {
-        if (assignedCourses.isEmpty()) {
-            System.out.println("You are not assigned to any courses.");
-        } else {
-            System.out.println("Students in Assigned Courses:");
-            for (Course course : assignedCourses) {
-                System.out.println("Course: " + course.getcourseCode());
-                List<Student> studentsInCourse = course.getEnrolledStudents();
-                if (studentsInCourse.isEmpty()) {
-                    System.out.println("No students enrolled in this course.");
-                } else {
-                    for (Student student : studentsInCourse) {
-                        System.out.println("- " + student.getUsername());
-                    }
-                }
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        connections.shutdownNow();
+        closeCoordinators();
+        for (Process worker : workers) {
+            worker.destroy();
+        }
+        for (Process worker : workers) {
+            try {
+                worker.waitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
             }
         }
     }
 
     /**
-     * Assigns a course to the lecturer.
-     *
-     * @param course The course to be assigned.
+     * Seats in one course that the router took from the course's owner and
+     * has not yet handed to a registration. Guarded by its own monitor.
      */
 
-    public void assignCourse(Course course) {
-        assignedCourses.add(course);
+    private static final class SeatLease {
+        private int available;
     }
 
     /**
-     * Retrieves the list of courses assigned to the lecturer.
-     *
-     * @return The list of assigned courses.
+     * A connection to one worker, over which one request is in flight at a
+     * time.
      */
 
-    public List<Course> getAssignedCourses() {
-        return assignedCourses;
+    static final class ShardLink implements Closeable {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final PrintWriter out;
+
+        ShardLink(int port) throws IOException {
+            this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            socket.setTcpNoDelay(true);
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.out = new PrintWriter(new BufferedWriter(
+                    new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)));
+        }
+
+        /**
+         * Sends one request and reads its whole reply.
+         *
+         * @param line The request line.
+         * @return The reply lines, starting with {@code OK} or {@code ERR}.
+         * @throws IOException If the worker closed the connection.
+         */
+
+        synchronized List<String> call(String line) throws IOException {
+            out.println(line);
+            out.flush();
+            String status = in.readLine();
+            if (status == null) {
+                throw new EOFException("Shard closed the connection");
+            }
+            List<String> reply = new ArrayList<>();
+            reply.add(status);
+            if (status.startsWith("OK ")) {
+                int lines = Integer.parseInt(status.substring(3));
+                for (int i = 0; i < lines; i++) {
+                    reply.add(in.readLine());
+                }
+            }
+            return reply;
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed.
+            }
+        }
     }
-}
 
+    /**
+     * The user logged in on one client connection, and that connection's own
+     * links to the shards, opened on first use.
+     */
+
+    final class RouterSession {
+        private final ShardLink[] links;
+        private String role;
+        private int studentShard;
+
+        RouterSession(int shards) {
+            this.links = new ShardLink[shards];
+        }
+
+        ShardLink link(int shard) throws IOException {
+            if (links[shard] == null) {
+                links[shard] = new ShardLink(workerPorts[shard]);
+            }
+            return links[shard];
+        }
+
+        List<Integer> openShards() {
+            List<Integer> shards = new ArrayList<>();
+            for (int shard = 0; shard < links.length; shard++) {
+                if (links[shard] != null) {
+                    shards.add(shard);
+                }
+            }
+            return shards;
+        }
+
+        void close() {
+            for (ShardLink link : links) {
+                if (link != null) {
+                    link.close();
+                }
+            }
+        }
+    }
+}
 
 public class part2{
+    private static final String SNAPSHOT_FILE = "university.snapshot";
+    private static final String JOURNAL_FILE = "university.journal";
+    private static final String STUDENT_RECORDS_FILE = "university.students";
+    private static final int STUDENT_CACHE_CAPACITY = 10_000;
+    private static final long COMPACTION_THRESHOLD_BYTES = 1024 * 1024;
+    private static final long ELIGIBILITY_REFRESH_SECONDS = 60;
+    private static final String RULES_FILE = "university.rules";
+    private static final String METRICS_FILE = "university.metrics";
+    private static final long METRICS_DUMP_SECONDS = 10;
+    private static final int DEFAULT_PORT = 7070;
+    private static final int DEFAULT_SHARDS = 4;
+    private static final long MAX_REPLICA_LAG_MILLIS = 5_000;
+
     public static void main(String[] args) {
+        if (!isValidCommandLine(args)) {
+            System.out.println("Usage: java university.part2 [--serve [port [replicaPort]]"
+                    + " | --replica <primaryPort> [port] | --router [port [shards]] | --worker <shard> <port>]");
+            return;
+        }
+
+        if (args.length > 1 && args[0].equals("--replica")) {
+            replicate(Integer.parseInt(args[1]), args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_PORT);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--router")) {
+            route(args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT,
+                    args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_SHARDS);
+            return;
+        }
+
+        // A worker of a sharded deployment keeps files of its own.
+        boolean worker = args.length > 2 && args[0].equals("--worker");
+        String files = worker ? "shard" + args[1] + "." : "";
         Scanner scanner = new Scanner(System.in);
-        Admin admin = new Admin("admin", "admin"); // Assuming a default admin for system initialization
+        DurableStore store = new DurableStore(Paths.get(files + SNAPSHOT_FILE), Paths.get(files + JOURNAL_FILE));
+        Admin admin;
+        try {
+            if (Boolean.getBoolean("university.studentRecords")) {
+                store = new DurableStore(Paths.get(files + SNAPSHOT_FILE), Paths.get(files + JOURNAL_FILE),
+                        StudentRecordStore.open(Paths.get(files + STUDENT_RECORDS_FILE), STUDENT_CACHE_CAPACITY));
+            }
+            admin = store.recover("admin", "admin"); // Assuming a default admin for system initialization
+            store.startBackgroundCompaction(COMPACTION_THRESHOLD_BYTES, 60);
+            if (Files.exists(Paths.get(RULES_FILE))) {
+                admin.loadRules(RULES_FILE);
+            }
+            admin.getRegistry().getEligibility().rebuild();
+            admin.getRegistry().getEligibility().startBackgroundRefresh(ELIGIBILITY_REFRESH_SECONDS);
+            Metrics.registerMBeans();
+            Metrics.startDump(Paths.get(files + METRICS_FILE), METRICS_DUMP_SECONDS);
+        } catch (IOException e) {
+            e.printStackTrace();
+            admin = new Admin("admin", "admin");
+        }
+
+        if (args.length > 0 && args[0].equals("--serve")) {
+            serve(admin, store, args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT,
+                    args.length > 2 ? Integer.parseInt(args[2]) : -1, null);
+            return;
+        }
+        if (worker) {
+            serve(admin, store, Integer.parseInt(args[2]), -1, System.getenv(ShardRouter.SECRET_VARIABLE));
+            return;
+        }
 
         while (true) {
             System.out.println("\n===== University System =====");
@@ -738,13 +12783,18 @@ public class part2{
                     adminLogin(admin, scanner);
                     break;
                 case 2:
-                    studentLogin(admin.getStudents(), scanner);
+                    studentLogin(admin, scanner);
                     break;
                 case 3:
-                    lecturerLogin(admin.getLecturers(), scanner);
+                    lecturerLogin(admin.getRegistry(), scanner);
                     break;
                 case 4:
                     System.out.println("Exiting University System. Goodbye!");
+                    try {
+                        store.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
                     System.exit(0);
                 default:
                     System.out.println("Invalid choice. Please try again.");
@@ -752,48 +12802,193 @@ public class part2{
         }
     }
 
+    /**
+     * Checks that the command line names a known mode and that every argument
+     * after the mode is a number.
+     *
+     * @param args The command line arguments.
+     * @return True if the arguments can be used, false otherwise.
+     */
+
+    private static boolean isValidCommandLine(String[] args) {
+        if (args.length == 0) {
+            return true;
+        }
+        if (!Arrays.asList("--serve", "--replica", "--router", "--worker").contains(args[0])
+                || args[0].equals("--replica") && args.length < 2 || args[0].equals("--worker") && args.length < 3) {
+            return false;
+        }
+        for (int i = 1; i < args.length; i++) {
+            try {
+                Integer.parseInt(args[i]);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Serves the system over the network instead of the console menus, until
+     * the process is stopped.
+     *
+     * @param admin    The admin whose state is served.
+     * @param store    The store to close on shutdown.
+     * @param port     The loopback port to listen on.
+     * @param shipPort The loopback port replicas follow the journal on, or -1
+     *                 to ship no log. Replicas must know the secret in
+     *                 {@link LogShipper#SECRET_VARIABLE}.
+     * @param secret   The secret of the shard router this server works for,
+     *                 or {@code null}.
+     */
+
+    private static void serve(Admin admin, DurableStore store, int port, int shipPort, String secret) {
+        try {
+            UniversityServer server = new UniversityServer(admin, port);
+            server.setRouterSecret(secret);
+            LogShipper shipper = shipPort < 0 || store.getJournal() == null ? null
+                    : new LogShipper(store, shipPort, System.getenv(LogShipper.SECRET_VARIABLE));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    server.close();
+                    if (shipper != null) {
+                        shipper.close();
+                    }
+                    store.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }));
+            System.out.println("University System listening on 127.0.0.1:" + server.getPort());
+            if (shipper != null) {
+                System.out.println("Shipping the journal to replicas on 127.0.0.1:" + shipper.getPort());
+            }
+        } catch (IOException | IllegalStateException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Serves a read-only copy of a primary, kept up to date from the
+     * primary's journal, until the process is stopped. The secret shared with
+     * the primary is read from {@link LogShipper#SECRET_VARIABLE}.
+     *
+     * @param primaryPort The loopback port the primary ships its journal on.
+     * @param port        The loopback port to listen on.
+     */
+
+    private static void replicate(int primaryPort, int port) {
+        try {
+            LogReplica replica = new LogReplica(primaryPort, System.getenv(LogShipper.SECRET_VARIABLE),
+                    MAX_REPLICA_LAG_MILLIS);
+            UniversityServer server = new UniversityServer(replica, port);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    server.close();
+                    replica.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }));
+            System.out.println("University System replica of port " + primaryPort + " listening on 127.0.0.1:"
+                    + server.getPort());
+        } catch (IOException | IllegalStateException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Starts a worker process per shard and a router in front of them, until
+     * the process is stopped.
+     *
+     * @param port   The port of the router. The workers use the next ports.
+     * @param shards The number of workers.
+     */
+
+    private static void route(int port, int shards) {
+        try {
+            ShardRouter router = ShardRouter.launch(port, shards, "admin", "admin");
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    router.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }));
+            System.out.println("University System routing " + shards + " shards on 127.0.0.1:" + router.getPort());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     private static void adminLogin(Admin admin, Scanner scanner) {
         System.out.print("Enter Admin Username: ");
         String username = scanner.nextLine();
         System.out.print("Enter Admin Password: ");
-        String password = scanner.nextLine();
-
-        Admin loggedInAdmin = admin.loginAdmin(username, password);
-        if (loggedInAdmin != null) {
-            adminMenu(loggedInAdmin, scanner);
-        } else {
+        Admin loggedInAdmin = admin.loginAdmin(username, scanner.nextLine());
+        if (loggedInAdmin == null) {
             System.out.println("Invalid username or password. Login failed.");
+            return;
         }
+
+        adminMenu(loggedInAdmin, scanner);
     }
 
-    private static void studentLogin(List<Student> students, Scanner scanner) {
+    private static void studentLogin(Admin admin, Scanner scanner) {
         System.out.print("Enter Student Username: ");
         String username = scanner.nextLine();
         System.out.print("Enter Student Password: ");
-        String password = scanner.nextLine();
-
-        Student loggedInStudent = Student.loginStudent(students, username, password);
-        if (loggedInStudent != null) {
-            studentMenu(loggedInStudent, scanner);
-        } else {
+        Student loggedInStudent = admin.loginStudent(username, scanner.nextLine());
+        if (loggedInStudent == null) {
             System.out.println("Invalid username or password. Login failed.");
+            return;
         }
+
+        studentMenu(admin, loggedInStudent, scanner);
     }
 
-    private static void lecturerLogin(List<Lecturer> lecturers, Scanner scanner) {
+    private static void lecturerLogin(Registry registry, Scanner scanner) {
         System.out.print("Enter Lecturer Username: ");
         String username = scanner.nextLine();
         System.out.print("Enter Lecturer Password: ");
-        String password = scanner.nextLine();
-
-        Lecturer loggedInLecturer = Lecturer.loginLecturer(lecturers, username, password);
-        if (loggedInLecturer != null) {
-            lecturerMenu(loggedInLecturer, scanner);
-        } else {
+        Lecturer loggedInLecturer = Lecturer.loginLecturer(registry, username, scanner.nextLine());
+        if (loggedInLecturer == null) {
             System.out.println("Invalid username or password. Login failed.");
+            return;
+        }
+
+        lecturerMenu(loggedInLecturer, scanner);
+    }
+
+    /**
+     * Resolves the goal courses of a degree plan, printing a message if one
+     * does not exist.
+     *
+     * @return The goal courses, or {@code null} if a code is unknown.
+     */
+
+    private static List<Course> readPlanGoals(Admin admin, String line) {
+        List<String> codes = CsvBulkLoader.splitCodes(line);
+        if (codes.isEmpty()) {
+            return admin.getDefaultPlanGoals();
+        }
+        List<Course> goals = new ArrayList<>();
+        for (String code : codes) {
+            Course course = admin.findCourseByCode(code);
+            if (course == null) {
+                System.out.println("Course " + code + " not found.");
+                return null;
+            }
+            goals.add(course);
         }
+        return goals;
     }
 
+    /**
+     * Shows the admin menu until the admin logs out or switches user. Either way
+     * the next user at the console has to enter their own password.
+     */
+
     private static void adminMenu(Admin admin, Scanner scanner) {
         while (true) {
             System.out.println("\n===== Admin Menu =====");
@@ -803,7 +12998,13 @@ public class part2{
             System.out.println("4. Assign Lecturer to Course");
             System.out.println("5. View All Students and Lecturers");
             System.out.println("6. Save to CSV");
-            System.out.println("7. Logout");
+            System.out.println("7. Record Course Completion");
+            System.out.println("8. Write Report to File");
+            System.out.println("9. Advance to Next Trimester");
+            System.out.println("10. Find Students Who Completed a Course");
+            System.out.println("11. Plan Degree Paths for All Students");
+            System.out.println("12. Switch User");
+            System.out.println("13. Logout");
 
             int choice = scanner.nextInt();
             scanner.nextLine(); // Consume the newline
@@ -814,16 +13015,22 @@ public class part2{
                     String studentUsername = scanner.nextLine();
                     System.out.print("Enter student password: ");
                     String studentPassword = scanner.nextLine();
-                    admin.createStudent(studentUsername, studentPassword);
-                    System.out.println("Student created successfully!");
+                    if (admin.createStudent(studentUsername, studentPassword)) {
+                        System.out.println("Student created successfully!");
+                    } else {
+                        System.out.println("Username already taken. Student creation failed.");
+                    }
                     break;
                 case 2:
                     System.out.print("Enter lecturer username: ");
                     String lecturerUsername = scanner.nextLine();
                     System.out.print("Enter lecturer password: ");
                     String lecturerPassword = scanner.nextLine();
-                    admin.createLecturer(lecturerUsername, lecturerPassword);
-                    System.out.println("Lecturer created successfully!");
+                    if (admin.createLecturer(lecturerUsername, lecturerPassword)) {
+                        System.out.println("Lecturer created successfully!");
+                    } else {
+                        System.out.println("Username already taken. Lecturer creation failed.");
+                    }
                     break;
                 case 3:
                     System.out.print("Enter course code: ");
@@ -832,11 +13039,18 @@ public class part2{
                     String lecturerUsernameForCourse = scanner.nextLine();
                     Lecturer lecturerForCourse = admin.findLecturerByUsername(lecturerUsernameForCourse);
                     if (lecturerForCourse != null) {
-                        List<Course> prerequisitesForCourse = admin.findCoursePrerequisites(courseCode);
+                        System.out.print("Enter prerequisite course codes separated by ';' (blank for none): ");
+                        List<String> prerequisiteCodes = CsvBulkLoader.splitCodes(scanner.nextLine());
                         System.out.print("Enter credits for the course: ");
                         int creditsForCourse = scanner.nextInt();
-                        admin.createCourse(courseCode, lecturerForCourse, prerequisitesForCourse, creditsForCourse);
-                        System.out.println("Course created successfully!");
+                        if (admin.findCourseByCode(courseCode) != null) {
+                            System.out.println("Course code already exists. Course creation failed.");
+                        } else if (admin.createCourseWithPrerequisites(courseCode, lecturerForCourse, prerequisiteCodes,
+                                creditsForCourse)) {
+                            System.out.println("Course created successfully!");
+                        } else {
+                            System.out.println("Course creation failed.");
+                        }
                     } else {
                         System.out.println("Lecturer not found. Course creation failed.");
                     }
@@ -865,6 +13079,74 @@ public class part2{
                     admin.saveToCSV(fileName);
                     break;
                 case 7:
+                    System.out.print("Enter student username: ");
+                    String completingUsername = scanner.nextLine();
+                    System.out.print("Enter completed course code: ");
+                    String completedCourseCode = scanner.nextLine();
+                    System.out.print("Enter grade from 0 to 100 (blank for none): ");
+                    String gradeText = scanner.nextLine().trim();
+                    int grade;
+                    try {
+                        grade = gradeText.isEmpty() ? AcademicHistory.NO_GRADE : Integer.parseInt(gradeText);
+                    } catch (NumberFormatException e) {
+                        System.out.println("Grade must be a number. Recording failed.");
+                        break;
+                    }
+                    Student completingStudent = admin.getRegistry().findStudent(completingUsername);
+                    Course completedCourse = admin.findCourseByCode(completedCourseCode);
+                    if (completingStudent != null && completedCourse != null
+                            && admin.completeCourseForStudent(completingStudent, completedCourse, grade)) {
+                        System.out.println("Course completion recorded successfully!");
+                    } else {
+                        System.out.println("Student is not taking that course. Recording failed.");
+                    }
+                    break;
+                case 8:
+                    System.out.print("Enter report file name (.gz to compress): ");
+                    admin.writeReport(scanner.nextLine());
+                    break;
+                case 9:
+                    System.out.println("Now in trimester " + admin.advanceTrimester() + ".");
+                    break;
+                case 10:
+                    System.out.print("Enter course code: ");
+                    Course queriedCourse = admin.findCourseByCode(scanner.nextLine());
+                    int lastTerm = admin.getRegistry().getCurrentTerm() - 1;
+                    System.out.print("Enter trimester (blank for last trimester, " + lastTerm + "): ");
+                    String termText = scanner.nextLine().trim();
+                    if (queriedCourse == null) {
+                        System.out.println("Course not found.");
+                        break;
+                    }
+                    int queriedTerm;
+                    try {
+                        queriedTerm = termText.isEmpty() ? lastTerm : Integer.parseInt(termText);
+                    } catch (NumberFormatException e) {
+                        System.out.println("Trimester must be a number.");
+                        break;
+                    }
+                    try (ReportWriter report = ReportWriter.toConsole()) {
+                        report.line("Students who completed " + queriedCourse.getcourseCode() + " in trimester "
+                                + queriedTerm + ":");
+                        for (Student completed : admin.findStudentsWhoCompleted(queriedCourse, queriedTerm)) {
+                            report.item(completed.getUsername());
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    break;
+                case 11:
+                    System.out.print("Enter goal course codes separated by ';' (blank for the default chains): ");
+                    List<Course> cohortGoals = readPlanGoals(admin, scanner.nextLine());
+                    if (cohortGoals != null) {
+                        System.out.println("Planned paths for " + admin.planCohort(cohortGoals) + " of "
+                                + admin.getStudents().size() + " students.");
+                    }
+                    break;
+                case 12:
+                    System.out.println("Switching user.");
+                    return;
+                case 13:
                     System.out.println("Logging out Admin.");
                     return; // Return from the method to go back to the main menu
                 default:
@@ -873,13 +13155,23 @@ public class part2{
         }
     }
 
-    private static void studentMenu(Student student, Scanner scanner) {
+    /**
+     * Shows the student menu until the student logs out or switches user. Either way
+     * the next user at the console has to enter their own password.
+     */
+
+    private static void studentMenu(Admin admin, Student student, Scanner scanner) {
         while (true) {
             System.out.println("\n===== Student Menu =====");
             System.out.println("1. Register for Course");
             System.out.println("2. View Registered Courses");
             System.out.println("3. View Subjects");
-            System.out.println("4. Logout");
+            System.out.println("4. Drop Course");
+            System.out.println("5. Register for Trimester Plan");
+            System.out.println("6. Plan Degree Path");
+            System.out.println("7. View Eligible Courses");
+            System.out.println("8. Switch User");
+            System.out.println("9. Logout");
 
             int choice = scanner.nextInt();
             scanner.nextLine(); // Consume the newline
@@ -888,10 +13180,13 @@ public class part2{
                 case 1:
                     System.out.print("Enter course code to register: ");
                     String courseCodeToRegister = scanner.nextLine();
-                    Course courseToRegister = student.findCourseByCode(courseCodeToRegister);
+                    Course courseToRegister = admin.findCourseByCode(courseCodeToRegister);
                     if (courseToRegister != null) {
-                        student.registerForCourse(courseToRegister);
-                        System.out.println("Registered for the course successfully!");
+                        if (admin.registerStudentForCourse(student, courseToRegister)) {
+                            System.out.println("Registered for the course successfully!");
+                        } else {
+                            System.out.println("Unable to register for the course.");
+                        }
                     } else {
                         System.out.println("Course not found. Registration failed.");
                     }
@@ -903,6 +13198,60 @@ public class part2{
                     student.viewSubjects();
                     break;
                 case 4:
+                    System.out.print("Enter course code to drop: ");
+                    Course courseToDrop = admin.findCourseByCode(scanner.nextLine());
+                    if (courseToDrop != null && admin.dropStudentFromCourse(student, courseToDrop)) {
+                        System.out.println("Dropped the course successfully!");
+                    } else {
+                        System.out.println("You are not registered for that course. Drop failed.");
+                    }
+                    break;
+                case 5:
+                    System.out.print("Enter course codes separated by ';': ");
+                    RegistrationResult result = admin.registerStudentForCourses(student,
+                            CsvBulkLoader.splitCodes(scanner.nextLine()));
+                    if (result.isSuccessful()) {
+                        System.out.println("Registered for " + result.getRegistered().size() + " courses successfully!");
+                    } else {
+                        System.out.println("Plan rejected. Nothing was registered:");
+                        for (String error : result.getErrors()) {
+                            System.out.println("- " + error);
+                        }
+                    }
+                    break;
+                case 6:
+                    System.out.print("Enter goal course codes separated by ';' (blank for the default chains): ");
+                    List<Course> goals = readPlanGoals(admin, scanner.nextLine());
+                    if (goals == null) {
+                        break;
+                    }
+                    List<List<Course>> schedule = admin.planDegree(student, goals);
+                    if (schedule == null) {
+                        System.out.println("No schedule reaches those courses within the credit limits.");
+                    } else {
+                        for (int term = 0; term < schedule.size(); term++) {
+                            int trimester = student.getTrimester() + 1 + term;
+                            StringBuilder line = new StringBuilder("Trimester " + trimester + ":");
+                            for (Course course : schedule.get(term)) {
+                                line.append(' ').append(course.getcourseCode());
+                            }
+                            System.out.println(line);
+                        }
+                    }
+                    break;
+                case 7:
+                    List<Course> eligible = admin.getEligibleCourses(student);
+                    if (eligible.isEmpty()) {
+                        System.out.println("No courses are open to you yet.");
+                    }
+                    for (Course course : eligible) {
+                        System.out.println("- " + course.getcourseCode() + " (" + course.getCredits() + " credits)");
+                    }
+                    break;
+                case 8:
+                    System.out.println("Switching user.");
+                    return;
+                case 9:
                     System.out.println("Logging out Student.");
                     return; // Return from the method to go back to the main menu
                 default:
@@ -911,11 +13260,17 @@ public class part2{
         }
     }
 
+    /**
+     * Shows the lecturer menu until the lecturer logs out or switches user. Either way
+     * the next user at the console has to enter their own password.
+     */
+
     private static void lecturerMenu(Lecturer lecturer, Scanner scanner) {
         while (true) {
             System.out.println("\n===== Lecturer Menu =====");
             System.out.println("1. View Students in Assigned Courses");
-            System.out.println("2. Logout");
+            System.out.println("2. Switch User");
+            System.out.println("3. Logout");
 
             int choice = scanner.nextInt();
             scanner.nextLine(); // Consume the newline
@@ -925,6 +13280,9 @@ public class part2{
                     lecturer.viewStudentsInAssignedCourses();
                     break;
                 case 2:
+                    System.out.println("Switching user.");
+                    return;
+                case 3:
                     System.out.println("Logging out Lecturer.");
                     return; // Return from the method to go back to the main menu
                 default:
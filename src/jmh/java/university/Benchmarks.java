@@ -0,0 +1,207 @@
+package university;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The {@code Benchmarks} class measures the core operations of the system so
+ * that performance work can be compared against a baseline.
+ * Every benchmark is run for each population size (1k, 100k and 1M entities
+ * by default) in a forked JVM, with JMH handling warm-up and keeping the JIT
+ * from discarding the work.
+ *
+ * <p>Run with {@code gradle jmh}, or pick sizes with
+ * {@code gradle jmh -Ppopulation=1000,100000}.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class Benchmarks {
+    private static final String PASSWORD = "password";
+    /**
+     * Registrations timed per iteration. Every iteration registers students
+     * for a new course, so no student registers twice for the same course.
+     */
+    private static final int REGISTRATIONS_PER_ITERATION = 1_000;
+
+    /**
+     * An admin with {@code population} students, lecturers and courses.
+     * Every student has completed the prerequisites of CS316.
+     */
+
+    @State(Scope.Benchmark)
+    public static class Population {
+        @Param({ "1000", "100000", "1000000" })
+        public int population;
+
+        Admin admin;
+        Registry registry;
+        Lecturer lecturer;
+        Course advanced;
+        String[] usernames;
+        int cursor;
+
+        /**
+         * Builds the population. All users share one password hash, so a
+         * large population does not pay the hashing cost once per user.
+         */
+
+        @Setup(Level.Trial)
+        public void populate() {
+            String passwordHash = PasswordHasher.hash(PASSWORD);
+            admin = new Admin("admin", passwordHash, true);
+            registry = admin.getRegistry();
+            for (int i = 0; i < population; i++) {
+                registry.addLecturer(new Lecturer("lecturer" + i, passwordHash, true));
+            }
+            lecturer = admin.findLecturerByUsername("lecturer0");
+            for (int i = 0; i < population; i++) {
+                admin.createCourse("C" + i, lecturer, new ArrayList<>(), 3);
+            }
+            for (String courseCode : new String[] { "CS113", "CS123", "CS133", "CS214", "CS316" }) {
+                admin.createCourse(courseCode, lecturer, new ArrayList<>(), 6);
+            }
+
+            Course[] completed = { admin.findCourseByCode("CS113"), admin.findCourseByCode("CS123"),
+                    admin.findCourseByCode("CS133"), admin.findCourseByCode("CS214") };
+            usernames = new String[population];
+            for (int i = 0; i < population; i++) {
+                usernames[i] = "student" + i;
+                registry.addStudent(new Student(usernames[i], passwordHash, true));
+                Student student = registry.findStudent(usernames[i]);
+                for (Course course : completed) {
+                    student.addCompletedCourse(course);
+                }
+            }
+
+            advanced = admin.findCourseByCode("CS316");
+            if (!advanced.meetsPrerequisites(registry.getStudents().get(0))) {
+                throw new IllegalStateException("The benchmark students do not meet the prerequisites of CS316");
+            }
+        }
+
+        /**
+         * Gets an index that visits the population in a scattered order.
+         *
+         * @return The index of the next entity.
+         */
+
+        int next() {
+            return (int) ((cursor++ * 2654435761L) % population);
+        }
+    }
+
+    /**
+     * A new course to register the first students of the population for.
+     */
+
+    @State(Scope.Benchmark)
+    public static class Registration {
+        Course course;
+        int next;
+        private int iteration;
+
+        /**
+         * Creates the course for the coming iteration.
+         *
+         * @param state The population to register.
+         */
+
+        @Setup(Level.Iteration)
+        public void open(Population state) {
+            String courseCode = "R" + ++iteration;
+            state.admin.createCourse(courseCode, state.lecturer, new ArrayList<>(), 1);
+            course = state.admin.findCourseByCode(courseCode);
+            next = 0;
+        }
+    }
+
+    /**
+     * A CSV file holding the whole population, with the console muted while
+     * it is saved and loaded.
+     */
+
+    @State(Scope.Benchmark)
+    public static class Csv {
+        Path file;
+        private PrintStream console;
+
+        /**
+         * Creates the file and mutes the console.
+         *
+         * @param state The population to save.
+         * @throws IOException If the file cannot be created or written.
+         */
+
+        @Setup(Level.Trial)
+        public void create(Population state) throws IOException {
+            file = Files.createTempFile("university-bench", ".csv");
+            console = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            state.admin.saveToCSV(file.toString());
+        }
+
+        /**
+         * Deletes the file and restores the console.
+         *
+         * @throws IOException If the file cannot be deleted.
+         */
+
+        @TearDown(Level.Trial)
+        public void delete() throws IOException {
+            System.setOut(console);
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Benchmark
+    public boolean loginStudent(Population state) {
+        return state.admin.loginStudent(state.usernames[state.next()], PASSWORD) != null;
+    }
+
+    @Benchmark
+    public int findCourseByCode(Population state) {
+        return state.admin.findCourseByCode("C" + state.next()).getCredits();
+    }
+
+    @Benchmark
+    public String findLecturerByUsername(Population state) {
+        return state.admin.findLecturerByUsername("lecturer" + state.next()).getUsername();
+    }
+
+    @Benchmark
+    public boolean meetsPrerequisites(Population state) {
+        return state.advanced.meetsPrerequisites(state.registry.getStudents().get(state.next()));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 3, batchSize = REGISTRATIONS_PER_ITERATION)
+    @Measurement(iterations = 5, batchSize = REGISTRATIONS_PER_ITERATION)
+    public boolean registerForCourse(Population state, Registration registration) {
+        Student student = state.registry.getStudents().get(registration.next++ % state.population);
+        return state.admin.registerStudentForCourse(student, registration.course);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long saveToCSV(Population state, Csv csv) throws IOException {
+        state.admin.saveToCSV(csv.file.toString());
+        return Files.size(csv.file);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int loadFromCSV(Csv csv) {
+        return Admin.loadFromCSV(csv.file.toString()).getStudents().size();
+    }
+}